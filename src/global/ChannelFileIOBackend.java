@@ -0,0 +1,87 @@
+package global;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import global.FileIOBackend;
+
+/**
+ * Default FileIO backend : bulk channel reads and writes staged through a
+ * reusable per-thread direct buffer, so no temporary direct buffer as large
+ * as the request is allocated for every call.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class ChannelFileIOBackend implements FileIOBackend {
+
+    /** size of the per-thread staging buffer */
+    public static final int BUFFER_SIZE = 256 * 1024;
+
+    /** per-thread direct staging buffer */
+    private static final ThreadLocal<ByteBuffer> directBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+
+    @Override
+    public byte[] read(FileChannel channel, long position, int size) throws IOException {
+        long available = Math.max(0, channel.size() - position);
+        byte[] content = new byte[(int) Math.min(size, available)];
+        ByteBuffer buf = directBuffer.get();
+
+        int filled = 0;
+        while (filled < content.length) {
+            buf.clear();
+            buf.limit(Math.min(buf.capacity(), content.length - filled));
+            int n = channel.read(buf, position + filled);
+            if (n < 0) {
+                break;
+            }
+            buf.flip();
+            buf.get(content, filled, n);
+            filled += n;
+        }
+        if (filled < content.length) {
+            byte[] trimmed = new byte[filled];
+            System.arraycopy(content, 0, trimmed, 0, filled);
+            return trimmed;
+        }
+        return content;
+    }
+
+
+    @Override
+    public void write(FileChannel channel, long position, ByteBuffer src) throws IOException {
+        if (src.isDirect()) {
+            while (src.hasRemaining()) {
+                position += channel.write(src, position);
+            }
+            return;
+        }
+
+        ByteBuffer buf = directBuffer.get();
+        while (src.hasRemaining()) {
+            buf.clear();
+            ByteBuffer slice = src.duplicate();
+            slice.limit(slice.position() + Math.min(buf.capacity(), slice.remaining()));
+            buf.put(slice);
+            buf.flip();
+            int n = buf.remaining();
+            while (buf.hasRemaining()) {
+                position += channel.write(buf, position);
+            }
+            src.position(src.position() + n);
+        }
+    }
+
+
+    @Override
+    public String getName() {
+        return "channel";
+    }
+}
@@ -1,76 +1,91 @@
 package global;
 
-import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 
+import global.ChannelFileIOBackend;
+import global.FileIOBackend;
+import global.FileSplitScanner;
+import global.MappedFileIOBackend;
+
 /**
  * This class is a utility class for DFS I/O. This class provide the following
  * several methods : writeFile(String s), readFile(String filename),
  * writeBinary(byte[] bytes), readBinary(String filename), writeObject(Object
  * object), readConfig(String path)
+ *
+ * All reads and writes are bulk channel operations delegated to a pluggable
+ * FileIOBackend, selected by the "ioBackend" key of hdfs.conf.
  * 
  * @author Hang Yuan
  * @author Chuhan Yang
  */
 public class FileIO {
+
+    /** current I/O backend */
+    private static volatile FileIOBackend backend = new ChannelFileIOBackend();
+
+
+    /**
+     * Select the I/O backend.
+     * @param name String "channel" (default) or "mmap"
+     */
+    public static void setBackend(String name) {
+        if (name == null || name.equals("channel")) {
+            backend = new ChannelFileIOBackend();
+        }
+        else if (name.equals("mmap")) {
+            backend = new MappedFileIOBackend();
+        }
+        else {
+            System.err.println("[Error**] Unknown I/O backend " + name + ", using channel");
+            backend = new ChannelFileIOBackend();
+            return;
+        }
+        System.out.println("[LOG] Using " + backend.getName() + " I/O backend");
+    }
+
+
+    /**
+     * @return FileIOBackend the current I/O backend
+     */
+    public static FileIOBackend getBackend() {
+        return backend;
+    }
+
     
     /**
      * Read a file into 
      * 
      * @param filename String The file you need to read
-     * @return byte[] The return type is byte array
+     * @return byte[] The return type is byte array, null if the file does not exist
      * @throws IOException
      */
     public static byte[] readFile(String filename) throws IOException {
-        int index = filename.length() - 1;
-        while(index >= 0 && filename.charAt(index) != '/') {
-            index--;
-        }
-        String dir = filename.substring(0, index);
-        
-        /* create dir if necessary */
-        File fileDir = new File(dir);
-        if(!fileDir.exists()) {
-            System.out.println("create dir: " + dir);
-            fileDir.mkdirs();
-        }
-        
         File file = new File(filename);
         if (!file.exists()) {
             System.err.println("[Error**] File " + filename + " does not exist!");
             return null;
         }
 
-        FileInputStream fis = null;
-        byte[] content = new byte[(int)file.length()];
-        try {
-            fis = new FileInputStream(file);
-            fis.read(content);
-        }
-        catch (FileNotFoundException e) {
-            throw new IOException(e.toString());
-        }
-        catch (IOException e) {
-            throw new IOException(e.toString());
-        }
-        finally {
-            try {
-                fis.close();
-            } catch (IOException e) {
-                throw new IOException(e.toString());
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File " + filename + " is too large to read into memory");
             }
+            byte[] content = backend.read(channel, 0, (int) size);
+            if (content.length != size) {
+                throw new IOException("Short read on " + filename + ": " + content.length + " of " + size);
+            }
+            return content;
         }
-        return content;
     }
 
 
@@ -147,48 +162,12 @@ public class FileIO {
      * @throws IOException 
      */
     public static void writeFile(byte[] buf, String filename) throws IOException {
-        int index = filename.length() - 1;
-        while(index >= 0 && filename.charAt(index) != '/') {
-            index--;
-        }
-        String dir = filename.substring(0, index);
-        
-        /* create dir if necessary */
-        File fileDir = new File(dir);
-        if(!fileDir.exists()) {
-            System.out.println("create dir: " + dir);
-            fileDir.mkdirs();
-        }
-        
-        /* if file does not exist, create it */
         File file = new File(filename);
-        if (!file.exists()) {
-            try {
-                file.createNewFile();
-            } catch (IOException e) {
-                throw new IOException(e.toString());
-            }
-        }
+        createParentDir(file);
 
-        /* write file */
-        FileOutputStream fos = null;
-        try {
-            fos = new FileOutputStream(file);
-            fos.write(buf);
-        }
-        catch (FileNotFoundException e) {
-            throw new IOException(e.toString());
-        }
-        catch (IOException e) {
-            throw new IOException(e.toString());
-        }
-        finally {
-            try {
-                fos.close();
-            }
-            catch (IOException e) {
-                throw new IOException(e.toString());
-            }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            backend.write(channel, 0, ByteBuffer.wrap(buf));
         }
     }
 
@@ -214,38 +193,12 @@ public class FileIO {
      * @throws IOException
      */
     public static void appendFile(String filePath, byte[] content) throws IOException {
-        int index = filePath.length() - 1;
-        while(index >= 0 && filePath.charAt(index) != '/') {
-            index--;
-        }
-        String dir = filePath.substring(0, index);
-        
-        File fileDir = new File(dir);
-        if(!fileDir.exists()) {
-            System.out.println("create dir: " + dir);
-            fileDir.mkdirs();
-        }
-        
         File file = new File(filePath);
-        if (!file.exists()) {
-            try {
-                file.createNewFile();
-            }
-            catch (IOException e) {
-                throw new IOException(e.toString());
-            }
-        }
-        
-        try {
-            FileWriter out = null;
-            out = new FileWriter(file, true);
-            for (byte b : content)
-                out.append((char) b);
-            out.close();
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            throw e;
+        createParentDir(file);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            backend.write(channel, channel.size(), ByteBuffer.wrap(content));
         }
     }
 
@@ -256,8 +209,10 @@ public class FileIO {
      */
     public static void deleteFile(String filePath) throws IOException{
         File file = new File(filePath);
-        if (!file.exists()) {
-	        file.delete();
+        if (file.exists()) {
+            if (!file.delete()) {
+                throw new IOException("Cannot delete " + filePath);
+            }
         }
         else {
         	System.err.println("[Error**] No file " + filePath + " found");
@@ -265,86 +220,41 @@ public class FileIO {
         return;
     }
 
-    
 
+    /**
+     * Create the parent directory of a file if necessary.
+     * @param file File The file to be written.
+     */
+    private static void createParentDir(File file) {
+        File fileDir = file.getAbsoluteFile().getParentFile();
+        if (fileDir != null && !fileDir.exists()) {
+            System.out.println("create dir: " + fileDir.getPath());
+            fileDir.mkdirs();
+        }
+    }
 
 
-    //////////////////////////////////////////// TODO ////////////////////////////////////////////////
     /**
      * Read a chunk from a local file.
      * @param file RandomAccessFile The file to be read.
      * @param startPosition Long The starting point of this chunk.
      * @param size int The size of this chunk. 
-     * @return bytep[] Content of this chunk.
+     * @return bytep[] Content of this chunk, shorter than size if the file ends first.
      * @throws IOException
      */
     public static byte[] readChunk(RandomAccessFile file, long startPosition, int size) throws IOException {
-        byte tmp = -1;
-        byte[] chunk = new byte[size];
-        int index = 0;
-        file.seek(startPosition);
-        
-        try {
-            while (index < size && (tmp = file.readByte()) != -1) {
-                chunk[index++] = tmp;
-            }
-        } catch (EOFException e) {
-        }
-        return chunk;
+        return backend.read(file.getChannel(), startPosition, size);
     }
     
     /**
      * Calculate how many splits are there for a specific file. It contains the starting point and EOF.
+     * Every chunk ends on a line boundary and is at most chunkSize bytes long.
      * @param filePath String The path of the file.
      * @param chunkSize String The chunk size to be used.
      * @return ArrayList<Long> An array indicates all the offsets of start points of chunks.
      * @throws IOException
      */
     public static ArrayList<Long> calculateFileSplit(String filePath, int chunkSize) throws IOException {
-        RandomAccessFile raFile = null;
-        ArrayList<Long> split = new ArrayList<Long>();
-        try {
-            raFile = new RandomAccessFile(filePath, "r");
-            long currentPointer = 0L;
-            long fileSize = raFile.length();
-            String tmp = null;
-            Long lastPointer = 0L;
-            split.add(0L);
-            System.out.println("Start scanning file...");
-            do {
-                tmp = raFile.readLine();
-                if (tmp != null) {
-                    tmp += '\n';
-                    int increment = tmp.getBytes().length;
-                    if (increment > chunkSize) {
-                        throw new IOException("Data row is too long...");
-                    }
-                    if (currentPointer - lastPointer + increment <= chunkSize) { 
-                        currentPointer += increment;
-                    } else {
-                        split.add(currentPointer);            //starting point of next chunk
-                        System.out.println("Scanning file... " + (int)((1.0d * currentPointer / fileSize) * 100) + "% finished.");
-                        lastPointer = currentPointer;
-                        currentPointer += increment;
-                    }
-                } else {    //reach the end of file
-                    if (tmp == null && currentPointer != lastPointer) {
-                        split.add(currentPointer);
-                        System.out.println("Finished scanning file.");
-                    }
-                }
-            } while (tmp != null);
-        } catch (FileNotFoundException e) {
-            throw new IOException(e.toString());
-        } catch (IOException e) {
-            throw new IOException(e.toString());
-        } finally {
-            try {
-                raFile.close();
-            } catch (IOException e) {
-                throw new IOException(e.toString());
-            }
-        }
-        return split;
+        return new FileSplitScanner(filePath, chunkSize).scan();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,39 @@
+package global;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * I/O strategy behind the FileIO helpers. The backend is selected with the
+ * "ioBackend" key of hdfs.conf, see FileIO.setBackend(String).
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public interface FileIOBackend {
+
+    /**
+     * Read a region of a file.
+     * @param channel FileChannel The file to read from.
+     * @param position long The offset to start reading at.
+     * @param size int The max number of bytes to read.
+     * @return byte[] The bytes read, shorter than size if the file ends first.
+     * @throws IOException
+     */
+    public byte[] read(FileChannel channel, long position, int size) throws IOException;
+
+    /**
+     * Write the remaining bytes of a buffer to a file.
+     * @param channel FileChannel The file to write to.
+     * @param position long The offset to start writing at.
+     * @param buf ByteBuffer The content, between position and limit.
+     * @throws IOException
+     */
+    public void write(FileChannel channel, long position, ByteBuffer buf) throws IOException;
+
+    /**
+     * @return String name of the backend as used in hdfs.conf
+     */
+    public String getName();
+}
@@ -0,0 +1,252 @@
+package global;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Record-aligned file split calculator backing FileIO.calculateFileSplit.
+ *
+ * The file is memory-mapped and cut into regions. A chunk always ends right
+ * after the last newline that fits into it, so the boundary following b is
+ * found by scanning backwards from b + chunkSize; only the tail of every
+ * chunk is ever touched. Each region computes a speculative boundary chain in
+ * a fork/join task, starting at the first line start inside the region. The
+ * regions are then stitched in order: the true chain is stepped forward from
+ * the previous region until it lands on a speculative boundary, after which
+ * the rest of that region's chain is identical and is taken as is.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class FileSplitScanner {
+
+    /** bytes covered by one mapping */
+    private static final int MAP_SHIFT = 30;
+    private static final long MAP_SIZE = 1L << MAP_SHIFT;
+    /** smallest region handed to one task */
+    private static final long MIN_REGION_SIZE = 8L * 1024 * 1024;
+    /** min interval between two progress messages in milliseconds */
+    private static final long PROGRESS_INTERVAL = 1000;
+
+    private String filePath;
+    private int chunkSize;
+    private long fileSize;
+    private MappedByteBuffer[] maps;
+
+    /** bytes of the file covered by finished regions */
+    private long scanned;
+    /** time of the last progress message */
+    private long lastReport;
+
+
+    /**
+     * Constructor
+     * @param filePath String The path of the file.
+     * @param chunkSize int The max chunk size.
+     */
+    public FileSplitScanner(String filePath, int chunkSize) {
+        this.filePath = filePath;
+        this.chunkSize = chunkSize;
+    }
+
+
+    /**
+     * Calculate the chunk boundaries of the file.
+     * @return ArrayList<Long> offsets of the start points of chunks, followed by EOF.
+     * @throws IOException if a data row is longer than a chunk
+     */
+    public ArrayList<Long> scan() throws IOException {
+        ArrayList<Long> split = new ArrayList<Long>();
+        split.add(0L);
+
+        try (FileChannel channel = FileChannel.open(Paths.get(this.filePath), StandardOpenOption.READ)) {
+            this.fileSize = channel.size();
+            if (this.fileSize == 0) {
+                return split;
+            }
+
+            int mapNum = (int) ((this.fileSize + MAP_SIZE - 1) >>> MAP_SHIFT);
+            this.maps = new MappedByteBuffer[mapNum];
+            for (int i = 0; i < mapNum; i++) {
+                long start = (long) i << MAP_SHIFT;
+                this.maps[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                                           Math.min(MAP_SIZE, this.fileSize - start));
+            }
+
+            System.out.println("Start scanning file...");
+            int parallelism = ForkJoinPool.commonPool().getParallelism();
+            long regionSize = Math.max(Math.max(MIN_REGION_SIZE, 4L * this.chunkSize),
+                                       this.fileSize / (4L * parallelism) + 1);
+            int regionNum = (int) ((this.fileSize + regionSize - 1) / regionSize);
+
+            /* phase 1 : speculative chains, one fork/join task per region */
+            Chain[] chains = new Chain[regionNum];
+            IOException[] error = new IOException[1];
+            ForkJoinPool.commonPool().invoke(new RegionTask(chains, error, regionSize, 0, regionNum));
+            if (error[0] != null) {
+                throw error[0];
+            }
+
+            /* phase 2 : stitch the regions in order */
+            long b = 0;
+            for (int r = 0; r < regionNum && b < this.fileSize; r++) {
+                long regionEnd = Math.min(this.fileSize, (r + 1) * regionSize);
+                Chain chain = chains[r];
+                while (b < regionEnd) {
+                    int index = chain.indexOf(b);
+                    if (index >= 0) {
+                        for (int i = index + 1; i < chain.size; i++) {
+                            split.add(chain.values[i]);
+                        }
+                        b = chain.values[chain.size - 1];
+                        break;
+                    }
+                    b = nextBoundary(b);
+                    split.add(b);
+                }
+            }
+        }
+        finally {
+            this.maps = null;
+        }
+        System.out.println("Finished scanning file.");
+        return split;
+    }
+
+
+    /**
+     * Find the start of the chunk following the chunk that starts at b.
+     * @param b long A line start.
+     * @return long The next chunk boundary, or EOF.
+     * @throws IOException if the line starting at b is longer than a chunk
+     */
+    private long nextBoundary(long b) throws IOException {
+        if (this.fileSize - b <= this.chunkSize) {
+            return this.fileSize;
+        }
+        for (long pos = b + this.chunkSize - 1; pos >= b; pos--) {
+            if (byteAt(pos) == '\n') {
+                return pos + 1;
+            }
+        }
+        throw new IOException("Data row is too long...");
+    }
+
+
+    /**
+     * Find the first line start at or after pos.
+     * @throws IOException if the line around pos is longer than a chunk
+     */
+    private long firstLineStart(long pos) throws IOException {
+        if (pos == 0 || byteAt(pos - 1) == '\n') {
+            return pos;
+        }
+        long limit = Math.min(this.fileSize, pos + this.chunkSize);
+        for (long i = pos; i < limit; i++) {
+            if (byteAt(i) == '\n') {
+                return i + 1;
+            }
+        }
+        if (limit == this.fileSize) {
+            return this.fileSize;
+        }
+        throw new IOException("Data row is too long...");
+    }
+
+
+    private byte byteAt(long pos) {
+        return this.maps[(int) (pos >>> MAP_SHIFT)].get((int) (pos & (MAP_SIZE - 1)));
+    }
+
+
+    /**
+     * Print progress at most once per PROGRESS_INTERVAL.
+     */
+    private synchronized void regionDone(long bytes) {
+        this.scanned += bytes;
+        long now = System.currentTimeMillis();
+        if (now - this.lastReport >= PROGRESS_INTERVAL) {
+            this.lastReport = now;
+            System.out.println("Scanning file... " + (int) ((100.0d * this.scanned) / this.fileSize) + "% finished.");
+        }
+    }
+
+
+    /**
+     * Speculative boundary chain of a region : every boundary from the first
+     * line start of the region up to the first boundary at or past its end.
+     */
+    private static class Chain {
+        long[] values = new long[16];
+        int size;
+
+        void add(long value) {
+            if (this.size == this.values.length) {
+                this.values = Arrays.copyOf(this.values, this.size * 2);
+            }
+            this.values[this.size++] = value;
+        }
+
+        int indexOf(long value) {
+            int index = Arrays.binarySearch(this.values, 0, this.size, value);
+            return index >= 0 ? index : -1;
+        }
+    }
+
+
+    /**
+     * Fork/join task computing the speculative chains of regions [lo, hi).
+     */
+    private class RegionTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private Chain[] chains;
+        private IOException[] error;
+        private long regionSize;
+        private int lo;
+        private int hi;
+
+        RegionTask(Chain[] chains, IOException[] error, long regionSize, int lo, int hi) {
+            this.chains = chains;
+            this.error = error;
+            this.regionSize = regionSize;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.hi - this.lo > 1) {
+                int mid = (this.lo + this.hi) >>> 1;
+                invokeAll(new RegionTask(this.chains, this.error, this.regionSize, this.lo, mid),
+                          new RegionTask(this.chains, this.error, this.regionSize, mid, this.hi));
+                return;
+            }
+
+            long start = this.lo * this.regionSize;
+            long end = Math.min(fileSize, start + this.regionSize);
+            Chain chain = new Chain();
+            try {
+                long b = firstLineStart(start);
+                chain.add(b);
+                while (b < end) {
+                    b = nextBoundary(b);
+                    chain.add(b);
+                }
+            }
+            catch (IOException e) {
+                synchronized (this.error) {
+                    this.error[0] = e;
+                }
+            }
+            this.chains[this.lo] = chain;
+            regionDone(end - start);
+        }
+    }
+}
@@ -23,8 +23,6 @@ public class HDFSConf {
     
     public static String DATA_NODE_SERVICE_NAME = "DataNode";
 
-    public static int CHUNK_SIZE = 4096;
-    
     public static long HEART_BEAT_FREQ = 1;
     
     public static long SYSTEM_CHECK_PERIOD = 20;
@@ -0,0 +1,42 @@
+package global;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import global.ChannelFileIOBackend;
+
+/**
+ * FileIO backend that serves reads from memory-mapped file regions, which
+ * lets repeated reads of hot chunk files come from the page cache without a
+ * read syscall. Writes go through the channel backend.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class MappedFileIOBackend extends ChannelFileIOBackend {
+
+    /** regions smaller than this are cheaper to read than to map */
+    public static final int MIN_MAP_SIZE = 16 * 1024;
+
+
+    @Override
+    public byte[] read(FileChannel channel, long position, int size) throws IOException {
+        long available = Math.max(0, channel.size() - position);
+        int length = (int) Math.min(size, available);
+        if (length < MIN_MAP_SIZE) {
+            return super.read(channel, position, size);
+        }
+
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        byte[] content = new byte[length];
+        mapped.get(content);
+        return content;
+    }
+
+
+    @Override
+    public String getName() {
+        return "mmap";
+    }
+}
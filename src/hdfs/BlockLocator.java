@@ -0,0 +1,147 @@
+package hdfs;
+
+import java.io.FileNotFoundException;
+import java.rmi.RemoteException;
+
+import hdfs.FSDirectory;
+import hdfs.HDFSCommon;
+import hdfs.LocatedBlocks;
+import hdfs.MetadataCache;
+import hdfs.NameNodeInterface;
+
+/**
+ * Fetches the chunk locations of a file from NameNode as it is read.
+ * Locations come in windows of a few chunks; a window is only asked for
+ * once a read reaches an offset the current one does not cover, so opening
+ * a large file costs a single small call, and none at all when the window
+ * is in the metadata cache.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class BlockLocator {
+
+    /** NameNode serving the locations */
+    private NameNodeInterface nameNode;
+    /** cache windows are looked up in first, null for none */
+    private MetadataCache cache;
+    /** HDFS file name, normalized as NameNode stores it so chunk names match the DataNodes */
+    private String fileName;
+    /** number of chunks located per call */
+    private int prefetch;
+    /** current window */
+    private LocatedBlocks window;
+    /** set once a window came from the cache rather than NameNode */
+    private boolean cached;
+
+
+    /**
+     * Open a file, fetching the locations of its first chunks.
+     * @param nameNode NameNodeInterface The NameNode to ask.
+     * @param cache MetadataCache The cache to look windows up in first, null for none.
+     * @param fileName String The HDFS file name.
+     * @param prefetch int The number of chunks located per call.
+     * @throws FileNotFoundException if the file does not exist
+     * @throws RemoteException
+     */
+    public BlockLocator(NameNodeInterface nameNode, MetadataCache cache, String fileName, int prefetch)
+        throws FileNotFoundException, RemoteException
+    {
+        this.nameNode = nameNode;
+        this.cache = cache;
+        this.fileName = FSDirectory.normalize(fileName);
+        this.prefetch = (prefetch <= 0) ? 1 : Math.min(prefetch, HDFSCommon.MAX_LOCATED_CHUNKS);
+        this.window = fetch(0);
+    }
+
+
+    /** get the HDFS file name */
+    public String getFileName() {
+        return this.fileName;
+    }
+
+
+    /** get the file size */
+    public long getFileSize() {
+        return this.window.getFileSize();
+    }
+
+
+    /** get the number of chunks of the file */
+    public int getChunkCount() {
+        return this.window.getChunkCount();
+    }
+
+
+    /**
+     * Get the window holding a byte of the file, asking NameNode for the
+     * next chunks if the current window does not cover it.
+     * @param offset long The offset of the byte in the file.
+     * @return LocatedBlocks a window in which find(offset) succeeds,
+     *         or an empty one if offset is past the end of the file
+     * @throws FileNotFoundException if the file was deleted meanwhile
+     * @throws RemoteException
+     */
+    public LocatedBlocks locate(long offset) throws FileNotFoundException, RemoteException {
+        if (this.window.find(offset) < 0 && offset < this.window.getFileSize()) {
+            this.window = fetch(offset);
+        }
+        return this.window;
+    }
+
+
+    /**
+     * @return boolean true if some of the locations came from the cache, and may be stale
+     */
+    public boolean isCached() {
+        return this.cached;
+    }
+
+
+    /**
+     * Drop the cached locations of the file after a read failed on one of
+     * them. Called from download threads.
+     */
+    public void invalidate() {
+        if (this.cache != null) {
+            this.cache.invalidate(this.fileName);
+        }
+    }
+
+
+    /**
+     * Ask NameNode again for the locations around a byte, after a read failed
+     * on all the replicas of a window that came from the cache.
+     * @param offset long The offset of the byte in the file.
+     * @return LocatedBlocks the new window
+     * @throws FileNotFoundException if the file was deleted meanwhile
+     * @throws RemoteException
+     */
+    public LocatedBlocks refresh(long offset) throws FileNotFoundException, RemoteException {
+        invalidate();
+        this.window = fetch(offset);
+        this.cached = false;
+        return this.window;
+    }
+
+
+    /**
+     * Get the window of prefetch chunks starting at the chunk holding a byte,
+     * counted in chunks so the block size of the file need not be known.
+     */
+    private LocatedBlocks fetch(long offset) throws FileNotFoundException, RemoteException {
+        LocatedBlocks blocks = (this.cache == null) ? null : this.cache.get(this.fileName, offset);
+        if (blocks != null) {
+            this.cached = true;
+            return blocks;
+        }
+        blocks = this.nameNode.getBlockLocations(this.fileName, offset, this.prefetch);
+        if (blocks == null) {
+            throw new FileNotFoundException("File " + this.fileName + " does not exist on HDFS");
+        }
+        if (this.cache != null) {
+            this.cache.put(blocks);
+        }
+        return blocks;
+    }
+}
@@ -0,0 +1,170 @@
+package hdfs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ThreadLocalRandom;
+
+import hdfs.DataNodeInfo;
+import hdfs.DataNodeStats;
+
+/**
+ * Load and capacity aware chunk placement.
+ *
+ * Every DataNode gets a weight from its last heartbeat : the more free space,
+ * the fewer writes in flight and the lower the recent write latency, the
+ * heavier. Replicas of a chunk are drawn by weighted random sampling without
+ * replacement. Each time a node is picked its weight for the rest of the file
+ * is divided down, so consecutive chunks of a file are striped over the
+ * cluster instead of piling up on the best nodes.
+ *
+ * Weights are kept in a Fenwick tree, so a draw costs O(log n) and placing a
+ * file costs O(n + chunks * replicas * log n) with n DataNodes.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class BlockPlacement {
+
+    /** nodes that have not sent stats yet are treated as half full and idle */
+    private static final double UNKNOWN_FREE_RATIO = 0.5;
+
+
+    /**
+     * Choose the replica DataNodes of every chunk of a new file.
+     * @param dataNodes Collection The registered DataNodes.
+     * @param chunkCount int The number of chunks of the file.
+     * @param replicaNum int The number of replicas of each chunk.
+     * @param blockSize long The block size of the file; nodes with less free space are skipped.
+     * @return ArrayList one replica pipeline per chunk, or null if no DataNode can take the file
+     */
+    public ArrayList<ArrayList<DataNodeInfo>> place(Collection<DataNodeInfo> dataNodes, int chunkCount,
+                                                    int replicaNum, long blockSize)
+    {
+        DataNodeInfo[] nodes = dataNodes.toArray(new DataNodeInfo[0]);
+        double[] weights = new double[nodes.length];
+        double latencySum = 0;
+        int latencyCount = 0;
+        for (DataNodeInfo node : nodes) {
+            DataNodeStats stats = node.stats;
+            if (stats != null && stats.writeLatency > 0) {
+                latencySum += stats.writeLatency;
+                latencyCount++;
+            }
+        }
+        double avgLatency = (latencyCount == 0) ? 0 : latencySum / latencyCount;
+
+        int eligible = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            weights[i] = weight(nodes[i].stats, blockSize, avgLatency);
+            if (weights[i] > 0) {
+                eligible++;
+            }
+        }
+        if (eligible == 0) {
+            return null;
+        }
+
+        int replicas = Math.min(replicaNum, eligible);
+        WeightTree tree = new WeightTree(weights);
+        int[] uses = new int[nodes.length];
+        int[] picked = new int[replicas];
+        ArrayList<ArrayList<DataNodeInfo>> placement = new ArrayList<ArrayList<DataNodeInfo>>(chunkCount);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        for (int c = 0; c < chunkCount; c++) {
+            ArrayList<DataNodeInfo> pipeline = new ArrayList<DataNodeInfo>(replicas);
+            /* without replacement : zero a node out once drawn for this chunk */
+            for (int r = 0; r < replicas; r++) {
+                int i = tree.find(random.nextDouble() * tree.total());
+                picked[r] = i;
+                tree.set(i, 0);
+                pipeline.add(nodes[i]);
+            }
+            /* put the drawn nodes back, damped by how often the file already uses them */
+            for (int r = 0; r < replicas; r++) {
+                int i = picked[r];
+                uses[i]++;
+                tree.set(i, weights[i] / (1 + uses[i]));
+            }
+            placement.add(pipeline);
+        }
+        return placement;
+    }
+
+
+    /**
+     * Placement weight of a DataNode.
+     * @return double the weight, 0 if the node cannot take a block
+     */
+    private static double weight(DataNodeStats stats, long blockSize, double avgLatency) {
+        if (stats == null) {
+            return UNKNOWN_FREE_RATIO;
+        }
+        if (stats.remaining < blockSize) {
+            return 0;
+        }
+        double free = (stats.capacity > 0) ? (double) stats.remaining / stats.capacity : UNKNOWN_FREE_RATIO;
+        double load = 1.0 / (1 + stats.inFlightWrites);
+        double speed = (avgLatency > 0) ? avgLatency / (avgLatency + stats.writeLatency) : 1.0;
+        return free * load * speed;
+    }
+
+
+    /**
+     * Fenwick tree of non-negative weights supporting point updates and
+     * prefix-sum search in O(log n).
+     */
+    private static class WeightTree {
+        private double[] tree;
+        private double[] values;
+        private int size;
+
+        WeightTree(double[] weights) {
+            this.size = weights.length;
+            this.tree = new double[this.size + 1];
+            this.values = new double[this.size];
+            for (int i = 0; i < this.size; i++) {
+                set(i, weights[i]);
+            }
+        }
+
+        void set(int i, double value) {
+            double delta = value - this.values[i];
+            this.values[i] = value;
+            for (int j = i + 1; j <= this.size; j += j & -j) {
+                this.tree[j] += delta;
+            }
+        }
+
+        double total() {
+            double sum = 0;
+            for (int j = this.size; j > 0; j -= j & -j) {
+                sum += this.tree[j];
+            }
+            return sum;
+        }
+
+        /**
+         * @return int the index i such that prefix(i) <= target < prefix(i + 1)
+         */
+        int find(double target) {
+            int pos = 0;
+            int step = Integer.highestOneBit(Math.max(1, this.size));
+            for (; step > 0; step >>= 1) {
+                int next = pos + step;
+                if (next <= this.size && this.tree[next] <= target) {
+                    pos = next;
+                    target -= this.tree[next];
+                }
+            }
+            /* rounding may land on a zero weight node at the end; step back to a live one */
+            while (pos > 0 && (pos >= this.size || this.values[pos] == 0)) {
+                pos--;
+            }
+            while (pos < this.size - 1 && this.values[pos] == 0) {
+                pos++;
+            }
+            return pos;
+        }
+    }
+}
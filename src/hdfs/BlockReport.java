@@ -0,0 +1,164 @@
+package hdfs;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Chunks a DataNode reports to the NameNode.
+ *
+ * An incremental report lists, in order, the chunks added to and removed from
+ * the DataNode since its previous report. A full report lists every chunk the
+ * DataNode holds and replaces what the NameNode knew about it.
+ *
+ * Entries are kept in parallel primitive arrays with file names stored once,
+ * so a report of a million chunks stays a few megabytes on the wire.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class BlockReport implements Serializable {
+
+    /** serial Version UID */
+    private static final long serialVersionUID = -3702266389817530962L;
+
+    /** entry op : the chunk is stored on the DataNode */
+    public static final byte ADDED = 1;
+    /** entry op : the chunk was deleted from the DataNode */
+    public static final byte REMOVED = 2;
+
+    /** true for a full report */
+    private boolean full;
+    /** file names referenced by the entries */
+    private String[] fileNames;
+    private byte[] ops;
+    private int[] files;
+    private int[] chunkNums;
+    private long[] lengths;
+    /** generation stamps the chunks are stored with */
+    private long[] generations;
+    private int size;
+
+
+    private BlockReport(boolean full) {
+        this.full = full;
+    }
+
+
+    /** @return true for a full report */
+    public boolean isFull() {
+        return this.full;
+    }
+
+    /** @return int the number of entries */
+    public int size() {
+        return this.size;
+    }
+
+    public byte getOp(int i) {
+        return this.ops[i];
+    }
+
+    public String getFileName(int i) {
+        return this.fileNames[this.files[i]];
+    }
+
+    public int getChunkNum(int i) {
+        return this.chunkNums[i];
+    }
+
+    public long getLength(int i) {
+        return this.lengths[i];
+    }
+
+    public long getGeneration(int i) {
+        return this.generations[i];
+    }
+
+
+    /**
+     * Accumulates the entries of a report.
+     */
+    public static class Builder {
+        private BlockReport report;
+        private HashMap<String, Integer> fileIndex = new HashMap<String, Integer>();
+        private ArrayList<String> fileNames = new ArrayList<String>();
+
+        public Builder(boolean full) {
+            this.report = new BlockReport(full);
+            this.report.ops = new byte[16];
+            this.report.files = new int[16];
+            this.report.chunkNums = new int[16];
+            this.report.lengths = new long[16];
+            this.report.generations = new long[16];
+        }
+
+        public Builder added(String fileName, int chunkNum, long length, long generation) {
+            return add(ADDED, fileName, chunkNum, length, generation);
+        }
+
+        public Builder removed(String fileName, int chunkNum, long generation) {
+            return add(REMOVED, fileName, chunkNum, 0, generation);
+        }
+
+        private Builder add(byte op, String fileName, int chunkNum, long length, long generation) {
+            BlockReport r = this.report;
+            if (r.size == r.ops.length) {
+                int capacity = r.size * 2;
+                r.ops = Arrays.copyOf(r.ops, capacity);
+                r.files = Arrays.copyOf(r.files, capacity);
+                r.chunkNums = Arrays.copyOf(r.chunkNums, capacity);
+                r.lengths = Arrays.copyOf(r.lengths, capacity);
+                r.generations = Arrays.copyOf(r.generations, capacity);
+            }
+            Integer file = this.fileIndex.get(fileName);
+            if (file == null) {
+                file = this.fileNames.size();
+                this.fileIndex.put(fileName, file);
+                this.fileNames.add(fileName);
+            }
+            r.ops[r.size] = op;
+            r.files[r.size] = file;
+            r.chunkNums[r.size] = chunkNum;
+            r.lengths[r.size] = length;
+            r.generations[r.size] = generation;
+            r.size++;
+            return this;
+        }
+
+        /** @return true if no entry was added */
+        public boolean isEmpty() {
+            return this.report.size == 0;
+        }
+
+        /**
+         * Append the entries of an earlier builder in front of this one's,
+         * used to put back a report that could not be sent.
+         */
+        public void prepend(Builder earlier) {
+            Builder merged = new Builder(this.report.full);
+            for (Builder b : new Builder[] {earlier, this}) {
+                BlockReport r = b.report;
+                for (int i = 0; i < r.size; i++) {
+                    merged.add(r.ops[i], b.fileNames.get(r.files[i]), r.chunkNums[i], r.lengths[i],
+                               r.generations[i]);
+                }
+            }
+            this.report = merged.report;
+            this.fileIndex = merged.fileIndex;
+            this.fileNames = merged.fileNames;
+        }
+
+        public BlockReport build() {
+            BlockReport r = this.report;
+            r.ops = Arrays.copyOf(r.ops, r.size);
+            r.files = Arrays.copyOf(r.files, r.size);
+            r.chunkNums = Arrays.copyOf(r.chunkNums, r.size);
+            r.lengths = Arrays.copyOf(r.lengths, r.size);
+            r.generations = Arrays.copyOf(r.generations, r.size);
+            r.fileNames = this.fileNames.toArray(new String[0]);
+            return r;
+        }
+    }
+}
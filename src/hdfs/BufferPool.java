@@ -0,0 +1,74 @@
+package hdfs;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of direct buffers of one size, so input streams reuse the buffers
+ * they read into rather than allocating direct memory for every range.
+ * A buffer released while the pool is full is left to the garbage collector.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class BufferPool {
+
+    /** size of every buffer */
+    private int bufferSize;
+    /** max number of free buffers kept */
+    private int capacity;
+    /** free buffers, the most recently released first */
+    private ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+
+
+    /**
+     * Constructor
+     * @param bufferSize int The size of a buffer.
+     * @param capacity int The max number of free buffers kept.
+     */
+    public BufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+    }
+
+
+    /** get the size of a buffer */
+    public int getBufferSize() {
+        return this.bufferSize;
+    }
+
+
+    /**
+     * @return ByteBuffer a cleared buffer, from the pool or newly allocated
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buf = poll();
+        return (buf == null) ? ByteBuffer.allocateDirect(this.bufferSize) : buf;
+    }
+
+
+    /**
+     * @return ByteBuffer a cleared buffer from the pool, or null if none is free
+     */
+    public ByteBuffer poll() {
+        ByteBuffer buf;
+        synchronized (this) {
+            buf = this.free.poll();
+        }
+        if (buf != null) {
+            buf.clear();
+        }
+        return buf;
+    }
+
+
+    /**
+     * Give a buffer back. It must not be used by the caller any more.
+     * @param buf ByteBuffer A buffer from acquire().
+     */
+    public synchronized void release(ByteBuffer buf) {
+        if (buf.capacity() == this.bufferSize && this.free.size() < this.capacity) {
+            this.free.push(buf);
+        }
+    }
+}
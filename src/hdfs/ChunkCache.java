@@ -0,0 +1,273 @@
+package hdfs;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded cache of hot chunks on a DataNode.
+ *
+ * Chunk contents live off-heap in direct ByteBuffers, so a large cache does
+ * not add GC pressure. Eviction is segmented LRU: new chunks enter the
+ * probation segment and are only promoted to the protected segment when they
+ * are hit again, so a one-off scan over cold chunks cannot flush the chunks
+ * that are read over and over.
+ *
+ * A chunk read from disk is only inserted if its Validator still finds it
+ * stored, checked under the cache lock. Whoever removes a chunk from disk
+ * invalidates it here afterwards, so a read racing with a removal either
+ * inserts before the invalidation or sees the chunk gone, and the cache
+ * never keeps a removed chunk, nor an older chunk of the same name.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class ChunkCache {
+
+    /** share of the capacity reserved for the protected segment */
+    private static final double PROTECTED_RATIO = 0.8;
+    /** a single chunk takes at most this fraction (1/n) of the capacity */
+    private static final int ENTRY_SHARE = 8;
+
+    /** max bytes cached */
+    private long capacity;
+    /** max bytes in the protected segment */
+    private long protectedCapacity;
+    /** chunks bigger than this are never cached */
+    private long maxEntrySize;
+
+    /** chunks seen once, in LRU order */
+    private LinkedHashMap<String, ByteBuffer> probation = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+    /** chunks hit at least twice, in LRU order */
+    private LinkedHashMap<String, ByteBuffer> protectedSegment = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+    private long probationBytes;
+    private long protectedBytes;
+
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    private AtomicLong evictions = new AtomicLong();
+
+
+    /**
+     * Constructor
+     * @param capacity long Max number of bytes cached.
+     */
+    public ChunkCache(long capacity) {
+        this.capacity = capacity;
+        this.protectedCapacity = (long) (capacity * PROTECTED_RATIO);
+        this.maxEntrySize = capacity / ENTRY_SHARE;
+    }
+
+
+    /**
+     * Look up a chunk.
+     * @param filename String The name of the file.
+     * @param chunkNum int The chunk number.
+     * @return ByteBuffer read-only view of the chunk, or null on a miss
+     */
+    public synchronized ByteBuffer get(String filename, int chunkNum) {
+        String key = key(filename, chunkNum);
+        ByteBuffer buf = this.protectedSegment.get(key);
+        if (buf == null) {
+            buf = this.probation.remove(key);
+            if (buf == null) {
+                this.misses.incrementAndGet();
+                return null;
+            }
+            /* second hit : promote, demoting the protected LRU entries if full */
+            this.probationBytes -= buf.capacity();
+            this.protectedSegment.put(key, buf);
+            this.protectedBytes += buf.capacity();
+            while (this.protectedBytes > this.protectedCapacity && this.protectedSegment.size() > 1) {
+                Iterator<Map.Entry<String, ByteBuffer>> it = this.protectedSegment.entrySet().iterator();
+                Map.Entry<String, ByteBuffer> lru = it.next();
+                it.remove();
+                this.protectedBytes -= lru.getValue().capacity();
+                this.probation.put(lru.getKey(), lru.getValue());
+                this.probationBytes += lru.getValue().capacity();
+            }
+            evict();
+        }
+        this.hits.incrementAndGet();
+        return buf.asReadOnlyBuffer();
+    }
+
+
+    /**
+     * Checks that the chunk a cache entry was read from is still stored.
+     */
+    public interface Validator {
+        boolean isCurrent();
+    }
+
+
+    /**
+     * Add a chunk to the probation segment.
+     * @param filename String The name of the file.
+     * @param chunkNum int The chunk number.
+     * @param content ByteBuffer The chunk, between position and limit. It is copied off-heap.
+     * @param validator Validator Checks the chunk content was read from is still stored.
+     */
+    public void put(String filename, int chunkNum, ByteBuffer content, Validator validator) {
+        int length = content.remaining();
+        if (!admits(length)) {
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(length);
+        buf.put(content.duplicate());
+        buf.flip();
+        insert(filename, chunkNum, buf, validator);
+    }
+
+
+    /**
+     * Read a chunk from disk straight into an off-heap buffer and cache it.
+     * @param filename String The name of the file.
+     * @param chunkNum int The chunk number.
+     * @param channel FileChannel The file holding the chunk.
+     * @param offset long The offset of the chunk in the file.
+     * @param length long The length of the chunk.
+     * @param validator Validator Checks the chunk read is still stored.
+     * @return ByteBuffer read-only view of the loaded chunk, even if it was removed meanwhile
+     *         and not cached, or null if the chunk is too big to cache
+     * @throws IOException
+     */
+    public ByteBuffer load(String filename, int chunkNum, FileChannel channel, long offset, long length,
+                           Validator validator)
+        throws IOException
+    {
+        if (!admits(length)) {
+            return null;
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect((int) length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, offset + buf.position()) < 0) {
+                throw new IOException("Unexpected end of chunk " + key(filename, chunkNum));
+            }
+        }
+        buf.flip();
+        insert(filename, chunkNum, buf, validator);
+        return buf.asReadOnlyBuffer();
+    }
+
+
+    /**
+     * @return true if a chunk of this size may be cached
+     */
+    public boolean admits(long length) {
+        return length <= this.maxEntrySize;
+    }
+
+
+    /**
+     * Smallest capacity of a cache admitting chunks of the given size.
+     *
+     * @param chunkSize long Size of the largest chunk to cache.
+     * @return capacity in bytes
+     */
+    public static long capacityFor(long chunkSize) {
+        return chunkSize * ENTRY_SHARE;
+    }
+
+
+    /**
+     * Add an off-heap chunk to the probation segment, unless the chunk it
+     * was read from is gone.
+     */
+    private void insert(String filename, int chunkNum, ByteBuffer buf, Validator validator) {
+        int length = buf.capacity();
+        String key = key(filename, chunkNum);
+        synchronized (this) {
+            if (this.protectedSegment.containsKey(key) || this.probation.containsKey(key) || !validator.isCurrent()) {
+                return;
+            }
+            this.probation.put(key, buf);
+            this.probationBytes += length;
+            evict();
+        }
+    }
+
+
+    /**
+     * Drop a chunk from the cache.
+     */
+    public synchronized void invalidate(String filename, int chunkNum) {
+        String key = key(filename, chunkNum);
+        ByteBuffer buf = this.probation.remove(key);
+        if (buf != null) {
+            this.probationBytes -= buf.capacity();
+        }
+        buf = this.protectedSegment.remove(key);
+        if (buf != null) {
+            this.protectedBytes -= buf.capacity();
+        }
+    }
+
+
+    /**
+     * Evict from the probation LRU end first, then from the protected one.
+     */
+    private void evict() {
+        while (this.probationBytes + this.protectedBytes > this.capacity) {
+            LinkedHashMap<String, ByteBuffer> victims = this.probation.isEmpty() ? this.protectedSegment : this.probation;
+            Iterator<Map.Entry<String, ByteBuffer>> it = victims.entrySet().iterator();
+            ByteBuffer buf = it.next().getValue();
+            it.remove();
+            if (victims == this.probation) {
+                this.probationBytes -= buf.capacity();
+            }
+            else {
+                this.protectedBytes -= buf.capacity();
+            }
+            this.evictions.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * @return Stats snapshot of the cache counters
+     */
+    public synchronized Stats getStats() {
+        return new Stats(this.hits.get(), this.misses.get(), this.evictions.get(),
+                         this.probationBytes + this.protectedBytes, this.capacity);
+    }
+
+
+    private static String key(String filename, int chunkNum) {
+        return filename + "_" + chunkNum;
+    }
+
+
+    /**
+     * Snapshot of the cache counters.
+     */
+    public static class Stats implements Serializable {
+        private static final long serialVersionUID = 3356920741622359915L;
+        public long hits;
+        public long misses;
+        public long evictions;
+        public long usedBytes;
+        public long capacity;
+
+        public Stats(long hits, long misses, long evictions, long usedBytes, long capacity) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.usedBytes = usedBytes;
+            this.capacity = capacity;
+        }
+
+        @Override
+        public String toString() {
+            long lookups = this.hits + this.misses;
+            return String.format("hits=%d misses=%d hitRatio=%.2f evictions=%d used=%d/%d bytes",
+                                 this.hits, this.misses, lookups == 0 ? 0.0 : 1.0 * this.hits / lookups,
+                                 this.evictions, this.usedBytes, this.capacity);
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package hdfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import hdfs.BlockLocator;
+import hdfs.DataNodeInfo;
+import hdfs.DataTransferClient;
+import hdfs.HedgePolicy;
+import hdfs.LocatedBlocks;
+import hdfs.ReplicaSelector;
+import hdfs.Service;
+
+/**
+ * Parallel chunk download engine.
+ * Keeps up to "window" chunk reads in flight, spreads them over the replicas
+ * of each chunk by their expected service time and writes every chunk straight to its offset in the local
+ * file, so chunks may complete out of order. A chunk with a replica on this
+ * host is read short-circuit from the DataNode segment file when enabled.
+ * A streamed read still running after the hedge delay is sent to a second
+ * replica as well, and the first answer wins.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class ChunkDownloader {
+
+    /** max number of chunks in flight */
+    private int window;
+    /** download worker threads */
+    private ExecutorService workers;
+    /** whether replicas on this host are read short-circuit */
+    private boolean shortCircuit;
+    /** chunks read short-circuit */
+    private AtomicLong localReads = new AtomicLong();
+    /** chunks streamed from a DataNode */
+    private AtomicLong remoteReads = new AtomicLong();
+    /** threads of the streamed reads, each read and its hedge on their own */
+    private ExecutorService readers = Executors.newCachedThreadPool(Service.daemonThreads("ChunkReader"));
+    /** when to hedge a streamed read */
+    private HedgePolicy hedgePolicy;
+    /** order in which the replicas of a chunk are read */
+    private ReplicaSelector selector;
+
+
+    /**
+     * Constructor
+     * @param window int The number of chunks downloaded in parallel.
+     * @param shortCircuit boolean Whether replicas on this host are read straight from disk.
+     * @param hedgePolicy HedgePolicy When to send a slow read to a second replica.
+     * @param selector ReplicaSelector The order in which the replicas of a chunk are read.
+     */
+    public ChunkDownloader(int window, boolean shortCircuit, HedgePolicy hedgePolicy, ReplicaSelector selector) {
+        this.window = Math.max(1, window);
+        this.shortCircuit = shortCircuit;
+        this.hedgePolicy = hedgePolicy;
+        this.selector = selector;
+        this.workers = Executors.newFixedThreadPool(this.window, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ChunkDownloader");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+
+    /**
+     * Download all chunks of a file into a local file.
+     * Chunk locations are asked for as the download moves through the file,
+     * at most two windows of chunks being queued at any time.
+     * @param file BlockLocator The file and the source of its chunk locations.
+     * @param out FileChannel The local output file.
+     * @return long The size of the downloaded file.
+     * @throws IOException if any chunk could not be fetched from any replica
+     */
+    public long download(BlockLocator file, FileChannel out) throws IOException {
+        final String fileName = file.getFileName();
+        long fileSize = file.getFileSize();
+
+        ExecutorCompletionService<Long> completion = new ExecutorCompletionService<Long>(this.workers);
+        ArrayList<Future<Long>> pending = new ArrayList<Future<Long>>();
+        ArrayList<ChunkTask> tasks = new ArrayList<ChunkTask>();
+
+        /* transferFrom ignores positions past the end of the file, so size the
+         * output up front and trim it to the real length once all chunks landed */
+        if (fileSize > 0 && out.size() < fileSize) {
+            out.write(ByteBuffer.allocate(1), fileSize - 1);
+        }
+
+        long offset = 0;
+        long fileEnd = 0;
+        int inFlight = 0;
+        try {
+            while (offset < fileSize || inFlight > 0) {
+                while (offset < fileSize && inFlight < 2 * this.window) {
+                    LocatedBlocks blocks = file.locate(offset);
+                    int i = blocks.find(offset);
+                    if (i < 0) {
+                        /* the file shrank since it was opened */
+                        fileSize = offset;
+                        break;
+                    }
+                    ChunkTask task = new ChunkTask(file, blocks.getChunkNum(i), blocks.getReplicas(i), out, offset);
+                    tasks.add(task);
+                    pending.add(completion.submit(task));
+                    offset += blocks.getLength(i);
+                    inFlight++;
+                }
+                if (inFlight > 0) {
+                    fileEnd = Math.max(fileEnd, completion.take().get());
+                    inFlight--;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Download of " + fileName + " interrupted");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+        }
+        finally {
+            /* no interrupt : a thread interrupted in FileChannel I/O closes the shared output channel */
+            for (Future<Long> f : pending) {
+                f.cancel(false);
+            }
+            for (ChunkTask task : tasks) {
+                task.cancel();
+            }
+        }
+        out.truncate(fileEnd);
+        return fileEnd;
+    }
+
+
+    /** get the number of chunks read short-circuit */
+    public long getLocalReads() {
+        return this.localReads.get();
+    }
+
+
+    /** get the number of chunks streamed from a DataNode */
+    public long getRemoteReads() {
+        return this.remoteReads.get();
+    }
+
+
+    /**
+     * @return HedgePolicy.Stats the hedged read counters
+     */
+    public HedgePolicy.Stats getHedgeStats() {
+        return this.hedgePolicy.getStats();
+    }
+
+
+    /**
+     * Release the worker threads.
+     */
+    public void shutdown() {
+        this.workers.shutdownNow();
+        this.readers.shutdownNow();
+    }
+
+
+    /**
+     * Fetch one chunk, short-circuit from a replica on this host if there is
+     * one, else trying its replicas in the order of the replica selector,
+     * which spreads the read load over all replicas. The streamed reads
+     * run on reader threads while this task waits for the first answer, and
+     * hedges the read with the next replica once it is slower than the hedge
+     * delay.
+     */
+    private class ChunkTask implements Callable<Long> {
+        private BlockLocator file;
+        private String fileName;
+        private int chunkNum;
+        private ArrayList<DataNodeInfo> replicas;
+        private FileChannel out;
+        private long offset;
+        /** streamed reads running, guarded by itself */
+        private HashMap<Future<Long>, Attempt> running = new HashMap<Future<Long>, Attempt>();
+        private volatile boolean cancelled;
+
+        ChunkTask(BlockLocator file, int chunkNum, ArrayList<DataNodeInfo> replicas, FileChannel out, long offset) {
+            this.file = file;
+            this.fileName = file.getFileName();
+            this.chunkNum = chunkNum;
+            this.replicas = replicas;
+            this.out = out;
+            this.offset = offset;
+        }
+
+        /** @return long end offset of the chunk in the local file */
+        @Override
+        public Long call() throws IOException {
+            String chunkName = this.fileName + "_" + this.chunkNum;
+            IOException lastError = new IOException("No replica for " + chunkName);
+            if (ChunkDownloader.this.shortCircuit) {
+                for (DataNodeInfo dataNodeInfo : this.replicas) {
+                    if (!DataTransferClient.isLocal(dataNodeInfo)) {
+                        continue;
+                    }
+                    try {
+                        long copied = DataTransferClient.readChunkLocal(dataNodeInfo, this.fileName,
+                                this.chunkNum, this.out, this.offset);
+                        ChunkDownloader.this.localReads.incrementAndGet();
+                        System.out.println("[LOG] Fetched chunk " + chunkName + " short-circuit");
+                        return this.offset + copied;
+                    }
+                    catch (IOException e) {
+                        /* fall back to streaming it */
+                        System.err.println("[Error**] Short-circuit read of " + chunkName + " failed : "
+                                           + e.getMessage());
+                    }
+                }
+            }
+            return readRemote(chunkName, lastError);
+        }
+
+
+        /**
+         * Stream the chunk from its replicas, one at a time but for a hedge.
+         * @return long end offset of the chunk in the local file
+         * @throws IOException if every replica failed
+         */
+        private long readRemote(String chunkName, IOException lastError) throws IOException {
+            HedgePolicy policy = ChunkDownloader.this.hedgePolicy;
+            ExecutorCompletionService<Long> completion =
+                new ExecutorCompletionService<Long>(ChunkDownloader.this.readers);
+            ArrayList<DataNodeInfo> ordered = ChunkDownloader.this.selector.order(this.replicas);
+            int n = ordered.size();
+            int next = 0;
+            boolean hedged = false;
+            try {
+                while (next < n || !isIdle()) {
+                    if (isIdle()) {
+                        startAttempt(completion, ordered.get(next++), false);
+                    }
+                    long delay = (hedged || next >= n) ? -1 : policy.getDelay();
+                    Future<Long> done;
+                    if (delay < 0) {
+                        done = completion.take();
+                    }
+                    else {
+                        done = completion.poll(delay, TimeUnit.MILLISECONDS);
+                        if (done == null) {
+                            /* one hedge per chunk, and only while the budget allows */
+                            hedged = true;
+                            if (policy.tryHedge()) {
+                                System.out.println("[LOG] Hedging read of " + chunkName + " after " + delay + " ms");
+                                startAttempt(completion, ordered.get(next++), true);
+                            }
+                            continue;
+                        }
+                    }
+
+                    Attempt attempt;
+                    synchronized (this.running) {
+                        attempt = this.running.remove(done);
+                    }
+                    try {
+                        long received = done.get();
+                        policy.record(System.currentTimeMillis() - attempt.start);
+                        if (attempt.hedge) {
+                            policy.hedgeWon();
+                        }
+                        ChunkDownloader.this.remoteReads.incrementAndGet();
+                        System.out.println("[LOG] Fetched chunk " + chunkName);
+                        return this.offset + received;
+                    }
+                    catch (ExecutionException e) {
+                        if (this.cancelled) {
+                            throw new IOException("Read of " + chunkName + " cancelled");
+                        }
+                        DataNodeInfo dataNodeInfo = attempt.dataNode;
+                        System.err.println("[Error**] Failed fetching " + chunkName + " from "
+                                           + dataNodeInfo.registryIP + ":" + dataNodeInfo.transferPort);
+                        /* the location may be stale, the next open of the file asks NameNode again */
+                        this.file.invalidate();
+                        Throwable cause = e.getCause();
+                        lastError = (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Read of " + chunkName + " interrupted");
+            }
+            finally {
+                /* the losers write the same bytes at the same offset, they only need to stop */
+                cancelAttempts();
+            }
+            throw lastError;
+        }
+
+
+        /**
+         * Stop the task : its streamed reads are cancelled and no other is started.
+         */
+        void cancel() {
+            this.cancelled = true;
+            cancelAttempts();
+        }
+
+
+        private void cancelAttempts() {
+            synchronized (this.running) {
+                for (Attempt attempt : this.running.values()) {
+                    attempt.cancel();
+                }
+            }
+        }
+
+
+        private boolean isIdle() {
+            synchronized (this.running) {
+                return this.running.isEmpty();
+            }
+        }
+
+
+        private void startAttempt(ExecutorCompletionService<Long> completion, DataNodeInfo replica, boolean hedge)
+            throws IOException
+        {
+            Attempt attempt = new Attempt(replica, hedge);
+            synchronized (this.running) {
+                /* checked under the lock cancel() takes, so an attempt is never left running */
+                if (this.cancelled) {
+                    throw new IOException("Read of " + this.fileName + "_" + this.chunkNum + " cancelled");
+                }
+                this.running.put(completion.submit(attempt), attempt);
+            }
+        }
+
+
+        /**
+         * One streamed read of the chunk from one replica, cancelled by
+         * closing its connection.
+         */
+        private class Attempt implements Callable<Long> {
+            private DataNodeInfo dataNode;
+            private boolean hedge;
+            private long start = System.currentTimeMillis();
+            private volatile SocketChannel channel;
+            private volatile boolean cancelled;
+
+            Attempt(DataNodeInfo dataNode, boolean hedge) {
+                this.dataNode = dataNode;
+                this.hedge = hedge;
+            }
+
+            /** @return long the number of bytes received */
+            @Override
+            public Long call() throws IOException {
+                ReplicaSelector selector = ChunkDownloader.this.selector;
+                selector.readStarted(this.dataNode);
+                boolean failed = true;
+                try {
+                    this.channel = DataTransferClient.connect(this.dataNode);
+                    try {
+                        if (this.cancelled) {
+                            throw new IOException("Read cancelled");
+                        }
+                        long received = DataTransferClient.readChunk(this.channel, ChunkTask.this.fileName,
+                                ChunkTask.this.chunkNum, ChunkTask.this.out, ChunkTask.this.offset);
+                        failed = false;
+                        return received;
+                    }
+                    finally {
+                        this.channel.close();
+                    }
+                }
+                finally {
+                    /* losing to a hedge is not a failure of the node */
+                    selector.readFinished(this.dataNode, System.currentTimeMillis() - this.start,
+                                          failed && !this.cancelled);
+                }
+            }
+
+            void cancel() {
+                this.cancelled = true;
+                SocketChannel channel = this.channel;
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    }
+                    catch (IOException e) {
+                        /* already closed */
+                    }
+                }
+            }
+        }
+    }
+}
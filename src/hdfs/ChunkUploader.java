@@ -0,0 +1,253 @@
+package hdfs;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import hdfs.DataNodeInfo;
+import hdfs.DataTransferClient;
+import hdfs.HDFSChunk;
+import hdfs.HDFSFile;
+import hdfs.NameNodeInterface;
+
+/**
+ * Producer/consumer chunk upload engine.
+ * The calling thread puts the chunks of the local file on a bounded queue,
+ * while a pool of workers pushes several chunks to their DataNode pipelines
+ * at the same time. Each worker streams its chunk straight from the file in
+ * packets, so no chunk is ever held in memory whatever the block size.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class ChunkUploader {
+
+    /** number of chunks pushed to DataNodes in parallel */
+    private int workerNum;
+    /** max number of chunks queued and waiting for a worker */
+    private int queueSize;
+    /** upload worker threads */
+    private ExecutorService workers;
+
+
+    /**
+     * Constructor
+     * @param workerNum int The number of chunks uploaded in parallel.
+     * @param queueSize int The number of chunks queued ahead of the workers.
+     */
+    public ChunkUploader(int workerNum, int queueSize) {
+        this.workerNum = Math.max(1, workerNum);
+        this.queueSize = Math.max(1, queueSize);
+        this.workers = Executors.newFixedThreadPool(this.workerNum, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ChunkUploader");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+
+    /**
+     * Upload a local file according to the chunk table allocated by NameNode.
+     * @param file HDFSFile The file and its chunk placement.
+     * @param in FileChannel The local input file.
+     * @param nameNode NameNodeInterface The NameNode told about chunks stored on part of their pipeline.
+     * @throws IOException if a chunk could not be stored on any DataNode
+     */
+    public void upload(HDFSFile file, FileChannel in, NameNodeInterface nameNode) throws IOException {
+        ConcurrentHashMap<Integer, HDFSChunk> chunkTable = file.getChunkTable();
+        int chunkCount = chunkTable.size();
+        long fileSize = in.size();
+        if (chunkCount == 0) {
+            return;
+        }
+
+        BlockingQueue<UploadTask> queue = new ArrayBlockingQueue<UploadTask>(this.queueSize);
+        UploadState state = new UploadState(chunkCount);
+
+        for (int i = 0; i < this.workerNum; i++) {
+            this.workers.execute(new Worker(file.getName(), in, nameNode, queue, state));
+        }
+
+        long start = System.currentTimeMillis();
+        long depthSum = 0;
+        int maxDepth = 0;
+        long position = 0;
+        try {
+            for (int i = 0; i < chunkCount && state.error == null; i++) {
+                HDFSChunk chunk = chunkTable.get(i);
+                long length = Math.min(chunk.getChunkSize(), fileSize - position);
+
+                int depth = queue.size();
+                depthSum += depth;
+                maxDepth = Math.max(maxDepth, depth);
+                queue.put(new UploadTask(chunk, position, length));
+                position += length;
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            state.fail(new IOException("Upload of " + file.getName() + " interrupted"));
+        }
+        finally {
+            for (int i = 0; i < this.workerNum; i++) {
+                try {
+                    queue.put(UploadTask.END);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        state.await();
+        if (state.error != null) {
+            throw state.error;
+        }
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        System.out.printf("[LOG] Uploaded %s: %d bytes in %d ms (%.2f MB/s), queue depth avg %.1f max %d\n",
+                          file.getName(), state.bytes.get(), elapsed,
+                          state.bytes.get() / 1024.0 / 1024.0 / (elapsed / 1000.0),
+                          1.0 * depthSum / chunkCount, maxDepth);
+    }
+
+
+    /**
+     * Release the worker threads.
+     */
+    public void shutdown() {
+        this.workers.shutdownNow();
+    }
+
+
+    /**
+     * A region of the local file waiting to be pushed to DataNodes as one chunk.
+     */
+    private static class UploadTask {
+        /** poison pill telling a worker to exit */
+        static final UploadTask END = new UploadTask(null, 0, 0);
+
+        HDFSChunk chunk;
+        long position;
+        long length;
+
+        UploadTask(HDFSChunk chunk, long position, long length) {
+            this.chunk = chunk;
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+
+    /**
+     * Progress of one upload shared by the reader and the workers.
+     */
+    private static class UploadState {
+        /** chunks not yet acknowledged */
+        private int remaining;
+        /** bytes acknowledged by DataNodes */
+        AtomicLong bytes = new AtomicLong();
+        /** first failure, aborts the upload */
+        volatile IOException error;
+
+        UploadState(int chunkCount) {
+            this.remaining = chunkCount;
+        }
+
+        synchronized void done(long length) {
+            this.bytes.addAndGet(length);
+            this.remaining--;
+            notifyAll();
+        }
+
+        synchronized void fail(IOException e) {
+            if (this.error == null) {
+                this.error = e;
+            }
+            notifyAll();
+        }
+
+        synchronized void await() {
+            while (this.remaining > 0 && this.error == null) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Take chunks off the queue and push them to their replica pipelines.
+     */
+    private static class Worker implements Runnable {
+        private String fileName;
+        private FileChannel in;
+        private NameNodeInterface nameNode;
+        private BlockingQueue<UploadTask> queue;
+        private UploadState state;
+
+        Worker(String fileName, FileChannel in, NameNodeInterface nameNode, BlockingQueue<UploadTask> queue,
+               UploadState state)
+        {
+            this.fileName = fileName;
+            this.in = in;
+            this.nameNode = nameNode;
+            this.queue = queue;
+            this.state = state;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                UploadTask task;
+                try {
+                    task = this.queue.take();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                if (task == UploadTask.END) {
+                    return;
+                }
+
+                HDFSChunk chunk = task.chunk;
+                try {
+                    if (this.state.error == null) {
+                        /* positional reads : workers share the channel without seeking */
+                        List<DataNodeInfo> stored = DataTransferClient.writeChunk(chunk.getReplicaDataNodes(),
+                                                                                  this.fileName, chunk.getChunkNum(),
+                                                                                  chunk.getGenerationStamp(), this.in,
+                                                                                  task.position, task.length);
+                        if (stored.size() < chunk.getReplicaNumber()) {
+                            System.err.println("[Error**] " + chunk.getChunkName() + " only has " + stored.size()
+                                               + " of " + chunk.getReplicaNumber() + " replicas");
+                            this.nameNode.updatePipeline(this.fileName, chunk.getChunkNum(),
+                                                         new ArrayList<DataNodeInfo>(stored));
+                        }
+                        this.state.done(task.length);
+                    }
+                }
+                catch (IOException e) {
+                    System.err.println("[Error**] Failed uploading " + chunk.getChunkName());
+                    this.state.fail(e);
+                }
+            }
+        }
+    }
+}
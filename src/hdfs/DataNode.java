@@ -3,6 +3,7 @@ package hdfs;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.net.UnknownHostException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
@@ -12,15 +13,27 @@ import java.rmi.server.UnicastRemoteObject;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.Map.Entry;
 
 import global.FileIO;
 import global.Common;
 
+import hdfs.ChunkCache;
+import hdfs.BlockReport;
+import hdfs.DataNodeCommand;
+import hdfs.DataNodeInfo;
+import hdfs.DataTransferClient;
+import hdfs.DataNodeStats;
+import hdfs.HeartbeatResponse;
 import hdfs.HDFSCommon;
 import hdfs.HDFSChunk;
 import hdfs.HDFSFile;
+import hdfs.Service;
 
 /**
  * DataNode Class
@@ -30,7 +43,7 @@ import hdfs.HDFSFile;
  * @author Hang Yuan
  * @author Chuhan Yang
  */
-public class DataNode implements DataNodeInterface {
+public class DataNode extends Service implements DataNodeInterface {
 
     /** serial Version UID */
     private static final long serialVersionUID = 7965875955130649094L;
@@ -39,6 +52,10 @@ public class DataNode implements DataNodeInterface {
     private Integer dataNodeRegPort;
     /** DataNOde RMI service name */
     private String dataNodeService;
+    /** Data transfer (streaming) service port on DataNode */
+    private Integer dataNodeTransferPort;
+    /** Data transfer (streaming) service */
+    private DataTransferServer transferServer;
     
     /** RMI stub object. Cached once created.*/
     private NameNodeInterface nameNodeStub;
@@ -54,29 +71,64 @@ public class DataNode implements DataNodeInterface {
     /** File list on this DataNode.*/
     private ConcurrentHashMap<String, HDFSFile> fileList = new ConcurrentHashMap<String, HDFSFile>();
     
-    /** A flag that used to shut down this DataNode.*/
-    private boolean isRunning;
     /** Slots that are assigned but not necessarily occupied.*/
     private int reservedSlot;
     /** Storage path on DataNode */
     private String dataNodePath;
+    /** FileIO backend : "channel" or "mmap" */
+    private String ioBackend;
+    /** Size of a chunk store segment file in MB */
+    private int segmentSizeMB = 256;
+    /** Live ratio under which a sealed segment is compacted */
+    private Double compactionThreshold = 0.5;
+    /** Seconds between two segment compaction rounds */
+    private int compactionInterval = 60;
+    /** Segment file chunk store */
+    private SegmentChunkStore chunkStore;
+    /** Size of the hot chunk cache in MB, 0 disables it, -1 sizes it to admit default-size chunks */
+    private int chunkCacheSizeMB = -1;
+    /** Off-heap hot chunk cache, null if disabled */
+    private ChunkCache chunkCache;
+    /** Whether clients on this host may read chunks straight from the segment files, 0 disables it */
+    private int shortCircuitReads = 1;
+    /** Seconds between two heartbeats, read from dfs.conf */
+    private int heartbeatInterval = 1;
+    /** Key of this DataNode on the NameNode, ip:port */
+    private String dataNodeId;
+    /** set when a heartbeat failed, the NameNode is looked up again on the next one */
+    private boolean nameNodeLost;
+    /** Seconds between two full block reports, read from dfs.conf */
+    private int blockReportInterval = 21600;
+    /** time of the last full block report, 0 to send one with the next heartbeat */
+    private long lastFullReport;
+    /** chunks added and removed since the last block report */
+    private BlockReport.Builder pendingReport = new BlockReport.Builder(false);
+    /** guards pendingReport */
+    private final Object reportLock = new Object();
+    /** Bandwidth of chunk copies asked by the NameNode in MB/s, 0 for no limit, read from dfs.conf */
+    private int replicationBandwidthMB = 32;
+    /** Runs the chunk copies asked by the NameNode, one at a time */
+    private ExecutorService replicationService = Executors.newSingleThreadExecutor(daemonThreads("Replicator"));
+    /** registry the RMI service is bound in */
+    private Registry dataNodeRegistry;
     
     
     /**
-     * While isRunning is true, this data node will keep running.
-     * Calling terminate() will change isRunning to false.
+     * The DataNode runs from start() until terminate() or SIGTERM stops it.
      * @throws RemoteException
      */
     public DataNode() throws RemoteException {
-        super();
+        super("DataNode");
     }
     
     /** DataNode init -  */
-    public void init() {
+    @Override
+    protected void serviceStart() {
         /* read configuration file */
         System.out.println("[LOG] Loading DataNode configuration data ...");
         try {
             FileIO.readConf(Common.HDFSConfPath, this);
+            FileIO.setBackend(ioBackend);
             System.out.println("[^_^] DataNode configured successfully");
         } 
         catch (IOException e1) {
@@ -89,7 +141,7 @@ public class DataNode implements DataNodeInterface {
         try {
             System.out.println("[LOG] Setting up DataNode RMI service on port " + dataNodeRegPort);
             DataNodeInterface dataNodeStub = (DataNodeInterface) UnicastRemoteObject.exportObject(this, 0);
-            Registry dataNodeRegistry = LocateRegistry.createRegistry(dataNodeRegPort);
+            dataNodeRegistry = LocateRegistry.createRegistry(dataNodeRegPort);
             /* rebind  RMi service */
             dataNodeRegistry.rebind(dataNodeService, dataNodeStub);
             System.out.println("[^_^] RMI service set up successfully");
@@ -100,15 +152,37 @@ public class DataNode implements DataNodeInterface {
             System.exit(-1);
         }
 
+        /* set dataNode storage path */
+        dataNodePath = "./DataNode-" + dataNodeRegPort;
+
+        /* open chunk store and rebuild file list from it */
+        try {
+            openChunkStore(dataNodePath);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("[Error**] Chunk store recovery failed. Shutting down ...");
+            System.exit(-1);
+        }
+
+        /* Initialize data transfer service */
+        try {
+            System.out.println("[LOG] Setting up data transfer service on port " + dataNodeTransferPort);
+            transferServer = new DataTransferServer(this, dataNodeTransferPort);
+            transferServer.start();
+            System.out.println("[^_^] Data transfer service set up successfully");
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("[Error**] Data transfer service init failed. Shutting down ...");
+            System.exit(-1);
+        }
+
         /* connect to NameNode and register it */
         try {
             /* connect to NameNode */
             System.out.println("[LOG] Connecting to name node...");
-            Registry nameNodeRegistry = LocateRegistry.getRegistry(this.nameNodeIP, nameNodeRegPort);
-            nameNodeStub = (NameNodeInterface) nameNodeRegistry.lookup(nameNodeService);
-
-            /* register DataNode on NameNode by calling NameNode RMI "registerDataNode"*/
-            nameNodeStub.registerDataNode(InetAddress.getLocalHost().getHostAddress(), dataNodeRegPort, dataNodeService);
+            connectNameNode();
         }
         catch (RemoteException | NotBoundException | UnknownHostException e1) {
             e1.printStackTrace();
@@ -116,11 +190,247 @@ public class DataNode implements DataNodeInterface {
             System.exit(-1);
         }
 
-        /* set dataNode storage path */
-        dataNodePath = "./DataNode-" + dataNodeRegPort;
+        /* push usage statistics to NameNode every heartbeatInterval */
+        scheduleWithFixedDelay("Heartbeat", new Runnable() {
+            @Override
+            public void run() {
+                sendHeartbeat();
+            }
+        }, 0, Math.max(1, heartbeatInterval), TimeUnit.SECONDS);
+
+        /* reclaim the space of deleted chunks */
+        scheduleWithFixedDelay("SegmentCompactor", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    chunkStore.compact();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                    System.err.println("[Error**] Segment compaction failed");
+                }
+            }
+        }, compactionInterval, compactionInterval, TimeUnit.SECONDS);
+    }
+
+
+    /**
+     * Stop serving RPCs and new transfers, let the transfers and copies in
+     * flight finish, then close the chunk store.
+     */
+    @Override
+    protected void serviceStop() {
+        try {
+            if (dataNodeRegistry != null) {
+                UnicastRemoteObject.unexportObject(this, true);
+                UnicastRemoteObject.unexportObject(dataNodeRegistry, true);
+            }
+        }
+        catch (RemoteException e) {
+            e.printStackTrace();
+        }
+        drain(replicationService, STOP_TIMEOUT);
+        if (transferServer != null) {
+            transferServer.stop(STOP_TIMEOUT);
+        }
+        if (chunkStore != null) {
+            chunkStore.close();
+        }
+    }
+
+
+    /**
+     * Open the chunk store, rebuild the file list from it and set up the hot chunk cache.
+     * @param path String The storage directory of this DataNode.
+     * @throws IOException if the chunk store could not be recovered
+     */
+    void openChunkStore(String path) throws IOException {
+        System.out.println("[LOG] Opening chunk store in " + path);
+        chunkStore = new SegmentChunkStore(path, segmentSizeMB * 1024L * 1024L, compactionThreshold);
+        chunkStore.open();
+        for (SegmentChunkStore.Location location : chunkStore.chunks()) {
+            chunkReceived(location.filename, location.chunkNum, location.length, location.generation);
+        }
+        long cacheCapacity = chunkCacheCapacity(chunkCacheSizeMB);
+        if (cacheCapacity > 0) {
+            chunkCache = new ChunkCache(cacheCapacity);
+            if (!chunkCache.admits(HDFSCommon.DFT_CHUNK_SIZE)) {
+                System.out.println("[Error**] Chunk cache of " + chunkCacheSizeMB
+                    + "MB never admits chunks of the default size " + HDFSCommon.DFT_CHUNK_SIZE);
+            }
+        }
+    }
+
 
-        /* enable running */
-        isRunning = true;
+    /**
+     * Look up the NameNode stub and register on it.
+     * @throws RemoteException
+     * @throws NotBoundException
+     * @throws UnknownHostException
+     */
+    private void connectNameNode() throws RemoteException, NotBoundException, UnknownHostException {
+        Registry nameNodeRegistry = LocateRegistry.getRegistry(this.nameNodeIP, this.nameNodeRegPort);
+        this.nameNodeStub = (NameNodeInterface) nameNodeRegistry.lookup(this.nameNodeService);
+
+        /* register DataNode on NameNode by calling NameNode RMI "registerDataNode"*/
+        register();
+    }
+
+
+    /**
+     * Register on NameNode. A full block report follows with the next heartbeat.
+     * @throws RemoteException
+     * @throws UnknownHostException
+     */
+    private void register() throws RemoteException, UnknownHostException {
+        String dataNodeIP = InetAddress.getLocalHost().getHostAddress();
+        this.nameNodeStub.registerDataNode(dataNodeIP, this.dataNodeRegPort, this.dataNodeService,
+                                           this.dataNodeTransferPort);
+        this.dataNodeId = dataNodeIP + ":" + this.dataNodeRegPort;
+        this.lastFullReport = 0;
+    }
+
+
+    /**
+     * Send a heartbeat with the usage statistics of this DataNode to NameNode,
+     * followed by a block report : the chunks added and removed since the
+     * last one, or every chunk held when a full report is due or requested.
+     */
+    private void sendHeartbeat() {
+        File storage = new File(this.dataNodePath);
+        DataNodeStats stats = new DataNodeStats(storage.getTotalSpace(), storage.getUsableSpace(),
+                                                this.transferServer.getInFlightWrites(),
+                                                this.transferServer.getWriteLatency());
+        HeartbeatResponse response;
+        try {
+            if (this.nameNodeLost) {
+                /* a restarted NameNode exports a new stub */
+                connectNameNode();
+                this.nameNodeLost = false;
+                System.out.println("[LOG] Reconnected to NameNode");
+                return;
+            }
+            response = this.nameNodeStub.sendHeartbeat(this.dataNodeId, stats);
+            if (response.reregister) {
+                register();
+                return;
+            }
+        }
+        catch (RemoteException | NotBoundException | UnknownHostException e) {
+            System.err.println("[Error**] Failed to send heartbeat to NameNode");
+            this.nameNodeLost = true;
+            return;
+        }
+
+        for (DataNodeCommand command : response.commands) {
+            runCommand(command);
+        }
+
+        BlockReport.Builder report;
+        synchronized (this.reportLock) {
+            report = this.pendingReport;
+            this.pendingReport = new BlockReport.Builder(false);
+        }
+        long now = System.currentTimeMillis();
+        boolean full = response.fullReport || now - this.lastFullReport >= this.blockReportInterval * 1000L;
+        try {
+            if (full) {
+                /* the full report supersedes every change pending before it */
+                BlockReport.Builder fullReport = new BlockReport.Builder(true);
+                for (SegmentChunkStore.Location location : this.chunkStore.chunks()) {
+                    fullReport.added(location.filename, location.chunkNum, location.length, location.generation);
+                }
+                this.nameNodeStub.sendBlockReport(this.dataNodeId, fullReport.build());
+                this.lastFullReport = now;
+            }
+            else if (!report.isEmpty()) {
+                this.nameNodeStub.sendBlockReport(this.dataNodeId, report.build());
+            }
+        }
+        catch (RemoteException e) {
+            System.err.println("[Error**] Failed to send block report to NameNode");
+            if (!full) {
+                /* keep the changes for the next report */
+                synchronized (this.reportLock) {
+                    this.pendingReport.prepend(report);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Run a command received from NameNode.
+     */
+    private void runCommand(final DataNodeCommand command) {
+        switch (command.type) {
+            case DataNodeCommand.DELETE:
+                try {
+                    /* a chunk stored since by a new file of the same name has another generation and stays */
+                    if (deleteChunk(command.fileName, command.chunkNum, command.generation)) {
+                        System.out.println("[LOG] NameNode has no " + command.fileName + "_" + command.chunkNum
+                                           + " of generation " + command.generation + ", deleted it");
+                    }
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                    System.err.println("[Error**] Cannot delete " + command.fileName + "_" + command.chunkNum);
+                }
+                break;
+            case DataNodeCommand.REPLICATE:
+                this.replicationService.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        replicate(command);
+                    }
+                });
+                break;
+            default:
+                System.err.println("[Error**] Unknown NameNode command " + command.type);
+        }
+    }
+
+
+
+    /**
+     * Copy a local chunk to the DataNodes of a REPLICATE command. Copies run
+     * one at a time and each is followed by a pause long enough to keep the
+     * average rate under replicationBandwidthMB, so restoring replicas does
+     * not starve client traffic. The targets report the chunk themselves.
+     */
+    private void replicate(DataNodeCommand command) {
+        String chunkName = command.fileName + "_" + command.chunkNum;
+        long start = System.currentTimeMillis();
+        long length;
+        try (SegmentChunkStore.ChunkHandle handle = this.chunkStore.open(command.fileName, command.chunkNum)) {
+            if (handle == null || handle.getGeneration() != command.generation) {
+                System.err.println("[Error**] Cannot replicate " + chunkName + " : not stored here");
+                return;
+            }
+            length = handle.getLength();
+            List<DataNodeInfo> stored = DataTransferClient.writeChunk(command.targets, command.fileName,
+                                                                      command.chunkNum, command.generation,
+                                                                      handle.getChannel(), handle.getOffset(),
+                                                                      length);
+            System.out.println("[LOG] Replicated " + chunkName + " to " + stored.size() + " DataNodes");
+        }
+        catch (IOException e) {
+            System.err.println("[Error**] Failed to replicate " + chunkName + " : " + e.getMessage());
+            return;
+        }
+
+        if (this.replicationBandwidthMB > 0) {
+            long budget = length * 1000 / (this.replicationBandwidthMB * 1024L * 1024L);
+            long pause = budget - (System.currentTimeMillis() - start);
+            if (pause > 0) {
+                try {
+                    Thread.sleep(pause);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
     }
 
     
@@ -138,9 +448,21 @@ public class DataNode implements DataNodeInterface {
     		return null;
     	}
 
+        ByteBuffer cached = (this.chunkCache == null) ? null : this.chunkCache.get(filename, chunkNum);
+        if (cached != null) {
+            byte[] chunk = new byte[cached.remaining()];
+            cached.get(chunk);
+            System.out.println("[LOG]" + "Fetched " + filename + "_" + chunkNum + " from cache");
+            return chunk;
+        }
+
         byte[] chunk;
-        try {
-            chunk = FileIO.readFile(this.dataNodePath + filename + "_" + chunkNum);
+        try (SegmentChunkStore.ChunkHandle handle = this.chunkStore.open(filename, chunkNum)) {
+            if (handle == null) {
+                return null;
+            }
+            chunk = this.chunkStore.read(handle);
+            cacheChunk(filename, chunkNum, ByteBuffer.wrap(chunk), handle);
         }
         catch (IOException e) {
             e.printStackTrace();
@@ -153,68 +475,148 @@ public class DataNode implements DataNodeInterface {
 
 
     /**
-     * RMI call : Client or other DataNode writes chunk to this dataNode.
-     * @param filename String The name of file to be uploaded.
-     * @param chunk    byte[] The content of file chunk.
-     * @param chunkNum Integer The number of chunk to be uploaded.
-     * @param fromIP String The ip address where this file chunk is uploaded from.
-     * @throws RemoteException
+     * Record a chunk that has been completely written to local storage.
+     * @param filename String The name of the file.
+     * @param chunkNum Integer The chunk number of this file.
+     * @param length long The exact length of the chunk.
+     * @param generation long The generation stamp the chunk is stored with.
      */
-    @Override
-    public void addChunk(String filename, byte[] buf, int chunkNum, String fromIP, int clientRMIPort)
-            throws RemoteException 
-    {
-    	if (hasChunk(filename, chunkNum)) {
-    		System.err.println("[Error**] " + filename + "_" + chunkNum + " already exists");
-    		return;
-    	}
+    void chunkReceived(String filename, int chunkNum, long length, long generation) {
+        HDFSFile file = this.fileList.get(filename);
+        if (file == null) {
+            HDFSFile newFile = new HDFSFile(filename, 0);
+            file = this.fileList.putIfAbsent(filename, newFile);
+            if (file == null) {
+                file = newFile;
+            }
+        }
+        HDFSChunk chunk = new HDFSChunk(filename, chunkNum, length);
+        chunk.setGenerationStamp(generation);
+        file.addChunk(chunk);
+        if (this.chunkCache != null) {
+            /* the chunk may replace a cached one of an older generation */
+            this.chunkCache.invalidate(filename, chunkNum);
+        }
+        synchronized (this.reportLock) {
+            this.pendingReport.added(filename, chunkNum, length, generation);
+        }
+    }
 
-        try {
-            /* write file on to local storage */
-            FileIO.writeFile(buf, this.dataNodePath + filename + "_" + chunkNum);        
-            System.err.println("[Error**] " + filename + "_" + chunkNum + " written to " + this.dataNodePath);
-        } 
-        catch (IOException e) {
-            e.printStackTrace();
-            System.err.println("[Error**] IO exception occuring when writing file " + filename);
-            throw new RemoteException("[Error] IO exception occuring when writing file " + filename);
+
+    /**
+     * Record a chunk deleted from local storage for the next block report.
+     */
+    private void chunkRemoved(String filename, int chunkNum, long generation) {
+        synchronized (this.reportLock) {
+            this.pendingReport.removed(filename, chunkNum, generation);
         }
-        
-        // try {
-        //     /* feedback acknowledge to client (really need this?) */
-        //     // TODO: should put a time limit here when trying connecting to client?
-        //     System.out.println("[LOG] Connecting to client " + fromIP + "...");
-        //     Registry clientRegistry = LocateRegistry.getRegistry(fromIP, clientRMIPort);        
-        //     DFSClientInterface client = (DFSClientInterface) clientRegistry.lookup(this.clientServiceName);
-        //     client.sendChunkReceivedACK(InetAddress.getLocalHost().getHostAddress(), filename, chunkNum);
-        //     System.out.println("[LOG] Client " + fromIP + " acknowledged.");
-        // }
-        // catch (NotBoundException | UnknownHostException e) {
-        //     e.printStackTrace();
-        //     System.err.println("[Error**)] Unable to connect to client");
-        //     try {
-        //         /* delete the chunk that has been writen to disk */
-        //         FileIO.deleteFile(dataNodePath + filename + "_" + chunkNum);
-        //         System.out.println("[LOG] Removed " + filename + "_" + chunkNum + "because cannot feedback to client");
-        //     }
-        //     catch (IOException e1) {
-        //         System.out.println("[Error**] Exception occurs when removing" + filename + "_" + chunkNum);
-        //     }
-        //     throw new RemoteException();
-        // }
-        
-        /* update local file list */
-        if (this.fileList.containsKey(filename)) {
-            HDFSFile file = this.fileList.get(filename);
-            file.addChunk(new HDFSChunk(filename, chunkNum));
+    }
+
+
+    /**
+     * Delete the chunk of a generation from local storage. A chunk stored
+     * with another generation is kept.
+     * @return boolean true if the chunk of that generation was stored
+     * @throws IOException
+     */
+    private boolean deleteChunk(String fileName, int chunkNum, long generation) throws IOException {
+        if (!this.chunkStore.remove(fileName, chunkNum, generation)) {
+            return false;
         }
-        else {
-            HDFSFile file = new HDFSFile(filename, 0);
-            file.addChunk(new HDFSChunk(filename, chunkNum));
+        HDFSFile file = this.fileList.get(fileName);
+        HDFSChunk chunk = (file == null) ? null : file.getChunkTable().get(chunkNum);
+        if (chunk != null && chunk.getGenerationStamp() == generation) {
+            file.getChunkTable().remove(chunkNum, chunk);
+        }
+        chunkRemoved(fileName, chunkNum, generation);
+        if (this.chunkCache != null) {
+            this.chunkCache.invalidate(fileName, chunkNum);
         }
+        return true;
+    }
 
-        // TODO: add replicas in other dataNodes?
-        return;
+
+    /**
+     * @return SegmentChunkStore the local chunk store
+     */
+    SegmentChunkStore getChunkStore() {
+        return this.chunkStore;
+    }
+
+
+    /**
+     * @return ChunkCache the hot chunk cache, or null if it is disabled
+     */
+    ChunkCache getChunkCache() {
+        return this.chunkCache;
+    }
+
+
+    /**
+     * @return boolean true if local clients may read the segment files directly
+     */
+    boolean isShortCircuitEnabled() {
+        return this.shortCircuitReads != 0;
+    }
+
+
+    /**
+     * Add a chunk read from disk to the hot chunk cache. A chunk removed
+     * while it was being read is not cached, so the cache never serves
+     * deleted data.
+     * @param filename String The name of the file.
+     * @param chunkNum int The chunk number.
+     * @param content ByteBuffer The chunk content.
+     * @param source ChunkHandle The handle the content was read from.
+     */
+    void cacheChunk(String filename, int chunkNum, ByteBuffer content, SegmentChunkStore.ChunkHandle source) {
+        if (this.chunkCache != null) {
+            this.chunkCache.put(filename, chunkNum, content, validator(source));
+        }
+    }
+
+
+    /**
+     * Read a chunk from disk into the hot chunk cache, unless it is removed meanwhile.
+     * @param filename String The name of the file.
+     * @param chunkNum int The chunk number.
+     * @param handle ChunkHandle The open chunk.
+     * @return ByteBuffer the chunk content, or null if the cache is disabled or does not admit the chunk
+     * @throws IOException
+     */
+    ByteBuffer loadChunk(String filename, int chunkNum, SegmentChunkStore.ChunkHandle handle) throws IOException {
+        if (this.chunkCache == null) {
+            return null;
+        }
+        return this.chunkCache.load(filename, chunkNum, handle.getChannel(), handle.getOffset(), handle.getLength(),
+                                    validator(handle));
+    }
+
+
+    /**
+     * @return ChunkCache.Validator true while the chunk of a handle is stored,
+     *         removeChunk drops a chunk from the store before invalidating it in the cache
+     */
+    private ChunkCache.Validator validator(final SegmentChunkStore.ChunkHandle handle) {
+        return new ChunkCache.Validator() {
+            @Override
+            public boolean isCurrent() {
+                return DataNode.this.chunkStore.isCurrent(handle);
+            }
+        };
+    }
+
+
+    /**
+     * @param chunkCacheSizeMB int Configured cache size in MB, 0 disables the cache,
+     *        a negative size admits chunks of the default size
+     * @return capacity of the hot chunk cache in bytes, 0 if disabled
+     */
+    static long chunkCacheCapacity(int chunkCacheSizeMB) {
+        if (chunkCacheSizeMB < 0) {
+            return ChunkCache.capacityFor(HDFSCommon.DFT_CHUNK_SIZE);
+        }
+        return chunkCacheSizeMB * 1024L * 1024L;
     }
 
     
@@ -227,28 +629,22 @@ public class DataNode implements DataNodeInterface {
     @Override
     public void removeChunk(String fileName, int chunkNum) throws RemoteException 
     {
-        HDFSFile file = this.fileList.get(fileName);
-        if (file == null) {
-            System.out.println("[Error**] " + fileName + "not found");
-            return;
-        }
-
-        HDFSChunk chunk = file.getChunkTable().get(chunkNum);
-        if (chunk == null) {
+        SegmentChunkStore.Location location = this.chunkStore.get(fileName, chunkNum);
+        if (location == null) {
+            System.out.println("[Error**] " + fileName + "_" + chunkNum + " not found");
             return;
         }
 
         try {
-            file.removeChunk(chunkNum);
-            FileIO.deleteFile(this.dataNodePath + chunk.getChunkName());
+            deleteChunk(fileName, chunkNum, location.generation);
         }
         catch (IOException e) {
             e.printStackTrace();
-            System.out.println("[Error**] Cannot remove " + chunk.getChunkName());
+            System.out.println("[Error**] Cannot remove " + fileName + "_" + chunkNum);
             return;
         }
 
-        System.out.println("[LOG] " + chunk.getChunkName() + " deleted from storage");
+        System.out.println("[LOG] " + fileName + "_" + chunkNum + " deleted from storage");
         return;
     }
 
@@ -271,8 +667,7 @@ public class DataNode implements DataNodeInterface {
         for (Entry<Integer, HDFSChunk> row : chunkTable.entrySet()) {
             HDFSChunk chunk = row.getValue();
             try {
-                file.removeChunk(chunk.getChunkNum());
-                FileIO.deleteFile(this.dataNodePath + chunk.getChunkName());
+                deleteChunk(fileName, chunk.getChunkNum(), chunk.getGenerationStamp());
             }
             catch (IOException e) {
                 e.printStackTrace();
@@ -283,20 +678,18 @@ public class DataNode implements DataNodeInterface {
         
         this.fileList.remove(fileName);
         System.out.println("[LOG] " + fileName + " successfully deleted");
-        
-        // TODO: remove replicas in other dataNodes?
         return;
     }
 
 
     /**
-     * Heartbeat send heart beat message to NameNode
-     * @return file list of this DataNode
+     * RMI call - Counters of the hot chunk cache.
+     * @return ChunkCache.Stats cache counters, or null if the cache is disabled
      * @throws RemoteException
      */
     @Override
-    public ConcurrentHashMap<String, HDFSFile> heartBeat() throws RemoteException {
-        return this.fileList;
+    public ChunkCache.Stats getCacheStats() throws RemoteException {
+        return (this.chunkCache == null) ? null : this.chunkCache.getStats();
     }
 
 
@@ -330,27 +723,25 @@ public class DataNode implements DataNodeInterface {
      */
     @Override
     public void terminate() {
-        this.isRunning = false;
+        /* stop on another thread so the call returns before the RMI service goes away */
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stop();
+            }
+        }, "DataNode-terminate").start();
     }
 
 
     /**
      * Main method : Start up the DataNode
      */
-    public static void main(String[] args) throws RemoteException {
+    public static void main(String[] args) throws Exception {
         System.out.println("[LOG] Starting data node server ...");
-        DataNode dataNode = null;
-        dataNode = new DataNode();
-        
-        /* setup connections */
-        dataNode.init();
+        DataNode dataNode = new DataNode();
+        dataNode.start();
         System.out.println("[LOG] DataNode Initialized");
-
-        while (dataNode.isRunning) {
-            /* doing nothing, just waiting */
-        }
-
-        //shutting down
-        System.out.println("[LOG] DataNode is shutting down...");
+        /* the main thread parks until terminate() or SIGTERM stops the DataNode */
+        dataNode.awaitTermination();
     }
-}
\ No newline at end of file
+}
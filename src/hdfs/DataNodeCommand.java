@@ -0,0 +1,48 @@
+package hdfs;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+import hdfs.DataNodeInfo;
+
+/**
+ * Command the NameNode sends back to a DataNode in a heartbeat response.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class DataNodeCommand implements Serializable {
+
+    /** serial Version UID */
+    private static final long serialVersionUID = 6129003870162815528L;
+
+    /** delete a chunk the namespace no longer refers to */
+    public static final byte DELETE = 1;
+    /** copy a chunk to other DataNodes to restore its replication */
+    public static final byte REPLICATE = 2;
+
+    /** command type */
+    public byte type;
+    /** HDFS file name */
+    public String fileName;
+    /** chunk number */
+    public int chunkNum;
+    /** generation stamp of the chunk, a DataNode only deletes or copies a chunk stored with it */
+    public long generation;
+    /** DataNodes to copy the chunk to, in pipeline order, REPLICATE only */
+    public ArrayList<DataNodeInfo> targets;
+
+    public DataNodeCommand(byte type, String fileName, int chunkNum, long generation) {
+        this.type = type;
+        this.fileName = fileName;
+        this.chunkNum = chunkNum;
+        this.generation = generation;
+    }
+
+    public DataNodeCommand(byte type, String fileName, int chunkNum, long generation,
+                           ArrayList<DataNodeInfo> targets)
+    {
+        this(type, fileName, chunkNum, generation);
+        this.targets = targets;
+    }
+}
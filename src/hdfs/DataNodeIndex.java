@@ -0,0 +1,84 @@
+package hdfs;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import hdfs.DataNodeInfo;
+
+/**
+ * Dictionary of the DataNodes known to the NameNode.
+ * Every DataNode gets a small integer index the first time it is seen, and
+ * chunk replica locations are stored as these indices instead of references
+ * to DataNodeInfo objects. Indices are never reused, so they stay valid for
+ * the whole life of the NameNode, including across checkpoints.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class DataNodeIndex {
+
+    /** index of every DataNode, keyed by ip:port */
+    private HashMap<String, Integer> indices = new HashMap<String, Integer>();
+    /** DataNodes by index, replaced as a whole on change so readers need no lock */
+    private volatile DataNodeInfo[] nodes = new DataNodeInfo[0];
+
+
+    /**
+     * Get the index of a DataNode, adding it if it is new.
+     * @param dataNode DataNodeInfo The DataNode.
+     * @return int its index
+     */
+    public synchronized int indexOf(DataNodeInfo dataNode) {
+        Integer index = this.indices.get(dataNode.getId());
+        if (index != null) {
+            return index;
+        }
+        DataNodeInfo[] updated = Arrays.copyOf(this.nodes, this.nodes.length + 1);
+        updated[this.nodes.length] = dataNode;
+        this.indices.put(dataNode.getId(), this.nodes.length);
+        this.nodes = updated;
+        return updated.length - 1;
+    }
+
+
+    /**
+     * Record the latest registration of a DataNode, so chunk locations
+     * resolve to its current ports.
+     * @param dataNode DataNodeInfo The DataNode that registered.
+     * @return int its index
+     */
+    public synchronized int update(DataNodeInfo dataNode) {
+        int index = indexOf(dataNode);
+        if (this.nodes[index] != dataNode) {
+            DataNodeInfo[] updated = this.nodes.clone();
+            updated[index] = dataNode;
+            this.nodes = updated;
+        }
+        return index;
+    }
+
+
+    /**
+     * @return int the index of a DataNode, or -1 if it was never seen
+     */
+    public synchronized int find(String dataNodeId) {
+        Integer index = this.indices.get(dataNodeId);
+        return (index == null) ? -1 : index;
+    }
+
+
+    /**
+     * @return DataNodeInfo the DataNode at an index
+     */
+    public DataNodeInfo get(int index) {
+        return this.nodes[index];
+    }
+
+
+    /**
+     * @return DataNodeInfo[] all DataNodes, by index
+     */
+    public DataNodeInfo[] snapshot() {
+        return this.nodes;
+    }
+}
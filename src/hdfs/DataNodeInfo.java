@@ -4,6 +4,7 @@ import java.io.Serializable;
 import java.util.Date;
 import java.util.List;
 
+import hdfs.DataNodeStats;
 import hdfs.HDFSCommon;
 
 /**
@@ -19,10 +20,28 @@ public class DataNodeInfo implements Serializable {
     public int registryPort;
     /** dataNode name */
     public String name;
+    /** data transfer (streaming) service port */
+    public int transferPort;
+    /** usage statistics of the last heartbeat, null until the first one */
+    public volatile DataNodeStats stats;
+    /** time of the last heartbeat, in milliseconds */
+    public volatile long lastHeartbeat;
     
     public DataNodeInfo (String ip, int port, String dataNodeName) {
         this.registryIP = ip;
         this.registryPort = port;
         this.name = dataNodeName;
     }
+
+    public DataNodeInfo (String ip, int port, String dataNodeName, int transferPort) {
+        this(ip, port, dataNodeName);
+        this.transferPort = transferPort;
+    }
+
+    /**
+     * @return String the key of this DataNode in the NameNode tables, ip:port
+     */
+    public String getId() {
+        return this.registryIP + ":" + this.registryPort;
+    }
 }
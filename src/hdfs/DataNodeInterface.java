@@ -3,7 +3,8 @@ package hdfs;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.util.HashSet;
-import java.util.concurrent.ConcurrentHashMap;
+
+import hdfs.ChunkCache;
 
 
 /**
@@ -23,16 +24,6 @@ public interface DataNodeInterface extends Remote {
      */
     public byte[] readChunk(String filename, int chunkNum) throws RemoteException;
 
-    /** 
-     * Used to upload chunks from other data nodes or clients.
-     * @param filename String The name of file to be uploaded.
-     * @param chunk    byte[] The content of file chunk.
-     * @param chunkNum Integer The number of chunk to be uploaded.
-     * @param fromIP String The ip address where this file chunk is uploaded from.
-     * @throws RemoteException
-     */
-    public void addChunk(String filename, byte[] chunk, int chunkNum, String fromIP, int RMIPort) throws RemoteException;
-
 
     /**
      * private method : Delete a specific chunk of a file from this data node. 
@@ -51,11 +42,11 @@ public interface DataNodeInterface extends Remote {
     public void removeFile(String filename) throws RemoteException;
     
     /**
-     * Heartbeat send heart beat message to NameNode
-     * @return file list of this DataNode
+     * Counters of the hot chunk cache.
+     * @return ChunkCache.Stats cache counters, or null if the cache is disabled
      * @throws RemoteException
      */
-    public ConcurrentHashMap<String, HDFSFile> heartBeat() throws RemoteException;
+    public ChunkCache.Stats getCacheStats() throws RemoteException;
     
     /**
      * Check if a specific chunk of file is on this data node.
@@ -0,0 +1,30 @@
+package hdfs;
+
+import java.io.Serializable;
+
+/**
+ * Usage statistics a DataNode reports to the NameNode with every heartbeat.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class DataNodeStats implements Serializable {
+
+    /** serial Version UID */
+    private static final long serialVersionUID = 2871605532129837762L;
+    /** total space of the storage volume in bytes */
+    public long capacity;
+    /** free space of the storage volume in bytes */
+    public long remaining;
+    /** chunk writes currently being received */
+    public int inFlightWrites;
+    /** moving average of the time to store one chunk, in milliseconds */
+    public double writeLatency;
+
+    public DataNodeStats(long capacity, long remaining, int inFlightWrites, double writeLatency) {
+        this.capacity = capacity;
+        this.remaining = remaining;
+        this.inFlightWrites = inFlightWrites;
+        this.writeLatency = writeLatency;
+    }
+}
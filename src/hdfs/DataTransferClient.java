@@ -0,0 +1,392 @@
+package hdfs;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import hdfs.DataNodeInfo;
+import hdfs.DataTransferProtocol;
+
+/**
+ * Client side of the DataNode data transfer service.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class DataTransferClient {
+
+    /** DataNode IP -> whether it is an address of this host */
+    private static ConcurrentHashMap<String, Boolean> localHosts = new ConcurrentHashMap<String, Boolean>();
+
+
+    /**
+     * Open a connection to the data transfer service of a DataNode.
+     * @param dataNode DataNodeInfo The target DataNode.
+     * @return SocketChannel connected channel
+     * @throws IOException
+     */
+    public static SocketChannel connect(DataNodeInfo dataNode) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(dataNode.registryIP, dataNode.transferPort),
+                                     DataTransferProtocol.CONNECT_TIMEOUT);
+            channel.socket().setTcpNoDelay(true);
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+
+    /**
+     * Stream a chunk from a DataNode into a local file.
+     * @param dataNode DataNodeInfo The DataNode holding the chunk.
+     * @param filename String The name of the HDFS file.
+     * @param chunkNum int The chunk number.
+     * @param out FileChannel The local output file.
+     * @param position long The offset in the local file to write the chunk at.
+     * @return long The number of bytes received.
+     * @throws IOException
+     */
+    public static long readChunk(DataNodeInfo dataNode, String filename, int chunkNum,
+                                 FileChannel out, long position) throws IOException
+    {
+        try (SocketChannel channel = connect(dataNode)) {
+            return readChunk(channel, filename, chunkNum, out, position);
+        }
+    }
+
+
+    /**
+     * Stream a chunk into a local file over an open connection. Closing the
+     * connection from another thread aborts the read without touching the
+     * local file channel, where interrupting the reader would close it.
+     * @param channel SocketChannel The connection to the DataNode holding the chunk.
+     * @param filename String The name of the HDFS file.
+     * @param chunkNum int The chunk number.
+     * @param out FileChannel The local output file.
+     * @param position long The offset in the local file to write the chunk at.
+     * @return long The number of bytes received.
+     * @throws IOException
+     */
+    public static long readChunk(SocketChannel channel, String filename, int chunkNum,
+                                 FileChannel out, long position) throws IOException
+    {
+        DataTransferProtocol.HeaderBuilder request = new DataTransferProtocol.HeaderBuilder();
+        request.out.writeInt(DataTransferProtocol.VERSION);
+        request.out.writeByte(DataTransferProtocol.OP_READ_CHUNK);
+        request.out.writeUTF(filename);
+        request.out.writeInt(chunkNum);
+        DataTransferProtocol.writeHeader(channel, request.toByteArray());
+
+        long length = readStatus(channel, filename, chunkNum);
+        DataTransferProtocol.receiveFile(channel, out, position, length);
+        return length;
+    }
+
+
+    /**
+     * Tell whether a DataNode runs on this host, so its chunks can be read
+     * with readChunkLocal.
+     * @param dataNode DataNodeInfo The DataNode.
+     * @return boolean true if the DataNode address is an address of this host
+     */
+    public static boolean isLocal(DataNodeInfo dataNode) {
+        Boolean local = localHosts.get(dataNode.registryIP);
+        if (local == null) {
+            try {
+                local = DataTransferProtocol.isLocalAddress(InetAddress.getByName(dataNode.registryIP));
+            }
+            catch (IOException e) {
+                local = false;
+            }
+            localHosts.put(dataNode.registryIP, local);
+        }
+        return local;
+    }
+
+
+    /**
+     * Short-circuit read : copy a chunk from the segment file of a DataNode
+     * on this host into a local file. Only the location of the chunk goes
+     * over the socket, the bytes are copied file to file by the kernel.
+     * @param dataNode DataNodeInfo The local DataNode holding the chunk.
+     * @param filename String The name of the HDFS file.
+     * @param chunkNum int The chunk number.
+     * @param out FileChannel The local output file.
+     * @param position long The offset in the local file to write the chunk at.
+     * @return long The number of bytes copied.
+     * @throws IOException if the DataNode refused the read or the segment could not be read
+     */
+    public static long readChunkLocal(DataNodeInfo dataNode, String filename, int chunkNum,
+                                      FileChannel out, long position) throws IOException
+    {
+        try (SocketChannel channel = connect(dataNode)) {
+            ShortCircuitGrant grant = requestShortCircuit(channel, filename, chunkNum);
+            try (FileChannel segment = FileChannel.open(Paths.get(grant.path), StandardOpenOption.READ)) {
+                /* the file is open, the DataNode may unpin it */
+                DataTransferProtocol.writeHeader(channel, new byte[0]);
+                segment.position(grant.offset);
+                DataTransferProtocol.receiveFile(segment, out, position, grant.length);
+            }
+            return grant.length;
+        }
+    }
+
+
+    /**
+     * Read a byte range of a chunk from a DataNode into a buffer.
+     * @param dataNode DataNodeInfo The DataNode holding the chunk.
+     * @param filename String The name of the HDFS file.
+     * @param chunkNum int The chunk number.
+     * @param offset long The offset of the range in the chunk.
+     * @param dst ByteBuffer The buffer, filled from its position to its limit.
+     * @throws IOException if the range could not be read, or the chunk ends before it
+     */
+    public static void readRange(DataNodeInfo dataNode, String filename, int chunkNum, long offset, ByteBuffer dst)
+            throws IOException
+    {
+        try (SocketChannel channel = connect(dataNode)) {
+            DataTransferProtocol.HeaderBuilder request = new DataTransferProtocol.HeaderBuilder();
+            request.out.writeInt(DataTransferProtocol.VERSION);
+            request.out.writeByte(DataTransferProtocol.OP_READ_RANGE);
+            request.out.writeUTF(filename);
+            request.out.writeInt(chunkNum);
+            request.out.writeLong(offset);
+            request.out.writeLong(dst.remaining());
+            DataTransferProtocol.writeHeader(channel, request.toByteArray());
+
+            long length = readStatus(channel, filename, chunkNum);
+            if (length < dst.remaining()) {
+                throw new EOFException(filename + "_" + chunkNum + " ends before " + (offset + dst.remaining()));
+            }
+            DataTransferProtocol.readFully(channel, dst);
+        }
+    }
+
+
+    /**
+     * Short-circuit read of a byte range of a chunk held by a DataNode on this host.
+     * @param dataNode DataNodeInfo The local DataNode holding the chunk.
+     * @param filename String The name of the HDFS file.
+     * @param chunkNum int The chunk number.
+     * @param offset long The offset of the range in the chunk.
+     * @param dst ByteBuffer The buffer, filled from its position to its limit.
+     * @throws IOException if the DataNode refused the read, or the range could not be read
+     */
+    public static void readRangeLocal(DataNodeInfo dataNode, String filename, int chunkNum, long offset,
+                                      ByteBuffer dst) throws IOException
+    {
+        try (SocketChannel channel = connect(dataNode)) {
+            ShortCircuitGrant grant = requestShortCircuit(channel, filename, chunkNum);
+            if (offset + dst.remaining() > grant.length) {
+                throw new EOFException(filename + "_" + chunkNum + " ends before " + (offset + dst.remaining()));
+            }
+            try (FileChannel segment = FileChannel.open(Paths.get(grant.path), StandardOpenOption.READ)) {
+                DataTransferProtocol.writeHeader(channel, new byte[0]);
+                long position = grant.offset + offset;
+                while (dst.hasRemaining()) {
+                    int n = segment.read(dst, position);
+                    if (n < 0) {
+                        throw new EOFException("Segment " + grant.path + " is truncated");
+                    }
+                    position += n;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Ask a DataNode on this host where a chunk lies on its disk. The segment
+     * stays pinned until the caller acks with an empty header or closes the channel.
+     * @throws IOException if the DataNode refused
+     */
+    private static ShortCircuitGrant requestShortCircuit(SocketChannel channel, String filename, int chunkNum)
+            throws IOException
+    {
+        DataTransferProtocol.HeaderBuilder request = new DataTransferProtocol.HeaderBuilder();
+        request.out.writeInt(DataTransferProtocol.VERSION);
+        request.out.writeByte(DataTransferProtocol.OP_SHORT_CIRCUIT_READ);
+        request.out.writeUTF(filename);
+        request.out.writeInt(chunkNum);
+        DataTransferProtocol.writeHeader(channel, request.toByteArray());
+
+        DataInputStream response = DataTransferProtocol.readHeader(channel);
+        byte status = response.readByte();
+        long length = response.readLong();
+        if (status == DataTransferProtocol.STATUS_NOT_LOCAL) {
+            throw new IOException("DataNode refused short-circuit read of " + filename + "_" + chunkNum);
+        }
+        else if (status == DataTransferProtocol.STATUS_NOT_FOUND) {
+            throw new FileNotFoundException(filename + "_" + chunkNum + " not found on DataNode");
+        }
+        else if (status != DataTransferProtocol.STATUS_SUCCESS) {
+            throw new IOException("DataNode failed to transfer " + filename + "_" + chunkNum);
+        }
+        String path = response.readUTF();
+        long offset = response.readLong();
+        return new ShortCircuitGrant(path, offset, length);
+    }
+
+
+    /**
+     * Stream a region of a local file to a write pipeline as one chunk.
+     * The chunk is sent once to the first reachable DataNode, which stores it
+     * and forwards it to the rest of the pipeline.
+     * @param pipeline List The replica DataNodes, in pipeline order.
+     * @param filename String The name of the HDFS file.
+     * @param chunkNum int The chunk number.
+     * @param generation long The generation stamp of the file.
+     * @param in FileChannel The local input file.
+     * @param position long The offset of the chunk in the local file.
+     * @param length long The length of the chunk.
+     * @return List The DataNodes that stored the chunk, in pipeline order.
+     * @throws IOException if no DataNode in the pipeline stored the chunk
+     */
+    public static List<DataNodeInfo> writeChunk(List<DataNodeInfo> pipeline, String filename, int chunkNum,
+                                                long generation, FileChannel in, long position, long length)
+            throws IOException
+    {
+        IOException lastError = new IOException("Empty pipeline for " + filename + "_" + chunkNum);
+        /* if the head of the pipeline is unreachable, retry with the rest of it */
+        for (int head = 0; head < pipeline.size(); head++) {
+            try (SocketChannel channel = connect(pipeline.get(head))) {
+                sendWriteRequest(channel, filename, chunkNum, generation, length,
+                                 pipeline.subList(head + 1, pipeline.size()));
+                DataTransferProtocol.sendFile(in, position, length, channel);
+                return stored(pipeline.get(head), readWriteAck(channel, filename, chunkNum));
+            }
+            catch (IOException e) {
+                lastError = e;
+            }
+        }
+        throw lastError;
+    }
+
+
+    /**
+     * Send a chunk held in memory to a write pipeline.
+     * @param pipeline List The replica DataNodes, in pipeline order.
+     * @param filename String The name of the HDFS file.
+     * @param chunkNum int The chunk number.
+     * @param generation long The generation stamp of the file.
+     * @param content ByteBuffer The chunk content, between position and limit.
+     * @return List The DataNodes that stored the chunk, in pipeline order.
+     * @throws IOException if no DataNode in the pipeline stored the chunk
+     */
+    public static List<DataNodeInfo> writeChunk(List<DataNodeInfo> pipeline, String filename, int chunkNum,
+                                                long generation, ByteBuffer content) throws IOException
+    {
+        IOException lastError = new IOException("Empty pipeline for " + filename + "_" + chunkNum);
+        for (int head = 0; head < pipeline.size(); head++) {
+            try (SocketChannel channel = connect(pipeline.get(head))) {
+                sendWriteRequest(channel, filename, chunkNum, generation, content.remaining(),
+                                 pipeline.subList(head + 1, pipeline.size()));
+                DataTransferProtocol.writeFully(channel, content.duplicate());
+                return stored(pipeline.get(head), readWriteAck(channel, filename, chunkNum));
+            }
+            catch (IOException e) {
+                lastError = e;
+            }
+        }
+        throw lastError;
+    }
+
+
+    /**
+     * Send the header of a write request.
+     * @throws IOException
+     */
+    private static void sendWriteRequest(SocketChannel channel, String filename, int chunkNum, long generation,
+                                         long length, List<DataNodeInfo> targets) throws IOException
+    {
+        DataTransferProtocol.HeaderBuilder request = new DataTransferProtocol.HeaderBuilder();
+        request.out.writeInt(DataTransferProtocol.VERSION);
+        request.out.writeByte(DataTransferProtocol.OP_WRITE_CHUNK);
+        request.out.writeUTF(filename);
+        request.out.writeInt(chunkNum);
+        request.out.writeLong(generation);
+        request.out.writeLong(length);
+        DataTransferProtocol.writeTargets(request.out, targets);
+        DataTransferProtocol.writeHeader(channel, request.toByteArray());
+    }
+
+
+    /**
+     * The DataNodes holding a chunk : the head the chunk was sent to, then
+     * the downstream targets it acknowledged.
+     */
+    private static List<DataNodeInfo> stored(DataNodeInfo head, List<DataNodeInfo> downstream) {
+        List<DataNodeInfo> stored = new ArrayList<DataNodeInfo>(downstream.size() + 1);
+        stored.add(head);
+        stored.addAll(downstream);
+        return stored;
+    }
+
+
+    /**
+     * Read the ack of a write request.
+     * @return List The downstream targets that stored the chunk, the DataNode sending the ack excluded.
+     * @throws IOException if the DataNode sending the ack did not store the chunk
+     */
+    static List<DataNodeInfo> readWriteAck(SocketChannel channel, String filename, int chunkNum)
+            throws IOException
+    {
+        DataInputStream response = DataTransferProtocol.readHeader(channel);
+        byte status = response.readByte();
+        if (status != DataTransferProtocol.STATUS_SUCCESS) {
+            throw new IOException("DataNode failed to store " + filename + "_" + chunkNum);
+        }
+        return DataTransferProtocol.readTargets(response);
+    }
+
+
+    /**
+     * Read a response header and turn error statuses into exceptions.
+     * @return long The length field of the response.
+     * @throws IOException
+     */
+    private static long readStatus(SocketChannel channel, String filename, int chunkNum) throws IOException {
+        DataInputStream response = DataTransferProtocol.readHeader(channel);
+        byte status = response.readByte();
+        long length = response.readLong();
+        switch (status) {
+            case DataTransferProtocol.STATUS_SUCCESS:
+                return length;
+            case DataTransferProtocol.STATUS_NOT_FOUND:
+                throw new FileNotFoundException(filename + "_" + chunkNum + " not found on DataNode");
+            default:
+                throw new IOException("DataNode failed to transfer " + filename + "_" + chunkNum);
+        }
+    }
+
+
+    /**
+     * Location of a chunk on the disk of a local DataNode.
+     */
+    private static class ShortCircuitGrant {
+        String path;
+        long offset;
+        long length;
+
+        ShortCircuitGrant(String path, long offset, long length) {
+            this.path = path;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package hdfs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import hdfs.DataNodeInfo;
+
+/**
+ * Wire format of the DataNode data transfer (streaming) service.
+ *
+ * Every request and response starts with a length-prefixed header so that the
+ * receiver can read it without buffering past the end of the header. The chunk
+ * bytes follow the header as a raw stream and are moved between disk and socket
+ * with FileChannel.transferTo / transferFrom.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class DataTransferProtocol {
+
+    /** protocol version, sent in every request header */
+    public static final int VERSION = 3;
+
+    /** op : read a chunk. header = (filename, chunkNum) */
+    public static final byte OP_READ_CHUNK = 1;
+    /**
+     * op : write a chunk. header = (filename, chunkNum, generation, length, targets)
+     * where generation is the generation stamp of the file and targets is the
+     * rest of the write pipeline the chunk is forwarded to.
+     * The response carries the targets that stored the chunk down the pipeline,
+     * so the writer knows exactly which replicas exist.
+     */
+    public static final byte OP_WRITE_CHUNK = 2;
+    /**
+     * op : short-circuit read of a chunk by a client on the DataNode host.
+     * header = (filename, chunkNum). The response carries the chunk length,
+     * the path of the segment file holding it and the offset of the chunk in
+     * it. The segment stays pinned until the client sends an empty header
+     * back once it has opened the file, or closes the connection.
+     */
+    public static final byte OP_SHORT_CIRCUIT_READ = 3;
+    /**
+     * op : read a byte range of a chunk. header = (filename, chunkNum, offset, length)
+     * where offset is relative to the start of the chunk. The response length
+     * is the requested one, clipped to the end of the chunk.
+     */
+    public static final byte OP_READ_RANGE = 4;
+
+    /** status : request succeeded */
+    public static final byte STATUS_SUCCESS = 0;
+    /** status : request failed on the DataNode */
+    public static final byte STATUS_ERROR = 1;
+    /** status : chunk does not exist on the DataNode */
+    public static final byte STATUS_NOT_FOUND = 2;
+    /** status : short-circuit read refused, the client is not on the DataNode host or it is disabled */
+    public static final byte STATUS_NOT_LOCAL = 3;
+
+    /** max header size, guards against reading garbage as a header length */
+    public static final int MAX_HEADER_SIZE = 64 * 1024;
+    /** socket connect timeout in milliseconds */
+    public static final int CONNECT_TIMEOUT = 5000;
+    /** size of the packets a chunk is relayed in along a write pipeline */
+    public static final int PACKET_SIZE = 64 * 1024;
+
+
+    /**
+     * Build a header from the caller-filled DataOutputStream.
+     */
+    public static class HeaderBuilder {
+        private ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        public DataOutputStream out = new DataOutputStream(bytes);
+
+        /** @return header bytes */
+        public byte[] toByteArray() {
+            return this.bytes.toByteArray();
+        }
+    }
+
+
+    /**
+     * Append a write pipeline to a request header.
+     * @param out DataOutputStream header stream
+     * @param targets List of DataNodes, in pipeline order
+     * @throws IOException
+     */
+    public static void writeTargets(DataOutputStream out, List<DataNodeInfo> targets) throws IOException {
+        out.writeInt(targets.size());
+        for (DataNodeInfo target : targets) {
+            out.writeUTF(target.registryIP);
+            out.writeInt(target.registryPort);
+            out.writeUTF(target.name);
+            out.writeInt(target.transferPort);
+        }
+    }
+
+
+    /**
+     * Read a write pipeline from a request header.
+     * @param in DataInputStream header stream
+     * @return List of DataNodes, in pipeline order
+     * @throws IOException
+     */
+    public static List<DataNodeInfo> readTargets(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<DataNodeInfo> targets = new ArrayList<DataNodeInfo>(count);
+        for (int i = 0; i < count; i++) {
+            String ip = in.readUTF();
+            int port = in.readInt();
+            String name = in.readUTF();
+            int transferPort = in.readInt();
+            targets.add(new DataNodeInfo(ip, port, name, transferPort));
+        }
+        return targets;
+    }
+
+
+    /**
+     * Tell whether an address belongs to this host.
+     * @param address InetAddress The address.
+     * @return boolean true for a loopback address or the address of a local interface
+     */
+    public static boolean isLocalAddress(InetAddress address) {
+        if (address.isLoopbackAddress() || address.isAnyLocalAddress()) {
+            return true;
+        }
+        try {
+            return NetworkInterface.getByInetAddress(address) != null;
+        }
+        catch (SocketException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * Send a length-prefixed header in one write.
+     * @param channel WritableByteChannel target channel
+     * @param header byte[] header content
+     * @throws IOException
+     */
+    public static void writeHeader(WritableByteChannel channel, byte[] header) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(4 + header.length);
+        buf.putInt(header.length);
+        buf.put(header);
+        buf.flip();
+        writeFully(channel, buf);
+    }
+
+
+    /**
+     * Receive a length-prefixed header.
+     * @param channel ReadableByteChannel source channel
+     * @return DataInputStream over the header content
+     * @throws IOException
+     */
+    public static DataInputStream readHeader(ReadableByteChannel channel) throws IOException {
+        ByteBuffer lenBuf = ByteBuffer.allocate(4);
+        readFully(channel, lenBuf);
+        lenBuf.flip();
+        int len = lenBuf.getInt();
+        if (len < 0 || len > MAX_HEADER_SIZE) {
+            throw new IOException("Invalid header length " + len);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        readFully(channel, buf);
+        return new DataInputStream(new ByteArrayInputStream(buf.array()));
+    }
+
+
+    /**
+     * Write all remaining bytes of the buffer.
+     * @throws IOException
+     */
+    public static void writeFully(WritableByteChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+
+    /**
+     * Fill all remaining bytes of the buffer.
+     * @throws IOException
+     */
+    public static void readFully(ReadableByteChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) < 0) {
+                throw new EOFException("Unexpected end of stream");
+            }
+        }
+    }
+
+
+    /**
+     * Stream a region of a local file into a channel without copying it
+     * through the Java heap.
+     * @param src FileChannel source file
+     * @param position long offset in source file
+     * @param count long number of bytes to send
+     * @param target WritableByteChannel destination
+     * @throws IOException
+     */
+    public static void sendFile(FileChannel src, long position, long count, WritableByteChannel target)
+            throws IOException
+    {
+        long sent = 0;
+        while (sent < count) {
+            long n = src.transferTo(position + sent, count - sent, target);
+            if (n <= 0 && position + sent >= src.size()) {
+                throw new EOFException("Source file is shorter than " + (position + count));
+            }
+            sent += n;
+        }
+    }
+
+
+    /**
+     * Stream bytes from a channel straight into a region of a local file.
+     * @param src ReadableByteChannel source
+     * @param dst FileChannel destination file
+     * @param position long offset in destination file
+     * @param count long number of bytes to receive
+     * @throws IOException
+     */
+    public static void receiveFile(ReadableByteChannel src, FileChannel dst, long position, long count)
+            throws IOException
+    {
+        long received = 0;
+        while (received < count) {
+            long n = dst.transferFrom(src, position + received, count - received);
+            if (n <= 0) {
+                throw new EOFException("Stream closed after " + received + " of " + count + " bytes");
+            }
+            received += n;
+        }
+    }
+}
@@ -0,0 +1,534 @@
+package hdfs;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import hdfs.ChunkCache;
+import hdfs.DataNode;
+import hdfs.DataNodeInfo;
+import hdfs.DataTransferClient;
+import hdfs.DataTransferProtocol;
+import hdfs.SegmentChunkStore;
+import hdfs.Service;
+
+/**
+ * Socket based data transfer service of a DataNode.
+ * Chunk bytes are streamed between disk and socket with zero-copy
+ * FileChannel.transferTo / transferFrom. RMI is only used for control calls.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class DataTransferServer implements Runnable {
+
+    /** DataNode that owns the chunk storage */
+    private DataNode dataNode;
+    /** port the service listens on */
+    private int port;
+    /** listening channel */
+    private ServerSocketChannel serverChannel;
+    /** worker threads, one per active connection */
+    private ExecutorService workers = Executors.newCachedThreadPool();
+    /** connections waiting for their next request, closed right away on stop */
+    private Set<SocketChannel> idleChannels = Collections.newSetFromMap(new ConcurrentHashMap<SocketChannel, Boolean>());
+    /** A flag that used to shut down the service */
+    private volatile boolean isRunning;
+    /** chunk writes currently being received */
+    private AtomicInteger inFlightWrites = new AtomicInteger();
+    /** moving average of the time to store a chunk, in milliseconds */
+    private volatile double writeLatency;
+    /** weight of the newest sample in writeLatency */
+    private static final double LATENCY_ALPHA = 0.2;
+
+
+    /**
+     * Constructor
+     * @param dataNode DataNode The owner of the chunks.
+     * @param port int The port to listen on.
+     */
+    public DataTransferServer(DataNode dataNode, int port) {
+        this.dataNode = dataNode;
+        this.port = port;
+    }
+
+
+    /**
+     * Bind the listening socket and start accepting connections.
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.socket().setReuseAddress(true);
+        this.serverChannel.bind(new InetSocketAddress(this.port));
+        this.isRunning = true;
+
+        Thread acceptor = new Thread(this, "DataTransferServer-" + this.port);
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+
+    /**
+     * Stop accepting connections and let the transfers in flight finish.
+     * @param timeoutSec int Seconds to wait for them before closing their connections.
+     */
+    public void stop(int timeoutSec) {
+        this.isRunning = false;
+        try {
+            this.serverChannel.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        this.workers.shutdown();
+        for (SocketChannel channel : this.idleChannels) {
+            closeQuietly(channel);
+        }
+        if (!Service.drain(this.workers, timeoutSec)) {
+            System.err.println("[Error**] Transfers still running after " + timeoutSec + " s, closing them");
+        }
+    }
+
+
+    /**
+     * @return int the number of chunk writes currently being received
+     */
+    public int getInFlightWrites() {
+        return this.inFlightWrites.get();
+    }
+
+
+    /**
+     * @return double moving average of the time to store a chunk, in milliseconds
+     */
+    public double getWriteLatency() {
+        return this.writeLatency;
+    }
+
+
+    /**
+     * Accept loop
+     */
+    @Override
+    public void run() {
+        while (this.isRunning) {
+            try {
+                final SocketChannel channel = this.serverChannel.accept();
+                this.workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(channel);
+                    }
+                });
+            }
+            catch (IOException e) {
+                if (this.isRunning) {
+                    e.printStackTrace();
+                    System.err.println("[Error**] Data transfer service failed to accept connection");
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Serve all requests sent on one connection.
+     * @param channel SocketChannel The client connection.
+     */
+    private void serve(SocketChannel channel) {
+        try {
+            channel.socket().setTcpNoDelay(true);
+            while (this.isRunning) {
+                DataInputStream header;
+                this.idleChannels.add(channel);
+                try {
+                    if (!this.isRunning) {
+                        break;
+                    }
+                    header = DataTransferProtocol.readHeader(channel);
+                }
+                catch (IOException e) {
+                    /* peer closed the connection, or the service stopped */
+                    break;
+                }
+                finally {
+                    this.idleChannels.remove(channel);
+                }
+
+                int version = header.readInt();
+                if (version != DataTransferProtocol.VERSION) {
+                    throw new IOException("Unsupported protocol version " + version);
+                }
+                byte op = header.readByte();
+                switch (op) {
+                    case DataTransferProtocol.OP_READ_CHUNK:
+                        readChunk(channel, header);
+                        break;
+                    case DataTransferProtocol.OP_READ_RANGE:
+                        readRange(channel, header);
+                        break;
+                    case DataTransferProtocol.OP_SHORT_CIRCUIT_READ:
+                        shortCircuitRead(channel, header);
+                        break;
+                    case DataTransferProtocol.OP_WRITE_CHUNK:
+                        long start = System.currentTimeMillis();
+                        this.inFlightWrites.incrementAndGet();
+                        try {
+                            writeChunk(channel, header);
+                        }
+                        finally {
+                            this.inFlightWrites.decrementAndGet();
+                        }
+                        recordWriteLatency(System.currentTimeMillis() - start);
+                        break;
+                    default:
+                        throw new IOException("Unknown op " + op);
+                }
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("[Error**] Data transfer failed with " + channel.socket().getRemoteSocketAddress());
+        }
+        finally {
+            closeQuietly(channel);
+        }
+    }
+
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     * OP_READ_CHUNK : stream a chunk from disk to the socket.
+     * @throws IOException
+     */
+    private void readChunk(SocketChannel channel, DataInputStream header) throws IOException {
+        String filename = header.readUTF();
+        int chunkNum = header.readInt();
+
+        ChunkCache cache = this.dataNode.getChunkCache();
+        ByteBuffer cached = (cache == null) ? null : cache.get(filename, chunkNum);
+        if (cached != null) {
+            sendStatus(channel, DataTransferProtocol.STATUS_SUCCESS, cached.remaining());
+            DataTransferProtocol.writeFully(channel, cached);
+            System.out.println("[LOG] Streamed " + filename + "_" + chunkNum + " from cache");
+            return;
+        }
+
+        try (SegmentChunkStore.ChunkHandle handle = this.dataNode.getChunkStore().open(filename, chunkNum)) {
+            if (handle == null) {
+                sendStatus(channel, DataTransferProtocol.STATUS_NOT_FOUND, 0);
+                return;
+            }
+            sendStatus(channel, DataTransferProtocol.STATUS_SUCCESS, handle.getLength());
+            if (cache != null && cache.admits(handle.getLength())) {
+                /* load once into the cache and send from there */
+                DataTransferProtocol.writeFully(channel, this.dataNode.loadChunk(filename, chunkNum, handle));
+            }
+            else {
+                DataTransferProtocol.sendFile(handle.getChannel(), handle.getOffset(), handle.getLength(), channel);
+            }
+        }
+        System.out.println("[LOG] Streamed " + filename + "_" + chunkNum);
+    }
+
+
+    /**
+     * OP_READ_RANGE : stream a byte range of a chunk from disk, or from the
+     * cache if the chunk is in it. A range read does not load the cache, a
+     * few ranges of a large chunk are no sign that the rest of it is hot.
+     * @throws IOException
+     */
+    private void readRange(SocketChannel channel, DataInputStream header) throws IOException {
+        String filename = header.readUTF();
+        int chunkNum = header.readInt();
+        long offset = header.readLong();
+        long length = header.readLong();
+
+        if (offset < 0 || length < 0) {
+            sendStatus(channel, DataTransferProtocol.STATUS_ERROR, 0);
+            return;
+        }
+        ChunkCache cache = this.dataNode.getChunkCache();
+        ByteBuffer cached = (cache == null) ? null : cache.get(filename, chunkNum);
+        if (cached != null) {
+            if (offset > cached.remaining()) {
+                sendStatus(channel, DataTransferProtocol.STATUS_ERROR, 0);
+                return;
+            }
+            cached.position(cached.position() + (int) offset);
+            cached.limit(cached.position() + (int) Math.min(length, cached.remaining()));
+            sendStatus(channel, DataTransferProtocol.STATUS_SUCCESS, cached.remaining());
+            DataTransferProtocol.writeFully(channel, cached);
+            return;
+        }
+
+        try (SegmentChunkStore.ChunkHandle handle = this.dataNode.getChunkStore().open(filename, chunkNum)) {
+            if (handle == null) {
+                sendStatus(channel, DataTransferProtocol.STATUS_NOT_FOUND, 0);
+                return;
+            }
+            if (offset > handle.getLength()) {
+                sendStatus(channel, DataTransferProtocol.STATUS_ERROR, 0);
+                return;
+            }
+            long count = Math.min(length, handle.getLength() - offset);
+            sendStatus(channel, DataTransferProtocol.STATUS_SUCCESS, count);
+            DataTransferProtocol.sendFile(handle.getChannel(), handle.getOffset() + offset, count, channel);
+        }
+    }
+
+
+    /**
+     * OP_SHORT_CIRCUIT_READ : grant a client on this host the location of a
+     * chunk in its segment file. The handle pins the segment until the client
+     * acks that it opened the file, so compaction cannot delete it in between;
+     * past that point the open descriptor keeps the bytes readable, records
+     * are never rewritten in place.
+     * @throws IOException
+     */
+    private void shortCircuitRead(SocketChannel channel, DataInputStream header) throws IOException {
+        String filename = header.readUTF();
+        int chunkNum = header.readInt();
+
+        InetSocketAddress peer = (InetSocketAddress) channel.getRemoteAddress();
+        if (!this.dataNode.isShortCircuitEnabled() || !DataTransferProtocol.isLocalAddress(peer.getAddress())) {
+            sendStatus(channel, DataTransferProtocol.STATUS_NOT_LOCAL, 0);
+            return;
+        }
+        try (SegmentChunkStore.ChunkHandle handle = this.dataNode.getChunkStore().open(filename, chunkNum)) {
+            if (handle == null) {
+                sendStatus(channel, DataTransferProtocol.STATUS_NOT_FOUND, 0);
+                return;
+            }
+            DataTransferProtocol.HeaderBuilder response = new DataTransferProtocol.HeaderBuilder();
+            response.out.writeByte(DataTransferProtocol.STATUS_SUCCESS);
+            response.out.writeLong(handle.getLength());
+            response.out.writeUTF(handle.getSegmentFile().getAbsolutePath());
+            response.out.writeLong(handle.getOffset());
+            DataTransferProtocol.writeHeader(channel, response.toByteArray());
+            /* released on the client ack, or when the client goes away */
+            this.idleChannels.add(channel);
+            try {
+                DataTransferProtocol.readHeader(channel);
+            }
+            catch (IOException e) {
+                /* client closed the connection instead, which releases the segment all the same */
+            }
+            finally {
+                this.idleChannels.remove(channel);
+            }
+        }
+        System.out.println("[LOG] Granted short-circuit read of " + filename + "_" + chunkNum);
+    }
+
+
+    /**
+     * OP_WRITE_CHUNK : stream a chunk from the socket to disk.
+     * The chunk is received into a region reserved in the chunk store and only
+     * committed once complete, so a half written chunk is never visible to readers.
+     * If the request carries a pipeline, every packet is forwarded to the next
+     * DataNode while it is still being received, and the targets the
+     * downstream ack names are acknowledged along with the next DataNode.
+     * @throws IOException
+     */
+    private void writeChunk(SocketChannel channel, DataInputStream header) throws IOException {
+        String filename = header.readUTF();
+        int chunkNum = header.readInt();
+        long generation = header.readLong();
+        long length = header.readLong();
+        List<DataNodeInfo> targets = DataTransferProtocol.readTargets(header);
+
+        SegmentChunkStore.ChunkWriter writer = this.dataNode.getChunkStore().create(filename, chunkNum,
+                                                                                     generation, length);
+        Downstream downstream = null;
+        if (!targets.isEmpty()) {
+            downstream = connectDownstream(targets, filename, chunkNum, generation, length);
+        }
+
+        List<DataNodeInfo> stored = new ArrayList<DataNodeInfo>();
+        boolean received = false;
+        try {
+            if (downstream == null) {
+                /* tail of the pipeline : zero-copy from socket to disk */
+                DataTransferProtocol.receiveFile(channel, writer.getChannel(), writer.getDataOffset(), length);
+            }
+            else {
+                downstream.channel = relay(channel, writer.getChannel(), writer.getDataOffset(),
+                                           downstream.channel, length);
+            }
+            received = true;
+
+            if (downstream != null && downstream.channel != null) {
+                try {
+                    List<DataNodeInfo> acked = DataTransferClient.readWriteAck(downstream.channel, filename, chunkNum);
+                    stored.add(downstream.node);
+                    stored.addAll(acked);
+                }
+                catch (IOException e) {
+                    System.err.println("[Error**] Downstream replica of " + filename + "_" + chunkNum + " failed");
+                }
+            }
+        }
+        finally {
+            if (!received) {
+                writer.abort();
+            }
+            if (downstream != null && downstream.channel != null) {
+                downstream.channel.close();
+            }
+        }
+
+        if (!writer.commit()) {
+            System.err.println("[Error**] " + filename + "_" + chunkNum + " already exists with generation "
+                               + generation + " or a newer one");
+            sendWriteAck(channel, DataTransferProtocol.STATUS_ERROR, stored);
+            return;
+        }
+        this.dataNode.chunkReceived(filename, chunkNum, length, generation);
+        System.out.println("[LOG] " + filename + "_" + chunkNum + " written to chunk store");
+        sendWriteAck(channel, DataTransferProtocol.STATUS_SUCCESS, stored);
+    }
+
+
+    /**
+     * The next DataNode of a write pipeline and the connection to it.
+     */
+    private static class Downstream {
+        DataNodeInfo node;
+        SocketChannel channel;
+
+        Downstream(DataNodeInfo node, SocketChannel channel) {
+            this.node = node;
+            this.channel = channel;
+        }
+    }
+
+
+    /**
+     * Connect to the next DataNode in the pipeline and forward the write
+     * request with the remaining targets. Unreachable targets are skipped.
+     * @return Downstream the next DataNode and its connection, or null if no target is reachable
+     */
+    private Downstream connectDownstream(List<DataNodeInfo> targets, String filename, int chunkNum,
+                                         long generation, long length)
+    {
+        for (int i = 0; i < targets.size(); i++) {
+            DataNodeInfo next = targets.get(i);
+            try {
+                SocketChannel downstream = DataTransferClient.connect(next);
+                DataTransferProtocol.HeaderBuilder request = new DataTransferProtocol.HeaderBuilder();
+                request.out.writeInt(DataTransferProtocol.VERSION);
+                request.out.writeByte(DataTransferProtocol.OP_WRITE_CHUNK);
+                request.out.writeUTF(filename);
+                request.out.writeInt(chunkNum);
+                request.out.writeLong(generation);
+                request.out.writeLong(length);
+                DataTransferProtocol.writeTargets(request.out, targets.subList(i + 1, targets.size()));
+                try {
+                    DataTransferProtocol.writeHeader(downstream, request.toByteArray());
+                }
+                catch (IOException e) {
+                    downstream.close();
+                    throw e;
+                }
+                return new Downstream(next, downstream);
+            }
+            catch (IOException e) {
+                System.err.println("[Error**] Pipeline target " + next.registryIP + ":" + next.transferPort
+                                   + " unreachable, skipping it");
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Receive a chunk packet by packet, forwarding each packet downstream
+     * before writing it to local disk. If the downstream node fails the
+     * chunk is still stored locally.
+     * @return SocketChannel the downstream connection, or null if it failed
+     * @throws IOException
+     */
+    private SocketChannel relay(SocketChannel upstream, FileChannel fc, long base, SocketChannel downstream,
+                                long length) throws IOException
+    {
+        ByteBuffer packet = ByteBuffer.allocateDirect(DataTransferProtocol.PACKET_SIZE);
+        long position = 0;
+        while (position < length) {
+            packet.clear();
+            packet.limit((int) Math.min(packet.capacity(), length - position));
+            DataTransferProtocol.readFully(upstream, packet);
+            packet.flip();
+
+            if (downstream != null) {
+                try {
+                    DataTransferProtocol.writeFully(downstream, packet.duplicate());
+                }
+                catch (IOException e) {
+                    System.err.println("[Error**] Lost downstream pipeline connection");
+                    downstream.close();
+                    downstream = null;
+                }
+            }
+            while (packet.hasRemaining()) {
+                position += fc.write(packet, base + position);
+            }
+        }
+        return downstream;
+    }
+
+
+    /**
+     * Fold the duration of a chunk write into the moving average.
+     */
+    private synchronized void recordWriteLatency(long millis) {
+        this.writeLatency = (this.writeLatency == 0) ? millis
+                          : LATENCY_ALPHA * millis + (1 - LATENCY_ALPHA) * this.writeLatency;
+    }
+
+
+    /**
+     * Send a response header.
+     * @throws IOException
+     */
+    private void sendStatus(SocketChannel channel, byte status, long length) throws IOException {
+        DataTransferProtocol.HeaderBuilder response = new DataTransferProtocol.HeaderBuilder();
+        response.out.writeByte(status);
+        response.out.writeLong(length);
+        DataTransferProtocol.writeHeader(channel, response.toByteArray());
+    }
+
+
+    /**
+     * Send a write ack carrying the downstream targets that stored the chunk.
+     * @throws IOException
+     */
+    private void sendWriteAck(SocketChannel channel, byte status, List<DataNodeInfo> stored) throws IOException {
+        DataTransferProtocol.HeaderBuilder response = new DataTransferProtocol.HeaderBuilder();
+        response.out.writeByte(status);
+        DataTransferProtocol.writeTargets(response.out, stored);
+        DataTransferProtocol.writeHeader(channel, response.toByteArray());
+    }
+}
@@ -0,0 +1,517 @@
+package hdfs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import hdfs.DataNodeInfo;
+import hdfs.DataTransferProtocol;
+
+/**
+ * Write-ahead log of NameNode namespace mutations.
+ *
+ * A mutation is appended to an in-memory buffer while the caller still holds
+ * the namespace lock, which keeps the log in the same order as the tables.
+ * Durability is then requested with logSync() after the lock is released.
+ * The log is double buffered : while one thread writes and fsyncs a full
+ * buffer, others keep appending to the second one, and the next sync flushes
+ * all of them at once. Many concurrent mutations thus share one fsync.
+ *
+ * The log is a sequence of segment files named after the id of their first
+ * transaction. Only the last segment is written to; roll() finalizes it so a
+ * checkpoint can fold the finalized segments into a namespace image.
+ *
+ * On disk every record is [int length][int crc32][payload], payload starting
+ * with the op code and the transaction id. A torn record at the tail left by
+ * a crash is truncated at startup.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class EditLog {
+
+    /** a file was created */
+    public static final byte OP_CREATE = 1;
+    /** a chunk was allocated to a file */
+    public static final byte OP_ADD_CHUNK = 2;
+    /** a file, or a directory with its subtree, was removed */
+    public static final byte OP_REMOVE = 3;
+    /** a directory and its missing parents were created */
+    public static final byte OP_MKDIRS = 4;
+    /** a file written as a stream was completed */
+    public static final byte OP_COMPLETE = 5;
+
+    /** largest valid record, guards against reading garbage as a length */
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+    /** segment file name prefix */
+    private static final String SEGMENT_PREFIX = "edits_";
+    /** segment file name suffix */
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /** metadata directory */
+    private File dir;
+    /** segment being appended to */
+    private File file;
+    /** channel of the segment being appended to, only used by the syncing thread */
+    private FileChannel channel;
+
+    /** buffer the writers append to */
+    private ByteArrayOutputStream current = new ByteArrayOutputStream(64 * 1024);
+    /** buffer being written and synced */
+    private ByteArrayOutputStream flushing = new ByteArrayOutputStream(64 * 1024);
+    /** last transaction id handed out */
+    private long lastTxId;
+    /** last transaction id durable on disk */
+    private long syncedTxId;
+    /** true while a thread is writing the flushing buffer */
+    private boolean syncRunning;
+
+    /** number of fsyncs, for the group commit ratio */
+    private long syncCount;
+
+
+    /**
+     * Interface the NameNode implements to apply replayed edits.
+     * A file is created with the transaction id of its create edit as generation stamp.
+     */
+    public interface Handler {
+        void create(String fileName, int blockSize, boolean underConstruction, long generationStamp);
+        void addChunk(String fileName, int chunkNum, long length, List<DataNodeInfo> replicas);
+        void remove(String path);
+        void mkdirs(String path);
+        void complete(String fileName);
+    }
+
+
+    /**
+     * Constructor
+     * @param dir File The metadata directory holding the segments.
+     */
+    public EditLog(File dir) {
+        this.dir = dir;
+    }
+
+
+    /**
+     * Replay the edits that come after a namespace image, truncate a torn
+     * tail and open the last segment for appending.
+     * @param afterTxId long The transaction id of the loaded image, 0 if none.
+     * @param handler Handler The namespace to apply edits to.
+     * @return long The number of edits replayed.
+     * @throws IOException
+     */
+    public synchronized long open(long afterTxId, Handler handler) throws IOException {
+        this.dir.mkdirs();
+        List<File> segments = segments(this.dir);
+        if (!segments.isEmpty() && startTxId(segments.get(0)) > afterTxId + 1) {
+            throw new IOException("Edits " + (afterTxId + 1) + " to " + (startTxId(segments.get(0)) - 1)
+                                  + " are missing from " + this.dir);
+        }
+
+        long count = 0;
+        this.lastTxId = afterTxId;
+        for (int i = 0; i < segments.size(); i++) {
+            boolean last = (i == segments.size() - 1);
+            Replay replay = replay(segments.get(i), afterTxId, Long.MAX_VALUE, handler, last);
+            count += replay.count;
+            this.lastTxId = Math.max(this.lastTxId, replay.lastTxId);
+        }
+        this.syncedTxId = this.lastTxId;
+
+        if (segments.isEmpty()) {
+            this.file = segmentFile(this.dir, this.lastTxId + 1);
+        }
+        else {
+            this.file = segments.get(segments.size() - 1);
+        }
+        this.channel = new RandomAccessFile(this.file, "rw").getChannel();
+        this.channel.position(this.channel.size());
+        return count;
+    }
+
+
+    /**
+     * Apply the edits of finalized segments in a transaction range, used by
+     * checkpoints to build an image without touching the live namespace.
+     * @param dir File The metadata directory.
+     * @param afterTxId long Edits up to this transaction id are skipped.
+     * @param upToTxId long Edits after this transaction id are skipped.
+     * @param handler Handler The namespace to apply edits to.
+     * @return long The last transaction id applied.
+     * @throws IOException
+     */
+    public static long replay(File dir, long afterTxId, long upToTxId, Handler handler) throws IOException {
+        long lastTxId = afterTxId;
+        for (File segment : segments(dir)) {
+            if (startTxId(segment) > upToTxId) {
+                break;
+            }
+            lastTxId = Math.max(lastTxId, replay(segment, afterTxId, upToTxId, handler, false).lastTxId);
+        }
+        return lastTxId;
+    }
+
+
+    /**
+     * Result of replaying a segment.
+     */
+    private static class Replay {
+        long count;
+        long lastTxId;
+    }
+
+
+    /**
+     * Apply the records of one segment in a transaction range.
+     * @param truncate boolean true to cut a torn tail off the segment
+     */
+    private static Replay replay(File segment, long afterTxId, long upToTxId, Handler handler, boolean truncate)
+            throws IOException
+    {
+        Replay result = new Replay();
+        try (RandomAccessFile raf = new RandomAccessFile(segment, truncate ? "rw" : "r")) {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            long position = 0;
+            ByteBuffer head = ByteBuffer.allocate(8);
+            CRC32 crc = new CRC32();
+            while (position + 8 <= size) {
+                head.clear();
+                channel.read(head, position);
+                head.flip();
+                int length = head.getInt();
+                int checksum = head.getInt();
+                if (length <= 0 || length > MAX_RECORD_SIZE || position + 8 + length > size) {
+                    break;
+                }
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                while (payload.hasRemaining()) {
+                    channel.read(payload, position + 8 + payload.position());
+                }
+                crc.reset();
+                crc.update(payload.array(), 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                position += 8 + length;
+
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array()));
+                byte op = in.readByte();
+                long txId = in.readLong();
+                if (txId > upToTxId) {
+                    return result;
+                }
+                if (txId > afterTxId) {
+                    apply(op, txId, in, handler, segment);
+                    result.count++;
+                }
+                result.lastTxId = txId;
+            }
+            if (position < size) {
+                if (!truncate) {
+                    throw new IOException("Corrupt edit log segment " + segment + " at " + position);
+                }
+                System.err.println("[Error**] Truncating torn edit log tail at " + position + " of " + segment);
+                channel.truncate(position);
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Decode the body of one record and apply it.
+     */
+    private static void apply(byte op, long txId, DataInputStream in, Handler handler, File segment)
+            throws IOException
+    {
+        switch (op) {
+            case OP_CREATE:
+                handler.create(in.readUTF(), in.readInt(), in.readBoolean(), txId);
+                break;
+            case OP_ADD_CHUNK:
+                handler.addChunk(in.readUTF(), in.readInt(), in.readLong(), DataTransferProtocol.readTargets(in));
+                break;
+            case OP_REMOVE:
+                handler.remove(in.readUTF());
+                break;
+            case OP_MKDIRS:
+                handler.mkdirs(in.readUTF());
+                break;
+            case OP_COMPLETE:
+                handler.complete(in.readUTF());
+                break;
+            default:
+                throw new IOException("Unknown edit log op " + op + " in " + segment);
+        }
+    }
+
+
+    /**
+     * Log the creation of a file. Caller holds the namespace lock.
+     * @param underConstruction boolean true for a file written as a stream, until logComplete.
+     * @return long The transaction id, to be passed to logSync, also the generation stamp of the file.
+     */
+    public long logCreate(String fileName, int blockSize, boolean underConstruction) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeUTF(fileName);
+        out.writeInt(blockSize);
+        out.writeBoolean(underConstruction);
+        return append(OP_CREATE, payload);
+    }
+
+
+    /**
+     * Log the allocation of a chunk. Caller holds the namespace lock.
+     * @return long The transaction id, to be passed to logSync.
+     */
+    public long logAddChunk(String fileName, int chunkNum, long length, List<DataNodeInfo> replicas)
+            throws IOException
+    {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeUTF(fileName);
+        out.writeInt(chunkNum);
+        out.writeLong(length);
+        DataTransferProtocol.writeTargets(out, replicas);
+        return append(OP_ADD_CHUNK, payload);
+    }
+
+
+    /**
+     * Log the removal of a file or of a directory subtree. Caller holds the namespace lock.
+     * @return long The transaction id, to be passed to logSync.
+     */
+    public long logRemove(String path) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeUTF(path);
+        return append(OP_REMOVE, payload);
+    }
+
+
+    /**
+     * Log the creation of a directory. Caller holds the namespace lock.
+     * @return long The transaction id, to be passed to logSync.
+     */
+    public long logMkdirs(String path) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeUTF(path);
+        return append(OP_MKDIRS, payload);
+    }
+
+
+    /**
+     * Log the completion of a file written as a stream. Caller holds the namespace lock.
+     * @return long The transaction id, to be passed to logSync.
+     */
+    public long logComplete(String fileName) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeUTF(fileName);
+        return append(OP_COMPLETE, payload);
+    }
+
+
+    /**
+     * Frame a record into the current buffer.
+     */
+    private synchronized long append(byte op, ByteArrayOutputStream body) throws IOException {
+        long txId = ++this.lastTxId;
+        ByteArrayOutputStream record = new ByteArrayOutputStream(body.size() + 9);
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeByte(op);
+        out.writeLong(txId);
+        body.writeTo(out);
+        byte[] payload = record.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        DataOutputStream frame = new DataOutputStream(this.current);
+        frame.writeInt(payload.length);
+        frame.writeInt((int) crc.getValue());
+        frame.write(payload);
+        return txId;
+    }
+
+
+    /**
+     * Block until the given transaction is durable. The first caller to find
+     * no sync running flushes every edit buffered so far, later callers
+     * either find their edit already synced or wait for the next round.
+     * @param txId long The transaction id returned by a log call.
+     * @throws IOException
+     */
+    public void logSync(long txId) throws IOException {
+        long flushTxId;
+        FileChannel target;
+        synchronized (this) {
+            waitForSync(txId);
+            if (this.syncedTxId >= txId) {
+                return;
+            }
+            /* swap buffers : new edits go to the other one while this one is written */
+            ByteArrayOutputStream full = this.current;
+            this.current = this.flushing;
+            this.flushing = full;
+            flushTxId = this.lastTxId;
+            target = this.channel;
+            this.syncRunning = true;
+        }
+
+        boolean synced = false;
+        try {
+            write(target, this.flushing);
+            synced = true;
+        }
+        finally {
+            synchronized (this) {
+                this.flushing.reset();
+                this.syncRunning = false;
+                if (synced) {
+                    this.syncedTxId = flushTxId;
+                    this.syncCount++;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+
+    /**
+     * Wait while another thread is syncing edits that do not cover txId.
+     * Caller holds the monitor.
+     */
+    private void waitForSync(long txId) throws IOException {
+        while (this.syncedTxId < txId && this.syncRunning) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for edit log sync");
+            }
+        }
+    }
+
+
+    /**
+     * Write a buffer to a segment and fsync it.
+     */
+    private static void write(FileChannel channel, ByteArrayOutputStream buffer) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(buffer.toByteArray());
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        channel.force(false);
+    }
+
+
+    /**
+     * Finalize the current segment and start a new one. Every edit logged so
+     * far ends up durable in finalized segments.
+     * @return long The last transaction id of the finalized segments.
+     * @throws IOException
+     */
+    public synchronized long roll() throws IOException {
+        waitForSync(Long.MAX_VALUE);
+        write(this.channel, this.current);
+        this.current.reset();
+        this.syncedTxId = this.lastTxId;
+        notifyAll();
+
+        this.channel.close();
+        this.file = segmentFile(this.dir, this.lastTxId + 1);
+        this.channel = new RandomAccessFile(this.file, "rw").getChannel();
+        return this.lastTxId;
+    }
+
+
+    /**
+     * Delete the finalized segments whose edits are all covered by an image.
+     * @param dir File The metadata directory.
+     * @param imageTxId long The transaction id of the image.
+     */
+    public static void purge(File dir, long imageTxId) {
+        List<File> segments = segments(dir);
+        /* a segment ends right before the next one starts; the last one is never purged */
+        for (int i = 0; i + 1 < segments.size(); i++) {
+            if (startTxId(segments.get(i + 1)) - 1 <= imageTxId) {
+                segments.get(i).delete();
+            }
+        }
+    }
+
+
+    /**
+     * @return List the segment files of a directory, in transaction order
+     */
+    private static List<File> segments(File dir) {
+        File[] files = dir.listFiles();
+        ArrayList<File> segments = new ArrayList<File>();
+        if (files == null) {
+            return segments;
+        }
+        Arrays.sort(files);
+        for (File f : files) {
+            if (f.getName().startsWith(SEGMENT_PREFIX) && f.getName().endsWith(SEGMENT_SUFFIX)) {
+                segments.add(f);
+            }
+        }
+        return segments;
+    }
+
+
+    private static File segmentFile(File dir, long startTxId) {
+        return new File(dir, String.format("%s%019d%s", SEGMENT_PREFIX, startTxId, SEGMENT_SUFFIX));
+    }
+
+
+    private static long startTxId(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+
+    /**
+     * @return long the last transaction id handed out
+     */
+    public synchronized long getLastTxId() {
+        return this.lastTxId;
+    }
+
+
+    /**
+     * @return long the number of fsyncs done so far
+     */
+    public synchronized long getSyncCount() {
+        return this.syncCount;
+    }
+
+
+    /**
+     * Flush pending edits and close the log.
+     */
+    public void close() {
+        try {
+            logSync(getLastTxId());
+            this.channel.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("[Error**] Failed to close edit log " + this.file);
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package hdfs;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import hdfs.HDFSFileMeta;
+import hdfs.INode;
+import hdfs.INodeDirectory;
+import hdfs.INodeFile;
+
+/**
+ * Hierarchical namespace of the NameNode.
+ * Paths are resolved component by component from the root, so a lookup
+ * costs O(depth) whatever the size of the namespace, and listing or
+ * deleting a directory only touches that directory and its subtree.
+ * Lookups and listings share a read lock; mutations take the write lock.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class FSDirectory {
+
+    private static final byte[] EMPTY_NAME = new byte[0];
+
+    /** root directory "/" */
+    private INodeDirectory root = new INodeDirectory(EMPTY_NAME);
+    /** guards the tree */
+    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    /** number of files in the tree */
+    private int fileCount;
+    /** number of directories in the tree, the root excluded */
+    private int directoryCount;
+
+
+    /**
+     * Normalize a path : absolute, no empty components, no trailing slash.
+     * "a//b/" and "/a/b" both become "/a/b".
+     */
+    public static String normalize(String path) {
+        StringBuilder normalized = new StringBuilder();
+        for (byte[] component : components(path)) {
+            normalized.append('/').append(new String(component, StandardCharsets.UTF_8));
+        }
+        return (normalized.length() == 0) ? "/" : normalized.toString();
+    }
+
+
+    /**
+     * Split a path into its UTF-8 encoded components.
+     */
+    private static byte[][] components(String path) {
+        ArrayList<byte[]> components = new ArrayList<byte[]>();
+        if (path != null) {
+            for (String component : path.split("/")) {
+                if (!component.isEmpty() && !component.equals(".")) {
+                    components.add(component.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return components.toArray(new byte[components.size()][]);
+    }
+
+
+    /**
+     * Walk down the tree. Caller holds the lock.
+     * @param count int The number of leading components to resolve.
+     * @return INode the node, or null if a component is missing or not a directory
+     */
+    private INode resolve(byte[][] components, int count) {
+        INode node = this.root;
+        for (int i = 0; i < count; i++) {
+            if (!node.isDirectory()) {
+                return null;
+            }
+            node = ((INodeDirectory) node).getChild(components[i]);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+
+    /**
+     * @return INodeFile the file at a path, or null if there is no file there
+     */
+    public INodeFile getFile(String path) {
+        byte[][] components = components(path);
+        this.lock.readLock().lock();
+        try {
+            INode node = resolve(components, components.length);
+            return (node == null || node.isDirectory()) ? null : (INodeFile) node;
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * @return boolean true if the path is a directory
+     */
+    public boolean isDirectory(String path) {
+        byte[][] components = components(path);
+        this.lock.readLock().lock();
+        try {
+            INode node = resolve(components, components.length);
+            return node != null && node.isDirectory();
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Create an empty file, creating its missing parent directories.
+     * @param path String The path of the file.
+     * @param blockSize int The block size of the file.
+     * @return INodeFile the new file, or null if the path exists or a parent is a file
+     */
+    public INodeFile addFile(String path, int blockSize) {
+        byte[][] components = components(path);
+        if (components.length == 0) {
+            return null;
+        }
+        INodeFile file = new INodeFile(components[components.length - 1], blockSize);
+        return addFile(components, file) ? file : null;
+    }
+
+
+    /**
+     * Add a file built elsewhere, creating its missing parent directories.
+     * @param path String The path of the file, its last component must be the name of the file.
+     * @param file INodeFile The file.
+     * @return boolean false if the path exists or a parent is a file
+     */
+    public boolean addFile(String path, INodeFile file) {
+        byte[][] components = components(path);
+        if (components.length == 0
+            || INode.compareNames(components[components.length - 1], file.getLocalNameBytes()) != 0)
+        {
+            return false;
+        }
+        return addFile(components, file);
+    }
+
+
+    private boolean addFile(byte[][] components, INodeFile file) {
+        this.lock.writeLock().lock();
+        try {
+            INodeDirectory parent = mkdirs(components, components.length - 1);
+            if (parent == null || !parent.addChild(file)) {
+                return false;
+            }
+            this.fileCount++;
+            return true;
+        }
+        finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Create a directory and its missing parents.
+     * @return boolean false if a component of the path is a file
+     */
+    public boolean mkdirs(String path) {
+        byte[][] components = components(path);
+        this.lock.writeLock().lock();
+        try {
+            return mkdirs(components, components.length) != null;
+        }
+        finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Create the directories of the leading components. Caller holds the write lock.
+     * @return INodeDirectory the deepest directory, or null if a component is a file
+     */
+    private INodeDirectory mkdirs(byte[][] components, int count) {
+        INodeDirectory dir = this.root;
+        for (int i = 0; i < count; i++) {
+            INode child = dir.getChild(components[i]);
+            if (child == null) {
+                child = new INodeDirectory(components[i]);
+                dir.addChild(child);
+                this.directoryCount++;
+            }
+            else if (!child.isDirectory()) {
+                return null;
+            }
+            dir = (INodeDirectory) child;
+        }
+        return dir;
+    }
+
+
+    /**
+     * Delete a file or a directory.
+     * @param path String The path to delete.
+     * @param recursive boolean Whether a non-empty directory may be deleted with its subtree.
+     * @return ArrayList<INodeFile> the files deleted, or null if nothing was deleted
+     *         because the path does not exist, is the root, or is a non-empty directory.
+     *         Deleted nodes keep their parent, so their former path can still be built.
+     */
+    public ArrayList<INodeFile> delete(String path, boolean recursive) {
+        byte[][] components = components(path);
+        if (components.length == 0) {
+            return null;
+        }
+        this.lock.writeLock().lock();
+        try {
+            INode node = resolve(components, components.length);
+            if (node == null) {
+                return null;
+            }
+            ArrayList<INodeFile> deleted = new ArrayList<INodeFile>();
+            if (node.isDirectory()) {
+                INodeDirectory dir = (INodeDirectory) node;
+                if (dir.getChildCount() > 0 && !recursive) {
+                    return null;
+                }
+                collect(dir, deleted);
+            }
+            else {
+                deleted.add((INodeFile) node);
+                this.fileCount--;
+            }
+            node.parent.removeChild(node);
+            return deleted;
+        }
+        finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * List a directory one bounded batch at a time, in name order.
+     * If the prefix names a directory its children are listed; otherwise the
+     * children of its parent whose name starts with its last component are.
+     * @param prefix String The directory or name prefix, null for the root.
+     * @param startAfter String The path or name of the last entry of the previous batch, or null.
+     * @param limit int The max number of entries.
+     * @return ArrayList<HDFSFileMeta> files and directories, directories as metadata only
+     */
+    public ArrayList<HDFSFileMeta> list(String prefix, String startAfter, int limit) {
+        byte[][] components = components(prefix);
+        ArrayList<HDFSFileMeta> batch = new ArrayList<HDFSFileMeta>(Math.min(limit, 64));
+        this.lock.readLock().lock();
+        try {
+            INode node = resolve(components, components.length);
+            INodeDirectory dir;
+            byte[] namePrefix = EMPTY_NAME;
+            if (node != null && node.isDirectory()) {
+                dir = (INodeDirectory) node;
+            }
+            else if (node != null) {
+                /* a file lists as itself */
+                if (startAfter == null && limit > 0) {
+                    INodeFile file = (INodeFile) node;
+                    batch.add(new HDFSFileMeta(file.getPath(), file.getSize(), file.getBlockSize()));
+                }
+                return batch;
+            }
+            else {
+                INode parent = (components.length == 0) ? null : resolve(components, components.length - 1);
+                if (parent == null || !parent.isDirectory()) {
+                    return batch;
+                }
+                dir = (INodeDirectory) parent;
+                namePrefix = components[components.length - 1];
+            }
+
+            /* names sharing a prefix are contiguous among the sorted children */
+            int from = dir.search(namePrefix);
+            from = (from < 0) ? -from - 1 : from;
+            if (startAfter != null) {
+                byte[][] after = components(startAfter);
+                if (after.length > 0) {
+                    int i = dir.search(after[after.length - 1]);
+                    from = Math.max(from, (i < 0) ? -i - 1 : i + 1);
+                }
+            }
+            String dirPath = (dir == this.root) ? "" : dir.getPath();
+            for (int i = from; i < dir.getChildCount() && batch.size() < limit; i++) {
+                INode child = dir.getChild(i);
+                if (!startsWith(child.getLocalNameBytes(), namePrefix)) {
+                    break;
+                }
+                String childPath = dirPath + "/" + child.getLocalName();
+                if (child.isDirectory()) {
+                    batch.add(new HDFSFileMeta(childPath, true));
+                }
+                else {
+                    INodeFile file = (INodeFile) child;
+                    batch.add(new HDFSFileMeta(childPath, file.getSize(), file.getBlockSize()));
+                }
+            }
+            return batch;
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * @return ArrayList<String> the path of every directory, parents before their children
+     */
+    public ArrayList<String> directories() {
+        ArrayList<String> directories = new ArrayList<String>(this.directoryCount);
+        this.lock.readLock().lock();
+        try {
+            collectDirectories(this.root, "", directories);
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+        return directories;
+    }
+
+
+    /**
+     * @return ArrayList<INodeFile> every file, in depth first name order
+     */
+    public ArrayList<INodeFile> files() {
+        ArrayList<INodeFile> files = new ArrayList<INodeFile>(this.fileCount);
+        this.lock.readLock().lock();
+        try {
+            walkFiles(this.root, files);
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+        return files;
+    }
+
+
+    /** get the number of files */
+    public int getFileCount() {
+        this.lock.readLock().lock();
+        try {
+            return this.fileCount;
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+
+    /** get the number of directories, the root excluded */
+    public int getDirectoryCount() {
+        this.lock.readLock().lock();
+        try {
+            return this.directoryCount;
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Collect the files of a subtree being deleted and update the counters.
+     * Caller holds the write lock.
+     */
+    private void collect(INodeDirectory dir, ArrayList<INodeFile> files) {
+        for (int i = 0; i < dir.getChildCount(); i++) {
+            INode child = dir.getChild(i);
+            if (child.isDirectory()) {
+                collect((INodeDirectory) child, files);
+            }
+            else {
+                files.add((INodeFile) child);
+                this.fileCount--;
+            }
+        }
+        this.directoryCount--;
+    }
+
+
+    private static void collectDirectories(INodeDirectory dir, String path, ArrayList<String> directories) {
+        for (int i = 0; i < dir.getChildCount(); i++) {
+            INode child = dir.getChild(i);
+            if (child.isDirectory()) {
+                String childPath = path + "/" + child.getLocalName();
+                directories.add(childPath);
+                collectDirectories((INodeDirectory) child, childPath, directories);
+            }
+        }
+    }
+
+
+    private static void walkFiles(INodeDirectory dir, ArrayList<INodeFile> files) {
+        for (int i = 0; i < dir.getChildCount(); i++) {
+            INode child = dir.getChild(i);
+            if (child.isDirectory()) {
+                walkFiles((INodeDirectory) child, files);
+            }
+            else {
+                files.add((INodeFile) child);
+            }
+        }
+    }
+
+
+    private static boolean startsWith(byte[] name, byte[] prefix) {
+        if (name.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (name[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,431 @@
+package hdfs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import hdfs.DataNodeIndex;
+import hdfs.DataNodeInfo;
+import hdfs.FSDirectory;
+import hdfs.INodeFile;
+
+/**
+ * Compact binary checkpoint of the NameNode namespace.
+ *
+ * Layout of an image file :
+ * <pre>
+ *   header   : int MAGIC, int VERSION, long txId
+ *   nodes    : dictionary of every DataNode referenced by a chunk
+ *   dirs     : path of every directory, parents first (since version 2)
+ *   sections : files, packed into independently decodable sections, with
+ *              whether they are under construction (since version 3) and
+ *              their generation stamp (since version 4)
+ *   index    : offset, length, file count and crc32 of nodes and of every section
+ *   trailer  : long index offset, int MAGIC
+ * </pre>
+ * Files are encoded with variable length integers and replicas as indices
+ * into the node dictionary, so a chunk takes a handful of bytes. Because
+ * sections only depend on the dictionary, they are decoded in parallel at
+ * load time. Files are written in depth first name order, so inserting them
+ * back into the tree in that order only appends to directories.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class FSImage {
+
+    /** "FSIM" */
+    private static final int MAGIC = 0x4653494d;
+    /** format version, bumped on every incompatible layout change */
+    public static final int VERSION = 4;
+    /** oldest format version that can still be loaded */
+    private static final int MIN_VERSION = 1;
+    /** a section is closed once it holds about this many bytes */
+    private static final int SECTION_SIZE = 1024 * 1024;
+    /** image file name prefix */
+    private static final String IMAGE_PREFIX = "fsimage_";
+    /** image file name suffix */
+    private static final String IMAGE_SUFFIX = ".img";
+    /** number of images kept after a checkpoint */
+    private static final int IMAGES_KEPT = 2;
+
+
+    /**
+     * Write an image of a namespace. The image is written to a temporary file
+     * and renamed once synced, so a crash never leaves a partial image.
+     * @param dir File The metadata directory.
+     * @param txId long The last transaction id covered by the namespace.
+     * @param namespace FSDirectory The namespace.
+     * @param dataNodes DataNodeIndex The dictionary the replica locations of the namespace refer to.
+     * @return File the image file
+     * @throws IOException
+     */
+    public static File save(File dir, long txId, FSDirectory namespace, DataNodeIndex dataNodes)
+            throws IOException
+    {
+        dir.mkdirs();
+        ArrayList<INodeFile> files = namespace.files();
+        File image = imageFile(dir, txId);
+        File tmp = new File(dir, image.getName() + ".tmp");
+
+        /* node dictionary : replicas are already indices into it, taken after
+         * the files so it covers every index they use */
+        DataNodeInfo[] nodeList = dataNodes.snapshot();
+        ByteArrayOutputStream nodeBytes = new ByteArrayOutputStream();
+        DataOutputStream nodes = new DataOutputStream(nodeBytes);
+        writeVarLong(nodes, nodeList.length);
+        for (DataNodeInfo node : nodeList) {
+            nodes.writeUTF(node.registryIP);
+            writeVarLong(nodes, node.registryPort);
+            nodes.writeUTF(node.name);
+            writeVarLong(nodes, node.transferPort);
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            FileChannel channel = raf.getChannel();
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(16);
+            header.putInt(MAGIC).putInt(VERSION).putLong(txId).flip();
+            write(channel, header);
+
+            ArrayList<long[]> index = new ArrayList<long[]>();
+            index.add(writeSection(channel, nodeBytes, 0));
+
+            ArrayList<String> directories = namespace.directories();
+            ByteArrayOutputStream dirBytes = new ByteArrayOutputStream();
+            DataOutputStream dirs = new DataOutputStream(dirBytes);
+            for (String path : directories) {
+                dirs.writeUTF(path);
+            }
+            index.add(writeSection(channel, dirBytes, directories.size()));
+
+            ByteArrayOutputStream sectionBytes = new ByteArrayOutputStream(SECTION_SIZE + 64 * 1024);
+            DataOutputStream section = new DataOutputStream(sectionBytes);
+            int fileCount = 0;
+            for (INodeFile file : files) {
+                writeFile(section, file);
+                fileCount++;
+                if (sectionBytes.size() >= SECTION_SIZE) {
+                    index.add(writeSection(channel, sectionBytes, fileCount));
+                    sectionBytes.reset();
+                    fileCount = 0;
+                }
+            }
+            if (fileCount > 0) {
+                index.add(writeSection(channel, sectionBytes, fileCount));
+            }
+
+            long indexOffset = channel.position();
+            ByteBuffer tail = ByteBuffer.allocate(4 + index.size() * 24 + 12);
+            tail.putInt(index.size());
+            for (long[] entry : index) {
+                tail.putLong(entry[0]).putInt((int) entry[1]).putInt((int) entry[2]).putLong(entry[3]);
+            }
+            tail.putLong(indexOffset).putInt(MAGIC).flip();
+            write(channel, tail);
+            channel.force(true);
+        }
+        if (!tmp.renameTo(image)) {
+            throw new IOException("Cannot rename " + tmp + " to " + image);
+        }
+        return image;
+    }
+
+
+    /**
+     * Load an image, decoding its sections in parallel.
+     * @param image File The image file.
+     * @param namespace FSDirectory The namespace to fill.
+     * @param dataNodes DataNodeIndex The dictionary replica locations are mapped to.
+     * @param threads int The number of decoding threads.
+     * @return long The last transaction id covered by the image.
+     * @throws IOException if the image is corrupt or of an unknown version
+     */
+    public static long load(File image, FSDirectory namespace, DataNodeIndex dataNodes, int threads)
+            throws IOException
+    {
+        try (RandomAccessFile raf = new RandomAccessFile(image, "r")) {
+            final FileChannel channel = raf.getChannel();
+            ByteBuffer header = read(channel, 0, 16);
+            if (header.getInt() != MAGIC) {
+                throw new IOException(image + " is not a namespace image");
+            }
+            final int version = header.getInt();
+            if (version < MIN_VERSION || version > VERSION) {
+                throw new IOException(image + " has unsupported version " + version);
+            }
+            long txId = header.getLong();
+
+            ByteBuffer trailer = read(channel, channel.size() - 12, 12);
+            long indexOffset = trailer.getLong();
+            if (trailer.getInt() != MAGIC) {
+                throw new IOException(image + " is truncated");
+            }
+            ByteBuffer index = read(channel, indexOffset, (int) (channel.size() - 12 - indexOffset));
+            int sectionCount = index.getInt();
+            final long[][] sections = new long[sectionCount][];
+            for (int i = 0; i < sectionCount; i++) {
+                sections[i] = new long[] {index.getLong(), index.getInt(), index.getInt(), index.getLong()};
+            }
+
+            /* node dictionary first, every section refers to it */
+            DataInputStream nodes = new DataInputStream(new ByteArrayInputStream(readSection(channel, sections[0])));
+            /* image indices to indices of the live dictionary */
+            final int[] nodeMap = new int[(int) readVarLong(nodes)];
+            for (int i = 0; i < nodeMap.length; i++) {
+                String ip = nodes.readUTF();
+                int port = (int) readVarLong(nodes);
+                String name = nodes.readUTF();
+                int transferPort = (int) readVarLong(nodes);
+                nodeMap[i] = dataNodes.indexOf(new DataNodeInfo(ip, port, name, transferPort));
+            }
+
+            int firstFileSection = 1;
+            if (version >= 2) {
+                DataInputStream dirs = new DataInputStream(
+                        new ByteArrayInputStream(readSection(channel, sections[1])));
+                for (int i = 0; i < sections[1][2]; i++) {
+                    namespace.mkdirs(dirs.readUTF());
+                }
+                firstFileSection = 2;
+            }
+
+            /* decode in parallel, insert in image order */
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+            try {
+                List<Future<ArrayList<ImageFile>>> pending = new ArrayList<Future<ArrayList<ImageFile>>>();
+                for (int i = firstFileSection; i < sectionCount; i++) {
+                    final long[] section = sections[i];
+                    pending.add(pool.submit(new Callable<ArrayList<ImageFile>>() {
+                        @Override
+                        public ArrayList<ImageFile> call() throws IOException {
+                            DataInputStream in = new DataInputStream(
+                                    new ByteArrayInputStream(readSection(channel, section)));
+                            ArrayList<ImageFile> files = new ArrayList<ImageFile>((int) section[2]);
+                            for (int f = 0; f < section[2]; f++) {
+                                files.add(readFile(in, nodeMap, version));
+                            }
+                            return files;
+                        }
+                    }));
+                }
+                for (Future<ArrayList<ImageFile>> f : pending) {
+                    for (ImageFile entry : f.get()) {
+                        if (!namespace.addFile(entry.path, entry.file)) {
+                            throw new IOException(image + " holds " + entry.path + " at a conflicting path");
+                        }
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted loading " + image);
+            }
+            catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+            }
+            finally {
+                pool.shutdownNow();
+            }
+            return txId;
+        }
+    }
+
+
+    /**
+     * @return File the newest image of a directory, or null if there is none
+     */
+    public static File latest(File dir) {
+        List<File> images = images(dir);
+        return images.isEmpty() ? null : images.get(images.size() - 1);
+    }
+
+
+    /**
+     * Delete all but the newest images.
+     */
+    public static void purge(File dir) {
+        List<File> images = images(dir);
+        for (int i = 0; i < images.size() - IMAGES_KEPT; i++) {
+            images.get(i).delete();
+        }
+    }
+
+
+    private static void writeFile(DataOutputStream out, INodeFile file) throws IOException {
+        out.writeUTF(file.getPath());
+        writeVarLong(out, file.getBlockSize());
+        out.writeBoolean(file.isUnderConstruction());
+        writeVarLong(out, file.getGenerationStamp());
+        int chunkCount = file.getChunkCount();
+        writeVarLong(out, chunkCount);
+        for (int c = 0; c < chunkCount; c++) {
+            writeVarLong(out, c);
+            writeVarLong(out, file.getChunkSize(c));
+            int[] replicas = file.getReplicas(c);
+            writeVarLong(out, replicas.length);
+            for (int node : replicas) {
+                writeVarLong(out, node);
+            }
+        }
+    }
+
+
+    /**
+     * @return ImageFile the path of the file and its detached INodeFile
+     */
+    private static ImageFile readFile(DataInputStream in, int[] nodeMap, int version) throws IOException {
+        String path = in.readUTF();
+        byte[] name = path.substring(path.lastIndexOf('/') + 1).getBytes(StandardCharsets.UTF_8);
+        INodeFile file = new INodeFile(name, (int) readVarLong(in));
+        if (version >= 3 && in.readBoolean()) {
+            file.startConstruction();
+        }
+        if (version >= 4) {
+            file.setGenerationStamp(readVarLong(in));
+        }
+        int chunkCount = (int) readVarLong(in);
+        file.ensureCapacity(chunkCount);
+        for (int c = 0; c < chunkCount; c++) {
+            if (readVarLong(in) != c) {
+                throw new IOException("Chunks of " + path + " out of order in image");
+            }
+            long length = readVarLong(in);
+            int[] replicas = new int[(int) readVarLong(in)];
+            for (int r = 0; r < replicas.length; r++) {
+                replicas[r] = nodeMap[(int) readVarLong(in)];
+            }
+            file.addChunk(length, replicas);
+        }
+        return new ImageFile(path, file);
+    }
+
+
+    /**
+     * A file decoded from a section, waiting to be inserted into the tree.
+     */
+    private static class ImageFile {
+        String path;
+        INodeFile file;
+
+        ImageFile(String path, INodeFile file) {
+            this.path = path;
+            this.file = file;
+        }
+    }
+
+
+    /**
+     * Append a section to the image.
+     * @return long[] index entry : offset, length, file count, crc32
+     */
+    private static long[] writeSection(FileChannel channel, ByteArrayOutputStream bytes, int fileCount)
+            throws IOException
+    {
+        byte[] content = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        long offset = channel.position();
+        write(channel, ByteBuffer.wrap(content));
+        return new long[] {offset, content.length, fileCount, crc.getValue()};
+    }
+
+
+    private static byte[] readSection(FileChannel channel, long[] section) throws IOException {
+        ByteBuffer buf = read(channel, section[0], (int) section[1]);
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, buf.limit());
+        if (crc.getValue() != section[3]) {
+            throw new IOException("Corrupt image section at " + section[0]);
+        }
+        return buf.array();
+    }
+
+
+    private static void write(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new IOException("Unexpected end of image");
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+
+    private static List<File> images(File dir) {
+        File[] files = dir.listFiles();
+        ArrayList<File> images = new ArrayList<File>();
+        if (files == null) {
+            return images;
+        }
+        Arrays.sort(files);
+        for (File f : files) {
+            if (f.getName().startsWith(IMAGE_PREFIX) && f.getName().endsWith(IMAGE_SUFFIX)) {
+                images.add(f);
+            }
+        }
+        return images;
+    }
+
+
+    private static File imageFile(File dir, long txId) {
+        return new File(dir, String.format("%s%019d%s", IMAGE_PREFIX, txId, IMAGE_SUFFIX));
+    }
+
+
+    /**
+     * @return long the transaction id an image file covers
+     */
+    public static long txId(File image) {
+        String name = image.getName();
+        return Long.parseLong(name.substring(IMAGE_PREFIX.length(), name.length() - IMAGE_SUFFIX.length()));
+    }
+}
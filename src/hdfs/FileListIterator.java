@@ -0,0 +1,81 @@
+package hdfs;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+
+import hdfs.HDFSCommon;
+import hdfs.HDFSFileMeta;
+import hdfs.NameNodeInterface;
+
+/**
+ * Streams a file listing from NameNode one batch at a time.
+ * The next batch is only fetched once the current one is consumed, resuming
+ * after the last name seen, so the client never holds more than one batch.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class FileListIterator {
+
+    /** NameNode serving the listing */
+    private NameNodeInterface nameNode;
+    /** only files whose name starts with it are listed */
+    private String prefix;
+    /** number of files fetched per call */
+    private int batchSize;
+    /** current batch */
+    private ArrayList<HDFSFileMeta> batch = new ArrayList<HDFSFileMeta>();
+    /** next file of the current batch */
+    private int index;
+    /** name of the last file fetched, where the next batch starts */
+    private String cursor;
+    /** set once NameNode returned a short batch */
+    private boolean exhausted;
+
+
+    /**
+     * Constructor
+     * @param nameNode NameNodeInterface The NameNode to list from.
+     * @param prefix String Only files whose name starts with it, null for all files.
+     * @param batchSize int The number of files fetched per call.
+     */
+    public FileListIterator(NameNodeInterface nameNode, String prefix, int batchSize) {
+        this.nameNode = nameNode;
+        this.prefix = prefix;
+        this.batchSize = (batchSize <= 0) ? HDFSCommon.MAX_LIST_LIMIT : Math.min(batchSize, HDFSCommon.MAX_LIST_LIMIT);
+    }
+
+
+    /**
+     * @return boolean true if the listing has more files
+     * @throws RemoteException
+     */
+    public boolean hasNext() throws RemoteException {
+        if (this.index < this.batch.size()) {
+            return true;
+        }
+        if (this.exhausted) {
+            return false;
+        }
+        this.batch = this.nameNode.listFiles(this.prefix, this.cursor, this.batchSize);
+        this.index = 0;
+        this.exhausted = this.batch.size() < this.batchSize;
+        if (!this.batch.isEmpty()) {
+            this.cursor = this.batch.get(this.batch.size() - 1).getName();
+        }
+        return !this.batch.isEmpty();
+    }
+
+
+    /**
+     * @return HDFSFileMeta the next file of the listing
+     * @throws RemoteException
+     */
+    public HDFSFileMeta next() throws RemoteException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return this.batch.get(this.index++);
+    }
+}
@@ -21,12 +21,12 @@ public class HDFSChunk implements Serializable {
     private String fileName;
     /** chunk num */
     private int chunkNum;
-    /** chunk name = FileName_ChunkNum */
-    private String chunkName;
-    /** Chunk size */
-    private int chunk_size;
-    /** replica locations in dataNodes */
-    private ArrayList<DataNodeInfo> locations;
+    /** Exact chunk length in bytes, only the last chunk of a file may be shorter than its block size */
+    private long chunk_size;
+    /** replica locations in dataNodes, copied on write so readers never see a list being changed */
+    private volatile ArrayList<DataNodeInfo> locations;
+    /** generation stamp of the file, tells this chunk from one of a deleted file of the same name */
+    private long generationStamp;
 
     /** 
      * HDFSChunk Constructor
@@ -35,10 +35,19 @@ public class HDFSChunk implements Serializable {
      * @param list replica dataNode location list
      */
     public HDFSChunk(String fileName, int chunkNum) {
+        this(fileName, chunkNum, HDFSCommon.DFT_CHUNK_SIZE);
+    }
+
+    /** 
+     * HDFSChunk Constructor
+     * 
+     * @param chunkNum chunk number in the file
+     * @param chunkSize exact length of the chunk
+     */
+    public HDFSChunk(String fileName, int chunkNum, long chunkSize) {
         this.fileName = fileName;
         this.chunkNum = chunkNum;
-        this.chunkName = fileName + "_" + Integer.toString(chunkNum);
-        this.chunk_size= HDFSCommon.DFT_CHUNK_SIZE; // default chunk size = 4KB
+        this.chunk_size = chunkSize;
         this.locations = new ArrayList<DataNodeInfo>();
     }
     
@@ -47,8 +56,10 @@ public class HDFSChunk implements Serializable {
      *
      * @param dataNode DataNodeInfo object
      */
-    public void addReplicaDataNode(DataNodeInfo dataNode) {
-        this.locations.add(dataNode);
+    public synchronized void addReplicaDataNode(DataNodeInfo dataNode) {
+        ArrayList<DataNodeInfo> updated = new ArrayList<DataNodeInfo>(this.locations);
+        updated.add(dataNode);
+        this.locations = updated;
         return;
     }
 
@@ -56,8 +67,24 @@ public class HDFSChunk implements Serializable {
      * remove a replica DataNode from location list
      * @param entry DataNode to be removed from location list
      */
-    public void removeReplicaDataNode(DataNodeInfo entry) {
-        this.locations.remove(entry);
+    public synchronized void removeReplicaDataNode(DataNodeInfo entry) {
+        ArrayList<DataNodeInfo> updated = new ArrayList<DataNodeInfo>(this.locations);
+        updated.remove(entry);
+        this.locations = updated;
+    }
+
+    /**
+     * find the replica on a DataNode
+     * @param dataNodeId DataNode key, ip:port
+     * @return DataNodeInfo the replica location, or null if the DataNode has no replica
+     */
+    public DataNodeInfo getReplicaDataNode(String dataNodeId) {
+        for (DataNodeInfo dataNode : this.locations) {
+            if (dataNode.getId().equals(dataNodeId)) {
+                return dataNode;
+            }
+        }
+        return null;
     }
     
     /**
@@ -84,7 +111,7 @@ public class HDFSChunk implements Serializable {
      * @return chunk name
      */
     public String getChunkName() {
-        return this.chunkName;
+        return this.fileName + "_" + this.chunkNum;
     }
 
     /**
@@ -107,8 +134,32 @@ public class HDFSChunk implements Serializable {
      * get current chunk size
      * @return chunk size;
      */
-    public int getChunkSize() {
+    public long getChunkSize() {
         return this.chunk_size;
     }
+
+    /**
+     * set the exact chunk size
+     * @param chunkSize length of the chunk in bytes
+     */
+    public void setChunkSize(long chunkSize) {
+        this.chunk_size = chunkSize;
+    }
+
+    /**
+     * get the generation stamp the chunk is written and stored with
+     * @return generation stamp of the file
+     */
+    public long getGenerationStamp() {
+        return this.generationStamp;
+    }
+
+    /**
+     * set the generation stamp of the chunk
+     * @param generationStamp generation stamp of the file
+     */
+    public void setGenerationStamp(long generationStamp) {
+        this.generationStamp = generationStamp;
+    }
     
 }
@@ -8,6 +8,7 @@ import java.io.InputStreamReader;
 import java.io.RandomAccessFile;
 import java.io.File;
 import java.net.InetAddress;
+import java.nio.channels.FileChannel;
 import java.net.UnknownHostException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
@@ -16,13 +17,26 @@ import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
+import hdfs.HDFSCommon;
 import hdfs.HDFSFileMeta;
+import hdfs.FileListIterator;
+import hdfs.BlockLocator;
+import hdfs.MetadataCache;
+import hdfs.HedgePolicy;
+import hdfs.ReplicaSelector;
+import hdfs.BufferPool;
+import hdfs.HDFSInputStream;
+import hdfs.HDFSOutputStream;
+import hdfs.Service;
 import hdfs.DataNode;
 import hdfs.DataNodeInfo;
 import hdfs.HDFSClientInterface;
@@ -68,12 +82,56 @@ public class HDFSClient extends UnicastRemoteObject implements HDFSClientInterfa
     /** RMI stub object. Cached once created.*/
     private NameNodeInterface nameNode;
 
-    /** Maximum size of each chunk, read from dfs.conf*/
-    private int maxChunkSize;
+    /** Maximum size of each chunk, read from dfs.conf. Used as block size of new files*/
+    private int maxChunkSize = HDFSCommon.DFT_CHUNK_SIZE;
     /** Retry threshold for transferring chunks, read from dfs.conf*/
     private int chunkTranferRetryThreshold;
     /** Timeout threshold for DataNode's acknowledge, read from dfs.conf*/
     private int ackTimeout;
+    /** Number of chunks downloaded in parallel, read from dfs.conf*/
+    private int downloadWindow = 4;
+    /** Number of chunks located per NameNode call when reading a file, read from dfs.conf*/
+    private int locationPrefetch = 10;
+    /** Number of files whose metadata is cached, 0 disables the cache, read from dfs.conf*/
+    private int metadataCacheSize = 1000;
+    /** Seconds cached metadata is served, read from dfs.conf*/
+    private int metadataCacheTTL = 60;
+    /** Cache of file sizes and chunk locations */
+    private MetadataCache metadataCache;
+    /** Parallel chunk download engine */
+    private ChunkDownloader downloader;
+    /** Whether chunks with a replica on this host are read from its disk directly, 0 disables it, read from dfs.conf*/
+    private int shortCircuitReads = 1;
+    /** Latency percentile after which a chunk read is also sent to another replica, 0 disables it, read from dfs.conf*/
+    private int hedgePercentile = 95;
+    /** Min milliseconds before a chunk read is hedged, read from dfs.conf*/
+    private int hedgeMinDelay = 10;
+    /** Max ratio of hedged reads to reads, read from dfs.conf*/
+    private Double hedgeBudget = 0.05;
+    /** Order in which the replicas of a chunk are read, by DataNode read latency */
+    private ReplicaSelector replicaSelector = new ReplicaSelector();
+    /** Size of the buffers input streams read into, read from dfs.conf*/
+    private int readBufferSize = 1024 * 1024;
+    /** Max number of buffers an input stream reads ahead, 0 disables read-ahead, read from dfs.conf*/
+    private int maxReadAhead = 8;
+    /** Number of free read buffers kept for reuse, read from dfs.conf*/
+    private int readBufferPoolSize = 16;
+    /** Buffers input streams read into */
+    private BufferPool readBufferPool;
+    /** Threads of input stream read-ahead */
+    private ExecutorService readAheadExecutor;
+    /** Max number of chunks an output stream sends at a time, read from dfs.conf*/
+    private int outputChunksInFlight = 2;
+    /** Threads sending the chunks of output streams */
+    private ExecutorService chunkWriterExecutor;
+    /** Number of chunks uploaded in parallel, read from dfs.conf. 1 uploads chunk by chunk */
+    private int uploadWorkers = 4;
+    /** Number of chunks read ahead of the upload workers, read from dfs.conf*/
+    private int uploadQueueSize = 8;
+    /** Concurrent chunk upload engine, null if uploading chunk by chunk */
+    private ChunkUploader uploader;
+    /** FileIO backend : "channel" or "mmap", read from dfs.conf*/
+    private String ioBackend;
     
     /** Connection cache pool of RMI services to DataNodes.*/
     private ConcurrentHashMap<String, DataNodeInterface> dataNodeServiceList = new ConcurrentHashMap<String, DataNodeInterface>();
@@ -113,9 +171,17 @@ public class HDFSClient extends UnicastRemoteObject implements HDFSClientInterfa
                     if (cmdSplit.length == 2) {
                         client.putFile(cmdSplit[1]);
                     } 
+                    else if (cmdSplit.length == 3) {
+                        try {
+                            client.putFile(cmdSplit[1], Integer.parseInt(cmdSplit[2]));
+                        }
+                        catch (NumberFormatException e) {
+                            System.out.println("[Error**] Invalid block size " + cmdSplit[2]);
+                        }
+                    }
                     else {
                         System.out.println("[Error**] Invalid number of parameters.");
-                        System.out.println("Usage: put <src_file_path>");
+                        System.out.println("Usage: put <src_file_path> [block_size]");
                     }
                     break;
                 case "get":
@@ -131,9 +197,12 @@ public class HDFSClient extends UnicastRemoteObject implements HDFSClientInterfa
                     if (cmdSplit.length == 1) {
                         client.getFileList();
                     }
+                    else if (cmdSplit.length == 2) {
+                        client.getFileList(cmdSplit[1]);
+                    }
                     else {
                         System.out.println("[Error**] Invalid number of parameters.");
-                        System.out.println("Usage: ls");
+                        System.out.println("Usage: files [prefix]");
                     }
                     break;
                 case "nodes":
@@ -149,26 +218,52 @@ public class HDFSClient extends UnicastRemoteObject implements HDFSClientInterfa
                     if (cmdSplit.length == 2) {
                         client.removeFile(cmdSplit[1]);
                     }
+                    else if (cmdSplit.length == 3 && cmdSplit[1].equals("-r")) {
+                        client.delete(cmdSplit[2], true);
+                    }
+                    else {
+                        System.out.println("[Error**] Invalid number of parameters.");
+                        System.out.println("Usage: rm [-r] <path>");
+                    }
+                    break;
+                case "mkdir":
+                    if (cmdSplit.length == 2) {
+                        client.mkdirs(cmdSplit[1]);
+                    }
                     else {
                         System.out.println("[Error**] Invalid number of parameters.");
-                        System.out.println("Usage: rm <file_name>");
+                        System.out.println("Usage: mkdir <dir>");
                     }
                     break;
+                case "stats":
+                    MetadataCache.Stats stats = client.getMetadataCacheStats();
+                    System.out.println("Metadata cache: " + ((stats == null) ? "disabled" : stats));
+                    System.out.println("Chunk reads: short-circuit=" + client.downloader.getLocalReads()
+                                       + " remote=" + client.downloader.getRemoteReads());
+                    System.out.println("Hedged reads: " + client.downloader.getHedgeStats());
+                    System.out.print("DataNode reads:\n" + client.replicaSelector.describe());
+                    break;
                 case "help":
                     System.out.println("\"put\": put a file from local on to DFS.");
-                    System.out.println("Usage: dfs put <file_path>");
+                    System.out.println("Usage: dfs put <file_path> [block_size]");
                     
                     System.out.println("\"get\": get a file from DFS to local.");
                     System.out.println("Usage: dfs get <file_name> <target_path>");
                     
                     System.out.println("\"files\": list file list on DFS.");
-                    System.out.println("Usage: dfs files");
+                    System.out.println("Usage: dfs files [prefix]");
                     
                     System.out.println("\"nodes\": list data node list on DFS.");
                     System.out.println("Usage: dfs nodes");
                     
-                    System.out.println("\"rm\": remove a file on DFS.");
-                    System.out.println("Usage: dfs rm <file_name>");
+                    System.out.println("\"rm\": remove a file on DFS, or a directory and its content with -r.");
+                    System.out.println("Usage: dfs rm [-r] <path>");
+
+                    System.out.println("\"mkdir\": create a directory and its missing parents on DFS.");
+                    System.out.println("Usage: dfs mkdir <dir>");
+
+                    System.out.println("\"stats\": show the metadata cache and read counters, and the read latency of every DataNode.");
+                    System.out.println("Usage: dfs stats");
                     break;
                 case "exit":
                     //exit = true;
@@ -197,6 +292,7 @@ public class HDFSClient extends UnicastRemoteObject implements HDFSClientInterfa
         System.out.println("[LOG] Loading configuration data ...");
         try {
             FileIO.readConf(Common.HDFSConfPath, this);
+            FileIO.setBackend(ioBackend);
             System.out.println("[^_^] Configured successfully");
         }
         catch (IOException e) {
@@ -233,6 +329,19 @@ public class HDFSClient extends UnicastRemoteObject implements HDFSClientInterfa
         catch (Exception e) {
             throw e;
         }
+
+        this.downloader = new ChunkDownloader(downloadWindow, shortCircuitReads != 0,
+                                              new HedgePolicy(hedgePercentile, hedgeMinDelay, hedgeBudget),
+                                              replicaSelector);
+        this.readBufferPool = new BufferPool(readBufferSize, readBufferPoolSize);
+        this.readAheadExecutor = Executors.newCachedThreadPool(Service.daemonThreads("ReadAhead"));
+        this.chunkWriterExecutor = Executors.newCachedThreadPool(Service.daemonThreads("ChunkWriter"));
+        if (metadataCacheSize > 0) {
+            this.metadataCache = new MetadataCache(metadataCacheSize, metadataCacheTTL);
+        }
+        if (uploadWorkers > 1) {
+            this.uploader = new ChunkUploader(uploadWorkers, uploadQueueSize);
+        }
     }
     
 
@@ -240,24 +349,48 @@ public class HDFSClient extends UnicastRemoteObject implements HDFSClientInterfa
      * Get the file list in HDFS through NameNode RMI call.
      */
     public void getFileList() throws RemoteException {
-        ConcurrentHashMap<String, HDFSFileMeta> list = null;
+        getFileList(null);
+    }
+
+
+    /**
+     * Print the files whose name starts with prefix, fetched from NameNode
+     * one batch at a time.
+     * @param prefix String The name prefix, null for all files.
+     */
+    public void getFileList(String prefix) throws RemoteException {
+        FileListIterator files = listFiles(prefix);
+        System.out.println("===================== File List ========================");
+        System.out.printf("%-15s %-15s %-15s\n", "Name", "Size", "M_Time");
         try {
-            list = this.nameNode.getFileTable();
+            while (files.hasNext()) {
+                HDFSFileMeta fileInfo = files.next();
+                if (fileInfo.isDirectory()) {
+                    System.out.printf("%-15s %-15s\n", fileInfo.getName() + "/", "<DIR>");
+                }
+                else {
+                    System.out.printf("%-15s %-15s %-15s\n", fileInfo.getName(), fileInfo.getSize(), fileInfo.getModTime());
+                }
+            }
         }
         catch (RemoteException e) {
             e.printStackTrace();
             System.out.println("[Error**] Can't get file list from Name Node " + nameNodeIP);
             return;
         }
-        System.out.println("===================== File List ========================");
-        System.out.printf("%-15s %-15s %-15s\n", "Name", "Size", "M_Time");
-        for (Entry<String, HDFSFileMeta> row : list.entrySet()) {
-            HDFSFileMeta fileInfo = row.getValue();
-            System.out.printf("%-15s %-15s %-15s", fileInfo.getName(), fileInfo.getSize(), fileInfo.getModTime());
-        }
         System.out.println("======================= End ============================");
         return;
     }
+
+
+    /**
+     * Stream the files whose name starts with prefix, in name order.
+     * @param prefix String The name prefix, null for all files.
+     * @return FileListIterator the listing, fetched lazily in batches
+     */
+    public FileListIterator listFiles(String prefix) {
+        return new FileListIterator(this.nameNode, prefix, HDFSCommon.MAX_LIST_LIMIT);
+    }
     
 
     /**
@@ -284,72 +417,141 @@ public class HDFSClient extends UnicastRemoteObject implements HDFSClientInterfa
     
     
     /**
-     * Download a file from HDFS.
+     * Download a file from HDFS. A download that fails on locations served
+     * by the metadata cache is retried once with locations from NameNode.
      * @param fileName file Name on HDFS
      */
     public void getFile(String fileName) throws RemoteException {
-
-        HDFSFile file = null;
-        try {
-            file = this.nameNode.getFile(fileName);
+        String localPath = Common.LocalFSPath + fileName;
+        File localFile = new File(localPath);
+        if (localFile.getParentFile() != null) {
+            localFile.getParentFile().mkdirs();
         }
-        catch (RemoteException e2) {
-            e2.printStackTrace();
-            System.out.println("[Error**] Exception occurs when fetching file " + fileName);
-            return;
-        }
-        
-        ConcurrentHashMap<Integer, HDFSChunk> chunkTable = file.getChunkTable();
-        for (int i = 0; i < chunkTable.size(); i++) {
-
-            HDFSChunk chunk = chunkTable.get(i);
-            System.out.println("[LOG] Fetching chunk " + chunk.getChunkName() + " ...");
-            byte[] buf = new byte[chunk.getChunkSize()];
-
-            /** Try fetching data from at most 3 replicas in different dataNodes */
-            for (DataNodeInfo dataNodeInfo : chunk.getReplicaDataNodes()) {
-                try {
-                    /* get dataNode RMI stub */
-                    DataNodeInterface dataNode = getDataNodeService(dataNodeInfo.registryIP);
-                    /* DataNode RMI call : readChunk(String fileName, int chunkNum) */
-                    buf = dataNode.readChunk(fileName, i);
-                    /* append data to local output file */
-                    FileIO.appendFile(Common.LocalFSPath + fileName, buf);
-                    /* go to next chunk */
-                    break;
-                }
-                catch (IOException e) {
-                    System.err.println("[Error**] Exception occurs when downloading file...");
-                    try {
-                        FileIO.deleteFile(Common.LocalFSPath + fileName);
-                        return;
-                    }
-                    catch (IOException e1) {
-                        System.err.println("[Error**] Cannot delete " + fileName);
-                        return;
-                    }
-                }
-                catch (NotBoundException e) {
+
+        for (int attempt = 0; attempt < 2; attempt++) {
+            /* only the locations of the first chunks are fetched here, the rest as the download proceeds */
+            BlockLocator file = null;
+            try {
+                file = new BlockLocator(this.nameNode, this.metadataCache, fileName, this.locationPrefetch);
+            }
+            catch (FileNotFoundException e) {
+                System.out.println("[Error**] File " + fileName + " does not exist on HDFS");
+                return;
+            }
+            catch (RemoteException e2) {
+                e2.printStackTrace();
+                System.out.println("[Error**] Exception occurs when fetching file " + fileName);
+                return;
+            }
+
+            try (RandomAccessFile out = new RandomAccessFile(localFile, "rw")) {
+                FileChannel outChannel = out.getChannel();
+                outChannel.truncate(0);
+
+                /* fetch up to downloadWindow chunks in parallel, each written at its own offset */
+                long start = System.currentTimeMillis();
+                long size = this.downloader.download(file, outChannel);
+                long elapsed = Math.max(1, System.currentTimeMillis() - start);
+                System.out.println("[LOG] Downloaded " + fileName + " (" + size + " bytes) in " + elapsed + " ms");
+                return;
+            }
+            catch (IOException e) {
+                if (attempt == 0 && file.isCached()) {
+                    System.out.println("[LOG] Cached locations of " + fileName + " are stale, asking NameNode");
+                    this.metadataCache.invalidate(fileName);
                     continue;
                 }
+                e.printStackTrace();
+                System.err.println("[Error**] Exception occurs when downloading file...");
+                localFile.delete();
+                return;
             }
         }
     }
+
+
+    /**
+     * Open a file of HDFS for reading. Only the bytes read are fetched, with
+     * the locations of the first chunks the only NameNode call made here.
+     * @param fileName String The HDFS file name.
+     * @return HDFSInputStream a seekable stream over the file, to be closed by the caller
+     * @throws FileNotFoundException if the file does not exist on HDFS
+     * @throws IOException if NameNode cannot be reached
+     */
+    public HDFSInputStream open(String fileName) throws IOException {
+        BlockLocator file = new BlockLocator(this.nameNode, this.metadataCache, fileName, this.locationPrefetch);
+        return new HDFSInputStream(file, this.replicaSelector, shortCircuitReads != 0, this.readAheadExecutor,
+                                   this.readBufferPool, maxReadAhead);
+    }
+
+
+    /**
+     * Create a file of HDFS with the configured block size and open it for writing.
+     * @param fileName String The HDFS file name.
+     * @return HDFSOutputStream a stream writing the file, to be closed by the caller
+     * @throws IOException if the file cannot be created
+     */
+    public HDFSOutputStream create(String fileName) throws IOException {
+        return create(fileName, this.maxChunkSize);
+    }
+
+
+    /**
+     * Create a file of HDFS and open it for writing. Its size need not be
+     * known : chunks are allocated as the stream fills them, and the stream
+     * holds up to outputChunksInFlight + 1 chunks of blockSize in memory.
+     * @param fileName String The HDFS file name.
+     * @param blockSize int The size of the chunks of the file.
+     * @return HDFSOutputStream a stream writing the file, to be closed by the caller
+     * @throws IOException if the file already exists, or cannot be created
+     */
+    public HDFSOutputStream create(String fileName, int blockSize) throws IOException {
+        invalidateMetadata(fileName);
+        HDFSFile hdfsFile = this.nameNode.startFile(fileName, blockSize);
+        if (hdfsFile == null) {
+            throw new IOException("NameNode refused to create " + fileName);
+        }
+        return new HDFSOutputStream(this.nameNode, hdfsFile.getName(), blockSize, this.metadataCache,
+                                    this.chunkWriterExecutor, outputChunksInFlight);
+    }
+
+
+    /**
+     * @return MetadataCache.Stats the counters of the metadata cache, null if it is disabled
+     */
+    public MetadataCache.Stats getMetadataCacheStats() {
+        return (this.metadataCache == null) ? null : this.metadataCache.getStats();
+    }
+
+
+    /**
+     * Forget the cached metadata of a path changed by this client.
+     */
+    private void invalidateMetadata(String path) {
+        if (this.metadataCache != null) {
+            this.metadataCache.invalidate(path);
+        }
+    }
     
 
     /**
-     * Upload a file from local to HDFS.
+     * Upload a file from local to HDFS with the configured block size.
      * @param fileName path of local input file.
      */
     public void putFile(String fileName) throws RemoteException {
+        putFile(fileName, this.maxChunkSize);
+    }
+
+
+    /**
+     * Upload a file from local to HDFS.
+     * @param fileName path of local input file.
+     * @param blockSize size in bytes of every chunk of the file but the last one.
+     */
+    public void putFile(String fileName, int blockSize) throws RemoteException {
         /* import local file */
         File file = new File(Common.LocalFSPath + fileName);
-
-        FileInputStream fis = null;
-        try {
-            fis = new FileInputStream(file);
-        }
-        catch (FileNotFoundException e) {
+        if (!file.exists()) {
             System.err.println("[Error**] File " + fileName + " does not exist!");
             return;
         }
@@ -357,54 +559,67 @@ public class HDFSClient extends UnicastRemoteObject implements HDFSClientInterfa
         /* RMI call - create hdfs File on NameNode and get chunk distribution 
          * in HDFSFile Object returned bt NameNoe */
         HDFSFile hdfsFile = null;
+        invalidateMetadata(fileName);
         try {
-            hdfsFile = this.nameNode.createFile(fileName, file.length());
+            hdfsFile = this.nameNode.createFile(fileName, file.length(), blockSize);
         }
         catch (RemoteException e) {
             e.printStackTrace();
             System.out.println("[Error**] Exception occurs when fetching file " + fileName);
             return;
         }
+        if (hdfsFile == null) {
+            System.err.println("[Error**] NameNode refused to create " + fileName);
+            return;
+        }
 
         ConcurrentHashMap<Integer, HDFSChunk> chunkTable = hdfsFile.getChunkTable();
 
-        /* begin pushing data to DataNodes based on meta data got from NameNode */
-        for (int i = 0; i < chunkTable.size(); i++) {
-            HDFSChunk chunk = chunkTable.get(i);
-            byte[] content = new byte[(int)chunk.getChunkSize()];
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            FileChannel inChannel = in.getChannel();
+            long fileSize = inChannel.size();
+            long position = 0;
 
-            try {
-                fis.read(content);
-            }
-            catch (IOException e1) {
-                e1.printStackTrace();
+            /* producer/consumer mode : several chunks in flight at the same time */
+            if (this.uploader != null) {
+                this.uploader.upload(hdfsFile, inChannel, this.nameNode);
                 return;
             }
-            /* write 3 replicas */
-            for (DataNodeInfo dataNodeInfo : chunk.getReplicaDataNodes()) {
-                try {
-                    /* get dataNode RMI stub */
-                    DataNodeInterface dataNode = getDataNodeService(dataNodeInfo.registryIP);
-                    /* DataNode RMI call : addChunk */
-                    dataNode.addChunk(fileName, content, chunk.getChunkNum(), clientIP, clientRegPort);
-                }
-                catch (RemoteException | NotBoundException e2) {
-                    //TODO - how to handle?
-                    e2.printStackTrace();
-                    continue;
+
+            /* begin pushing data to DataNodes based on meta data got from NameNode */
+            for (int i = 0; i < chunkTable.size(); i++) {
+                HDFSChunk chunk = chunkTable.get(i);
+                long length = Math.min(chunk.getChunkSize(), fileSize - position);
+
+                /* send the chunk once; the DataNodes relay it down the replica pipeline */
+                List<DataNodeInfo> stored = DataTransferClient.writeChunk(chunk.getReplicaDataNodes(),
+                                                                          hdfsFile.getName(), chunk.getChunkNum(),
+                                                                          chunk.getGenerationStamp(), inChannel,
+                                                                          position, length);
+                if (stored.size() < chunk.getReplicaNumber()) {
+                    System.err.println("[Error**] " + chunk.getChunkName() + " only has " + stored.size()
+                                       + " of " + chunk.getReplicaNumber() + " replicas");
+                    this.nameNode.updatePipeline(hdfsFile.getName(), chunk.getChunkNum(),
+                                                 new ArrayList<DataNodeInfo>(stored));
                 }
+                position += length;
             }
         }
+        catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("[Error**] Exception occurs when uploading file " + fileName);
+        }
         return;
     }
 
     
     /**
-     * Delete a file on DFS.
+     * Delete a file on DFS. NameNode has the DataNodes drop its chunks.
      * @param fileName String The path of file to be deleted.
      */
     public void removeFile(String fileName) {
         HDFSFile hdfsFile = null;
+        invalidateMetadata(fileName);
         try {
             hdfsFile = this.nameNode.removeFile(fileName);
         }
@@ -413,28 +628,51 @@ public class HDFSClient extends UnicastRemoteObject implements HDFSClientInterfa
             System.out.println("[Error**] Exception occurs when fetching file " + fileName);
             return;
         }
+        if (hdfsFile == null) {
+            System.out.println("[Error**] " + fileName + " is not a file on DFS");
+            return;
+        }
+        return;
+    }
+    
+    
+    /**
+     * Delete a file or a directory on DFS. NameNode has the DataNodes drop
+     * the chunks of every deleted file.
+     * @param path String The file or directory.
+     * @param recursive boolean Whether a non-empty directory is deleted with its content.
+     */
+    public void delete(String path, boolean recursive) {
+        invalidateMetadata(path);
+        try {
+            int deleted = this.nameNode.delete(path, recursive);
+            if (deleted < 0) {
+                System.out.println("[Error**] Cannot delete " + path + " : it does not exist or is a non-empty directory");
+                return;
+            }
+            System.out.println("[^_^] Deleted " + path + " : " + deleted + " files");
+        }
+        catch (RemoteException e) {
+            e.printStackTrace();
+            System.out.println("[Error**] Exception occurs when deleting " + path);
+        }
+    }
 
-        /* remove chunks from dataNode */
-        ConcurrentHashMap<Integer, HDFSChunk> chunkTable = hdfsFile.getChunkTable();
-        for (Entry<Integer, HDFSChunk> row : chunkTable.entrySet()) {
-            
-            HDFSChunk chunk = row.getValue();
-            /* remove all three replicas */
-            for (DataNodeInfo dataNodeInfo : chunk.getReplicaDataNodes()) {
-                try {
-                    /* get dataNode RMI stub */
-                    DataNodeInterface dataNode = getDataNodeService(dataNodeInfo.registryIP);
-                    /* DataNode RMI call : addChunk */
-                    dataNode.removeChunk(fileName, chunk.getChunkNum());
-                }
-                catch (RemoteException | NotBoundException e2) {
-                    //TODO - how to handle?
-                    e2.printStackTrace();
-                    continue;
-                }
+
+    /**
+     * Create a directory and its missing parents on DFS.
+     * @param path String The directory.
+     */
+    public void mkdirs(String path) {
+        try {
+            if (!this.nameNode.mkdirs(path)) {
+                System.out.println("[Error**] Cannot create " + path + " : a parent of it is a file");
             }
         }
-        return;
+        catch (RemoteException e) {
+            e.printStackTrace();
+            System.out.println("[Error**] Exception occurs when creating " + path);
+        }
     }
     
     
@@ -14,10 +14,16 @@ import java.util.List;
  */
 public class HDFSCommon implements Serializable {
 
-	/** default chunk size = 4KB */
-	public static final int DFT_CHUNK_SIZE = 4 * 1024;
+	/** default chunk size = 64MB */
+	public static final int DFT_CHUNK_SIZE = 64 * 1024 * 1024;
+	/** largest chunk size a file may be created with = 1GB */
+	public static final int MAX_CHUNK_SIZE = 1024 * 1024 * 1024;
 	/** default file replica factor = 3 */
 	public static final int DFT_REPLICAS = 3;
+	/** max number of files returned by one listing call */
+	public static final int MAX_LIST_LIMIT = 1000;
+	/** max number of chunks located by one block location call */
+	public static final int MAX_LOCATED_CHUNKS = 1000;
 
 }
 
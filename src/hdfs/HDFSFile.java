@@ -28,10 +28,20 @@ public class HDFSFile extends HDFSFileMeta implements Serializable {
      * Constructor
      * @param name file name
      */
-    public HDFSFile(String name, int size) {
+    public HDFSFile(String name, long size) {
         super(name, size);
         chunkTable = new ConcurrentHashMap<Integer, HDFSChunk>();
     }
+
+    /**
+     * Constructor
+     * @param name file name
+     * @param blockSize size of every chunk but the last one
+     */
+    public HDFSFile(String name, long size, int blockSize) {
+        super(name, size, blockSize);
+        chunkTable = new ConcurrentHashMap<Integer, HDFSChunk>();
+    }
     
     /** get chunkTable */
     public ConcurrentHashMap<Integer, HDFSChunk> getChunkTable() {
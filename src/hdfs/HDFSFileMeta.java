@@ -3,6 +3,8 @@ package hdfs;
 import java.io.Serializable;
 import java.util.Date;
 
+import hdfs.HDFSCommon;
+
 /**
  * HDFS files MetaData
  *
@@ -16,15 +18,40 @@ public class HDFSFileMeta implements Serializable {
     /** file name */
     private String name;
     /** fiel size */
-    private int size;
+    private long size;
+    /** block size the file was created with */
+    private int blockSize;
     /** modification time */
     private Date modTime;
+    /** true for a directory entry of a listing */
+    private boolean directory;
     
 
     /** Constructor */
-    public HDFSFileMeta(String name, int size) {
+    public HDFSFileMeta(String name, long size) {
+        this(name, size, HDFSCommon.DFT_CHUNK_SIZE);
+    }
+
+    /** Constructor */
+    public HDFSFileMeta(String name, long size, int blockSize) {
         this.name = name;
         this.size = size;
+        this.blockSize = blockSize;
+    }
+
+    /** Constructor of a directory entry */
+    public HDFSFileMeta(String name, boolean directory) {
+        this(name, 0, 0);
+        this.directory = directory;
+    }
+
+    /** Copy constructor, keeps only the metadata of a file */
+    public HDFSFileMeta(HDFSFileMeta other) {
+        this.name = other.name;
+        this.size = other.size;
+        this.blockSize = other.blockSize;
+        this.modTime = other.modTime;
+        this.directory = other.directory;
     }
 
     /** get file name */
@@ -33,18 +60,28 @@ public class HDFSFileMeta implements Serializable {
     }
 
     /** get file size */
-    int getSize() {
+    long getSize() {
         return this.size;
     }
 
     /** get file size */
-    void setSize(int size) {
+    void setSize(long size) {
         this.size = size;
     }
 
+    /** get block size */
+    int getBlockSize() {
+        return this.blockSize;
+    }
+
     /** get file size */
     Date getModTime() {
         return this.modTime;
     }
+
+    /** is it a directory */
+    boolean isDirectory() {
+        return this.directory;
+    }
 }
 
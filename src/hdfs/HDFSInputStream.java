@@ -0,0 +1,541 @@
+package hdfs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import hdfs.BlockLocator;
+import hdfs.BufferPool;
+import hdfs.DataNodeInfo;
+import hdfs.DataTransferClient;
+import hdfs.LocatedBlocks;
+import hdfs.ReplicaSelector;
+
+/**
+ * Seekable input stream over an HDFS file, reading only the bytes asked for.
+ *
+ * The stream reads a chunk in buffers of the pool buffer size, aligned on
+ * the start of the chunk. While reads move through the file buffer after
+ * buffer, the next buffers are fetched in the background, as many as the
+ * number of buffers read in a row so far allows, up to maxReadAhead. A seek
+ * elsewhere drops the buffers read ahead. pread() reads a range straight
+ * into the caller's array and leaves the stream position alone, so
+ * positional readers pay for no buffering they do not use.
+ *
+ * Chunk locations come from NameNode as the stream reaches them, or from
+ * the metadata cache. A replica on this host is read short-circuit.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class HDFSInputStream extends InputStream {
+
+    /** the file and the source of its chunk locations, guarded by itself so pread never waits on a buffered read */
+    private BlockLocator file;
+    /** size of the file when it was opened */
+    private long fileSize;
+    /** order in which the replicas of a chunk are read */
+    private ReplicaSelector selector;
+    /** whether replicas on this host are read short-circuit */
+    private boolean shortCircuit;
+    /** threads fetching the buffers read ahead */
+    private ExecutorService readAheadExecutor;
+    /** buffers read into */
+    private BufferPool pool;
+    /** max number of buffers read ahead */
+    private int maxReadAhead;
+
+    /** stream position */
+    private long pos;
+    /** buffer holding the bytes around pos, null if none */
+    private Buffer current;
+    /** buffers read ahead by file offset, in the order they were asked for */
+    private LinkedHashMap<Long, Future<Buffer>> readAhead = new LinkedHashMap<Long, Future<Buffer>>();
+    /** end of the last buffer read, a read from there is sequential */
+    private long sequentialEnd;
+    /** number of buffers read ahead for now, doubled on every sequential buffer */
+    private int readAheadWindow;
+    private volatile boolean closed;
+
+
+    /**
+     * Constructor, use HDFSClient.open().
+     * @param file BlockLocator The file.
+     * @param selector ReplicaSelector The order in which the replicas of a chunk are read.
+     * @param shortCircuit boolean Whether replicas on this host are read straight from disk.
+     * @param readAheadExecutor ExecutorService The threads fetching buffers ahead.
+     * @param pool BufferPool The buffers read into.
+     * @param maxReadAhead int The max number of buffers read ahead, 0 disables read-ahead.
+     */
+    HDFSInputStream(BlockLocator file, ReplicaSelector selector, boolean shortCircuit,
+                    ExecutorService readAheadExecutor, BufferPool pool, int maxReadAhead)
+    {
+        this.file = file;
+        this.fileSize = file.getFileSize();
+        this.selector = selector;
+        this.shortCircuit = shortCircuit;
+        this.readAheadExecutor = readAheadExecutor;
+        this.pool = pool;
+        this.maxReadAhead = Math.max(0, maxReadAhead);
+    }
+
+
+    /** get the HDFS file name */
+    public String getFileName() {
+        return this.file.getFileName();
+    }
+
+
+    /** get the size of the file when it was opened */
+    public long length() {
+        return this.fileSize;
+    }
+
+
+    /** get the stream position */
+    public synchronized long getPos() {
+        return this.pos;
+    }
+
+
+    /**
+     * Move the stream position. Seeking past the end of the file is allowed,
+     * reads there return -1.
+     * @param newPos long The new position.
+     * @throws IOException if newPos is negative or the stream is closed
+     */
+    public synchronized void seek(long newPos) throws IOException {
+        ensureOpen();
+        if (newPos < 0) {
+            throw new EOFException("Cannot seek to negative offset " + newPos);
+        }
+        this.pos = newPos;
+    }
+
+
+    @Override
+    public synchronized int read() throws IOException {
+        byte[] one = new byte[1];
+        return (read(one, 0, 1) < 0) ? -1 : (one[0] & 0xff);
+    }
+
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (this.pos >= this.fileSize) {
+            return -1;
+        }
+        if (this.current == null || !this.current.contains(this.pos)) {
+            this.current = bufferAt(this.pos);
+            if (this.current == null) {
+                /* the file shrank since it was opened */
+                return -1;
+            }
+        }
+        ByteBuffer data = this.current.data.duplicate();
+        data.position((int) (this.pos - this.current.start));
+        int n = Math.min(len, data.remaining());
+        data.get(b, off, n);
+        this.pos += n;
+        return n;
+    }
+
+
+    @Override
+    public synchronized long skip(long n) throws IOException {
+        ensureOpen();
+        long skipped = Math.max(0, Math.min(n, this.fileSize - this.pos));
+        this.pos += skipped;
+        return skipped;
+    }
+
+
+    @Override
+    public synchronized int available() throws IOException {
+        ensureOpen();
+        if (this.current == null || !this.current.contains(this.pos)) {
+            return 0;
+        }
+        return (int) (this.current.end() - this.pos);
+    }
+
+
+    /**
+     * Positional read : read bytes from a position of the file without
+     * moving the stream position. Bytes are read until len are read or the
+     * end of the file is reached. Safe to call from several threads.
+     * @param position long The offset of the first byte in the file.
+     * @param b byte[] The destination array.
+     * @param off int The offset in b.
+     * @param len int The number of bytes to read.
+     * @return int the number of bytes read, -1 if position is at or past the end of the file
+     * @throws IOException if a range could not be read from any replica
+     */
+    public int pread(long position, byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (position < 0) {
+            throw new EOFException("Cannot read at negative offset " + position);
+        }
+        if (position >= this.fileSize) {
+            return (len == 0) ? 0 : -1;
+        }
+        int total = 0;
+        while (total < len && position < this.fileSize) {
+            Range chunk = chunkAt(position);
+            if (chunk == null) {
+                break;
+            }
+            int n = (int) Math.min(len - total, chunk.end() - position);
+            ByteBuffer dst = ByteBuffer.wrap(b, off + total, n);
+            fetch(chunk, position - chunk.start, dst);
+            total += n;
+            position += n;
+        }
+        /* nothing read if the file shrank below position since it was opened */
+        return (total == 0) ? -1 : total;
+    }
+
+
+    /**
+     * Release the buffers of the stream.
+     */
+    @Override
+    public synchronized void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        discardReadAhead();
+        if (this.current != null) {
+            this.pool.release(this.current.data);
+            this.current = null;
+        }
+    }
+
+
+    /**
+     * Get the buffer holding a byte, from the buffers read ahead if it is
+     * one of them, and adjust read-ahead to the access pattern.
+     * @return Buffer the buffer, or null if the byte is past the end of the file
+     * @throws IOException
+     */
+    private Buffer bufferAt(long offset) throws IOException {
+        if (this.current != null) {
+            this.pool.release(this.current.data);
+            this.current = null;
+        }
+        Range range = bufferRangeAt(offset);
+        if (range == null) {
+            return null;
+        }
+
+        if (range.start == this.sequentialEnd) {
+            this.readAheadWindow = Math.min(this.maxReadAhead, Math.max(1, 2 * this.readAheadWindow));
+        }
+        else {
+            /* random access : whatever was read ahead is of no use */
+            this.readAheadWindow = 0;
+            discardReadAhead();
+        }
+
+        Buffer buffer = null;
+        Future<Buffer> ahead = this.readAhead.remove(range.start);
+        if (ahead != null) {
+            try {
+                buffer = ahead.get();
+            }
+            catch (ExecutionException e) {
+                /* read it again below, failing over replicas and refreshing the locations */
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Read of " + this.file.getFileName() + " interrupted");
+            }
+        }
+        if (buffer == null) {
+            buffer = load(range);
+        }
+        this.sequentialEnd = buffer.end();
+        scheduleReadAhead(buffer.end());
+        return buffer;
+    }
+
+
+    /**
+     * Fetch the buffers after an offset in the background, up to the read-ahead window.
+     * @throws IOException
+     */
+    private void scheduleReadAhead(long offset) throws IOException {
+        /* drop the buffers read ahead that the stream has moved past */
+        Iterator<Map.Entry<Long, Future<Buffer>>> it = this.readAhead.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Future<Buffer>> entry = it.next();
+            if (entry.getKey() < offset) {
+                discard(entry.getValue());
+                it.remove();
+            }
+        }
+        for (int i = 0; i < this.readAheadWindow && offset < this.fileSize; i++) {
+            final Range range = bufferRangeAt(offset);
+            if (range == null) {
+                break;
+            }
+            if (!this.readAhead.containsKey(range.start)) {
+                this.readAhead.put(range.start, this.readAheadExecutor.submit(new Callable<Buffer>() {
+                    @Override
+                    public Buffer call() throws IOException {
+                        return read(range);
+                    }
+                }));
+            }
+            offset = range.end();
+        }
+    }
+
+
+    /**
+     * Read a buffer, asking NameNode for fresh locations once if every
+     * replica failed on cached ones.
+     * @throws IOException
+     */
+    private Buffer load(Range range) throws IOException {
+        try {
+            return read(range);
+        }
+        catch (IOException e) {
+            if (!this.file.isCached()) {
+                throw e;
+            }
+            System.out.println("[LOG] Cached locations of " + this.file.getFileName() + " are stale, asking NameNode");
+            synchronized (this.file) {
+                this.file.refresh(range.start);
+            }
+            Range fresh = bufferRangeAt(range.start);
+            if (fresh == null) {
+                throw e;
+            }
+            return read(fresh);
+        }
+    }
+
+
+    /**
+     * Read a buffer range into a buffer of the pool.
+     * @throws IOException
+     */
+    private Buffer read(Range range) throws IOException {
+        ByteBuffer data = this.pool.acquire();
+        data.limit(range.length);
+        try {
+            fetch(range, range.start - range.chunkStart, data);
+        }
+        catch (IOException e) {
+            this.pool.release(data);
+            throw e;
+        }
+        data.flip();
+        return new Buffer(range.start, data);
+    }
+
+
+    /**
+     * Fill a buffer with the bytes of a chunk from an offset in the chunk,
+     * short-circuit from a replica on this host if there is one, else from
+     * the replicas in the order of the replica selector.
+     * @throws IOException if every replica failed
+     */
+    private void fetch(Range range, long offsetInChunk, ByteBuffer dst) throws IOException {
+        String fileName = this.file.getFileName();
+        String chunkName = fileName + "_" + range.chunkNum;
+        int start = dst.position();
+        if (this.shortCircuit) {
+            for (DataNodeInfo dataNode : range.replicas) {
+                if (DataTransferClient.isLocal(dataNode)) {
+                    try {
+                        DataTransferClient.readRangeLocal(dataNode, fileName, range.chunkNum, offsetInChunk, dst);
+                        return;
+                    }
+                    catch (IOException e) {
+                        checkCancelled(chunkName);
+                        dst.position(start);
+                        System.err.println("[Error**] Short-circuit read of " + chunkName + " failed : "
+                                           + e.getMessage());
+                    }
+                }
+            }
+        }
+        IOException lastError = new IOException("No replica for " + chunkName);
+        for (DataNodeInfo dataNode : this.selector.order(range.replicas)) {
+            long begin = System.currentTimeMillis();
+            this.selector.readStarted(dataNode);
+            boolean failed = true;
+            try {
+                DataTransferClient.readRange(dataNode, fileName, range.chunkNum, offsetInChunk, dst);
+                failed = false;
+                return;
+            }
+            catch (IOException e) {
+                /* a read ahead cancelled by a seek is no fault of the node */
+                failed = !Thread.currentThread().isInterrupted();
+                checkCancelled(chunkName);
+                dst.position(start);
+                System.err.println("[Error**] Failed reading " + chunkName + " from "
+                                   + dataNode.registryIP + ":" + dataNode.transferPort);
+                lastError = e;
+            }
+            finally {
+                this.selector.readFinished(dataNode, System.currentTimeMillis() - begin, failed);
+            }
+        }
+        /* the locations may be stale, the next open of the file asks NameNode again */
+        this.file.invalidate();
+        throw lastError;
+    }
+
+
+    /**
+     * @return Range the buffer holding a byte, aligned on the buffer size from the start of its chunk,
+     *         or null if the byte is past the end of the file
+     * @throws IOException
+     */
+    private Range bufferRangeAt(long offset) throws IOException {
+        Range chunk = chunkAt(offset);
+        if (chunk == null) {
+            return null;
+        }
+        int bufferSize = this.pool.getBufferSize();
+        long inChunk = offset - chunk.chunkStart;
+        long aligned = inChunk - inChunk % bufferSize;
+        chunk.start = chunk.chunkStart + aligned;
+        chunk.length = (int) Math.min(bufferSize, chunk.chunkLength - aligned);
+        return chunk;
+    }
+
+
+    /**
+     * @return Range the whole chunk holding a byte, or null if the byte is past the end of the file
+     * @throws IOException
+     */
+    private Range chunkAt(long offset) throws IOException {
+        Range range = new Range();
+        synchronized (this.file) {
+            LocatedBlocks blocks = this.file.locate(offset);
+            int i = blocks.find(offset);
+            if (i < 0) {
+                return null;
+            }
+            range.chunkNum = blocks.getChunkNum(i);
+            range.chunkStart = blocks.getOffset(i);
+            range.chunkLength = blocks.getLength(i);
+            range.replicas = blocks.getReplicas(i);
+        }
+        range.start = range.chunkStart;
+        range.length = range.chunkLength;
+        return range;
+    }
+
+
+    private void discardReadAhead() {
+        for (Future<Buffer> ahead : this.readAhead.values()) {
+            discard(ahead);
+        }
+        this.readAhead.clear();
+    }
+
+
+    /**
+     * Drop a buffer read ahead. A finished one goes back to the pool, one
+     * still being read is cancelled and its buffer left to the garbage
+     * collector, since the read may still be writing to it.
+     */
+    private void discard(Future<Buffer> ahead) {
+        if (ahead.isDone()) {
+            try {
+                this.pool.release(ahead.get().data);
+            }
+            catch (InterruptedException | ExecutionException e) {
+                /* failed read, its buffer went back to the pool already */
+            }
+        }
+        else {
+            ahead.cancel(true);
+        }
+    }
+
+
+    /**
+     * @throws InterruptedIOException if the calling read ahead was cancelled
+     */
+    private void checkCancelled(String chunkName) throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Read of " + chunkName + " cancelled");
+        }
+    }
+
+
+    private void ensureOpen() throws IOException {
+        if (this.closed) {
+            throw new IOException("Stream of " + this.file.getFileName() + " is closed");
+        }
+    }
+
+
+    /**
+     * A byte range inside one chunk, and where the chunk is.
+     */
+    private static class Range {
+        int chunkNum;
+        long chunkStart;
+        int chunkLength;
+        ArrayList<DataNodeInfo> replicas;
+        /** offset of the range in the file */
+        long start;
+        int length;
+
+        long end() {
+            return this.start + this.length;
+        }
+    }
+
+
+    /**
+     * Bytes of the file from an offset, between position 0 and the limit of data.
+     */
+    private static class Buffer {
+        long start;
+        ByteBuffer data;
+
+        Buffer(long start, ByteBuffer data) {
+            this.start = start;
+            this.data = data;
+        }
+
+        long end() {
+            return this.start + this.data.limit();
+        }
+
+        boolean contains(long offset) {
+            return offset >= this.start && offset < end();
+        }
+    }
+}
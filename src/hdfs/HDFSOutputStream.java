@@ -0,0 +1,323 @@
+package hdfs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import hdfs.BufferPool;
+import hdfs.DataNodeInfo;
+import hdfs.DataTransferClient;
+import hdfs.HDFSChunk;
+import hdfs.MetadataCache;
+import hdfs.NameNodeInterface;
+
+/**
+ * Output stream writing an HDFS file as the data is produced, without
+ * knowing its size up front.
+ *
+ * Writes fill a chunk buffer. Once a chunk is full, NameNode allocates its
+ * number and pipeline, and a writer thread sends it to the pipeline while
+ * the caller goes on filling the next one. A chunk is committed to NameNode
+ * once stored, in chunk order, which is when readers see it. At most
+ * maxInFlight chunks are being sent at a time, a write past that waits for
+ * the oldest one, so the stream holds at most maxInFlight + 1 chunks in
+ * memory.
+ *
+ * flush() does nothing, hflush() sends the bytes buffered so far as a short
+ * chunk and waits until every chunk is committed, and close() does the same
+ * and completes the file. A failed chunk fails the stream : every later
+ * call throws.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class HDFSOutputStream extends OutputStream {
+
+    /** size the chunk buffer starts at, grown up to the block size as the chunk fills */
+    private static final int INITIAL_BUFFER_SIZE = 1024 * 1024;
+
+    /** NameNode allocating and committing the chunks */
+    private NameNodeInterface nameNode;
+    /** HDFS file name, normalized */
+    private String fileName;
+    /** block size of the file, the size of every chunk not ended by hflush() */
+    private int blockSize;
+    /** metadata cache of the client, told when the file grows */
+    private MetadataCache cache;
+    /** threads sending the chunks */
+    private ExecutorService writers;
+    /** max number of chunks being sent at a time */
+    private int maxInFlight;
+    /** full size chunk buffers sent and free again */
+    private BufferPool pool;
+
+    /** chunk being filled, null until the next write */
+    private ByteBuffer current;
+    /** bytes written to the stream */
+    private long bytesWritten;
+    /** chunks handed to the writers */
+    private int chunkCount;
+    /** commits of the chunks being sent, oldest first */
+    private ArrayDeque<Future<Void>> inFlight = new ArrayDeque<Future<Void>>();
+    /** commit of the last chunk handed to the writers, the next one commits after it */
+    private Future<Void> lastCommit;
+    /** error that failed the stream */
+    private IOException failure;
+    private boolean closed;
+
+
+    /**
+     * Constructor, use HDFSClient.create().
+     * @param nameNode NameNodeInterface The NameNode.
+     * @param fileName String The HDFS file, already created and empty.
+     * @param blockSize int The block size of the file.
+     * @param cache MetadataCache The metadata cache of the client, null for none.
+     * @param writers ExecutorService The threads sending the chunks.
+     * @param maxInFlight int The max number of chunks being sent at a time.
+     */
+    HDFSOutputStream(NameNodeInterface nameNode, String fileName, int blockSize, MetadataCache cache,
+                     ExecutorService writers, int maxInFlight)
+    {
+        this.nameNode = nameNode;
+        this.fileName = fileName;
+        this.blockSize = blockSize;
+        this.cache = cache;
+        this.writers = writers;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.pool = new BufferPool(blockSize, this.maxInFlight);
+    }
+
+
+    /** get the HDFS file name */
+    public String getFileName() {
+        return this.fileName;
+    }
+
+
+    /** get the number of bytes written to the stream */
+    public synchronized long getPos() {
+        return this.bytesWritten;
+    }
+
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        while (len > 0) {
+            ensureRoom();
+            int n = Math.min(len, this.current.remaining());
+            this.current.put(b, off, n);
+            this.bytesWritten += n;
+            off += n;
+            len -= n;
+            if (this.current.position() == this.blockSize) {
+                sendChunk();
+            }
+        }
+    }
+
+
+    /**
+     * Does nothing : a chunk is only sent once full, so frequent flushes by a
+     * wrapping writer do not cut the file into small chunks. Use hflush()
+     * to make the bytes written visible.
+     */
+    @Override
+    public void flush() {
+    }
+
+
+    /**
+     * Send the bytes buffered so far and wait until every chunk is
+     * committed, so readers opening the file from then on see all the bytes
+     * written. The buffered bytes end their chunk early, so a file flushed
+     * often is made of small chunks.
+     * @throws IOException if a chunk could not be stored or committed
+     */
+    public synchronized void hflush() throws IOException {
+        ensureOpen();
+        if (this.current != null && this.current.position() > 0) {
+            sendChunk();
+        }
+        while (!this.inFlight.isEmpty()) {
+            await(this.inFlight.poll());
+        }
+        if (this.cache != null) {
+            this.cache.invalidate(this.fileName);
+        }
+    }
+
+
+    /**
+     * Send the last chunk, wait for every chunk to be committed and complete the file.
+     * @throws IOException if a chunk was lost or NameNode does not hold all the bytes written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        try {
+            hflush();
+            if (!this.nameNode.completeFile(this.fileName, this.bytesWritten, this.chunkCount)) {
+                throw new IOException("NameNode could not complete " + this.fileName);
+            }
+            System.out.println("[LOG] Wrote " + this.fileName + " (" + this.bytesWritten + " bytes, "
+                               + this.chunkCount + " chunks)");
+        }
+        finally {
+            this.closed = true;
+            this.current = null;
+        }
+    }
+
+
+    /**
+     * Make room for at least one byte in the chunk buffer, reusing a free
+     * full size buffer or growing a small one.
+     */
+    private void ensureRoom() {
+        if (this.current == null) {
+            this.current = this.pool.poll();
+            if (this.current == null) {
+                this.current = ByteBuffer.allocateDirect(Math.min(this.blockSize, INITIAL_BUFFER_SIZE));
+            }
+        }
+        else if (!this.current.hasRemaining()) {
+            ByteBuffer grown = ByteBuffer.allocateDirect((int) Math.min(this.blockSize, 2L * this.current.capacity()));
+            this.current.flip();
+            grown.put(this.current);
+            this.current = grown;
+        }
+    }
+
+
+    /**
+     * Hand the chunk buffer to a writer thread, once NameNode allocated the
+     * chunk and fewer than maxInFlight chunks are being sent.
+     * @throws IOException
+     */
+    private void sendChunk() throws IOException {
+        while (this.inFlight.size() >= this.maxInFlight) {
+            await(this.inFlight.poll());
+        }
+        HDFSChunk chunk = this.nameNode.addChunk(this.fileName);
+        if (chunk == null) {
+            throw fail(new IOException("NameNode could not allocate chunk " + this.chunkCount + " of " + this.fileName));
+        }
+        if (chunk.getChunkNum() != this.chunkCount) {
+            throw fail(new IOException(this.fileName + " is being written by another stream"));
+        }
+        ByteBuffer data = this.current;
+        this.current = null;
+        data.flip();
+        this.lastCommit = this.writers.submit(new ChunkWriter(chunk, data, this.lastCommit));
+        this.inFlight.add(this.lastCommit);
+        this.chunkCount++;
+    }
+
+
+    /**
+     * Wait for a chunk to be committed.
+     * @throws IOException if it failed, which fails the stream
+     */
+    private void await(Future<Void> commit) throws IOException {
+        try {
+            commit.get();
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw fail((cause instanceof IOException) ? (IOException) cause : new IOException(cause));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Write of " + this.fileName + " interrupted");
+        }
+    }
+
+
+    private IOException fail(IOException e) {
+        if (this.failure == null) {
+            this.failure = e;
+        }
+        return e;
+    }
+
+
+    private void ensureOpen() throws IOException {
+        if (this.closed) {
+            throw new IOException("Stream of " + this.fileName + " is closed");
+        }
+        if (this.failure != null) {
+            throw new IOException("Stream of " + this.fileName + " failed", this.failure);
+        }
+    }
+
+
+    /**
+     * Send one chunk to its pipeline, then commit it once the previous
+     * chunk is committed.
+     */
+    private class ChunkWriter implements Callable<Void> {
+        private HDFSChunk chunk;
+        private ByteBuffer data;
+        private Future<Void> previous;
+
+        ChunkWriter(HDFSChunk chunk, ByteBuffer data, Future<Void> previous) {
+            this.chunk = chunk;
+            this.data = data;
+            this.previous = previous;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            String name = HDFSOutputStream.this.fileName;
+            int chunkNum = this.chunk.getChunkNum();
+            ArrayList<DataNodeInfo> pipeline = this.chunk.getReplicaDataNodes();
+            long length = this.data.remaining();
+            ArrayList<DataNodeInfo> stored;
+            try {
+                /* commit the replicas that acknowledged the chunk, not the whole pipeline */
+                stored = new ArrayList<DataNodeInfo>(DataTransferClient.writeChunk(pipeline, name, chunkNum,
+                                                                                   this.chunk.getGenerationStamp(),
+                                                                                   this.data));
+                if (stored.size() < pipeline.size()) {
+                    System.err.println("[Error**] " + this.chunk.getChunkName() + " only has " + stored.size()
+                                       + " of " + pipeline.size() + " replicas");
+                }
+            }
+            finally {
+                HDFSOutputStream.this.pool.release(this.data);
+            }
+            if (this.previous != null) {
+                try {
+                    this.previous.get();
+                }
+                catch (ExecutionException e) {
+                    throw new IOException("An earlier chunk of " + name + " failed, not committing "
+                                          + this.chunk.getChunkName());
+                }
+            }
+            if (!HDFSOutputStream.this.nameNode.commitChunk(name, chunkNum, length, stored)) {
+                throw new IOException("NameNode rejected " + this.chunk.getChunkName());
+            }
+            return null;
+        }
+    }
+}
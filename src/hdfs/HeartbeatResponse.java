@@ -0,0 +1,25 @@
+package hdfs;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+import hdfs.DataNodeCommand;
+
+/**
+ * NameNode answer to a DataNode heartbeat.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class HeartbeatResponse implements Serializable {
+
+    /** serial Version UID */
+    private static final long serialVersionUID = -1848021372535950402L;
+
+    /** the NameNode does not know this DataNode, e.g. after a NameNode restart */
+    public boolean reregister;
+    /** the NameNode wants a full block report */
+    public boolean fullReport;
+    /** commands to run on the DataNode */
+    public ArrayList<DataNodeCommand> commands = new ArrayList<DataNodeCommand>();
+}
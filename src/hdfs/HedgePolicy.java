@@ -0,0 +1,142 @@
+package hdfs;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when a chunk read is slow enough to be sent to a second replica.
+ * The delay is a percentile of the latest read latencies, so only the tail
+ * of reads is hedged. Hedges are paid for with tokens earned by reads, which
+ * bounds them to a fraction of all reads however slow the cluster gets.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class HedgePolicy {
+
+    /** number of latest latencies the percentile is taken over */
+    private static final int SAMPLES = 256;
+    /** latencies needed before the first hedge */
+    private static final int MIN_SAMPLES = 20;
+    /** max tokens saved up, the largest burst of hedges */
+    private static final double MAX_TOKENS = 10;
+
+    /** percentile of the latencies a read must exceed to be hedged, 0 disables hedging */
+    private int percentile;
+    /** lower bound of the delay in milliseconds, so fast clusters are not hedged on noise */
+    private long minDelay;
+    /** tokens earned per read, the max ratio of hedges to reads */
+    private double budget;
+
+    /** ring of the latest latencies in milliseconds */
+    private long[] latencies = new long[SAMPLES];
+    /** number of latencies recorded, the next slot is count % SAMPLES */
+    private long count;
+    /** hedges that may still be sent */
+    private double tokens;
+    /** delay computed for the latencies recorded up to delayCount */
+    private long delay = -1;
+    private long delayCount;
+
+    private AtomicLong hedges = new AtomicLong();
+    private AtomicLong hedgeWins = new AtomicLong();
+    private AtomicLong denied = new AtomicLong();
+
+
+    /**
+     * Constructor
+     * @param percentile int The latency percentile after which a read is hedged, 0 disables hedging.
+     * @param minDelay long The min delay in milliseconds before a read is hedged.
+     * @param budget double The max ratio of hedges to reads.
+     */
+    public HedgePolicy(int percentile, long minDelay, double budget) {
+        this.percentile = Math.min(percentile, 100);
+        this.minDelay = minDelay;
+        this.budget = budget;
+    }
+
+
+    /**
+     * Record the latency of a successful read and earn its hedge token share.
+     * @param millis long The time the read took.
+     */
+    public synchronized void record(long millis) {
+        this.latencies[(int) (this.count++ % SAMPLES)] = millis;
+        this.tokens = Math.min(MAX_TOKENS, this.tokens + this.budget);
+    }
+
+
+    /**
+     * @return long the time in milliseconds after which a read is hedged, -1 for never
+     */
+    public synchronized long getDelay() {
+        if (this.percentile <= 0 || this.count < MIN_SAMPLES) {
+            return -1;
+        }
+        /* sort at most every SAMPLES / 16 reads */
+        if (this.delay < 0 || this.count - this.delayCount >= SAMPLES / 16) {
+            int n = (int) Math.min(this.count, SAMPLES);
+            long[] sorted = Arrays.copyOf(this.latencies, n);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(this.percentile / 100.0 * n) - 1;
+            this.delay = Math.max(this.minDelay, sorted[Math.max(0, rank)]);
+            this.delayCount = this.count;
+        }
+        return this.delay;
+    }
+
+
+    /**
+     * Spend a token on a hedge.
+     * @return boolean true if the hedge may be sent
+     */
+    public synchronized boolean tryHedge() {
+        if (this.tokens < 1) {
+            this.denied.incrementAndGet();
+            return false;
+        }
+        this.tokens -= 1;
+        this.hedges.incrementAndGet();
+        return true;
+    }
+
+
+    /**
+     * Count a hedge that answered before the read it was sent for.
+     */
+    public void hedgeWon() {
+        this.hedgeWins.incrementAndGet();
+    }
+
+
+    /**
+     * @return Stats the hedge counters
+     */
+    public synchronized Stats getStats() {
+        return new Stats(this.hedges.get(), this.hedgeWins.get(), this.denied.get(), getDelay());
+    }
+
+
+    /**
+     * Snapshot of the hedge counters.
+     */
+    public static class Stats {
+        public long hedges;
+        public long hedgeWins;
+        public long denied;
+        public long delay;
+
+        public Stats(long hedges, long hedgeWins, long denied, long delay) {
+            this.hedges = hedges;
+            this.hedgeWins = hedgeWins;
+            this.denied = denied;
+            this.delay = delay;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hedges=%d wins=%d denied=%d delay=%s", this.hedges, this.hedgeWins, this.denied,
+                                 this.delay < 0 ? "off" : this.delay + "ms");
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package hdfs;
+
+import java.nio.charset.StandardCharsets;
+
+import hdfs.INodeDirectory;
+
+/**
+ * A node of the namespace tree, either a directory or a file.
+ * Only the last path component is stored, as UTF-8 bytes; the full path
+ * is rebuilt from the parents when needed.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public abstract class INode {
+
+    /** last path component, UTF-8 encoded */
+    private byte[] name;
+    /** parent directory, null for the root */
+    INodeDirectory parent;
+
+
+    /**
+     * Constructor
+     * @param name byte[] The last path component, UTF-8 encoded.
+     */
+    INode(byte[] name) {
+        this.name = name;
+    }
+
+
+    /** get the last path component, UTF-8 encoded */
+    byte[] getLocalNameBytes() {
+        return this.name;
+    }
+
+
+    /** get the last path component */
+    String getLocalName() {
+        return new String(this.name, StandardCharsets.UTF_8);
+    }
+
+
+    /** get the absolute path of this node */
+    String getPath() {
+        if (this.parent == null) {
+            return "/";
+        }
+        StringBuilder path = new StringBuilder();
+        appendPath(path);
+        return path.toString();
+    }
+
+
+    void appendPath(StringBuilder path) {
+        if (this.parent == null) {
+            return;
+        }
+        this.parent.appendPath(path);
+        path.append('/').append(getLocalName());
+    }
+
+
+    /** @return boolean true if this node is a directory */
+    abstract boolean isDirectory();
+
+
+    /**
+     * Order names as unsigned bytes, which for UTF-8 is code point order.
+     */
+    static int compareNames(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int d = (a[i] & 0xff) - (b[i] & 0xff);
+            if (d != 0) {
+                return d;
+            }
+        }
+        return a.length - b.length;
+    }
+}
@@ -0,0 +1,129 @@
+package hdfs;
+
+import java.util.Arrays;
+
+import hdfs.INode;
+
+/**
+ * A directory of the namespace tree.
+ * Children are kept in an array sorted by name, so a lookup is a binary
+ * search and a listing is a walk from any position, without the per entry
+ * overhead of a hash map. Appending in name order, as an image load does,
+ * costs no shifting.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class INodeDirectory extends INode {
+
+    private static final INode[] NO_CHILDREN = new INode[0];
+    /** children, sorted by name, only the first childCount slots are used */
+    private INode[] children = NO_CHILDREN;
+    /** number of children */
+    private int childCount;
+
+
+    /**
+     * Constructor
+     * @param name byte[] The last path component, UTF-8 encoded.
+     */
+    INodeDirectory(byte[] name) {
+        super(name);
+    }
+
+
+    @Override
+    boolean isDirectory() {
+        return true;
+    }
+
+
+    /** get the number of children */
+    int getChildCount() {
+        return this.childCount;
+    }
+
+
+    /** get the child at a position of the sorted children */
+    INode getChild(int index) {
+        return this.children[index];
+    }
+
+
+    /**
+     * @return INode the child with this name, or null
+     */
+    INode getChild(byte[] name) {
+        int i = search(name);
+        return (i < 0) ? null : this.children[i];
+    }
+
+
+    /**
+     * Position of a name among the children.
+     * @return int its index if present, otherwise -(insertion point) - 1
+     */
+    int search(byte[] name) {
+        int low = 0;
+        int high = this.childCount - 1;
+        /* children often arrive in name order, check the end first */
+        if (high >= 0 && compareNames(this.children[high].getLocalNameBytes(), name) < 0) {
+            return -(high + 2);
+        }
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareNames(this.children[mid].getLocalNameBytes(), name);
+            if (cmp < 0) {
+                low = mid + 1;
+            }
+            else if (cmp > 0) {
+                high = mid - 1;
+            }
+            else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+
+    /**
+     * Add a child.
+     * @return boolean false if a child with the same name exists
+     */
+    boolean addChild(INode child) {
+        int i = search(child.getLocalNameBytes());
+        if (i >= 0) {
+            return false;
+        }
+        int at = -i - 1;
+        if (this.childCount == this.children.length) {
+            this.children = Arrays.copyOf(this.children, Math.max(4, this.childCount + (this.childCount >> 1)));
+        }
+        System.arraycopy(this.children, at, this.children, at + 1, this.childCount - at);
+        this.children[at] = child;
+        this.childCount++;
+        child.parent = this;
+        return true;
+    }
+
+
+    /**
+     * Remove a child. The child keeps its parent reference so the path
+     * of a removed subtree can still be built.
+     * @return boolean false if it is not a child of this directory
+     */
+    boolean removeChild(INode child) {
+        int i = search(child.getLocalNameBytes());
+        if (i < 0 || this.children[i] != child) {
+            return false;
+        }
+        System.arraycopy(this.children, i + 1, this.children, i, this.childCount - i - 1);
+        this.children[--this.childCount] = null;
+        /* give back the slack of directories that shrank a lot */
+        if (this.childCount < this.children.length / 4) {
+            this.children = (this.childCount == 0) ? NO_CHILDREN : Arrays.copyOf(this.children, this.childCount * 2);
+        }
+        return true;
+    }
+}
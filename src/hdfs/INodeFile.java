@@ -0,0 +1,332 @@
+package hdfs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import hdfs.DataNodeIndex;
+import hdfs.DataNodeInfo;
+import hdfs.HDFSChunk;
+import hdfs.HDFSFile;
+import hdfs.INode;
+import hdfs.LocatedBlocks;
+
+/**
+ * A file of the namespace tree and its block map.
+ * Chunks are not objects here : chunk i is slot i of a length array, and
+ * its replicas are the DataNode indices in slots [i * replication,
+ * (i + 1) * replication) of a replica array, in pipeline order, with free
+ * slots set to NO_NODE. A chunk replicated three times costs 16 bytes.
+ * HDFSFile and HDFSChunk objects, chunk names included, are only built
+ * when a file is handed to a client.
+ * Every chunk of a file shares its generation stamp, the transaction id of
+ * the edit creating the file. DataNodes store chunks with it, so a chunk of
+ * a deleted file is never mistaken for the chunk of a new file with the
+ * same name.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class INodeFile extends INode {
+
+    /** marks a free replica slot */
+    static final int NO_NODE = -1;
+    private static final int[] NONE = new int[0];
+
+    /** block size the file was created with */
+    private int blockSize;
+    /** file size, the sum of the chunk lengths */
+    private long size;
+    /** number of chunks */
+    private int chunkCount;
+    /** exact length of every chunk, only the first chunkCount slots are used */
+    private int[] lengths = NONE;
+    /** replica slots per chunk, grows to the largest replica count seen */
+    private int replication;
+    /** DataNode indices of the replicas, replication slots per chunk */
+    private int[] replicas = NONE;
+    /** true while a writer streams the file, from startFile until completeFile */
+    private boolean underConstruction;
+    /**
+     * chunk numbers handed out to a writer streaming the file, chunks in
+     * [chunkCount, allocated) are being written and not committed yet.
+     * Not logged : a NameNode restart forgets them like it forgets writers.
+     */
+    private int allocated;
+    /** generation stamp of the chunks, the transaction id of the create edit */
+    private long generationStamp;
+
+
+    /**
+     * Constructor
+     * @param name byte[] The last path component, UTF-8 encoded.
+     * @param blockSize int The block size of the file.
+     */
+    INodeFile(byte[] name, int blockSize) {
+        super(name);
+        this.blockSize = blockSize;
+    }
+
+
+    @Override
+    boolean isDirectory() {
+        return false;
+    }
+
+
+    /** get the generation stamp of the chunks */
+    synchronized long getGenerationStamp() {
+        return this.generationStamp;
+    }
+
+
+    /** set the generation stamp of the chunks */
+    synchronized void setGenerationStamp(long generationStamp) {
+        this.generationStamp = generationStamp;
+    }
+
+
+    /** get the block size */
+    int getBlockSize() {
+        return this.blockSize;
+    }
+
+
+    /** get the file size */
+    synchronized long getSize() {
+        return this.size;
+    }
+
+
+    /** get the number of chunks */
+    synchronized int getChunkCount() {
+        return this.chunkCount;
+    }
+
+
+    /** get the exact length of a chunk */
+    synchronized long getChunkSize(int chunkNum) {
+        return this.lengths[chunkNum];
+    }
+
+
+    /**
+     * Reserve room for a number of chunks, so a file of known size is
+     * allocated once without slack.
+     */
+    synchronized void ensureCapacity(int chunks) {
+        if (chunks > this.lengths.length) {
+            resize(chunks, this.replication);
+        }
+    }
+
+
+    /**
+     * Append a chunk.
+     * @param length long The exact length of the chunk.
+     * @param nodes int[] The DataNode indices of its replicas, in pipeline order.
+     * @return int the chunk number
+     */
+    synchronized int addChunk(long length, int[] nodes) {
+        if (this.chunkCount == this.lengths.length || nodes.length > this.replication) {
+            int capacity = this.lengths.length;
+            if (this.chunkCount == capacity) {
+                capacity = Math.max(4, capacity + (capacity >> 1));
+            }
+            resize(capacity, Math.max(this.replication, nodes.length));
+        }
+        int chunkNum = this.chunkCount++;
+        this.lengths[chunkNum] = (int) length;
+        System.arraycopy(nodes, 0, this.replicas, chunkNum * this.replication, nodes.length);
+        this.size += length;
+        return chunkNum;
+    }
+
+
+    /** whether a writer streams the file and may still add chunks to it */
+    synchronized boolean isUnderConstruction() {
+        return this.underConstruction;
+    }
+
+
+    /**
+     * Open the file for a writer streaming it.
+     */
+    synchronized void startConstruction() {
+        this.underConstruction = true;
+    }
+
+
+    /**
+     * Hand out the number of the next chunk to a writer streaming the file.
+     * @return int the chunk number, -1 if the file is not under construction
+     */
+    synchronized int allocateChunk() {
+        if (!this.underConstruction) {
+            return -1;
+        }
+        this.allocated = Math.max(this.allocated, this.chunkCount);
+        return this.allocated++;
+    }
+
+
+    /**
+     * @return boolean true if a chunk may be being written and is not committed yet.
+     *         After a restart allocations are forgotten, so every chunk past
+     *         the last one of a file under construction may be.
+     */
+    synchronized boolean isAllocated(int chunkNum) {
+        return chunkNum >= this.chunkCount && (this.underConstruction || chunkNum < this.allocated);
+    }
+
+
+    /**
+     * Close the file to writers and forget the chunks handed out and never committed.
+     */
+    synchronized void complete() {
+        this.underConstruction = false;
+        this.allocated = this.chunkCount;
+    }
+
+
+    /**
+     * @return int[] the DataNode indices of the replicas of a chunk, in pipeline order
+     */
+    synchronized int[] getReplicas(int chunkNum) {
+        int base = chunkNum * this.replication;
+        int count = 0;
+        while (count < this.replication && this.replicas[base + count] != NO_NODE) {
+            count++;
+        }
+        return Arrays.copyOfRange(this.replicas, base, base + count);
+    }
+
+
+    /**
+     * Record a replica of a chunk.
+     * @return boolean false if the DataNode already holds a replica of it
+     */
+    synchronized boolean addReplica(int chunkNum, int node) {
+        int base = chunkNum * this.replication;
+        for (int i = 0; i < this.replication; i++) {
+            int slot = this.replicas[base + i];
+            if (slot == node) {
+                return false;
+            }
+            if (slot == NO_NODE) {
+                this.replicas[base + i] = node;
+                return true;
+            }
+        }
+        /* over-replicated chunk : widen every chunk by one slot */
+        resize(this.lengths.length, this.replication + 1);
+        this.replicas[(chunkNum + 1) * this.replication - 1] = node;
+        return true;
+    }
+
+
+    /**
+     * Forget a replica of a chunk, keeping the others in pipeline order.
+     * @return boolean false if the DataNode held no replica of it
+     */
+    synchronized boolean removeReplica(int chunkNum, int node) {
+        int base = chunkNum * this.replication;
+        int end = base + this.replication;
+        for (int i = base; i < end; i++) {
+            if (this.replicas[i] == node) {
+                System.arraycopy(this.replicas, i + 1, this.replicas, i, end - i - 1);
+                this.replicas[end - 1] = NO_NODE;
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Build the client view of the file.
+     * @param path String The path of the file, also the prefix of its chunk names.
+     * @param nodes DataNodeIndex The dictionary the replica indices refer to.
+     * @return HDFSFile the file and its chunk table
+     */
+    synchronized HDFSFile toHDFSFile(String path, DataNodeIndex nodes) {
+        HDFSFile file = new HDFSFile(path, 0, this.blockSize);
+        for (int c = 0; c < this.chunkCount; c++) {
+            HDFSChunk chunk = new HDFSChunk(path, c, this.lengths[c]);
+            chunk.setGenerationStamp(this.generationStamp);
+            int base = c * this.replication;
+            for (int i = 0; i < this.replication && this.replicas[base + i] != NO_NODE; i++) {
+                chunk.addReplicaDataNode(nodes.get(this.replicas[base + i]));
+            }
+            file.addChunk(chunk);
+        }
+        return file;
+    }
+
+
+    /**
+     * Locate the chunks covering a byte range.
+     * @param path String The path of the file.
+     * @param offset long The offset of the first byte of the range.
+     * @param length long The length of the range, at least the chunk holding offset is located.
+     * @param maxChunks int The max number of chunks located.
+     * @param nodes DataNodeIndex The dictionary the replica indices refer to.
+     * @return LocatedBlocks the chunks, none if offset is past the end of the file
+     */
+    synchronized LocatedBlocks locate(String path, long offset, long length, int maxChunks, DataNodeIndex nodes) {
+        int first = 0;
+        long pos = 0;
+        while (first < this.chunkCount && pos + this.lengths[first] <= offset) {
+            pos += this.lengths[first++];
+        }
+        long end = offset + Math.max(1, length);
+        if (end < offset) {
+            end = Long.MAX_VALUE;
+        }
+        int count = 0;
+        for (long p = pos; first + count < this.chunkCount && count < maxChunks && p < end; count++) {
+            p += this.lengths[first + count];
+        }
+
+        long[] offsets = new long[count];
+        int[] lengths = new int[count];
+        int[][] replicas = new int[count][];
+        /* DataNode index -> position in the node dictionary of the response */
+        HashMap<Integer, Integer> positions = new HashMap<Integer, Integer>();
+        ArrayList<DataNodeInfo> dictionary = new ArrayList<DataNodeInfo>();
+        for (int i = 0; i < count; i++) {
+            int c = first + i;
+            offsets[i] = pos;
+            lengths[i] = this.lengths[c];
+            pos += this.lengths[c];
+            int[] chunkNodes = getReplicas(c);
+            for (int r = 0; r < chunkNodes.length; r++) {
+                Integer position = positions.get(chunkNodes[r]);
+                if (position == null) {
+                    position = dictionary.size();
+                    positions.put(chunkNodes[r], position);
+                    dictionary.add(nodes.get(chunkNodes[r]));
+                }
+                chunkNodes[r] = position;
+            }
+            replicas[i] = chunkNodes;
+        }
+        return new LocatedBlocks(path, this.size, this.blockSize, this.chunkCount, first,
+                                 offsets, lengths, replicas, dictionary.toArray(new DataNodeInfo[dictionary.size()]));
+    }
+
+
+    /**
+     * Reallocate the arrays for a chunk capacity and a replication.
+     */
+    private void resize(int capacity, int replication) {
+        int[] resized = new int[capacity * replication];
+        Arrays.fill(resized, NO_NODE);
+        for (int c = 0; c < this.chunkCount; c++) {
+            System.arraycopy(this.replicas, c * this.replication, resized, c * replication, this.replication);
+        }
+        this.replicas = resized;
+        this.lengths = Arrays.copyOf(this.lengths, capacity);
+        this.replication = replication;
+    }
+}
@@ -0,0 +1,168 @@
+package hdfs;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+import hdfs.DataNodeInfo;
+
+/**
+ * Locations of the chunks of a file that cover a byte range.
+ * Each DataNode holding one of these chunks is sent once, in a node
+ * dictionary, and the replicas of a chunk are positions in that dictionary,
+ * so a response grows with the number of chunks and not with the number
+ * of replicas times the size of a DataNodeInfo.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class LocatedBlocks implements Serializable {
+
+    /** serialVersionUID */
+    private static final long serialVersionUID = 4630112207315742691L;
+    /** HDFS file name */
+    private String fileName;
+    /** size of the whole file */
+    private long fileSize;
+    /** block size of the file */
+    private int blockSize;
+    /** number of chunks of the whole file */
+    private int chunkCount;
+    /** chunk number of the first chunk returned */
+    private int firstChunk;
+    /** offset in the file of every chunk returned */
+    private long[] offsets;
+    /** exact length of every chunk returned */
+    private int[] lengths;
+    /** replicas of every chunk returned, as positions in nodes, in pipeline order */
+    private int[][] replicas;
+    /** DataNodes holding a replica of the chunks returned */
+    private DataNodeInfo[] nodes;
+
+
+    /**
+     * Constructor
+     * @param fileName String The HDFS file name.
+     * @param fileSize long The size of the whole file.
+     * @param blockSize int The block size of the file.
+     * @param chunkCount int The number of chunks of the whole file.
+     * @param firstChunk int The chunk number of the first chunk returned.
+     * @param offsets long[] The offset of every chunk returned.
+     * @param lengths int[] The length of every chunk returned.
+     * @param replicas int[][] The replicas of every chunk returned, as positions in nodes.
+     * @param nodes DataNodeInfo[] The node dictionary.
+     */
+    public LocatedBlocks(String fileName, long fileSize, int blockSize, int chunkCount, int firstChunk,
+                         long[] offsets, int[] lengths, int[][] replicas, DataNodeInfo[] nodes)
+    {
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.blockSize = blockSize;
+        this.chunkCount = chunkCount;
+        this.firstChunk = firstChunk;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.replicas = replicas;
+        this.nodes = nodes;
+    }
+
+
+    /** get the file name */
+    public String getFileName() {
+        return this.fileName;
+    }
+
+
+    /** get the size of the whole file */
+    public long getFileSize() {
+        return this.fileSize;
+    }
+
+
+    /** get the block size of the file */
+    public int getBlockSize() {
+        return this.blockSize;
+    }
+
+
+    /** get the number of chunks of the whole file */
+    public int getChunkCount() {
+        return this.chunkCount;
+    }
+
+
+    /** get the number of chunks returned */
+    public int size() {
+        return this.lengths.length;
+    }
+
+
+    /** get the chunk number of the i-th chunk returned */
+    public int getChunkNum(int i) {
+        return this.firstChunk + i;
+    }
+
+
+    /** get the offset in the file of the i-th chunk returned */
+    public long getOffset(int i) {
+        return this.offsets[i];
+    }
+
+
+    /** get the exact length of the i-th chunk returned */
+    public int getLength(int i) {
+        return this.lengths[i];
+    }
+
+
+    /**
+     * @return ArrayList<DataNodeInfo> the replicas of the i-th chunk returned, in pipeline order
+     */
+    public ArrayList<DataNodeInfo> getReplicas(int i) {
+        ArrayList<DataNodeInfo> replicas = new ArrayList<DataNodeInfo>(this.replicas[i].length);
+        for (int node : this.replicas[i]) {
+            replicas.add(this.nodes[node]);
+        }
+        return replicas;
+    }
+
+
+    /**
+     * @return long the offset right after the last chunk returned
+     */
+    public long getEnd() {
+        int n = size();
+        return (n == 0) ? this.fileSize : this.offsets[n - 1] + this.lengths[n - 1];
+    }
+
+
+    /**
+     * @return boolean true if the last chunk of the file is among the chunks returned
+     */
+    public boolean isLastChunkIncluded() {
+        return this.firstChunk + size() >= this.chunkCount;
+    }
+
+
+    /**
+     * Find the chunk holding a byte of the file.
+     * @param offset long The offset of the byte in the file.
+     * @return int the position of the chunk among the chunks returned, or -1 if not returned
+     */
+    public int find(long offset) {
+        int low = 0;
+        int high = size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (offset < this.offsets[mid]) {
+                high = mid - 1;
+            }
+            else if (offset >= this.offsets[mid] + this.lengths[mid]) {
+                low = mid + 1;
+            }
+            else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,188 @@
+package hdfs;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import hdfs.FSDirectory;
+import hdfs.LocatedBlocks;
+
+/**
+ * Client cache of file metadata : size, block size and chunk locations, as
+ * windows of LocatedBlocks returned by NameNode.
+ *
+ * Files are evicted in LRU order once more than capacity are cached, and a
+ * window is only served for ttl after it was fetched, so a file rewritten or
+ * re-replicated by someone else is seen again within ttl. A read that fails
+ * on a cached location invalidates the file, as do the mutations of this
+ * client.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class MetadataCache {
+
+    /** max number of windows cached per file, a long sequential read only needs the latest ones */
+    private static final int MAX_WINDOWS = 4;
+
+    /** max number of files cached */
+    private int capacity;
+    /** time a window is served after it was fetched, in milliseconds */
+    private long ttl;
+    /** cached files by normalized path, in LRU order */
+    private LinkedHashMap<String, ArrayList<Window>> files;
+
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    private AtomicLong expirations = new AtomicLong();
+    private AtomicLong invalidations = new AtomicLong();
+
+
+    /**
+     * Constructor
+     * @param capacity int Max number of files cached.
+     * @param ttlSec int Seconds a location is served after it was fetched.
+     */
+    public MetadataCache(final int capacity, int ttlSec) {
+        this.capacity = capacity;
+        this.ttl = ttlSec * 1000L;
+        this.files = new LinkedHashMap<String, ArrayList<Window>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ArrayList<Window>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+
+    /**
+     * Look up the locations of a byte of a file.
+     * @param fileName String The HDFS file name.
+     * @param offset long The offset of the byte in the file.
+     * @return LocatedBlocks a fresh window covering offset, or null on a miss
+     */
+    public synchronized LocatedBlocks get(String fileName, long offset) {
+        ArrayList<Window> windows = this.files.get(FSDirectory.normalize(fileName));
+        if (windows != null) {
+            long now = System.currentTimeMillis();
+            Iterator<Window> it = windows.iterator();
+            while (it.hasNext()) {
+                Window window = it.next();
+                if (window.expiry <= now) {
+                    it.remove();
+                    this.expirations.incrementAndGet();
+                }
+                else if (window.blocks.find(offset) >= 0
+                         || (offset >= window.blocks.getFileSize() && window.blocks.isLastChunkIncluded()))
+                {
+                    this.hits.incrementAndGet();
+                    return window.blocks;
+                }
+            }
+        }
+        this.misses.incrementAndGet();
+        return null;
+    }
+
+
+    /**
+     * Cache a window fetched from NameNode.
+     * @param blocks LocatedBlocks The window.
+     */
+    public synchronized void put(LocatedBlocks blocks) {
+        if (this.capacity <= 0) {
+            return;
+        }
+        String path = FSDirectory.normalize(blocks.getFileName());
+        ArrayList<Window> windows = this.files.get(path);
+        if (windows == null) {
+            windows = new ArrayList<Window>(MAX_WINDOWS);
+            this.files.put(path, windows);
+        }
+        else if (!windows.isEmpty() && (windows.get(0).blocks.getFileSize() != blocks.getFileSize()
+                                        || windows.get(0).blocks.getChunkCount() != blocks.getChunkCount()))
+        {
+            /* the file changed since the other windows were fetched */
+            windows.clear();
+        }
+        if (windows.size() == MAX_WINDOWS) {
+            windows.remove(0);
+        }
+        windows.add(new Window(blocks, System.currentTimeMillis() + this.ttl));
+    }
+
+
+    /**
+     * Forget a file, or a directory and every file under it.
+     * @param path String The file or directory.
+     */
+    public synchronized void invalidate(String path) {
+        String normalized = FSDirectory.normalize(path);
+        String dirPrefix = normalized.equals("/") ? "/" : normalized + "/";
+        Iterator<String> it = this.files.keySet().iterator();
+        while (it.hasNext()) {
+            String cached = it.next();
+            if (cached.equals(normalized) || cached.startsWith(dirPrefix)) {
+                it.remove();
+                this.invalidations.incrementAndGet();
+            }
+        }
+    }
+
+
+    /**
+     * @return Stats hit and miss counters and the number of files cached
+     */
+    public synchronized Stats getStats() {
+        return new Stats(this.hits.get(), this.misses.get(), this.expirations.get(), this.invalidations.get(),
+                         this.files.size(), this.capacity);
+    }
+
+
+    /**
+     * A window and the time it stops being served.
+     */
+    private static class Window {
+        LocatedBlocks blocks;
+        long expiry;
+
+        Window(LocatedBlocks blocks, long expiry) {
+            this.blocks = blocks;
+            this.expiry = expiry;
+        }
+    }
+
+
+    /**
+     * Snapshot of the cache counters.
+     */
+    public static class Stats {
+        public long hits;
+        public long misses;
+        public long expirations;
+        public long invalidations;
+        public int files;
+        public int capacity;
+
+        public Stats(long hits, long misses, long expirations, long invalidations, int files, int capacity) {
+            this.hits = hits;
+            this.misses = misses;
+            this.expirations = expirations;
+            this.invalidations = invalidations;
+            this.files = files;
+            this.capacity = capacity;
+        }
+
+        @Override
+        public String toString() {
+            long lookups = this.hits + this.misses;
+            return String.format("hits=%d misses=%d hitRatio=%.2f expirations=%d invalidations=%d files=%d/%d",
+                                 this.hits, this.misses, lookups == 0 ? 0.0 : 1.0 * this.hits / lookups,
+                                 this.expirations, this.invalidations, this.files, this.capacity);
+        }
+    }
+}
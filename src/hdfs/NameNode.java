@@ -1,24 +1,46 @@
 package hdfs;
 
+import java.io.File;
 import java.io.IOException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import global.FileIO;
 import global.Common;
+import global.HDFSConf;
 
+import hdfs.HDFSCommon;
 import hdfs.HDFSFile;
 import hdfs.HDFSChunk;
 import hdfs.DataNode;
 import hdfs.DataNodeInterface;
 import hdfs.DataNodeInfo;
+import hdfs.DataNodeStats;
+import hdfs.DataNodeCommand;
+import hdfs.BlockReport;
+import hdfs.HeartbeatResponse;
+import hdfs.BlockPlacement;
+import hdfs.EditLog;
+import hdfs.FSImage;
+import hdfs.FSDirectory;
+import hdfs.INodeFile;
+import hdfs.DataNodeIndex;
+import hdfs.LocatedBlocks;
+import hdfs.ReplicationMonitor;
 import hdfs.HDFSClientInterface;
+import hdfs.Service;
 
 
 /**
@@ -27,31 +49,69 @@ import hdfs.HDFSClientInterface;
  * @author Hang Yuan
  * @author Chuhan Yang
  */
-public class NameNode implements NameNodeInterface {
+public class NameNode extends Service implements NameNodeInterface {
     /** serial Version UID */
     private static final long serialVersionUID = 455874693232909953L;
-    /** running status */
-    private static boolean isRunning;
 
     /** NameNode registry service port, read from dfs.conf*/
     private static Integer nameNodeRegPort;
     /** NameNode RMI service name, read from dfs.conf*/
     private static String nameNodeService;
+    /** Directory of the NameNode metadata, read from dfs.conf*/
+    private static String nameNodePath = "./NameNode";
+    /** Number of replicas of each chunk, read from dfs.conf*/
+    private static Integer replicaNum = HDFSCommon.DFT_REPLICAS;
+    /** Seconds between two namespace checkpoints, read from dfs.conf*/
+    private static Integer checkpointInterval = 3600;
+    /** Number of edits that triggers a checkpoint before checkpointInterval, read from dfs.conf*/
+    private static Integer checkpointTxns = 1000000;
+    /** Number of threads decoding the namespace image at startup, read from dfs.conf*/
+    private static Integer imageLoadThreads = Runtime.getRuntime().availableProcessors();
+    /** Seconds without heartbeat after which a DataNode is dead, read from dfs.conf*/
+    private static Integer dataNodeTimeout = (int) HDFSConf.SYSTEM_CHECK_PERIOD;
+    /** Seconds between two passes of the replication monitor, read from dfs.conf*/
+    private static Integer replicationInterval = 3;
+    /** Max number of copies a DataNode takes part in at a time, read from dfs.conf*/
+    private static Integer maxReplicationStreams = 2;
+    /** Seconds after which a copy not reported is scheduled again, read from dfs.conf*/
+    private static Integer replicationTimeout = 300;
 
-    /** DataNode Table */
+    /** DataNode Table, keyed by ip:port */
     ConcurrentHashMap<String, DataNodeInfo> dataNodeTable = new ConcurrentHashMap<String, DataNodeInfo>();
-    /** file Table */
-    ConcurrentHashMap<String, HDFSFile> fileTable = new ConcurrentHashMap<String, HDFSFile>();
-    /** file meta Table */
-    ConcurrentHashMap<String, HDFSFileMeta> fileMetaTable = new ConcurrentHashMap<String, HDFSFileMeta>();
+    /** namespace tree of directories and files */
+    FSDirectory namespace = new FSDirectory();
+    /** every DataNode ever seen; replica locations are indices into it */
+    DataNodeIndex dataNodeIndex = new DataNodeIndex();
+    /** chooses the DataNodes of new chunks */
+    private BlockPlacement placement = new BlockPlacement();
+    /** write-ahead log of namespace mutations */
+    private EditLog editLog;
+    /** held while a mutation updates the tables and appends its edits, so both see the same order */
+    private final Object namespaceLock = new Object();
+    /** applies block reports, one at a time and in arrival order */
+    private ExecutorService reportExecutor = Executors.newSingleThreadExecutor(daemonThreads("BlockReports"));
+    /** chunks held by each DataNode, present once its first full report is processed */
+    ConcurrentHashMap<String, HashSet<String>> dataNodeChunks = new ConcurrentHashMap<String, HashSet<String>>();
+    /** commands waiting for the next heartbeat of each DataNode */
+    ConcurrentHashMap<String, ConcurrentLinkedQueue<DataNodeCommand>> pendingCommands =
+            new ConcurrentHashMap<String, ConcurrentLinkedQueue<DataNodeCommand>>();
+    /** detects dead DataNodes and restores lost replicas, runs on the report thread */
+    private ReplicationMonitor replicationMonitor;
+    /** registry the RMI service is bound in */
+    private Registry nameNodeRegistry;
+    /** transaction id of the last checkpoint */
+    private volatile long checkpointTxId;
+    /** time of the last checkpoint, in milliseconds */
+    private volatile long checkpointTime;
 
     /** Constructor */
     public NameNode() throws RemoteException {
-        super();
+        super("NameNode");
     }
 
     /** Init NameNode */
-    public void init() {
+    @Override
+    protected void serviceStart() {
         /* Load configuration */
         System.out.println("[LOG] Loading NameNode configuration data ...");
         try {
@@ -64,11 +124,60 @@ public class NameNode implements NameNodeInterface {
             System.exit(-1);
         }
 
+        /* Recover namespace : newest image, then the edits logged after it */
+        try {
+            File metaDir = new File(nameNodePath);
+            long start = System.currentTimeMillis();
+            File image = FSImage.latest(metaDir);
+            if (image != null) {
+                checkpointTxId = FSImage.load(image, namespace, dataNodeIndex, imageLoadThreads);
+                System.out.println("[LOG] Loaded " + image.getName() + " : " + namespace.getFileCount() + " files in "
+                                   + (System.currentTimeMillis() - start) + " ms");
+            }
+            checkpointTime = System.currentTimeMillis();
+
+            editLog = new EditLog(metaDir);
+            long edits = editLog.open(checkpointTxId, new TableEditHandler(namespace, dataNodeIndex));
+            System.out.println("[^_^] Replayed " + edits + " edits, " + namespace.getFileCount() + " files in namespace");
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("[Error**] Namespace recovery failed. Shutting down ...");
+            System.exit(-1);
+        }
+
+        /* Checkpoint in the background, checking the triggers every minute */
+        scheduleWithFixedDelay("Checkpointer", new Runnable() {
+            @Override
+            public void run() {
+                long elapsed = (System.currentTimeMillis() - checkpointTime) / 1000;
+                long pending = editLog.getLastTxId() - checkpointTxId;
+                if (pending > 0 && (elapsed >= checkpointInterval || pending >= checkpointTxns)) {
+                    checkpoint();
+                }
+            }
+        }, 60, 60, TimeUnit.SECONDS);
+
+        /* Watch DataNode liveness and replica counts, on the report thread so reports and copies stay ordered */
+        replicationMonitor = new ReplicationMonitor(this, replicaNum, maxReplicationStreams, dataNodeTimeout,
+                                                    replicationTimeout);
+        scheduleWithFixedDelay("ReplicationMonitor", new Runnable() {
+            @Override
+            public void run() {
+                reportExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        replicationMonitor.check();
+                    }
+                });
+            }
+        }, replicationInterval, replicationInterval, TimeUnit.SECONDS);
+
         /* Initialize NameNode RMI service */
         try {
             System.out.println("[LOG] Setting up NameNode RMI service on port " + nameNodeRegPort);
             NameNodeInterface nameNodeStub = (NameNodeInterface) UnicastRemoteObject.exportObject(this, 0);
-            Registry nameNodeRegistry = LocateRegistry.createRegistry(nameNodeRegPort);
+            nameNodeRegistry = LocateRegistry.createRegistry(nameNodeRegPort);
             /* rebind  RMi service */
             nameNodeRegistry.rebind(nameNodeService, nameNodeStub);
             System.out.println("[^_^] RMI service set up successfully");
@@ -78,9 +187,30 @@ public class NameNode implements NameNodeInterface {
             System.out.println("[Error**] NameNode server init failed. Shutting down ...");
             System.exit(-1);
         }
+    }
+
 
-        /* enable running */
-        isRunning = true;
+    /**
+     * Stop serving RPCs, apply the block reports already received and
+     * close the edit log, so every logged edit is durable.
+     */
+    @Override
+    protected void serviceStop() {
+        try {
+            if (nameNodeRegistry != null) {
+                UnicastRemoteObject.unexportObject(this, true);
+                UnicastRemoteObject.unexportObject(nameNodeRegistry, true);
+            }
+        }
+        catch (RemoteException e) {
+            e.printStackTrace();
+        }
+        drain(reportExecutor, STOP_TIMEOUT);
+        if (editLog != null) {
+            synchronized (namespaceLock) {
+                editLog.close();
+            }
+        }
     }
 
     
@@ -89,23 +219,192 @@ public class NameNode implements NameNodeInterface {
      * @param dataNoeIP DataNode IP address
      */
     @Override
-    public void registerDataNode(String dataNodeIP, int dataNodeRegPort, String dataNodeService) 
-                                 throws RemoteException
+    public void registerDataNode(String dataNodeIP, int dataNodeRegPort, String dataNodeService,
+                                 int dataNodeTransferPort) throws RemoteException
     {
-        this.dataNodeTable.put(dataNodeIP, 
-                               new DataNodeInfo(dataNodeIP, dataNodeRegPort,dataNodeService)
-                               );
+        final DataNodeInfo dataNode = new DataNodeInfo(dataNodeIP, dataNodeRegPort, dataNodeService,
+                                                       dataNodeTransferPort);
+        dataNode.lastHeartbeat = System.currentTimeMillis();
+        this.dataNodeTable.put(dataNode.getId(), dataNode);
+        this.dataNodeIndex.update(dataNode);
+        this.pendingCommands.putIfAbsent(dataNode.getId(), new ConcurrentLinkedQueue<DataNodeCommand>());
+        /* a (re)registered DataNode starts over with a full report */
+        this.reportExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                dataNodeChunks.remove(dataNode.getId());
+            }
+        });
         System.out.println("[LOG] "+ dataNodeIP + ":" + dataNodeRegPort + " added to DataNode list");
     }
 
 
     /**
-     * RMI call - List all files in HDFS
+     * RMI call - List a directory in name order, one bounded batch at a time.
+     * @param prefix String a directory to list its children, or a directory followed by a name prefix
+     *               to list only the children starting with it, null for the root
+     * @param startAfter String path of the last entry of the previous batch, null to start from the beginning
+     * @param limit int max number of entries returned, capped at HDFSCommon.MAX_LIST_LIMIT
+     * @return ArrayList<HDFSFileMeta> the next entries, fewer than limit only when the listing is complete
      * @throws RemoteException
      */
     @Override
-    public ConcurrentHashMap<String, HDFSFileMeta> getFileTable() throws RemoteException {
-        return this.fileMetaTable;
+    public ArrayList<HDFSFileMeta> listFiles(String prefix, String startAfter, int limit) throws RemoteException {
+        if (limit <= 0 || limit > HDFSCommon.MAX_LIST_LIMIT) {
+            limit = HDFSCommon.MAX_LIST_LIMIT;
+        }
+        return this.namespace.list(prefix, startAfter, limit);
+    }
+
+
+    /**
+     * RMI call - heartbeat of a DataNode carrying its usage statistics
+     * @param dataNodeId DataNode key, ip:port of its registry
+     * @param stats usage statistics
+     * @throws RemoteException
+     */
+    @Override
+    public HeartbeatResponse sendHeartbeat(String dataNodeId, DataNodeStats stats) throws RemoteException {
+        HeartbeatResponse response = new HeartbeatResponse();
+        DataNodeInfo dataNode = this.dataNodeTable.get(dataNodeId);
+        if (dataNode == null) {
+            System.out.println("[LOG] Heartbeat from unknown DataNode " + dataNodeId + ", asking it to register");
+            response.reregister = true;
+            return response;
+        }
+        dataNode.stats = stats;
+        dataNode.lastHeartbeat = System.currentTimeMillis();
+
+        response.fullReport = !this.dataNodeChunks.containsKey(dataNodeId);
+        ConcurrentLinkedQueue<DataNodeCommand> commands = this.pendingCommands.get(dataNodeId);
+        DataNodeCommand command;
+        while ((command = commands.poll()) != null) {
+            response.commands.add(command);
+        }
+        return response;
+    }
+
+
+    /**
+     * RMI call - block report of a DataNode. Reports are queued and applied
+     * by a dedicated thread so the DataNode is never blocked on the NameNode.
+     * @param dataNodeId DataNode key, ip:port of its registry
+     * @param report chunks held, or added and removed since the last report
+     * @throws RemoteException
+     */
+    @Override
+    public void sendBlockReport(final String dataNodeId, final BlockReport report) throws RemoteException {
+        this.reportExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                processBlockReport(dataNodeId, report);
+            }
+        });
+    }
+
+
+    /**
+     * Apply a block report to the replica locations of the namespace.
+     * Runs on the report thread only.
+     */
+    private void processBlockReport(String dataNodeId, BlockReport report) {
+        DataNodeInfo dataNode = this.dataNodeTable.get(dataNodeId);
+        if (dataNode == null) {
+            return;
+        }
+        HashSet<String> held = this.dataNodeChunks.get(dataNodeId);
+
+        if (report.isFull()) {
+            HashSet<String> reported = new HashSet<String>(report.size() * 2);
+            for (int i = 0; i < report.size(); i++) {
+                if (addReplica(dataNode, report.getFileName(i), report.getChunkNum(i), report.getGeneration(i))) {
+                    reported.add(report.getFileName(i) + "_" + report.getChunkNum(i));
+                }
+            }
+            /* replicas the block map names this DataNode for but it does not have, whether they come
+             * from a placement, a commit, the image or an earlier report */
+            int node = this.dataNodeIndex.find(dataNodeId);
+            int dropped = 0;
+            for (INodeFile file : this.namespace.files()) {
+                String path = null;
+                for (int c = 0; c < file.getChunkCount(); c++) {
+                    for (int replica : file.getReplicas(c)) {
+                        if (replica != node) {
+                            continue;
+                        }
+                        if (path == null) {
+                            path = file.getPath();
+                        }
+                        if (!reported.contains(path + "_" + c) && file.removeReplica(c, node)) {
+                            this.replicationMonitor.replicaRemoved(path, c);
+                            dropped++;
+                        }
+                    }
+                }
+            }
+            this.dataNodeChunks.put(dataNodeId, reported);
+            System.out.println("[LOG] Full block report of " + dataNodeId + " : " + reported.size() + " chunks, "
+                               + dropped + " missing replicas dropped");
+            return;
+        }
+
+        if (held == null) {
+            /* incremental report before the first full one; the full report will cover it */
+            return;
+        }
+        for (int i = 0; i < report.size(); i++) {
+            String fileName = report.getFileName(i);
+            int chunkNum = report.getChunkNum(i);
+            if (report.getOp(i) == BlockReport.ADDED) {
+                if (addReplica(dataNode, fileName, chunkNum, report.getGeneration(i))) {
+                    held.add(fileName + "_" + chunkNum);
+                }
+            }
+            else {
+                removeReplica(dataNodeId, fileName, chunkNum);
+                held.remove(fileName + "_" + chunkNum);
+            }
+        }
+    }
+
+
+    /**
+     * Record a replica reported by a DataNode. A chunk that is not in the
+     * namespace any more, or belongs to an earlier file of the same name, is
+     * scheduled for deletion on that DataNode.
+     * @return true if the chunk belongs to the namespace
+     */
+    private boolean addReplica(DataNodeInfo dataNode, String fileName, int chunkNum, long generation) {
+        INodeFile file = this.namespace.getFile(fileName);
+        if (file != null && file.getGenerationStamp() == generation && file.isAllocated(chunkNum)) {
+            /* written by a streaming writer ahead of its commit, which records the pipeline */
+            return true;
+        }
+        if (file == null || file.getGenerationStamp() != generation
+            || chunkNum < 0 || chunkNum >= file.getChunkCount())
+        {
+            this.pendingCommands.get(dataNode.getId()).add(
+                    new DataNodeCommand(DataNodeCommand.DELETE, fileName, chunkNum, generation));
+            return false;
+        }
+        file.addReplica(chunkNum, this.dataNodeIndex.indexOf(dataNode));
+        this.replicationMonitor.replicaAdded(dataNode.getId(), fileName, chunkNum);
+        return true;
+    }
+
+
+    /**
+     * Forget a replica a DataNode no longer holds.
+     */
+    private void removeReplica(String dataNodeId, String fileName, int chunkNum) {
+        INodeFile file = this.namespace.getFile(fileName);
+        int node = this.dataNodeIndex.find(dataNodeId);
+        if (file == null || node < 0 || chunkNum < 0 || chunkNum >= file.getChunkCount()) {
+            return;
+        }
+        if (file.removeReplica(chunkNum, node)) {
+            this.replicationMonitor.replicaRemoved(fileName, chunkNum);
+        }
     }
 
 
@@ -127,7 +426,23 @@ public class NameNode implements NameNodeInterface {
      */
     @Override
     public HDFSFile getFile(String fileName) throws RemoteException {
-        return fileTable.get(fileName);
+        INodeFile file = this.namespace.getFile(fileName);
+        return (file == null) ? null : file.toHDFSFile(file.getPath(), this.dataNodeIndex);
+    }
+
+
+    /**
+     * RMI call - locate a number of chunks of a file from the one holding a byte on
+     * @throws RemoteException
+     */
+    @Override
+    public LocatedBlocks getBlockLocations(String fileName, long offset, int chunkCount) throws RemoteException {
+        INodeFile file = this.namespace.getFile(fileName);
+        if (file == null || offset < 0) {
+            return null;
+        }
+        chunkCount = Math.max(1, Math.min(chunkCount, HDFSCommon.MAX_LOCATED_CHUNKS));
+        return file.locate(file.getPath(), offset, Long.MAX_VALUE, chunkCount, this.dataNodeIndex);
     }
 
 
@@ -136,41 +451,496 @@ public class NameNode implements NameNodeInterface {
      * @throws RemoteException
      */
     @Override
-    public HDFSFile createFile(String fileName, long size) throws RemoteException {
-        //TODO - need carefull workflow design
-        return null;
+    public HDFSFile createFile(String fileName, long size, int blockSize) throws RemoteException {
+        /* chunks are named after the file, so the name has a single spelling */
+        fileName = FSDirectory.normalize(fileName);
+        if (blockSize <= 0 || blockSize > HDFSCommon.MAX_CHUNK_SIZE) {
+            System.err.println("[Error**] Invalid block size " + blockSize + " for " + fileName);
+            return null;
+        }
+        int chunkCount = (int) ((size + blockSize - 1) / blockSize);
+        ArrayList<ArrayList<DataNodeInfo>> pipelines = this.placement.place(this.dataNodeTable.values(),
+                                                                             chunkCount, replicaNum, blockSize);
+        if (pipelines == null) {
+            System.err.println("[Error**] No DataNode available to store " + fileName);
+            return null;
+        }
+
+        long txId = 0;
+        INodeFile file;
+        synchronized (this.namespaceLock) {
+            file = this.namespace.addFile(fileName, blockSize);
+            if (file == null) {
+                System.err.println("[Error**] " + fileName + " already exists or a parent of it is a file");
+                return null;
+            }
+            file.ensureCapacity(chunkCount);
+            try {
+                txId = this.editLog.logCreate(fileName, blockSize, false);
+                file.setGenerationStamp(txId);
+                /* every chunk records its exact length, only the last one may be short */
+                for (int i = 0; i < chunkCount; i++) {
+                    ArrayList<DataNodeInfo> pipeline = pipelines.get(i);
+                    long length = Math.min(blockSize, size - (long) i * blockSize);
+                    file.addChunk(length, indicesOf(pipeline));
+                    txId = this.editLog.logAddChunk(fileName, i, length, pipeline);
+                }
+            }
+            catch (IOException e) {
+                editLogFailed(e);
+            }
+        }
+        /* durable before the client starts writing, outside the lock so creates share one fsync */
+        syncEdits(txId);
+        System.out.println("[LOG] Created " + fileName + " : " + chunkCount + " chunks of " + blockSize + " bytes");
+        return file.toHDFSFile(fileName, this.dataNodeIndex);
+    }
+
+
+    /**
+     * RMI call - create an empty file on HDFS, to be written as a stream
+     * @throws RemoteException
+     */
+    @Override
+    public HDFSFile startFile(String fileName, int blockSize) throws RemoteException {
+        fileName = FSDirectory.normalize(fileName);
+        if (blockSize <= 0 || blockSize > HDFSCommon.MAX_CHUNK_SIZE) {
+            System.err.println("[Error**] Invalid block size " + blockSize + " for " + fileName);
+            return null;
+        }
+        long txId = 0;
+        INodeFile file;
+        synchronized (this.namespaceLock) {
+            file = this.namespace.addFile(fileName, blockSize);
+            if (file == null) {
+                System.err.println("[Error**] " + fileName + " already exists or a parent of it is a file");
+                return null;
+            }
+            file.startConstruction();
+            try {
+                txId = this.editLog.logCreate(fileName, blockSize, true);
+                file.setGenerationStamp(txId);
+            }
+            catch (IOException e) {
+                editLogFailed(e);
+            }
+        }
+        syncEdits(txId);
+        System.out.println("[LOG] Started " + fileName + " : chunks of " + blockSize + " bytes");
+        return file.toHDFSFile(fileName, this.dataNodeIndex);
+    }
+
+
+    /**
+     * RMI call - allocate the next chunk of a file written as a stream
+     * @param fileName String The file name.
+     * @return HDFSChunk the chunk number and the pipeline to write the chunk to, or null if
+     *         the file does not exist, is not under construction or no DataNode is available
+     * @throws RemoteException
+     */
+    @Override
+    public HDFSChunk addChunk(String fileName) throws RemoteException {
+        fileName = FSDirectory.normalize(fileName);
+        INodeFile file;
+        synchronized (this.namespaceLock) {
+            file = this.namespace.getFile(fileName);
+        }
+        if (file == null || !file.isUnderConstruction()) {
+            System.err.println("[Error**] Cannot add a chunk to " + fileName + " : not a file being written");
+            return null;
+        }
+        ArrayList<ArrayList<DataNodeInfo>> pipelines = this.placement.place(this.dataNodeTable.values(), 1,
+                                                                             replicaNum, file.getBlockSize());
+        if (pipelines == null) {
+            System.err.println("[Error**] No DataNode available to store " + fileName);
+            return null;
+        }
+        int chunkNum;
+        synchronized (this.namespaceLock) {
+            /* the file may have been deleted, recreated or completed while the pipeline was placed */
+            if (this.namespace.getFile(fileName) != file || (chunkNum = file.allocateChunk()) < 0) {
+                System.err.println("[Error**] Cannot add a chunk to " + fileName + " : not a file being written");
+                return null;
+            }
+        }
+        HDFSChunk chunk = new HDFSChunk(fileName, chunkNum, file.getBlockSize());
+        chunk.setGenerationStamp(file.getGenerationStamp());
+        for (DataNodeInfo dataNode : pipelines.get(0)) {
+            chunk.addReplicaDataNode(dataNode);
+        }
+        return chunk;
+    }
+
+
+    /**
+     * RMI call - commit a chunk written to its pipeline, appending it to the
+     * file so readers see it
+     * @param fileName String The file name.
+     * @param chunkNum int The chunk number, the next chunk of the file.
+     * @param length long The exact length of the chunk.
+     * @param pipeline ArrayList The DataNodes that acknowledged the chunk.
+     * @return boolean false if the file is not under construction or chunkNum is not its next chunk
+     * @throws RemoteException
+     */
+    @Override
+    public boolean commitChunk(String fileName, final int chunkNum, long length, ArrayList<DataNodeInfo> pipeline)
+        throws RemoteException
+    {
+        fileName = FSDirectory.normalize(fileName);
+        long txId;
+        synchronized (this.namespaceLock) {
+            INodeFile file = this.namespace.getFile(fileName);
+            if (file == null || !file.isUnderConstruction() || chunkNum != file.getChunkCount()
+                || length <= 0 || length > file.getBlockSize())
+            {
+                System.err.println("[Error**] Rejected commit of " + fileName + "_" + chunkNum);
+                return false;
+            }
+            file.addChunk(length, indicesOf(pipeline));
+            try {
+                txId = this.editLog.logAddChunk(fileName, chunkNum, length, pipeline);
+            }
+            catch (IOException e) {
+                editLogFailed(e);
+                return false;
+            }
+        }
+        syncEdits(txId);
+        if (pipeline.size() < replicaNum) {
+            /* the pipeline lost nodes while the chunk was written : restore its replicas */
+            final String name = fileName;
+            this.reportExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    replicationMonitor.replicaRemoved(name, chunkNum);
+                }
+            });
+        }
+        return true;
+    }
+
+
+    /**
+     * RMI call - report the DataNodes a chunk placed by createFile was stored on.
+     * The replicas of the placement missing from them are dropped on the report
+     * thread, like replicas missing from a block report, and restored by the
+     * replication monitor.
+     * @param fileName String The file name.
+     * @param chunkNum int The chunk number.
+     * @param stored ArrayList The DataNodes that acknowledged the chunk.
+     * @throws RemoteException
+     */
+    @Override
+    public void updatePipeline(String fileName, final int chunkNum, ArrayList<DataNodeInfo> stored)
+        throws RemoteException
+    {
+        final String name = FSDirectory.normalize(fileName);
+        final int[] acked = indicesOf(stored);
+        this.reportExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                INodeFile file = namespace.getFile(name);
+                if (file == null || chunkNum < 0 || chunkNum >= file.getChunkCount()) {
+                    return;
+                }
+                for (int node : file.getReplicas(chunkNum)) {
+                    boolean written = false;
+                    for (int a : acked) {
+                        written |= (a == node);
+                    }
+                    if (!written && file.removeReplica(chunkNum, node)) {
+                        System.out.println("[LOG] " + name + "_" + chunkNum + " was not written to "
+                                           + dataNodeIndex.get(node).getId());
+                        replicationMonitor.replicaRemoved(name, chunkNum);
+                    }
+                }
+            }
+        });
+    }
+
+
+    /**
+     * RMI call - complete a file written as a stream
+     * @param fileName String The file name.
+     * @param size long The number of bytes written.
+     * @param chunkCount int The number of chunks committed.
+     * @return boolean false if the file is not under construction, or does not hold exactly what was written
+     * @throws RemoteException
+     */
+    @Override
+    public boolean completeFile(String fileName, long size, int chunkCount) throws RemoteException {
+        fileName = FSDirectory.normalize(fileName);
+        long txId;
+        synchronized (this.namespaceLock) {
+            INodeFile file = this.namespace.getFile(fileName);
+            if (file == null || !file.isUnderConstruction()) {
+                System.err.println("[Error**] Cannot complete " + fileName + " : not a file being written");
+                return false;
+            }
+            if (file.getSize() != size || file.getChunkCount() != chunkCount) {
+                System.err.println("[Error**] " + fileName + " does not hold the " + size + " bytes written to it");
+                return false;
+            }
+            file.complete();
+            try {
+                txId = this.editLog.logComplete(fileName);
+            }
+            catch (IOException e) {
+                editLogFailed(e);
+                return false;
+            }
+        }
+        syncEdits(txId);
+        System.out.println("[LOG] Completed " + fileName + " : " + chunkCount + " chunks, " + size + " bytes");
+        return true;
+    }
+
+
+    /**
+     * @return int[] the indices of DataNodes in the DataNode dictionary
+     */
+    private int[] indicesOf(List<DataNodeInfo> dataNodes) {
+        int[] indices = new int[dataNodes.size()];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = this.dataNodeIndex.indexOf(dataNodes.get(i));
+        }
+        return indices;
     }
 
 
     /**
      * RMI call - remove file on HDFS
      * @throws RemoteException
+     * @return HDFSFile the removed file, or null if fileName is not a file
      */
     @Override
     public HDFSFile removeFile(String fileName) throws RemoteException {
-        //TODO - need carefull workflow design
-        if (fileTable.containsKey(fileName)) {
-            HDFSFile file = fileTable.get(fileName);
-            fileTable.remove(fileName);
-            fileMetaTable.remove(fileName);
-            return file;
+        ArrayList<INodeFile> deleted;
+        HDFSFile removed;
+        long txId;
+        synchronized (this.namespaceLock) {
+            INodeFile file = this.namespace.getFile(fileName);
+            if (file == null) {
+                return null;
+            }
+            removed = file.toHDFSFile(file.getPath(), this.dataNodeIndex);
+            deleted = this.namespace.delete(fileName, false);
+            try {
+                txId = this.editLog.logRemove(fileName);
+            }
+            catch (IOException e) {
+                editLogFailed(e);
+                return null;
+            }
+        }
+        syncEdits(txId);
+        invalidate(deleted);
+        return removed;
+    }
+
+
+    /**
+     * RMI call - delete a file or a directory
+     * @param path String the file or directory
+     * @param recursive boolean whether a non-empty directory is deleted with its subtree
+     * @return int the number of files deleted, -1 if nothing was deleted
+     * @throws RemoteException
+     */
+    @Override
+    public int delete(String path, boolean recursive) throws RemoteException {
+        ArrayList<INodeFile> deleted;
+        long txId;
+        synchronized (this.namespaceLock) {
+            deleted = this.namespace.delete(path, recursive);
+            if (deleted == null) {
+                System.err.println("[Error**] Cannot delete " + path + " : missing, root or non-empty directory");
+                return -1;
+            }
+            try {
+                txId = this.editLog.logRemove(path);
+            }
+            catch (IOException e) {
+                editLogFailed(e);
+                return -1;
+            }
+        }
+        syncEdits(txId);
+        invalidate(deleted);
+        System.out.println("[LOG] Deleted " + path + " : " + deleted.size() + " files");
+        return deleted.size();
+    }
+
+
+    /**
+     * RMI call - create a directory and its missing parents
+     * @param path String the directory
+     * @return boolean false if a component of the path is a file
+     * @throws RemoteException
+     */
+    @Override
+    public boolean mkdirs(String path) throws RemoteException {
+        long txId;
+        synchronized (this.namespaceLock) {
+            if (this.namespace.isDirectory(path)) {
+                return true;
+            }
+            if (!this.namespace.mkdirs(path)) {
+                System.err.println("[Error**] Cannot create " + path + " : a parent of it is a file");
+                return false;
+            }
+            try {
+                txId = this.editLog.logMkdirs(path);
+            }
+            catch (IOException e) {
+                editLogFailed(e);
+                return false;
+            }
+        }
+        syncEdits(txId);
+        return true;
+    }
+
+
+    /**
+     * Tell the DataNodes holding the chunks of deleted files to drop them.
+     * The commands go out with the next heartbeat of each DataNode, and carry
+     * the generation stamp of the file so a DataNode which meanwhile stored
+     * the chunk of a new file of the same name keeps it.
+     */
+    private void invalidate(ArrayList<INodeFile> deleted) {
+        for (INodeFile file : deleted) {
+            String path = file.getPath();
+            long generation = file.getGenerationStamp();
+            for (int c = 0; c < file.getChunkCount(); c++) {
+                for (int node : file.getReplicas(c)) {
+                    ConcurrentLinkedQueue<DataNodeCommand> commands =
+                            this.pendingCommands.get(this.dataNodeIndex.get(node).getId());
+                    if (commands != null) {
+                        commands.add(new DataNodeCommand(DataNodeCommand.DELETE, path, c, generation));
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Wait for edits to be durable.
+     * @param txId long The last transaction id of the caller.
+     */
+    private void syncEdits(long txId) {
+        try {
+            this.editLog.logSync(txId);
+        }
+        catch (IOException e) {
+            editLogFailed(e);
+        }
+    }
+
+
+    /**
+     * The namespace must never run ahead of its log : shut down if an edit
+     * cannot be logged.
+     */
+    private void editLogFailed(IOException e) {
+        e.printStackTrace();
+        System.err.println("[Error**] Edit log failed. Shutting down ...");
+        System.exit(-1);
+    }
+
+
+    /**
+     * Write a namespace checkpoint. The edit log is rolled, then the previous
+     * image and the finalized edit segments are folded into a new image on a
+     * private copy of the namespace, so RPCs are only held up by the roll.
+     */
+    void checkpoint() {
+        try {
+            long start = System.currentTimeMillis();
+            long txId = this.editLog.roll();
+
+            File metaDir = new File(nameNodePath);
+            FSDirectory image = new FSDirectory();
+            long imageTxId = 0;
+            File latest = FSImage.latest(metaDir);
+            if (latest != null) {
+                imageTxId = FSImage.load(latest, image, this.dataNodeIndex, imageLoadThreads);
+            }
+            EditLog.replay(metaDir, imageTxId, txId, new TableEditHandler(image, this.dataNodeIndex));
+            File saved = FSImage.save(metaDir, txId, image, this.dataNodeIndex);
+
+            EditLog.purge(metaDir, txId);
+            FSImage.purge(metaDir);
+            this.checkpointTxId = txId;
+            this.checkpointTime = System.currentTimeMillis();
+            System.out.println("[LOG] Checkpoint " + saved.getName() + " : " + image.getFileCount() + " files in "
+                               + (this.checkpointTime - start) + " ms");
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("[Error**] Checkpoint failed, keeping the edit log");
+        }
+    }
+
+
+    /**
+     * Applies logged edits to a namespace.
+     */
+    private static class TableEditHandler implements EditLog.Handler {
+        private FSDirectory namespace;
+        /** dictionary the replica locations are stored against */
+        private DataNodeIndex dataNodes;
+
+        TableEditHandler(FSDirectory namespace, DataNodeIndex dataNodes) {
+            this.namespace = namespace;
+            this.dataNodes = dataNodes;
+        }
+
+        @Override
+        public void create(String fileName, int blockSize, boolean underConstruction, long generationStamp) {
+            INodeFile file = this.namespace.addFile(fileName, blockSize);
+            if (file == null) {
+                return;
+            }
+            file.setGenerationStamp(generationStamp);
+            if (underConstruction) {
+                file.startConstruction();
+            }
+        }
+
+        @Override
+        public void addChunk(String fileName, int chunkNum, long length, List<DataNodeInfo> replicas) {
+            int[] nodes = new int[replicas.size()];
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = this.dataNodes.indexOf(replicas.get(i));
+            }
+            this.namespace.getFile(fileName).addChunk(length, nodes);
+        }
+
+        @Override
+        public void remove(String path) {
+            this.namespace.delete(path, true);
+        }
+
+        @Override
+        public void mkdirs(String path) {
+            this.namespace.mkdirs(path);
+        }
+
+        @Override
+        public void complete(String fileName) {
+            this.namespace.getFile(fileName).complete();
         }
-        return null;
     }
 
 
     /** start up NameNode */
-    public static void main(String[] args) throws RemoteException {
+    public static void main(String[] args) throws Exception {
         System.out.println("[LOG] Starting name node server...");
         NameNode nameNode = new NameNode();
-        
-        /* init */
-        nameNode.init();
+        nameNode.start();
         System.out.println("[LOG] NameNode Initialized");
-
-        while (isRunning) {
-            /* do nothing */
-        }
-        System.out.println("NameNode is shuting down...");
+        /* the main thread parks until stop(), on SIGTERM the shutdown hook calls it */
+        nameNode.awaitTermination();
     }
-}
\ No newline at end of file
+}
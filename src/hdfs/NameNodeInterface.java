@@ -2,13 +2,19 @@ package hdfs;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.concurrent.ConcurrentHashMap;
 
 import hdfs.HDFSFile;
+import hdfs.HDFSChunk;
 import hdfs.DataNode;
 import hdfs.DataNodeInfo;
+import hdfs.DataNodeStats;
+import hdfs.BlockReport;
+import hdfs.HeartbeatResponse;
+import hdfs.LocatedBlocks;
 
 
 /**
@@ -24,16 +30,38 @@ public interface NameNodeInterface extends Remote {
      * @param dataNodeIP dataNode IP address
      * @param dataNodeRegPort dataNode RMI service registry port
      * @param dataNodeService dataNode service name
+     * @param dataNodeTransferPort dataNode data transfer service port
      * @throws RemoteException
      */
-    public void registerDataNode(String dataNodeIP, int dataNodeRegPort, String dataNodeService) 
-                                 throws RemoteException;
+    public void registerDataNode(String dataNodeIP, int dataNodeRegPort, String dataNodeService,
+                                 int dataNodeTransferPort) throws RemoteException;
 
     /**
-     * List all files in HDFS
+     * List files in name order, one bounded batch at a time
+     * @param prefix only files whose name starts with it, null for all files
+     * @param startAfter name of the last file of the previous batch, null to start from the beginning
+     * @param limit max number of files returned, capped at HDFSCommon.MAX_LIST_LIMIT
+     * @return the next files, fewer than limit only when the listing is complete
      * @throws RemoteException
      */
-    public ConcurrentHashMap<String, HDFSFileMeta> getFileTable() throws RemoteException;
+    public ArrayList<HDFSFileMeta> listFiles(String prefix, String startAfter, int limit) throws RemoteException;
+
+    /**
+     * heartbeat of a DataNode carrying its usage statistics
+     * @param dataNodeId DataNode key, ip:port of its registry
+     * @param stats usage statistics
+     * @return HeartbeatResponse report requests and commands for the DataNode
+     * @throws RemoteException
+     */
+    public HeartbeatResponse sendHeartbeat(String dataNodeId, DataNodeStats stats) throws RemoteException;
+
+    /**
+     * full or incremental block report of a DataNode, processed asynchronously
+     * @param dataNodeId DataNode key, ip:port of its registry
+     * @param report chunks held, or added and removed since the last report
+     * @throws RemoteException
+     */
+    public void sendBlockReport(String dataNodeId, BlockReport report) throws RemoteException;
 
     /**
      * List all active DataNodes currently registered in NameNode
@@ -47,11 +75,76 @@ public interface NameNodeInterface extends Remote {
      */
     public HDFSFile getFile(String fileName) throws RemoteException;
 
+    /**
+     * locate the chunks of a file from the one holding a byte on
+     * @param fileName HDFS file name
+     * @param offset offset of the byte in the file
+     * @param chunkCount number of chunks located, capped at HDFSCommon.MAX_LOCATED_CHUNKS
+     * @return the chunks and a dictionary of the DataNodes holding them, null if the file does not exist
+     * @throws RemoteException
+     */
+    public LocatedBlocks getBlockLocations(String fileName, long offset, int chunkCount) throws RemoteException;
+
     /**
      * create file on HDFS
+     * @param fileName file name
+     * @param size file size in bytes
+     * @param blockSize size of every chunk but the last one
+     * @return HDFSFile with its chunk table, or null if the file cannot be created
+     * @throws RemoteException
+     */
+    public HDFSFile createFile(String fileName, long size, int blockSize) throws RemoteException;
+
+    /**
+     * create an empty file on HDFS, to be written as a stream until completeFile
+     * @param fileName file name
+     * @param blockSize size of every chunk not ended early by the writer
+     * @return HDFSFile without chunks, or null if the file cannot be created
+     * @throws RemoteException
+     */
+    public HDFSFile startFile(String fileName, int blockSize) throws RemoteException;
+
+    /**
+     * allocate the next chunk of a file written as a stream
+     * @param fileName file name
+     * @return the chunk number and the pipeline to write it to, null if the file is not
+     *         under construction or no DataNode is available
      * @throws RemoteException
      */
-    public HDFSFile createFile(String fileName, long size) throws RemoteException;
+    public HDFSChunk addChunk(String fileName) throws RemoteException;
+
+    /**
+     * commit a chunk written to its pipeline, appending it to the file
+     * @param fileName file name
+     * @param chunkNum chunk number, the next chunk of the file
+     * @param length exact length of the chunk
+     * @param pipeline DataNodes that acknowledged the chunk
+     * @return false if the file is not under construction or chunkNum is not its next chunk
+     * @throws RemoteException
+     */
+    public boolean commitChunk(String fileName, int chunkNum, long length, ArrayList<DataNodeInfo> pipeline)
+        throws RemoteException;
+
+    /**
+     * report the DataNodes a chunk placed by createFile was stored on, so the
+     * replicas its pipeline failed to write are forgotten and restored
+     * @param fileName file name
+     * @param chunkNum chunk number
+     * @param stored DataNodes that acknowledged the chunk
+     * @throws RemoteException
+     */
+    public void updatePipeline(String fileName, int chunkNum, ArrayList<DataNodeInfo> stored)
+        throws RemoteException;
+
+    /**
+     * complete a file written as a stream
+     * @param fileName file name
+     * @param size number of bytes written
+     * @param chunkCount number of chunks committed
+     * @return false if the file is not under construction or does not hold exactly what was written
+     * @throws RemoteException
+     */
+    public boolean completeFile(String fileName, long size, int chunkCount) throws RemoteException;
 
     /**
      * remove file on HDFS
@@ -59,4 +152,21 @@ public interface NameNodeInterface extends Remote {
      */
     public HDFSFile removeFile(String fileName) throws RemoteException;
 
+    /**
+     * delete a file or a directory, the chunks of deleted files are dropped by their DataNodes
+     * @param path the file or directory
+     * @param recursive whether a non-empty directory is deleted with its subtree
+     * @return the number of files deleted, -1 if nothing was deleted
+     * @throws RemoteException
+     */
+    public int delete(String path, boolean recursive) throws RemoteException;
+
+    /**
+     * create a directory and its missing parents
+     * @param path the directory
+     * @return false if a component of the path is a file
+     * @throws RemoteException
+     */
+    public boolean mkdirs(String path) throws RemoteException;
+
 }
\ No newline at end of file
@@ -0,0 +1,174 @@
+package hdfs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import hdfs.DataNodeInfo;
+
+/**
+ * Orders the replicas of a chunk for reading by the expected service time
+ * of their DataNodes. The client keeps a moving average of the read latency
+ * and of the error rate of every DataNode it reads from, and the reads it
+ * has in flight on each. A node is expected to serve a read in its average
+ * latency times the number of reads queued on it, so the load of a file
+ * spreads over all replicas instead of piling on the fastest one. Nodes that
+ * failed a read recently go last, and close scores are shuffled by a small
+ * random jitter.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class ReplicaSelector {
+
+    /** weight of the newest sample in the moving averages */
+    private static final double ALPHA = 0.2;
+    /** milliseconds a node that failed a read is tried after the others */
+    private static final long AVOID_TIME = 30 * 1000;
+    /** relative jitter added to the scores, breaks ties between equal nodes */
+    private static final double JITTER = 0.1;
+    /** latency assumed for a node never read from while no node has been measured */
+    private static final double DEFAULT_LATENCY = 1.0;
+
+    /** read statistics by DataNode id */
+    private ConcurrentHashMap<String, NodeStats> nodes = new ConcurrentHashMap<String, NodeStats>();
+
+
+    /**
+     * Order the replicas of a chunk, the best first.
+     * @param replicas List The replica DataNodes.
+     * @return ArrayList the same DataNodes, in the order to read them
+     */
+    public ArrayList<DataNodeInfo> order(List<DataNodeInfo> replicas) {
+        long now = System.currentTimeMillis();
+        double prior = meanLatency();
+        final double[] scores = new double[replicas.size()];
+        final boolean[] avoided = new boolean[replicas.size()];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        ArrayList<Integer> indices = new ArrayList<Integer>(replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            NodeStats stats = this.nodes.get(replicas.get(i).getId());
+            double latency = (stats == null || stats.latency < 0) ? prior : stats.latency;
+            int inFlight = (stats == null) ? 0 : stats.inFlight;
+            double errorRate = (stats == null) ? 0 : stats.errorRate;
+            /* a node failing half its reads costs twice its latency on average */
+            scores[i] = latency * (1 + inFlight) / Math.max(0.05, 1 - errorRate)
+                        * (1 + JITTER * random.nextDouble());
+            avoided[i] = stats != null && now - stats.lastFailure < AVOID_TIME;
+            indices.add(i);
+        }
+        Collections.sort(indices, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                if (avoided[a] != avoided[b]) {
+                    return avoided[a] ? 1 : -1;
+                }
+                return Double.compare(scores[a], scores[b]);
+            }
+        });
+        ArrayList<DataNodeInfo> ordered = new ArrayList<DataNodeInfo>(replicas.size());
+        for (int i : indices) {
+            ordered.add(replicas.get(i));
+        }
+        return ordered;
+    }
+
+
+    /**
+     * Count a read started on a DataNode.
+     * @param dataNode DataNodeInfo The DataNode read from.
+     */
+    public void readStarted(DataNodeInfo dataNode) {
+        NodeStats stats = statsOf(dataNode);
+        synchronized (stats) {
+            stats.inFlight++;
+        }
+    }
+
+
+    /**
+     * Fold the outcome of a read into the statistics of its DataNode.
+     * @param dataNode DataNodeInfo The DataNode read from.
+     * @param millis long The time the read took, or ran before it was cancelled.
+     * @param failed boolean true if the DataNode failed the read.
+     */
+    public void readFinished(DataNodeInfo dataNode, long millis, boolean failed) {
+        NodeStats stats = statsOf(dataNode);
+        synchronized (stats) {
+            stats.inFlight = Math.max(0, stats.inFlight - 1);
+            stats.errorRate = ALPHA * (failed ? 1 : 0) + (1 - ALPHA) * stats.errorRate;
+            if (failed) {
+                stats.lastFailure = System.currentTimeMillis();
+            }
+            else {
+                /* a cancelled read took at least that long, which still counts against a slow node */
+                stats.latency = (stats.latency < 0) ? millis : ALPHA * millis + (1 - ALPHA) * stats.latency;
+            }
+        }
+    }
+
+
+    /**
+     * @return String one line of read statistics per DataNode
+     */
+    public String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (String id : new TreeSet<String>(this.nodes.keySet())) {
+            NodeStats stats = this.nodes.get(id);
+            synchronized (stats) {
+                sb.append(String.format("  %s latency=%s errorRate=%.2f inFlight=%d%n", id,
+                                        stats.latency < 0 ? "n/a" : String.format("%.1fms", stats.latency),
+                                        stats.errorRate, stats.inFlight));
+            }
+        }
+        return sb.toString();
+    }
+
+
+    private NodeStats statsOf(DataNodeInfo dataNode) {
+        NodeStats stats = this.nodes.get(dataNode.getId());
+        if (stats == null) {
+            NodeStats created = new NodeStats();
+            stats = this.nodes.putIfAbsent(dataNode.getId(), created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+
+    /**
+     * @return double the mean latency of the measured nodes, the guess for a node never read from
+     */
+    private double meanLatency() {
+        double sum = 0;
+        int count = 0;
+        for (NodeStats stats : this.nodes.values()) {
+            if (stats.latency >= 0) {
+                sum += stats.latency;
+                count++;
+            }
+        }
+        return (count == 0) ? DEFAULT_LATENCY : sum / count;
+    }
+
+
+    /**
+     * Read statistics of one DataNode. Fields are guarded by the object itself.
+     */
+    private static class NodeStats {
+        /** moving average of the read latency in milliseconds, -1 until the first read */
+        volatile double latency = -1;
+        /** moving average of the failed reads, 0 to 1 */
+        volatile double errorRate;
+        /** reads in flight */
+        volatile int inFlight;
+        /** time of the last failed read */
+        volatile long lastFailure;
+    }
+}
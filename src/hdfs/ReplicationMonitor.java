@@ -0,0 +1,406 @@
+package hdfs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import hdfs.BlockPlacement;
+import hdfs.DataNodeCommand;
+import hdfs.DataNodeInfo;
+import hdfs.INodeFile;
+import hdfs.NameNode;
+
+/**
+ * Restores the replication of chunks that lost replicas.
+ *
+ * A DataNode that has not sent a heartbeat for the DataNode timeout is
+ * declared dead : it leaves the DataNode table and its replicas are dropped
+ * from the block map. Chunks left with fewer replicas than the replication
+ * factor wait in a queue with one level per number of live replicas, so the
+ * chunks closest to being lost are copied first. Each copy is a REPLICATE
+ * command sent to a DataNode holding the chunk, which streams it to the
+ * targets; a DataNode takes part in at most maxStreams copies at a time, as
+ * source or target, and paces its copies to its own bandwidth limit.
+ *
+ * All of it runs on the NameNode report thread, so it needs no lock and
+ * sees block reports in the order they are applied.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class ReplicationMonitor {
+
+    /** the NameNode whose chunks are watched */
+    private NameNode nameNode;
+    /** target number of replicas of each chunk */
+    private int replicaNum;
+    /** max number of copies a DataNode takes part in at a time */
+    private int maxStreams;
+    /** a DataNode silent for that long is dead, in milliseconds */
+    private long dataNodeTimeout;
+    /** a copy not reported after that long is scheduled again, in milliseconds */
+    private long replicationTimeout;
+    /** chooses the targets of copies */
+    private BlockPlacement placement = new BlockPlacement();
+
+    /** chunks waiting for a copy, level i holds the chunks with i live replicas */
+    private ArrayList<LinkedHashSet<String>> queue = new ArrayList<LinkedHashSet<String>>();
+    /** level of every queued chunk */
+    private HashMap<String, Integer> queued = new HashMap<String, Integer>();
+    /** copies sent to DataNodes and not reported yet, by chunk */
+    private HashMap<String, PendingReplication> pending = new HashMap<String, PendingReplication>();
+    /** number of copies each DataNode takes part in, by DataNode id */
+    private HashMap<String, Integer> streams = new HashMap<String, Integer>();
+    /** time the monitor started, the whole namespace is scanned once every DataNode had time to register */
+    private long startTime = System.currentTimeMillis();
+    /** set once the namespace has been scanned */
+    private boolean scanned;
+
+
+    /**
+     * Constructor
+     * @param nameNode NameNode The NameNode whose chunks are watched.
+     * @param replicaNum int The target number of replicas of each chunk.
+     * @param maxStreams int The max number of copies a DataNode takes part in at a time.
+     * @param dataNodeTimeout long Seconds without heartbeat after which a DataNode is dead.
+     * @param replicationTimeout long Seconds after which a copy not reported is scheduled again.
+     */
+    public ReplicationMonitor(NameNode nameNode, int replicaNum, int maxStreams, long dataNodeTimeout,
+                              long replicationTimeout)
+    {
+        this.nameNode = nameNode;
+        this.replicaNum = Math.max(1, replicaNum);
+        this.maxStreams = Math.max(1, maxStreams);
+        this.dataNodeTimeout = dataNodeTimeout * 1000;
+        this.replicationTimeout = replicationTimeout * 1000;
+        for (int i = 0; i < this.replicaNum; i++) {
+            this.queue.add(new LinkedHashSet<String>());
+        }
+    }
+
+
+    /**
+     * One pass of the monitor : detect dead DataNodes, expire lost copies
+     * and schedule new ones. Runs on the report thread.
+     */
+    void check() {
+        long now = System.currentTimeMillis();
+        for (DataNodeInfo dataNode : this.nameNode.dataNodeTable.values()) {
+            if (now - dataNode.lastHeartbeat > this.dataNodeTimeout) {
+                dataNodeDead(dataNode);
+            }
+        }
+        if (!this.scanned && now - this.startTime >= this.dataNodeTimeout) {
+            scan();
+        }
+
+        Iterator<Entry<String, PendingReplication>> it = this.pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry<String, PendingReplication> entry = it.next();
+            if (entry.getValue().deadline < now) {
+                System.err.println("[Error**] Copy of " + entry.getKey() + " timed out, scheduling it again");
+                release(entry.getValue());
+                it.remove();
+                enqueue(entry.getKey());
+            }
+        }
+
+        schedule();
+    }
+
+
+    /**
+     * A chunk lost a replica : queue it for a copy.
+     * @param fileName String The HDFS file name.
+     * @param chunkNum int The chunk number.
+     */
+    void replicaRemoved(String fileName, int chunkNum) {
+        enqueue(fileName + "_" + chunkNum);
+    }
+
+
+    /**
+     * A DataNode reported a replica, possibly the result of a copy.
+     * @param dataNodeId String The DataNode holding the replica.
+     * @param fileName String The HDFS file name.
+     * @param chunkNum int The chunk number.
+     */
+    void replicaAdded(String dataNodeId, String fileName, int chunkNum) {
+        String key = fileName + "_" + chunkNum;
+        PendingReplication copy = this.pending.get(key);
+        if (copy == null || !copy.targets.remove(dataNodeId)) {
+            return;
+        }
+        releaseStream(dataNodeId);
+        if (copy.targets.isEmpty()) {
+            releaseStream(copy.source);
+            this.pending.remove(key);
+            System.out.println("[LOG] Replication of " + key + " complete");
+        }
+    }
+
+
+    /**
+     * @return int the number of chunks waiting for a copy
+     */
+    int getQueueSize() {
+        return this.queued.size();
+    }
+
+
+    /**
+     * Drop a dead DataNode and queue the chunks it held.
+     */
+    private void dataNodeDead(DataNodeInfo dataNode) {
+        String id = dataNode.getId();
+        if (!this.nameNode.dataNodeTable.remove(id, dataNode)) {
+            return;
+        }
+        System.err.println("[Error**] DataNode " + id + " missed its heartbeats for "
+                           + this.dataNodeTimeout / 1000 + " s, declaring it dead");
+
+        /* copies it took part in will never complete */
+        Iterator<Entry<String, PendingReplication>> it = this.pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry<String, PendingReplication> entry = it.next();
+            PendingReplication copy = entry.getValue();
+            if (copy.source.equals(id) || copy.targets.contains(id)) {
+                release(copy);
+                it.remove();
+                enqueue(entry.getKey());
+            }
+        }
+        this.streams.remove(id);
+
+        int node = this.nameNode.dataNodeIndex.find(id);
+        HashSet<String> held = this.nameNode.dataNodeChunks.remove(id);
+        if (held == null) {
+            /* no full report yet, so what it held is only known from the block map */
+            scan();
+            return;
+        }
+        for (String key : held) {
+            int split = key.lastIndexOf('_');
+            String fileName = key.substring(0, split);
+            int chunkNum = Integer.parseInt(key.substring(split + 1));
+            INodeFile file = this.nameNode.namespace.getFile(fileName);
+            if (file != null && node >= 0 && chunkNum < file.getChunkCount()) {
+                file.removeReplica(chunkNum, node);
+                enqueue(key);
+            }
+        }
+        System.out.println("[LOG] " + held.size() + " chunks of " + id + " queued, "
+                           + this.queued.size() + " chunks under-replicated");
+    }
+
+
+    /**
+     * Queue every chunk of the namespace short of live replicas.
+     */
+    private void scan() {
+        this.scanned = true;
+        for (INodeFile file : this.nameNode.namespace.files()) {
+            String path = null;
+            for (int c = 0; c < file.getChunkCount(); c++) {
+                if (liveReplicas(file.getReplicas(c)).size() < this.replicaNum) {
+                    if (path == null) {
+                        path = file.getPath();
+                    }
+                    enqueue(path + "_" + c);
+                }
+            }
+        }
+        System.out.println("[LOG] Namespace scanned, " + this.queued.size() + " chunks under-replicated");
+    }
+
+
+    /**
+     * Put a chunk in the queue at the level of its live replica count, or
+     * take it out if it has enough. A queued chunk moves to its new level.
+     */
+    private void enqueue(String key) {
+        int split = key.lastIndexOf('_');
+        INodeFile file = this.nameNode.namespace.getFile(key.substring(0, split));
+        int chunkNum = Integer.parseInt(key.substring(split + 1));
+        Integer level = this.queued.remove(key);
+        if (level != null) {
+            this.queue.get(level).remove(key);
+        }
+        if (file == null || chunkNum >= file.getChunkCount()) {
+            return;
+        }
+        int live = liveReplicas(file.getReplicas(chunkNum)).size();
+        if (live >= this.replicaNum) {
+            return;
+        }
+        this.queue.get(live).add(key);
+        this.queued.put(key, live);
+    }
+
+
+    /**
+     * Send copies of the queued chunks, fewest live replicas first, while
+     * DataNodes have streams to spare.
+     */
+    private void schedule() {
+        int live = this.nameNode.dataNodeTable.size();
+        /* bounds the work of a pass when most chunks wait for a busy source */
+        int budget = Math.max(1, live * this.maxStreams * 2);
+        for (int level = 0; level < this.queue.size() && budget > 0; level++) {
+            Iterator<String> it = this.queue.get(level).iterator();
+            while (it.hasNext() && budget > 0) {
+                String key = it.next();
+                budget--;
+                if (scheduleCopy(key)) {
+                    it.remove();
+                    this.queued.remove(key);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Send a copy of a chunk.
+     * @return boolean true if the chunk leaves the queue : copy sent, enough replicas or nothing to copy from
+     */
+    private boolean scheduleCopy(String key) {
+        int split = key.lastIndexOf('_');
+        String fileName = key.substring(0, split);
+        int chunkNum = Integer.parseInt(key.substring(split + 1));
+        INodeFile file = this.nameNode.namespace.getFile(fileName);
+        if (file == null || chunkNum >= file.getChunkCount()) {
+            return true;
+        }
+        ArrayList<DataNodeInfo> live = liveReplicas(file.getReplicas(chunkNum));
+        int needed = this.replicaNum - live.size();
+        if (needed <= 0) {
+            return true;
+        }
+        if (this.pending.containsKey(key)) {
+            /* one copy per chunk at a time, what it could not cover is sent once it is done */
+            return false;
+        }
+        if (live.isEmpty()) {
+            System.err.println("[Error**] " + key + " has no live replica left, it cannot be restored");
+            return true;
+        }
+
+        /* the least busy replica is the source */
+        DataNodeInfo source = null;
+        for (DataNodeInfo dataNode : live) {
+            if (streamsOf(dataNode.getId()) < this.maxStreams
+                && (source == null || streamsOf(dataNode.getId()) < streamsOf(source.getId())))
+            {
+                source = dataNode;
+            }
+        }
+        if (source == null) {
+            return false;
+        }
+
+        ArrayList<DataNodeInfo> candidates = new ArrayList<DataNodeInfo>();
+        for (DataNodeInfo dataNode : this.nameNode.dataNodeTable.values()) {
+            String id = dataNode.getId();
+            if (!live.contains(dataNode) && streamsOf(id) < this.maxStreams) {
+                candidates.add(dataNode);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return false;
+        }
+        ArrayList<ArrayList<DataNodeInfo>> placed = this.placement.place(candidates, 1, needed,
+                                                                         file.getChunkSize(chunkNum));
+        if (placed == null) {
+            return false;
+        }
+        ArrayList<DataNodeInfo> targets = placed.get(0);
+
+        ConcurrentLinkedQueue<DataNodeCommand> commands = this.nameNode.pendingCommands.get(source.getId());
+        if (commands == null) {
+            return false;
+        }
+        commands.add(new DataNodeCommand(DataNodeCommand.REPLICATE, fileName, chunkNum, file.getGenerationStamp(),
+                                         targets));
+
+        PendingReplication copy = new PendingReplication(source.getId(),
+                                                         System.currentTimeMillis() + this.replicationTimeout);
+        this.pending.put(key, copy);
+        acquireStream(source.getId());
+        for (DataNodeInfo target : targets) {
+            copy.targets.add(target.getId());
+            acquireStream(target.getId());
+        }
+        System.out.println("[LOG] Replicating " + key + " from " + source.getId() + " to " + targets.size()
+                           + " DataNodes, " + live.size() + " live replicas");
+        return targets.size() >= needed;
+    }
+
+
+    /**
+     * @return ArrayList<DataNodeInfo> the DataNodes of a replica list that are alive
+     */
+    private ArrayList<DataNodeInfo> liveReplicas(int[] replicas) {
+        ArrayList<DataNodeInfo> live = new ArrayList<DataNodeInfo>(replicas.length);
+        for (int node : replicas) {
+            DataNodeInfo dataNode = this.nameNode.dataNodeTable.get(this.nameNode.dataNodeIndex.get(node).getId());
+            if (dataNode != null) {
+                live.add(dataNode);
+            }
+        }
+        return live;
+    }
+
+
+    private int streamsOf(String dataNodeId) {
+        Integer count = this.streams.get(dataNodeId);
+        return (count == null) ? 0 : count;
+    }
+
+
+    private void acquireStream(String dataNodeId) {
+        this.streams.put(dataNodeId, streamsOf(dataNodeId) + 1);
+    }
+
+
+    private void releaseStream(String dataNodeId) {
+        int count = streamsOf(dataNodeId) - 1;
+        if (count > 0) {
+            this.streams.put(dataNodeId, count);
+        }
+        else {
+            this.streams.remove(dataNodeId);
+        }
+    }
+
+
+    /** give back the streams of a copy that will not complete */
+    private void release(PendingReplication copy) {
+        releaseStream(copy.source);
+        for (String target : copy.targets) {
+            releaseStream(target);
+        }
+    }
+
+
+    /**
+     * Copy of a chunk sent to a DataNode and not reported yet.
+     */
+    private static class PendingReplication {
+        /** DataNode sending the chunk */
+        String source;
+        /** DataNodes that have not reported the chunk yet */
+        HashSet<String> targets = new HashSet<String>();
+        /** time after which the copy is given up, in milliseconds */
+        long deadline;
+
+        PendingReplication(String source, long deadline) {
+            this.source = source;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,860 @@
+package hdfs;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import global.FileIO;
+
+import hdfs.DataTransferProtocol;
+
+/**
+ * Log-structured chunk store of a DataNode.
+ *
+ * Chunks are appended to segment files instead of living in one file each.
+ * An in-memory index maps (file, chunkNum) to (segment, offset, length).
+ * Every chunk carries the generation stamp of its file : a chunk of a newer
+ * generation replaces the stored one, and a removal only drops the chunk
+ * of the generation it names. Removing a chunk appends a tombstone. A background thread compacts sealed
+ * segments whose live ratio dropped below the threshold by copying their live
+ * chunks into the active segment and deleting them.
+ *
+ * Record layout:
+ *   int MAGIC, int headerLen, header, int headerCrc, data, int COMMIT
+ *   header = byte type, UTF filename, int chunkNum, long dataLength, int target, long generation
+ * The header is written when space is reserved and the COMMIT footer once the
+ * data is complete, so recovery can rebuild the index from the segments alone:
+ * records without a footer are skipped and a torn record at the tail of a
+ * segment is truncated. Writers reserve space concurrently, so a crash can
+ * leave a record that never got its header ahead of committed ones; recovery
+ * scans past it for the next committed record and only truncates where none
+ * follows. Of two committed records of a chunk, the one of the newer
+ * generation wins, or the later one if they share it.
+ *
+ * The data of a chunk is forced to disk before its footer, and the footer
+ * before the write is acknowledged. Tombstones are forced before remove()
+ * returns, and the records moved by compaction before the segment they come
+ * from is deleted.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class SegmentChunkStore {
+
+    /** record start marker */
+    private static final int MAGIC = 0x43484e4b;
+    /** record footer, written once the data is complete */
+    private static final int COMMIT = 0x434d4954;
+    /** record type : chunk data */
+    private static final byte TYPE_PUT = 1;
+    /** record type : tombstone of the chunk of a generation stored in segment "target" */
+    private static final byte TYPE_DELETE = 2;
+    /** size of the copy buffer used by compaction */
+    private static final int COPY_BUFFER_SIZE = 256 * 1024;
+    /** size of the reads scanning a damaged segment for the next record */
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    /** directory holding the segment files */
+    private File dir;
+    /** size at which the active segment is sealed */
+    private long segmentSize;
+    /** live ratio below which a sealed segment is compacted */
+    private double compactionThreshold;
+
+    /** chunk name -> location */
+    private ConcurrentHashMap<String, Location> index = new ConcurrentHashMap<String, Location>();
+    /** segment id -> segment */
+    private ConcurrentHashMap<Integer, Segment> segments = new ConcurrentHashMap<Integer, Segment>();
+    /** segment new records are appended to, guarded by this */
+    private Segment active;
+
+
+    /**
+     * Constructor
+     * @param dir String The directory holding the segment files.
+     * @param segmentSize long The size at which a segment is sealed.
+     * @param compactionThreshold double Live ratio below which a segment is compacted.
+     */
+    public SegmentChunkStore(String dir, long segmentSize, double compactionThreshold) {
+        this.dir = new File(dir);
+        this.segmentSize = segmentSize;
+        this.compactionThreshold = compactionThreshold;
+    }
+
+
+    /**
+     * Open the store and rebuild the index from the segment files.
+     * @throws IOException
+     */
+    public synchronized void open() throws IOException {
+        if (!this.dir.exists()) {
+            this.dir.mkdirs();
+        }
+
+        File[] files = this.dir.listFiles();
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            if (name.startsWith("segment-") && name.endsWith(".dat")) {
+                ids.add(Integer.parseInt(name.substring(8, name.length() - 4)));
+            }
+        }
+        Integer[] sorted = ids.toArray(new Integer[ids.size()]);
+        Arrays.sort(sorted);
+
+        /* replay segments oldest first, so later records win */
+        for (int id : sorted) {
+            Segment segment = new Segment(id, segmentFile(id));
+            this.segments.put(id, segment);
+            recover(segment);
+        }
+
+        if (sorted.length > 0 && this.segments.get(sorted[sorted.length - 1]).size < this.segmentSize) {
+            this.active = this.segments.get(sorted[sorted.length - 1]);
+        }
+        else {
+            this.active = newSegment(sorted.length > 0 ? sorted[sorted.length - 1] + 1 : 0);
+        }
+        System.out.println("[LOG] Chunk store recovered " + this.index.size() + " chunks from "
+                           + this.segments.size() + " segments");
+    }
+
+
+    /**
+     * Close all segments. The owner stops calling compact() first.
+     */
+    public void close() {
+        for (Segment segment : this.segments.values()) {
+            segment.close();
+        }
+    }
+
+
+    /**
+     * @return Collection of the locations of all live chunks
+     */
+    public Collection<Location> chunks() {
+        return this.index.values();
+    }
+
+
+    /**
+     * Check if a chunk is stored.
+     */
+    public boolean contains(String filename, int chunkNum) {
+        return this.index.containsKey(key(filename, chunkNum));
+    }
+
+
+    /**
+     * Find a stored chunk.
+     * @return Location the location of the chunk, or null if it is not stored
+     */
+    public Location get(String filename, int chunkNum) {
+        return this.index.get(key(filename, chunkNum));
+    }
+
+
+    /**
+     * Check if the chunk a handle was opened on is still stored, and has
+     * not been removed or replaced by a chunk of the same name since.
+     */
+    public boolean isCurrent(ChunkHandle handle) {
+        return this.index.get(key(handle.location.filename, handle.location.chunkNum)) == handle.location;
+    }
+
+
+    /**
+     * Reserve space for a chunk in the active segment.
+     * The chunk becomes visible once the returned writer is committed.
+     * @param filename String The name of the file.
+     * @param chunkNum int The chunk number.
+     * @param generation long The generation stamp of the file.
+     * @param length long The length of the chunk.
+     * @return ChunkWriter writer for the reserved region
+     * @throws IOException
+     */
+    public ChunkWriter create(String filename, int chunkNum, long generation, long length) throws IOException {
+        byte[] header = encodeHeader(TYPE_PUT, filename, chunkNum, length, -1, generation);
+        long recordSize = header.length + length + 4;
+        Segment segment;
+        long offset;
+        synchronized (this) {
+            segment = this.active;
+            if (segment.size > 0 && segment.size + recordSize > this.segmentSize) {
+                segment = rollSegment();
+            }
+            offset = segment.size;
+            segment.size += recordSize;
+            segment.acquire();
+        }
+        try {
+            write(segment.channel, offset, ByteBuffer.wrap(header));
+        }
+        catch (IOException e) {
+            segment.release();
+            throw e;
+        }
+        return new ChunkWriter(segment, new Location(filename, chunkNum, generation, segment.id, offset,
+                                                     offset + header.length, length, recordSize));
+    }
+
+
+    /**
+     * Open a chunk for reading. The handle pins its segment until closed.
+     * @param filename String The name of the file.
+     * @param chunkNum int The chunk number.
+     * @return ChunkHandle handle of the chunk, or null if it is not stored
+     */
+    public ChunkHandle open(String filename, int chunkNum) {
+        String key = key(filename, chunkNum);
+        while (true) {
+            Location location = this.index.get(key);
+            if (location == null) {
+                return null;
+            }
+            Segment segment = this.segments.get(location.segmentId);
+            if (segment != null && segment.acquire()) {
+                return new ChunkHandle(segment, location);
+            }
+            /* segment retired by compaction, the index already points elsewhere */
+            Thread.yield();
+        }
+    }
+
+
+    /**
+     * Read a whole chunk into memory.
+     * @return byte[] content of the chunk, or null if it is not stored
+     * @throws IOException
+     */
+    public byte[] read(String filename, int chunkNum) throws IOException {
+        try (ChunkHandle handle = open(filename, chunkNum)) {
+            return (handle == null) ? null : read(handle);
+        }
+    }
+
+
+    /**
+     * Read the whole chunk of an open handle into memory.
+     * @return byte[] content of the chunk
+     * @throws IOException
+     */
+    public byte[] read(ChunkHandle handle) throws IOException {
+        byte[] content = FileIO.getBackend().read(handle.getChannel(), handle.getOffset(), (int) handle.getLength());
+        if (content.length != handle.getLength()) {
+            throw new IOException("Segment " + handle.segment.file + " is truncated");
+        }
+        return content;
+    }
+
+
+    /**
+     * Remove a chunk whatever its generation by appending a tombstone.
+     * @return boolean true if the chunk was stored
+     * @throws IOException
+     */
+    public boolean remove(String filename, int chunkNum) throws IOException {
+        Location location = this.index.get(key(filename, chunkNum));
+        return location != null && remove(location);
+    }
+
+
+    /**
+     * Remove the chunk of a generation by appending a tombstone. A chunk
+     * stored with another generation is kept.
+     * @return boolean true if the chunk of that generation was stored
+     * @throws IOException
+     */
+    public boolean remove(String filename, int chunkNum, long generation) throws IOException {
+        Location location = this.index.get(key(filename, chunkNum));
+        return location != null && location.generation == generation && remove(location);
+    }
+
+
+    private boolean remove(Location location) throws IOException {
+        if (!this.index.remove(key(location.filename, location.chunkNum), location)) {
+            return false;
+        }
+        Segment old = this.segments.get(location.segmentId);
+        if (old != null) {
+            old.liveBytes.addAndGet(-location.recordSize);
+        }
+        appendTombstone(location.filename, location.chunkNum, location.segmentId, location.generation);
+        return true;
+    }
+
+
+    /**
+     * Compact every sealed segment whose live ratio is below the threshold.
+     * Called periodically by the owner of the store.
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+        for (Segment segment : this.segments.values()) {
+            boolean sealed;
+            synchronized (this) {
+                sealed = segment != this.active;
+            }
+            if (!sealed || segment.size == 0 || segment.pinned()) {
+                continue;
+            }
+            if ((double) segment.liveBytes.get() / segment.size < this.compactionThreshold) {
+                compact(segment);
+            }
+        }
+    }
+
+
+    /**
+     * Move the live records of a segment to the active segment and delete it.
+     */
+    private void compact(Segment segment) throws IOException {
+        long moved = 0;
+        long position = 0;
+        ByteBuffer copyBuf = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+        /* segments the live records were moved to */
+        HashSet<Segment> targets = new HashSet<Segment>();
+        while (true) {
+            Record record = nextRecord(segment, position);
+            if (record == null) {
+                break;
+            }
+            position = record.location.recordOffset + record.location.recordSize;
+            if (!record.committed) {
+                continue;
+            }
+
+            Location location = record.location;
+            String key = key(location.filename, location.chunkNum);
+            Location current = this.index.get(key);
+            if (record.type == TYPE_PUT && sameLocation(current, location)) {
+                ChunkWriter writer = create(location.filename, location.chunkNum, location.generation,
+                                            location.length);
+                long copied = 0;
+                while (copied < location.length) {
+                    copyBuf.clear();
+                    copyBuf.limit((int) Math.min(copyBuf.capacity(), location.length - copied));
+                    int n = segment.channel.read(copyBuf, location.dataOffset + copied);
+                    if (n < 0) {
+                        writer.abort();
+                        throw new IOException("Segment " + segment.file + " is truncated");
+                    }
+                    copyBuf.flip();
+                    write(writer.getChannel(), writer.getDataOffset() + copied, copyBuf);
+                    copied += n;
+                }
+                writer.commitReplacing(current);
+                targets.add(writer.segment);
+                moved++;
+            }
+            else if (record.type == TYPE_DELETE && record.target != segment.id
+                     && this.segments.containsKey(record.target)) {
+                /* still shadows a record of an older segment */
+                appendTombstone(location.filename, location.chunkNum, record.target, location.generation);
+            }
+        }
+
+        /* the moved records must survive a crash before their only other copy goes */
+        for (Segment target : targets) {
+            target.channel.force(false);
+        }
+        this.segments.remove(segment.id);
+        segment.retire();
+        System.out.println("[LOG] Compacted " + segment.file.getName() + ", moved " + moved + " chunks");
+    }
+
+
+    /**
+     * Rebuild the index entries of one segment and truncate a torn tail.
+     */
+    private void recover(Segment segment) throws IOException {
+        long position = 0;
+        long fileSize = segment.channel.size();
+        while (true) {
+            Record record = nextRecord(segment, position);
+            if (record == null) {
+                break;
+            }
+            position = record.location.recordOffset + record.location.recordSize;
+            if (!record.committed) {
+                continue;
+            }
+
+            Location location = record.location;
+            String key = key(location.filename, location.chunkNum);
+            if (record.type == TYPE_PUT) {
+                Location old = this.index.get(key);
+                if (old != null && old.generation > location.generation) {
+                    /* replaced by a chunk of a newer file before the crash */
+                    continue;
+                }
+                this.index.put(key, location);
+                if (old != null) {
+                    this.segments.get(old.segmentId).liveBytes.addAndGet(-old.recordSize);
+                }
+                segment.liveBytes.addAndGet(location.recordSize);
+            }
+            else {
+                Location old = this.index.get(key);
+                if (old != null && old.segmentId == record.target && old.generation == location.generation) {
+                    this.index.remove(key);
+                    this.segments.get(old.segmentId).liveBytes.addAndGet(-old.recordSize);
+                }
+            }
+        }
+        if (position < fileSize) {
+            System.err.println("[Error**] Truncating torn record at " + segment.file.getName() + ":" + position);
+            segment.channel.truncate(position);
+        }
+        segment.size = position;
+    }
+
+
+    /**
+     * Parse the record at a position, or past a damaged record the first
+     * committed record that follows it.
+     * @return Record the record, or null if no valid record follows position
+     */
+    private Record nextRecord(Segment segment, long position) throws IOException {
+        Record record = readRecord(segment, position);
+        if (record != null || position + 8 > segment.channel.size()) {
+            return record;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        long fileSize = segment.channel.size();
+        /* position holds no record, look for MAGIC from the next byte on */
+        long base = position + 1;
+        while (base + 8 <= fileSize) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), fileSize - base));
+            readAt(segment.channel, base, buf);
+            buf.flip();
+            for (int i = 0; i + 4 <= buf.limit(); i++) {
+                if (buf.getInt(i) != MAGIC) {
+                    continue;
+                }
+                record = readRecord(segment, base + i);
+                if (record != null && record.committed) {
+                    System.err.println("[Error**] Skipping damaged record at " + segment.file.getName() + ":"
+                                       + position + ", next record at " + (base + i));
+                    return record;
+                }
+            }
+            /* a MAGIC may straddle two reads */
+            base += Math.max(1, buf.limit() - 3);
+        }
+        return null;
+    }
+
+
+    /**
+     * Parse the record at a position.
+     * @return Record the record, or null at the end of the segment or at a torn record
+     */
+    private Record readRecord(Segment segment, long position) throws IOException {
+        long fileSize = segment.channel.size();
+        if (position + 8 > fileSize) {
+            return null;
+        }
+        ByteBuffer prefix = ByteBuffer.allocate(8);
+        readAt(segment.channel, position, prefix);
+        prefix.flip();
+        if (prefix.getInt() != MAGIC) {
+            return null;
+        }
+        int headerLen = prefix.getInt();
+        if (headerLen < 0 || headerLen > DataTransferProtocol.MAX_HEADER_SIZE
+                || position + 8 + headerLen + 4 > fileSize) {
+            return null;
+        }
+
+        ByteBuffer headerBuf = ByteBuffer.allocate(headerLen + 4);
+        readAt(segment.channel, position + 8, headerBuf);
+        headerBuf.flip();
+        byte[] header = new byte[headerLen];
+        headerBuf.get(header);
+        CRC32 crc = new CRC32();
+        crc.update(header);
+        if ((int) crc.getValue() != headerBuf.getInt()) {
+            return null;
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(header));
+        byte type = in.readByte();
+        String filename = in.readUTF();
+        int chunkNum = in.readInt();
+        long length = in.readLong();
+        int target = in.readInt();
+        /* records written before generation stamps end here, they belong to generation 0 */
+        long generation = (in.available() >= 8) ? in.readLong() : 0;
+
+        long dataOffset = position + 8 + headerLen + 4;
+        long recordSize = dataOffset + length + 4 - position;
+        if (position + recordSize > fileSize) {
+            return null;
+        }
+        ByteBuffer footer = ByteBuffer.allocate(4);
+        readAt(segment.channel, dataOffset + length, footer);
+        footer.flip();
+
+        Record record = new Record();
+        record.type = type;
+        record.target = target;
+        record.committed = footer.getInt() == COMMIT;
+        record.location = new Location(filename, chunkNum, generation, segment.id, position, dataOffset, length,
+                                       recordSize);
+        return record;
+    }
+
+
+    /**
+     * Append a committed tombstone to the active segment.
+     */
+    private void appendTombstone(String filename, int chunkNum, int target, long generation) throws IOException {
+        byte[] header = encodeHeader(TYPE_DELETE, filename, chunkNum, 0, target, generation);
+        ByteBuffer record = ByteBuffer.allocate(header.length + 4);
+        record.put(header);
+        record.putInt(COMMIT);
+        record.flip();
+
+        Segment segment;
+        long offset;
+        synchronized (this) {
+            segment = this.active;
+            if (segment.size > 0 && segment.size + record.remaining() > this.segmentSize) {
+                segment = rollSegment();
+            }
+            offset = segment.size;
+            segment.size += record.remaining();
+            segment.acquire();
+        }
+        try {
+            write(segment.channel, offset, record);
+            segment.channel.force(false);
+        }
+        finally {
+            segment.release();
+        }
+    }
+
+
+    /**
+     * Encode MAGIC, header length, header and header CRC.
+     */
+    private static byte[] encodeHeader(byte type, String filename, int chunkNum, long length, int target,
+                                       long generation) throws IOException
+    {
+        DataTransferProtocol.HeaderBuilder header = new DataTransferProtocol.HeaderBuilder();
+        header.out.writeByte(type);
+        header.out.writeUTF(filename);
+        header.out.writeInt(chunkNum);
+        header.out.writeLong(length);
+        header.out.writeInt(target);
+        header.out.writeLong(generation);
+        byte[] body = header.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        ByteBuffer buf = ByteBuffer.allocate(8 + body.length + 4);
+        buf.putInt(MAGIC);
+        buf.putInt(body.length);
+        buf.put(body);
+        buf.putInt((int) crc.getValue());
+        return buf.array();
+    }
+
+
+    /** seal the active segment and start a new one. Caller holds this. */
+    private Segment rollSegment() throws IOException {
+        this.active = newSegment(this.active.id + 1);
+        return this.active;
+    }
+
+
+    private Segment newSegment(int id) throws IOException {
+        Segment segment = new Segment(id, segmentFile(id));
+        this.segments.put(id, segment);
+        return segment;
+    }
+
+
+    private File segmentFile(int id) {
+        return new File(this.dir, String.format("segment-%08d.dat", id));
+    }
+
+
+    private static String key(String filename, int chunkNum) {
+        return filename + "_" + chunkNum;
+    }
+
+
+    private static boolean sameLocation(Location a, Location b) {
+        return a != null && b != null && a.segmentId == b.segmentId && a.recordOffset == b.recordOffset;
+    }
+
+
+    private static void write(FileChannel channel, long position, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+
+    private static void readAt(FileChannel channel, long position, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+            position += n;
+        }
+    }
+
+
+    /**
+     * Location of a chunk record in a segment.
+     */
+    public static class Location {
+        public final String filename;
+        public final int chunkNum;
+        public final long generation;
+        public final int segmentId;
+        public final long recordOffset;
+        public final long dataOffset;
+        public final long length;
+        public final long recordSize;
+
+        Location(String filename, int chunkNum, long generation, int segmentId, long recordOffset,
+                 long dataOffset, long length, long recordSize)
+        {
+            this.filename = filename;
+            this.chunkNum = chunkNum;
+            this.generation = generation;
+            this.segmentId = segmentId;
+            this.recordOffset = recordOffset;
+            this.dataOffset = dataOffset;
+            this.length = length;
+            this.recordSize = recordSize;
+        }
+    }
+
+
+    /**
+     * A parsed record.
+     */
+    private static class Record {
+        byte type;
+        int target;
+        boolean committed;
+        Location location;
+    }
+
+
+    /**
+     * An append-only segment file. Reference counted so that compaction only
+     * deletes it once no reader or writer uses it anymore.
+     */
+    private static class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        /** append position, guarded by the store */
+        volatile long size;
+        /** bytes of live records */
+        final AtomicLong liveBytes = new AtomicLong();
+        /** references : one held by the store plus one per open handle or writer */
+        private int refs = 1;
+        private boolean retired;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        synchronized boolean acquire() {
+            if (this.retired) {
+                return false;
+            }
+            this.refs++;
+            return true;
+        }
+
+        synchronized boolean pinned() {
+            return this.refs > 1;
+        }
+
+        synchronized void release() {
+            if (--this.refs == 0) {
+                close();
+                this.file.delete();
+            }
+        }
+
+        synchronized void retire() {
+            this.retired = true;
+            release();
+        }
+
+        void close() {
+            try {
+                this.channel.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+
+    /**
+     * Read handle of a chunk, pins the segment until closed.
+     */
+    public static class ChunkHandle implements AutoCloseable {
+        private Segment segment;
+        private Location location;
+
+        ChunkHandle(Segment segment, Location location) {
+            this.segment = segment;
+            this.location = location;
+        }
+
+        /** @return FileChannel segment channel, use positional reads only */
+        public FileChannel getChannel() {
+            return this.segment.channel;
+        }
+
+        /** @return long offset of the chunk data in the segment */
+        public long getOffset() {
+            return this.location.dataOffset;
+        }
+
+        /** @return long length of the chunk */
+        public long getLength() {
+            return this.location.length;
+        }
+
+        /** @return long generation stamp of the chunk */
+        public long getGeneration() {
+            return this.location.generation;
+        }
+
+        /** @return File the segment file */
+        public File getSegmentFile() {
+            return this.segment.file;
+        }
+
+        @Override
+        public void close() {
+            this.segment.release();
+        }
+    }
+
+
+    /**
+     * Writer of a reserved chunk region. Exactly one of commit() or abort()
+     * must be called.
+     */
+    public class ChunkWriter {
+        private Segment segment;
+        private Location location;
+
+        ChunkWriter(Segment segment, Location location) {
+            this.segment = segment;
+            this.location = location;
+        }
+
+        /** @return FileChannel segment channel, use positional writes only */
+        public FileChannel getChannel() {
+            return this.segment.channel;
+        }
+
+        /** @return long offset of the chunk data in the segment */
+        public long getDataOffset() {
+            return this.location.dataOffset;
+        }
+
+        /**
+         * Write the footer and publish the chunk in the index, replacing a
+         * stored chunk of an older generation.
+         * @return boolean false if the chunk already existed with this or a newer generation;
+         *         the record is then dead
+         * @throws IOException
+         */
+        public boolean commit() throws IOException {
+            try {
+                /* publish before writing the footer : a record that lost the race
+                 * must stay uncommitted on disk or recovery would resurrect it */
+                String key = key(this.location.filename, this.location.chunkNum);
+                Location current;
+                while ((current = index.putIfAbsent(key, this.location)) != null) {
+                    if (current.generation >= this.location.generation) {
+                        return false;
+                    }
+                    if (index.replace(key, current, this.location)) {
+                        /* recovery prefers the newer generation, no tombstone needed */
+                        Segment old = segments.get(current.segmentId);
+                        if (old != null) {
+                            old.liveBytes.addAndGet(-current.recordSize);
+                        }
+                        break;
+                    }
+                }
+                this.segment.liveBytes.addAndGet(this.location.recordSize);
+                /* the data is durable before the footer vouches for it, the footer before the ack */
+                this.segment.channel.force(false);
+                writeFooter();
+                this.segment.channel.force(false);
+                return true;
+            }
+            finally {
+                this.segment.release();
+            }
+        }
+
+        /**
+         * Write the footer and make this record replace a moved one. The
+         * caller forces the segment before deleting the old record.
+         */
+        void commitReplacing(Location old) throws IOException {
+            try {
+                String key = key(this.location.filename, this.location.chunkNum);
+                if (index.replace(key, old, this.location)) {
+                    this.segment.liveBytes.addAndGet(this.location.recordSize);
+                    this.segment.channel.force(false);
+                    writeFooter();
+                }
+            }
+            finally {
+                this.segment.release();
+            }
+        }
+
+        /**
+         * Give up the reserved region; it stays dead space until compaction.
+         */
+        public void abort() {
+            this.segment.release();
+        }
+
+        private void writeFooter() throws IOException {
+            ByteBuffer footer = ByteBuffer.allocate(4);
+            footer.putInt(COMMIT);
+            footer.flip();
+            write(this.segment.channel, this.location.dataOffset + this.location.length, footer);
+        }
+    }
+}
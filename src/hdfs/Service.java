@@ -0,0 +1,215 @@
+package hdfs;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lifecycle of a daemon : NEW, then RUNNING once started, then STOPPED.
+ * The main thread parks in awaitTermination() instead of spinning, periodic
+ * work runs on named scheduler threads owned by the service, and stop()
+ * halts the schedulers before the subclass drains its own work, whether
+ * it is called over RMI or by the shutdown hook on SIGTERM.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public abstract class Service {
+
+    public enum State { NEW, RUNNING, STOPPED }
+
+    /** seconds given to scheduled tasks and drained executors to finish on stop */
+    protected static final int STOP_TIMEOUT = 30;
+
+    /** service name, used in logs and thread names */
+    private final String serviceName;
+    /** current state */
+    private volatile State state = State.NEW;
+    /** released once the service is stopped */
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    /** one scheduler per periodic task, so a slow task never delays another */
+    private final ArrayList<ScheduledExecutorService> schedulers = new ArrayList<ScheduledExecutorService>();
+
+
+    /**
+     * Constructor
+     * @param serviceName String The name of the service.
+     */
+    protected Service(String serviceName) {
+        this.serviceName = serviceName;
+    }
+
+
+    /**
+     * Set up the service. Called once by start().
+     * @throws Exception if the service cannot run; it is then stopped
+     */
+    protected abstract void serviceStart() throws Exception;
+
+
+    /**
+     * Release the resources of the service, waiting for in-flight work to
+     * finish. Called once by stop(), after the schedulers are halted.
+     */
+    protected abstract void serviceStop();
+
+
+    /**
+     * Start the service and stop it when the JVM shuts down.
+     * @throws Exception if the service failed to start
+     */
+    public final void start() throws Exception {
+        synchronized (this) {
+            if (this.state != State.NEW) {
+                return;
+            }
+            this.state = State.RUNNING;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Service.this.stop();
+            }
+        }, this.serviceName + "-shutdown"));
+        try {
+            serviceStart();
+        }
+        catch (Exception e) {
+            stop();
+            throw e;
+        }
+        System.out.println("[^_^] " + this.serviceName + " started");
+    }
+
+
+    /**
+     * Stop the service. Only the first call does anything, later ones return at once.
+     */
+    public final void stop() {
+        synchronized (this) {
+            if (this.state == State.STOPPED) {
+                return;
+            }
+            this.state = State.STOPPED;
+        }
+        System.out.println("[LOG] " + this.serviceName + " is shutting down...");
+        synchronized (this.schedulers) {
+            for (ScheduledExecutorService scheduler : this.schedulers) {
+                scheduler.shutdown();
+            }
+            for (ScheduledExecutorService scheduler : this.schedulers) {
+                awaitTermination(scheduler, STOP_TIMEOUT);
+            }
+        }
+        try {
+            serviceStop();
+        }
+        finally {
+            this.terminated.countDown();
+            System.out.println("[LOG] " + this.serviceName + " stopped");
+        }
+    }
+
+
+    /**
+     * Block until the service is stopped.
+     * @throws InterruptedException
+     */
+    public void awaitTermination() throws InterruptedException {
+        this.terminated.await();
+    }
+
+
+    /** get the state of the service */
+    public State getState() {
+        return this.state;
+    }
+
+
+    /** @return boolean true if the service is started and not stopped */
+    public boolean isRunning() {
+        return this.state == State.RUNNING;
+    }
+
+
+    /**
+     * Run a task periodically until the service stops. An exception thrown
+     * by the task is logged and the next run still happens, where a bare
+     * scheduled executor would silently cancel the task.
+     * @param taskName String The name of the task, also its thread name.
+     * @param task Runnable The task.
+     * @param initialDelay long The delay before the first run.
+     * @param delay long The delay between the end of a run and the start of the next.
+     * @param unit TimeUnit The unit of both delays.
+     */
+    protected void scheduleWithFixedDelay(final String taskName, final Runnable task, long initialDelay,
+                                          long delay, TimeUnit unit)
+    {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads(taskName));
+        synchronized (this.schedulers) {
+            if (this.state == State.STOPPED) {
+                scheduler.shutdown();
+                return;
+            }
+            this.schedulers.add(scheduler);
+        }
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                }
+                catch (RuntimeException e) {
+                    e.printStackTrace();
+                    System.err.println("[Error**] " + taskName + " failed, retrying on its next run");
+                }
+            }
+        }, initialDelay, delay, unit);
+    }
+
+
+    /**
+     * @return ThreadFactory of daemon threads with a name, so they never keep a stopped service alive
+     */
+    public static ThreadFactory daemonThreads(final String threadName) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, threadName);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+
+    /**
+     * Shut an executor down, letting the tasks already submitted finish
+     * within a timeout, then interrupting what is left.
+     * @param executor ExecutorService The executor.
+     * @param timeoutSec int Seconds to wait for its tasks.
+     * @return boolean true if every task finished in time
+     */
+    public static boolean drain(ExecutorService executor, int timeoutSec) {
+        executor.shutdown();
+        return awaitTermination(executor, timeoutSec);
+    }
+
+
+    private static boolean awaitTermination(ExecutorService executor, int timeoutSec) {
+        try {
+            if (executor.awaitTermination(timeoutSec, TimeUnit.SECONDS)) {
+                return true;
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdownNow();
+        return false;
+    }
+}
@@ -0,0 +1,82 @@
+package hdfs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import hdfs.BlockPlacement;
+import hdfs.DataNodeInfo;
+import hdfs.DataNodeStats;
+
+/**
+ * Tests of the placement of new chunks over the DataNodes.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class BlockPlacementTest extends UnitTest {
+
+    private static ArrayList<DataNodeInfo> nodes(int count) {
+        ArrayList<DataNodeInfo> nodes = new ArrayList<DataNodeInfo>();
+        for (int i = 0; i < count; i++) {
+            nodes.add(new DataNodeInfo("10.0.0." + i, 3000 + i, "DataNode", 4000 + i));
+        }
+        return nodes;
+    }
+
+
+    public void testReplicasAreDistinct() {
+        ArrayList<DataNodeInfo> nodes = nodes(5);
+        ArrayList<ArrayList<DataNodeInfo>> placement = new BlockPlacement().place(nodes, 200, 3, 1000);
+        checkEquals(200, placement.size(), "pipelines");
+        for (ArrayList<DataNodeInfo> pipeline : placement) {
+            checkEquals(3, pipeline.size(), "replicas per chunk");
+            checkEquals(3, new HashSet<DataNodeInfo>(pipeline).size(), "distinct replicas");
+        }
+    }
+
+
+    public void testReplicasCappedByNodes() {
+        ArrayList<ArrayList<DataNodeInfo>> placement = new BlockPlacement().place(nodes(2), 4, 3, 1000);
+        for (ArrayList<DataNodeInfo> pipeline : placement) {
+            checkEquals(2, pipeline.size(), "replicas with 2 DataNodes");
+        }
+    }
+
+
+    public void testFullNodesAreSkipped() {
+        ArrayList<DataNodeInfo> nodes = nodes(3);
+        nodes.get(0).stats = new DataNodeStats(10000, 500, 0, 0);
+        nodes.get(1).stats = new DataNodeStats(10000, 9000, 0, 0);
+        ArrayList<ArrayList<DataNodeInfo>> placement = new BlockPlacement().place(nodes, 100, 3, 1000);
+        for (ArrayList<DataNodeInfo> pipeline : placement) {
+            checkEquals(2, pipeline.size(), "replicas on the nodes with room");
+            check(!pipeline.contains(nodes.get(0)), "a full node gets no replica");
+        }
+
+        nodes.get(1).stats = new DataNodeStats(10000, 0, 0, 0);
+        nodes.get(2).stats = new DataNodeStats(10000, 999, 0, 0);
+        check(new BlockPlacement().place(nodes, 1, 3, 1000) == null, "no node has room");
+    }
+
+
+    public void testChunksAreStriped() {
+        ArrayList<DataNodeInfo> nodes = nodes(10);
+        ArrayList<ArrayList<DataNodeInfo>> placement = new BlockPlacement().place(nodes, 1000, 1, 1000);
+        HashMap<DataNodeInfo, Integer> counts = new HashMap<DataNodeInfo, Integer>();
+        for (ArrayList<DataNodeInfo> pipeline : placement) {
+            Integer count = counts.get(pipeline.get(0));
+            counts.put(pipeline.get(0), count == null ? 1 : count + 1);
+        }
+        checkEquals(10, counts.size(), "every node gets chunks");
+        for (int count : counts.values()) {
+            /* equal weights damped by use stay close to an even share of 100 */
+            check(count > 50 && count < 150, "uneven placement : " + counts.values());
+        }
+    }
+
+
+    public static void main(String[] args) {
+        run(BlockPlacementTest.class);
+    }
+}
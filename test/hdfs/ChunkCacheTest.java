@@ -0,0 +1,149 @@
+package hdfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import global.FileIO;
+import hdfs.ChunkCache;
+import hdfs.DataNode;
+import hdfs.HDFSCommon;
+
+/**
+ * Tests of the chunk cache of a DataNode : segmented LRU eviction and the
+ * validation of the chunks inserted.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class ChunkCacheTest extends UnitTest {
+
+    /** configuration shipped with the project, from test/run */
+    private static final String SHIPPED_CONF = "../../conf/hdfs.conf";
+
+    private static final ChunkCache.Validator CURRENT = new ChunkCache.Validator() {
+        @Override
+        public boolean isCurrent() {
+            return true;
+        }
+    };
+
+
+    public void testHitAndMiss() {
+        ChunkCache cache = new ChunkCache(8000);
+        check(cache.get("/a", 0) == null, "miss before the put");
+        cache.put("/a", 0, chunk(1, 100), CURRENT);
+        ByteBuffer hit = cache.get("/a", 0);
+        check(hit != null, "hit after the put");
+        check(hit.isReadOnly(), "cached chunks are read-only");
+        checkEquals(chunk(1, 100), hit, "cached content");
+        checkEquals(1L, cache.getStats().hits, "hits");
+        checkEquals(1L, cache.getStats().misses, "misses");
+        checkEquals(100L, cache.getStats().usedBytes, "bytes used");
+    }
+
+
+    public void testScanEvictsProbationFirst() {
+        /* room for 8 chunks of 100 bytes, the largest admitted is 100 */
+        ChunkCache cache = new ChunkCache(800);
+        cache.put("/hot", 0, chunk(0, 100), CURRENT);
+        cache.get("/hot", 0);
+        /* a scan of cold chunks read once */
+        for (int i = 0; i < 20; i++) {
+            cache.put("/cold", i, chunk(i, 100), CURRENT);
+        }
+        check(cache.get("/hot", 0) != null, "a chunk hit twice survives a scan");
+        check(cache.get("/cold", 0) == null, "the oldest cold chunk is evicted");
+        check(cache.get("/cold", 19) != null, "the newest cold chunk is kept");
+        checkEquals(13L, cache.getStats().evictions, "evictions");
+        check(cache.getStats().usedBytes <= 800, "capacity respected");
+    }
+
+
+    public void testProtectedSegmentIsBounded() {
+        ChunkCache cache = new ChunkCache(800);
+        /* 8 chunks hit twice, the protected segment only holds 6 of them */
+        for (int i = 0; i < 8; i++) {
+            cache.put("/a", i, chunk(i, 100), CURRENT);
+            cache.get("/a", i);
+        }
+        checkEquals(0L, cache.getStats().evictions, "demoted chunks are kept while there is room");
+        cache.put("/b", 0, chunk(9, 100), CURRENT);
+        checkEquals(1L, cache.getStats().evictions, "evictions");
+        /* the two least recently promoted chunks were demoted, the oldest is gone */
+        check(cache.get("/a", 7) != null, "recently promoted chunk kept");
+        check(cache.get("/a", 0) == null, "least recently used demoted chunk evicted");
+    }
+
+
+    public void testTooLargeIsNotCached() {
+        ChunkCache cache = new ChunkCache(800);
+        check(!cache.admits(101), "a chunk over an eighth of the capacity is not admitted");
+        cache.put("/a", 0, chunk(0, 101), CURRENT);
+        check(cache.get("/a", 0) == null, "too large a chunk is not cached");
+    }
+
+
+    public void testStaleChunkIsNotInserted() {
+        ChunkCache cache = new ChunkCache(8000);
+        cache.put("/a", 0, chunk(0, 100), new ChunkCache.Validator() {
+            @Override
+            public boolean isCurrent() {
+                return false;
+            }
+        });
+        check(cache.get("/a", 0) == null, "a chunk removed while it was read is not cached");
+        checkEquals(0L, cache.getStats().usedBytes, "bytes used");
+    }
+
+
+    public void testInvalidate() {
+        ChunkCache cache = new ChunkCache(8000);
+        cache.put("/a", 0, chunk(0, 100), CURRENT);
+        cache.put("/a", 1, chunk(1, 100), CURRENT);
+        cache.get("/a", 1);
+        cache.invalidate("/a", 0);
+        cache.invalidate("/a", 1);
+        check(cache.get("/a", 0) == null, "invalidated probation chunk");
+        check(cache.get("/a", 1) == null, "invalidated protected chunk");
+        checkEquals(0L, cache.getStats().usedBytes, "bytes used");
+
+        cache.put("/a", 0, chunk(2, 100), CURRENT);
+        checkEquals(chunk(2, 100), cache.get("/a", 0), "content put after the invalidation");
+    }
+
+
+    public void testShippedDefaultsAdmitFullChunks() throws IOException {
+        ShippedConf conf = new ShippedConf();
+        FileIO.readConf(SHIPPED_CONF, conf);
+        long capacity = DataNode.chunkCacheCapacity(conf.chunkCacheSizeMB);
+        check(capacity > 0, "the shipped configuration enables the cache");
+        check(new ChunkCache(capacity).admits(HDFSCommon.DFT_CHUNK_SIZE),
+              "the shipped cache admits chunks of the default size");
+        check(conf.maxChunkSize <= HDFSCommon.DFT_CHUNK_SIZE, "shipped chunks are no bigger than the default");
+        check(new ChunkCache(DataNode.chunkCacheCapacity(-1)).admits(HDFSCommon.DFT_CHUNK_SIZE),
+              "the default cache admits chunks of the default size");
+        checkEquals(0L, DataNode.chunkCacheCapacity(0), "a size of 0 disables the cache");
+    }
+
+
+    private static ByteBuffer chunk(int seed, int length) {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        for (int i = 0; i < length; i++) {
+            buf.put((byte) (seed + i));
+        }
+        buf.flip();
+        return buf;
+    }
+
+
+    /** fields of conf/hdfs.conf the cache depends on */
+    private static class ShippedConf {
+        private int chunkCacheSizeMB;
+        private int maxChunkSize;
+    }
+
+
+    public static void main(String[] args) {
+        run(ChunkCacheTest.class);
+    }
+}
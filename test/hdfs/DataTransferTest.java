@@ -0,0 +1,214 @@
+package hdfs;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import hdfs.DataNode;
+import hdfs.DataNodeInfo;
+import hdfs.DataTransferClient;
+import hdfs.DataTransferServer;
+import hdfs.SegmentChunkStore;
+
+/**
+ * Tests of the data transfer service : chunks written through a pipeline of
+ * DataNodes, then read back whole and by range.
+ *
+ * Runs the transfer service of each DataNode in this JVM on a chunk store in
+ * a temporary directory, without RMI nor NameNode.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class DataTransferTest extends UnitTest {
+
+    /** transfer port of the first DataNode, the others follow */
+    private static final int BASE_PORT = 3110;
+    /** a port nothing listens on */
+    private static final int DEAD_PORT = 3119;
+    private static final long GENERATION = 7;
+
+    private List<DataNode> dataNodes = new ArrayList<DataNode>();
+    private List<DataTransferServer> servers = new ArrayList<DataTransferServer>();
+
+
+    public void testPipelineWriteAndRead() throws IOException {
+        List<DataNodeInfo> pipeline = start(3);
+        try {
+            byte[] content = content(1, 300 * 1024);
+            List<DataNodeInfo> stored = DataTransferClient.writeChunk(pipeline, "/a", 0, GENERATION,
+                                                                      ByteBuffer.wrap(content));
+            checkEquals(ids(pipeline), ids(stored), "replicas stored");
+
+            for (int i = 0; i < pipeline.size(); i++) {
+                DataNodeInfo dataNode = pipeline.get(i);
+                SegmentChunkStore.Location location = this.dataNodes.get(i).getChunkStore().get("/a", 0);
+                check(location != null, "chunk stored on " + dataNode.getId());
+                checkEquals(GENERATION, location.generation, "generation on " + dataNode.getId());
+                /* the second read may be served by the chunk cache */
+                check(Arrays.equals(content, readChunk(dataNode, "/a", 0)),
+                      "chunk read from " + dataNode.getId());
+                check(Arrays.equals(content, readChunk(dataNode, "/a", 0)),
+                      "chunk read again from " + dataNode.getId());
+
+                ByteBuffer range = ByteBuffer.allocate(5000);
+                DataTransferClient.readRange(dataNode, "/a", 0, 1000, range);
+                check(Arrays.equals(Arrays.copyOfRange(content, 1000, 6000), range.array()),
+                      "range read from " + dataNode.getId());
+            }
+        }
+        finally {
+            stop();
+        }
+    }
+
+
+    public void testFileRegionWrite() throws IOException {
+        List<DataNodeInfo> pipeline = start(2);
+        try {
+            byte[] content = content(2, 10000);
+            File local = new File(tempDir(), "local");
+            try (FileChannel in = FileChannel.open(local.toPath(), StandardOpenOption.CREATE,
+                                                   StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+                in.write(ByteBuffer.wrap(content(3, 500)));
+                in.write(ByteBuffer.wrap(content));
+                List<DataNodeInfo> stored = DataTransferClient.writeChunk(pipeline, "/b", 1, GENERATION,
+                                                                          in, 500, content.length);
+                checkEquals(ids(pipeline), ids(stored), "replicas stored");
+            }
+            for (DataNodeInfo dataNode : pipeline) {
+                check(Arrays.equals(content, readChunk(dataNode, "/b", 1)),
+                      "chunk read from " + dataNode.getId());
+            }
+        }
+        finally {
+            stop();
+        }
+    }
+
+
+    public void testUnreachableTargetIsSkipped() throws IOException {
+        List<DataNodeInfo> pipeline = start(2);
+        try {
+            DataNodeInfo dead = new DataNodeInfo("127.0.0.1", DEAD_PORT, "dead", DEAD_PORT);
+            List<DataNodeInfo> targets = new ArrayList<DataNodeInfo>();
+            targets.add(pipeline.get(0));
+            targets.add(dead);
+            targets.add(pipeline.get(1));
+            byte[] content = content(4, 1000);
+            List<DataNodeInfo> stored = DataTransferClient.writeChunk(targets, "/c", 0, GENERATION,
+                                                                      ByteBuffer.wrap(content));
+            checkEquals(ids(pipeline), ids(stored), "replicas stored without the dead target");
+            check(Arrays.equals(content, readChunk(pipeline.get(1), "/c", 0)), "chunk read from the tail");
+
+            /* a dead head is skipped as well */
+            targets.remove(0);
+            stored = DataTransferClient.writeChunk(targets, "/c", 1, GENERATION, ByteBuffer.wrap(content));
+            checkEquals(ids(pipeline.subList(1, 2)), ids(stored), "replicas stored behind a dead head");
+        }
+        finally {
+            stop();
+        }
+    }
+
+
+    public void testBadReads() throws IOException {
+        final List<DataNodeInfo> pipeline = start(1);
+        try {
+            DataTransferClient.writeChunk(pipeline, "/d", 0, GENERATION, ByteBuffer.wrap(content(5, 100)));
+            checkThrows(new Block() {
+                @Override
+                public void run() throws IOException {
+                    readChunk(pipeline.get(0), "/d", 1);
+                }
+            }, "read a missing chunk");
+            checkThrows(new Block() {
+                @Override
+                public void run() throws IOException {
+                    DataTransferClient.readRange(pipeline.get(0), "/d", 0, 50, ByteBuffer.allocate(100));
+                }
+            }, "read a range past the end of the chunk");
+            try {
+                readChunk(pipeline.get(0), "/e", 0);
+                throw new AssertionError("read a chunk of a missing file");
+            }
+            catch (FileNotFoundException e) {
+                /* expected */
+            }
+        }
+        finally {
+            stop();
+        }
+    }
+
+
+    /**
+     * Start the transfer services of count DataNodes.
+     * @return List The DataNodes, in pipeline order.
+     */
+    private List<DataNodeInfo> start(int count) throws IOException {
+        List<DataNodeInfo> pipeline = new ArrayList<DataNodeInfo>();
+        for (int i = 0; i < count; i++) {
+            int port = BASE_PORT + i;
+            DataNode dataNode = new DataNode();
+            dataNode.openChunkStore(tempDir().getPath());
+            this.dataNodes.add(dataNode);
+            DataTransferServer server = new DataTransferServer(dataNode, port);
+            server.start();
+            this.servers.add(server);
+            pipeline.add(new DataNodeInfo("127.0.0.1", port, "DataNode" + i, port));
+        }
+        return pipeline;
+    }
+
+
+    private void stop() {
+        for (DataTransferServer server : this.servers) {
+            server.stop(1);
+        }
+        for (DataNode dataNode : this.dataNodes) {
+            dataNode.getChunkStore().close();
+        }
+    }
+
+
+    private byte[] readChunk(DataNodeInfo dataNode, String filename, int chunkNum) throws IOException {
+        File local = new File(tempDir(), "chunk");
+        try (FileChannel out = FileChannel.open(local.toPath(), StandardOpenOption.CREATE,
+                                                StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+            long length = DataTransferClient.readChunk(dataNode, filename, chunkNum, out, 0);
+            ByteBuffer content = ByteBuffer.allocate((int) length);
+            out.read(content, 0);
+            return content.array();
+        }
+    }
+
+
+    private static List<String> ids(List<DataNodeInfo> dataNodes) {
+        List<String> ids = new ArrayList<String>();
+        for (DataNodeInfo dataNode : dataNodes) {
+            ids.add(dataNode.getId());
+        }
+        return ids;
+    }
+
+
+    private static byte[] content(int seed, int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) (seed * 31 + i);
+        }
+        return content;
+    }
+
+
+    public static void main(String[] args) {
+        run(DataTransferTest.class);
+    }
+}
@@ -0,0 +1,218 @@
+package hdfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import hdfs.DataNodeInfo;
+import hdfs.EditLog;
+
+/**
+ * Tests of the on-disk edit log : replay after a restart, torn tails,
+ * segments and transaction ranges.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class EditLogTest extends UnitTest {
+
+    private static final List<DataNodeInfo> PIPELINE = Arrays.asList(
+            new DataNodeInfo("10.0.0.1", 3001, "DataNode", 3011),
+            new DataNodeInfo("10.0.0.2", 3002, "DataNode", 3012));
+
+
+    public void testReplayAfterReopen() throws IOException {
+        File dir = tempDir();
+        EditLog log = new EditLog(dir);
+        checkEquals(0L, log.open(0, new Recorder()), "edits replayed from an empty directory");
+        logAll(log);
+        log.close();
+
+        Recorder replayed = new Recorder();
+        checkEquals(6L, new EditLog(dir).open(0, replayed), "edits replayed");
+        checkEquals(expectedEdits(), replayed.edits, "replayed edits");
+    }
+
+
+    public void testEditsAfterImageAreSkipped() throws IOException {
+        File dir = tempDir();
+        EditLog log = new EditLog(dir);
+        log.open(0, new Recorder());
+        logAll(log);
+        log.close();
+
+        Recorder replayed = new Recorder();
+        EditLog reopened = new EditLog(dir);
+        checkEquals(2L, reopened.open(4, replayed), "edits replayed after transaction 4");
+        checkEquals(expectedEdits().subList(4, 6), replayed.edits, "replayed edits");
+        checkEquals(6L, reopened.getLastTxId(), "last transaction id");
+    }
+
+
+    public void testTornTailIsTruncated() throws IOException {
+        File dir = tempDir();
+        EditLog log = new EditLog(dir);
+        log.open(0, new Recorder());
+        logAll(log);
+        log.close();
+
+        File segment = dir.listFiles()[0];
+        long size = segment.length();
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            /* a length and crc, then half of the payload they announce */
+            raf.seek(size);
+            raf.writeInt(100);
+            raf.writeInt(12345);
+            raf.write(new byte[50]);
+        }
+
+        Recorder replayed = new Recorder();
+        EditLog reopened = new EditLog(dir);
+        checkEquals(6L, reopened.open(0, replayed), "edits replayed before the torn record");
+        checkEquals(size, segment.length(), "segment size after truncation");
+
+        /* the log appends where the torn record was */
+        reopened.logSync(reopened.logMkdirs("/after"));
+        reopened.close();
+        replayed = new Recorder();
+        checkEquals(7L, new EditLog(dir).open(0, replayed), "edits replayed after appending");
+        checkEquals("mkdirs /after", replayed.edits.get(6), "edit appended after the truncation");
+    }
+
+
+    public void testCorruptRecordStopsReplay() throws IOException {
+        File dir = tempDir();
+        EditLog log = new EditLog(dir);
+        log.open(0, new Recorder());
+        long first = log.logMkdirs("/a");
+        log.logSync(first);
+        long firstEnd = dir.listFiles()[0].length();
+        log.logSync(log.logMkdirs("/b"));
+        log.close();
+
+        try (RandomAccessFile raf = new RandomAccessFile(dir.listFiles()[0], "rw")) {
+            /* flip a byte of the second payload, its crc no longer matches */
+            raf.seek(firstEnd + 10);
+            int b = raf.read();
+            raf.seek(firstEnd + 10);
+            raf.write(b ^ 0xff);
+        }
+        Recorder replayed = new Recorder();
+        checkEquals(1L, new EditLog(dir).open(0, replayed), "edits replayed before the corrupt record");
+        checkEquals(Arrays.asList("mkdirs /a"), replayed.edits, "replayed edits");
+    }
+
+
+    public void testRollStartsNewSegment() throws IOException {
+        File dir = tempDir();
+        EditLog log = new EditLog(dir);
+        log.open(0, new Recorder());
+        log.logMkdirs("/a");
+        log.logMkdirs("/b");
+        checkEquals(2L, log.roll(), "last transaction id of the finalized segments");
+        log.logSync(log.logMkdirs("/c"));
+        log.logSync(log.logMkdirs("/d"));
+        log.close();
+        checkEquals(2, dir.listFiles().length, "number of segments");
+
+        /* a checkpoint replays a range of the finalized segments */
+        Recorder range = new Recorder();
+        checkEquals(2L, EditLog.replay(dir, 1, 2, range), "last transaction id replayed");
+        checkEquals(Arrays.asList("mkdirs /b"), range.edits, "edits of the range");
+
+        Recorder all = new Recorder();
+        checkEquals(4L, new EditLog(dir).open(0, all), "edits replayed over both segments");
+        checkEquals(Arrays.asList("mkdirs /a", "mkdirs /b", "mkdirs /c", "mkdirs /d"), all.edits, "replayed edits");
+    }
+
+
+    public void testPurgedEditsAreReported() throws IOException {
+        final File dir = tempDir();
+        EditLog log = new EditLog(dir);
+        log.open(0, new Recorder());
+        log.logMkdirs("/a");
+        log.roll();
+        log.logSync(log.logMkdirs("/b"));
+        log.close();
+        EditLog.purge(dir, 1);
+        checkEquals(1, dir.listFiles().length, "segments left after the purge");
+
+        /* an image at transaction 1 covers the purged segment, no image does not */
+        checkEquals(1L, new EditLog(dir).open(1, new Recorder()), "edits replayed after the image");
+        checkThrows(new Block() {
+            @Override
+            public void run() throws IOException {
+                new EditLog(dir).open(0, new Recorder());
+            }
+        }, "opening without the purged edits must fail");
+    }
+
+
+    /**
+     * Log one edit of every kind, and sync them.
+     */
+    private static void logAll(EditLog log) throws IOException {
+        log.logMkdirs("/dir");
+        log.logCreate("/dir/file", 1024, false);
+        log.logAddChunk("/dir/file", 0, 1000, PIPELINE);
+        log.logCreate("/dir/stream", 2048, true);
+        log.logComplete("/dir/stream");
+        log.logSync(log.logRemove("/dir/file"));
+    }
+
+
+    private static List<String> expectedEdits() {
+        return Arrays.asList("mkdirs /dir",
+                             "create /dir/file 1024 false 2",
+                             "addChunk /dir/file 0 1000 [10.0.0.1:3001, 10.0.0.2:3002]",
+                             "create /dir/stream 2048 true 4",
+                             "complete /dir/stream",
+                             "remove /dir/file");
+    }
+
+
+    /**
+     * Handler recording the edits applied, one line per edit. A create
+     * ends with the generation stamp, the transaction id of the edit.
+     */
+    private static class Recorder implements EditLog.Handler {
+        ArrayList<String> edits = new ArrayList<String>();
+
+        @Override
+        public void create(String fileName, int blockSize, boolean underConstruction, long generationStamp) {
+            this.edits.add("create " + fileName + " " + blockSize + " " + underConstruction + " " + generationStamp);
+        }
+
+        @Override
+        public void addChunk(String fileName, int chunkNum, long length, List<DataNodeInfo> replicas) {
+            ArrayList<String> ids = new ArrayList<String>();
+            for (DataNodeInfo replica : replicas) {
+                ids.add(replica.getId());
+            }
+            this.edits.add("addChunk " + fileName + " " + chunkNum + " " + length + " " + ids);
+        }
+
+        @Override
+        public void remove(String path) {
+            this.edits.add("remove " + path);
+        }
+
+        @Override
+        public void mkdirs(String path) {
+            this.edits.add("mkdirs " + path);
+        }
+
+        @Override
+        public void complete(String fileName) {
+            this.edits.add("complete " + fileName);
+        }
+    }
+
+
+    public static void main(String[] args) {
+        run(EditLogTest.class);
+    }
+}
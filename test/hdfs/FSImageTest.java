@@ -0,0 +1,191 @@
+package hdfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import hdfs.DataNodeIndex;
+import hdfs.DataNodeInfo;
+import hdfs.FSDirectory;
+import hdfs.FSImage;
+import hdfs.INodeFile;
+
+/**
+ * Tests of the namespace image : a saved namespace loads back identical,
+ * replicas included, and a damaged image is refused.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class FSImageTest extends UnitTest {
+
+    private static final DataNodeInfo[] NODES = {
+        new DataNodeInfo("10.0.0.1", 3001, "DataNode", 3011),
+        new DataNodeInfo("10.0.0.2", 3002, "DataNode", 3012),
+        new DataNodeInfo("10.0.0.3", 3003, "DataNode", 3013),
+    };
+
+
+    public void testSaveAndLoad() throws IOException {
+        DataNodeIndex index = new DataNodeIndex();
+        FSDirectory namespace = new FSDirectory();
+        namespace.mkdirs("/empty/dir");
+        INodeFile file = namespace.addFile("/data/part-0", 1000);
+        file.setGenerationStamp(7);
+        file.addChunk(1000, replicas(index, 0, 1, 2));
+        file.addChunk(1000, replicas(index, 2, 0));
+        file.addChunk(17, replicas(index, 1));
+        INodeFile stream = namespace.addFile("/data/stream", 4096);
+        stream.setGenerationStamp(41);
+        stream.startConstruction();
+        stream.addChunk(4096, replicas(index, 1, 2));
+        namespace.addFile("/empty-file", 64);
+
+        File dir = tempDir();
+        File image = FSImage.save(dir, 42, namespace, index);
+        checkEquals(image, FSImage.latest(dir), "latest image");
+        checkEquals(42L, FSImage.txId(image), "transaction id of the image name");
+
+        /* a fresh dictionary numbers the DataNodes differently */
+        DataNodeIndex loadedIndex = new DataNodeIndex();
+        loadedIndex.indexOf(new DataNodeInfo("10.0.0.9", 3009, "DataNode", 3019));
+        FSDirectory loaded = new FSDirectory();
+        checkEquals(42L, FSImage.load(image, loaded, loadedIndex, 2), "transaction id");
+
+        checkEquals(3, loaded.getFileCount(), "file count");
+        check(loaded.isDirectory("/empty/dir"), "empty directory kept");
+        checkSameFile(index, namespace.getFile("/data/part-0"), loadedIndex, loaded.getFile("/data/part-0"));
+        checkSameFile(index, namespace.getFile("/data/stream"), loadedIndex, loaded.getFile("/data/stream"));
+        checkSameFile(index, namespace.getFile("/empty-file"), loadedIndex, loaded.getFile("/empty-file"));
+        check(loaded.getFile("/data/stream").isUnderConstruction(), "file under construction kept");
+        check(!loaded.getFile("/data/part-0").isUnderConstruction(), "complete file kept");
+    }
+
+
+    public void testManySections() throws IOException {
+        DataNodeIndex index = new DataNodeIndex();
+        FSDirectory namespace = new FSDirectory();
+        /* well over one section of files */
+        for (int i = 0; i < 40000; i++) {
+            INodeFile file = namespace.addFile(String.format("/d%02d/file-%06d", i % 50, i), 1 << 20);
+            file.addChunk(1 << 20, replicas(index, i % 3, (i + 1) % 3));
+            file.addChunk(i, replicas(index, (i + 2) % 3));
+        }
+        File dir = tempDir();
+        File image = FSImage.save(dir, 7, namespace, index);
+        check(image.length() > 1024 * 1024, "image spans several sections");
+
+        DataNodeIndex loadedIndex = new DataNodeIndex();
+        FSDirectory loaded = new FSDirectory();
+        FSImage.load(image, loaded, loadedIndex, 4);
+        checkEquals(namespace.getFileCount(), loaded.getFileCount(), "file count");
+        ArrayList<INodeFile> files = namespace.files();
+        ArrayList<INodeFile> loadedFiles = loaded.files();
+        for (int i = 0; i < files.size(); i++) {
+            checkSameFile(index, files.get(i), loadedIndex, loadedFiles.get(i));
+        }
+    }
+
+
+    public void testCorruptSectionIsRefused() throws IOException {
+        DataNodeIndex index = new DataNodeIndex();
+        FSDirectory namespace = new FSDirectory();
+        for (int i = 0; i < 100; i++) {
+            namespace.addFile("/file-" + i, 1000).addChunk(1000, replicas(index, 0, 1));
+        }
+        final File image = FSImage.save(tempDir(), 1, namespace, index);
+        try (RandomAccessFile raf = new RandomAccessFile(image, "rw")) {
+            /* a byte of the file section, right after the header and the small dictionary */
+            raf.seek(image.length() / 2);
+            int b = raf.read();
+            raf.seek(image.length() / 2);
+            raf.write(b ^ 0xff);
+        }
+        checkThrows(new Block() {
+            @Override
+            public void run() throws IOException {
+                FSImage.load(image, new FSDirectory(), new DataNodeIndex(), 1);
+            }
+        }, "a corrupt image must not load");
+    }
+
+
+    public void testTruncatedImageIsRefused() throws IOException {
+        DataNodeIndex index = new DataNodeIndex();
+        FSDirectory namespace = new FSDirectory();
+        namespace.addFile("/file", 1000).addChunk(1000, replicas(index, 0));
+        final File image = FSImage.save(tempDir(), 1, namespace, index);
+        try (RandomAccessFile raf = new RandomAccessFile(image, "rw")) {
+            raf.setLength(image.length() - 5);
+        }
+        checkThrows(new Block() {
+            @Override
+            public void run() throws IOException {
+                FSImage.load(image, new FSDirectory(), new DataNodeIndex(), 1);
+            }
+        }, "a truncated image must not load");
+    }
+
+
+    public void testPurgeKeepsNewestImages() throws IOException {
+        FSDirectory namespace = new FSDirectory();
+        DataNodeIndex index = new DataNodeIndex();
+        File dir = tempDir();
+        for (long txId = 1; txId <= 4; txId++) {
+            FSImage.save(dir, txId * 10, namespace, index);
+        }
+        FSImage.purge(dir);
+        checkEquals(2, dir.listFiles().length, "images kept");
+        checkEquals(40L, FSImage.txId(FSImage.latest(dir)), "newest image");
+    }
+
+
+    /**
+     * @return int[] the dictionary indices of some of NODES
+     */
+    private static int[] replicas(DataNodeIndex index, int... nodes) {
+        int[] indices = new int[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            indices[i] = index.indexOf(NODES[nodes[i]]);
+        }
+        return indices;
+    }
+
+
+    /**
+     * Check two files hold the same chunks on the same DataNodes, each
+     * replica index resolved in its own dictionary.
+     */
+    private static void checkSameFile(DataNodeIndex expectedIndex, INodeFile expected,
+                                      DataNodeIndex actualIndex, INodeFile actual)
+    {
+        String path = expected.getPath();
+        check(actual != null, path + " missing");
+        checkEquals(path, actual.getPath(), "path");
+        checkEquals(expected.getBlockSize(), actual.getBlockSize(), path + " block size");
+        checkEquals(expected.getSize(), actual.getSize(), path + " size");
+        checkEquals(expected.getChunkCount(), actual.getChunkCount(), path + " chunk count");
+        checkEquals(expected.getGenerationStamp(), actual.getGenerationStamp(), path + " generation stamp");
+        for (int c = 0; c < expected.getChunkCount(); c++) {
+            checkEquals(expected.getChunkSize(c), actual.getChunkSize(c), path + " length of chunk " + c);
+            checkEquals(ids(expectedIndex, expected.getReplicas(c)), ids(actualIndex, actual.getReplicas(c)),
+                        path + " replicas of chunk " + c);
+        }
+    }
+
+
+    private static String ids(DataNodeIndex index, int[] replicas) {
+        String[] ids = new String[replicas.length];
+        for (int i = 0; i < replicas.length; i++) {
+            ids[i] = index.get(replicas[i]).getId();
+        }
+        return Arrays.toString(ids);
+    }
+
+
+    public static void main(String[] args) {
+        run(FSImageTest.class);
+    }
+}
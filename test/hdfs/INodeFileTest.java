@@ -0,0 +1,160 @@
+package hdfs;
+
+import java.util.Arrays;
+
+import hdfs.DataNodeIndex;
+import hdfs.DataNodeInfo;
+import hdfs.FSDirectory;
+import hdfs.HDFSFile;
+import hdfs.INodeFile;
+import hdfs.LocatedBlocks;
+
+/**
+ * Tests of the block map of a file on NameNode : chunk lengths, the
+ * replicas recorded per chunk, locating byte ranges and the chunks handed
+ * out to a writer.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class INodeFileTest extends UnitTest {
+
+    private DataNodeIndex index = new DataNodeIndex();
+    private int a = this.index.indexOf(new DataNodeInfo("10.0.0.1", 3001, "DataNode", 3011));
+    private int b = this.index.indexOf(new DataNodeInfo("10.0.0.2", 3002, "DataNode", 3012));
+    private int c = this.index.indexOf(new DataNodeInfo("10.0.0.3", 3003, "DataNode", 3013));
+
+
+    /**
+     * @return INodeFile /file with chunks of 100, 100, 50 (hflushed) and 100 bytes
+     */
+    private INodeFile file() {
+        INodeFile file = new FSDirectory().addFile("/file", 100);
+        file.addChunk(100, new int[] { this.a, this.b });
+        file.addChunk(100, new int[] { this.b, this.c });
+        file.addChunk(50, new int[] { this.c, this.a });
+        file.addChunk(100, new int[] { this.a, this.b });
+        return file;
+    }
+
+
+    public void testLocateRange() {
+        LocatedBlocks blocks = file().locate("/file", 150, 100, 10, this.index);
+        checkEquals("/file", blocks.getFileName(), "file name");
+        checkEquals(350L, blocks.getFileSize(), "file size");
+        checkEquals(4, blocks.getChunkCount(), "chunk count");
+        /* bytes 150 to 249 span chunks 1 and 2 */
+        checkEquals(2, blocks.size(), "chunks located");
+        checkEquals(1, blocks.getChunkNum(0), "first chunk");
+        checkEquals(100L, blocks.getOffset(0), "offset of chunk 1");
+        checkEquals(200L, blocks.getOffset(1), "offset of chunk 2");
+        checkEquals(50, blocks.getLength(1), "length of the hflushed chunk");
+        checkEquals(250L, blocks.getEnd(), "end of the range located");
+        check(!blocks.isLastChunkIncluded(), "last chunk not located");
+        checkEquals(0, blocks.find(199), "chunk holding byte 199");
+        checkEquals(1, blocks.find(249), "chunk holding byte 249");
+        checkEquals(-1, blocks.find(250), "byte 250 is not located");
+        checkEquals(Arrays.asList(this.index.get(this.b), this.index.get(this.c)), blocks.getReplicas(0),
+                    "replicas of chunk 1");
+        checkEquals(Arrays.asList(this.index.get(this.c), this.index.get(this.a)), blocks.getReplicas(1),
+                    "replicas of chunk 2");
+    }
+
+
+    public void testLocateBounds() {
+        INodeFile file = file();
+        LocatedBlocks first = file.locate("/file", 0, 0, 10, this.index);
+        checkEquals(1, first.size(), "an empty range locates the chunk holding its offset");
+        checkEquals(0, first.getChunkNum(0), "chunk of offset 0");
+
+        LocatedBlocks capped = file.locate("/file", 0, Long.MAX_VALUE, 2, this.index);
+        checkEquals(2, capped.size(), "chunks located are capped");
+
+        LocatedBlocks all = file.locate("/file", 240, Long.MAX_VALUE, 10, this.index);
+        checkEquals(2, all.size(), "chunks to the end");
+        checkEquals(2, all.getChunkNum(0), "first chunk");
+        check(all.isLastChunkIncluded(), "last chunk located");
+
+        LocatedBlocks past = file.locate("/file", 350, 10, 10, this.index);
+        checkEquals(0, past.size(), "nothing located past the end");
+        checkEquals(350L, past.getEnd(), "end past the end");
+        check(past.isLastChunkIncluded(), "nothing left to locate past the end");
+    }
+
+
+    public void testLocateDoesNotChangeReplicas() {
+        INodeFile file = file();
+        file.locate("/file", 0, Long.MAX_VALUE, 10, this.index);
+        checkEquals(Arrays.toString(new int[] { this.c, this.a }), Arrays.toString(file.getReplicas(2)),
+                    "replicas of chunk 2 after locate");
+    }
+
+
+    public void testChunks() {
+        INodeFile file = file();
+        checkEquals(4, file.getChunkCount(), "chunk count");
+        checkEquals(350L, file.getSize(), "file size");
+        checkEquals(50L, file.getChunkSize(2), "length of a short chunk");
+        checkEquals(Arrays.toString(new int[] { this.b, this.c }), Arrays.toString(file.getReplicas(1)),
+                    "replicas of chunk 1");
+
+        HDFSFile view = file.toHDFSFile("/file", this.index);
+        checkEquals(350L, view.getSize(), "size of the client view");
+        checkEquals("/file_2", view.getChunkTable().get(2).getChunkName(), "chunk name of the client view");
+        checkEquals(Arrays.asList(this.index.get(this.c), this.index.get(this.a)),
+                    view.getChunkTable().get(2).getReplicaDataNodes(), "replicas of the client view");
+    }
+
+
+    public void testWideChunkWidensTheMap() {
+        INodeFile file = file();
+        for (int i = 0; i < 100; i++) {
+            file.addChunk(100, new int[] { this.a });
+        }
+        file.addChunk(100, new int[] { this.a, this.b, this.c });
+        checkEquals(105, file.getChunkCount(), "chunk count");
+        checkEquals(3, file.getReplicas(104).length, "replicas of the wide chunk");
+        checkEquals(Arrays.toString(new int[] { this.c, this.a }), Arrays.toString(file.getReplicas(2)),
+                    "earlier chunks keep their replicas");
+        checkEquals(1, file.getReplicas(50).length, "a single replica stays single");
+    }
+
+
+    public void testAllocateOnlyUnderConstruction() {
+        INodeFile file = new FSDirectory().addFile("/file", 100);
+        checkEquals(-1, file.allocateChunk(), "a complete file hands out no chunk");
+        check(!file.isAllocated(0), "nothing allocated in a complete file");
+
+        file.startConstruction();
+        checkEquals(0, file.allocateChunk(), "first chunk");
+        checkEquals(1, file.allocateChunk(), "second chunk");
+        file.addChunk(100, new int[] { this.a });
+        check(!file.isAllocated(0), "a committed chunk is no longer allocated");
+        check(file.isAllocated(1), "chunk 1 is being written");
+        check(file.isAllocated(5), "any chunk past the end may be written while under construction");
+        checkEquals(2, file.allocateChunk(), "third chunk");
+
+        file.complete();
+        check(!file.isUnderConstruction(), "completed");
+        check(!file.isAllocated(1), "completing forgets the uncommitted chunks");
+        checkEquals(-1, file.allocateChunk(), "a completed file hands out no chunk");
+    }
+
+
+    public void testReplicas() {
+        INodeFile file = file();
+        check(file.addReplica(0, this.c), "add a replica");
+        check(!file.addReplica(0, this.c), "add a replica twice");
+        checkEquals(Arrays.toString(new int[] { this.a, this.b, this.c }), Arrays.toString(file.getReplicas(0)),
+                    "replicas of chunk 0");
+        check(file.removeReplica(0, this.a), "remove a replica");
+        check(!file.removeReplica(0, this.a), "remove a replica twice");
+        checkEquals(2, file.getReplicas(0).length, "replicas of chunk 0 after the removal");
+        checkEquals(2, file.getReplicas(1).length, "other chunks keep their replicas");
+    }
+
+
+    public static void main(String[] args) {
+        run(INodeFileTest.class);
+    }
+}
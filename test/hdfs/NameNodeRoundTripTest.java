@@ -0,0 +1,214 @@
+package hdfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
+
+import hdfs.BlockLocator;
+import hdfs.BlockReport;
+import hdfs.DataNodeInfo;
+import hdfs.HDFSChunk;
+import hdfs.HDFSFile;
+import hdfs.LocatedBlocks;
+import hdfs.NameNode;
+import hdfs.NameNodeInterface;
+
+/**
+ * Tests of the names a client and NameNode exchange over RMI : whatever the
+ * spelling of a path, both sides agree on the file name and the chunk names
+ * derived from it, and the names survive a NameNode restart. Also checks
+ * that a full block report drops the replicas a DataNode does not have.
+ *
+ * Runs NameNode in this JVM with ../conf/hdfs.conf, so from test/run, and
+ * registers DataNodes that do not exist : no chunk data is transferred.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class NameNodeRoundTripTest extends UnitTest {
+
+    /** port and service of the NameNode, as in test/conf/hdfs.conf */
+    private static final int PORT = 1199;
+    private static final String SERVICE = "NameNode";
+    /** metadata directory of the NameNode, as in test/conf/hdfs.conf */
+    private static final File META_DIR = new File("./NameNode");
+
+
+    public void testNamesRoundTrip() throws Exception {
+        delete(META_DIR);
+        long generation;
+        NameNode server = start();
+        try {
+            NameNodeInterface nameNode = connect();
+            HDFSFile file = nameNode.createFile("foo", 250, 100);
+            check(file != null, "create foo");
+            checkEquals("/foo", file.getName(), "name of a created file");
+            checkEquals(3, file.getChunkTable().size(), "chunks of foo");
+            for (HDFSChunk chunk : file.getChunkTable().values()) {
+                checkEquals("/foo_" + chunk.getChunkNum(), chunk.getChunkName(), "chunk name");
+                checkEquals(2, chunk.getReplicaNumber(), "replicas of " + chunk.getChunkName());
+            }
+            check(nameNode.createFile("/foo", 10, 100) == null, "create foo twice under another spelling");
+
+            /* readers name the chunks after the file name of their locator */
+            for (String spelling : new String[] { "foo", "/foo", "//foo/" }) {
+                BlockLocator locator = new BlockLocator(nameNode, null, spelling, 10);
+                checkEquals("/foo", locator.getFileName(), "locator name of " + spelling);
+                checkEquals(250L, locator.getFileSize(), "size of " + spelling);
+                LocatedBlocks blocks = locator.locate(0);
+                checkEquals("/foo", blocks.getFileName(), "located name of " + spelling);
+                for (int i = 0; i < blocks.size(); i++) {
+                    int chunkNum = blocks.getChunkNum(i);
+                    checkEquals(file.getChunkTable().get(chunkNum).getChunkName(),
+                                locator.getFileName() + "_" + chunkNum, "chunk name read through " + spelling);
+                }
+            }
+
+            /* windows are counted in chunks, whatever the block size */
+            BlockLocator windows = new BlockLocator(nameNode, null, "foo", 2);
+            checkEquals(2, windows.locate(0).size(), "chunks of the first window");
+            LocatedBlocks last = windows.locate(200);
+            checkEquals(2, last.getChunkNum(last.find(200)), "chunk of the next window");
+
+            /* a file written as a stream */
+            HDFSFile stream = nameNode.startFile("dir//bar", 100);
+            check(stream != null, "start dir//bar");
+            checkEquals("/dir/bar", stream.getName(), "name of a started file");
+            HDFSChunk chunk = nameNode.addChunk("dir/bar");
+            check(chunk != null, "add a chunk to dir/bar");
+            checkEquals("/dir/bar_0", chunk.getChunkName(), "name of an added chunk");
+            check(nameNode.commitChunk("/dir/bar/", 0, 40, chunk.getReplicaDataNodes()), "commit /dir/bar_0");
+            check(nameNode.completeFile("dir/bar", 40, 1), "complete dir/bar");
+            check(nameNode.addChunk("/dir/bar") == null, "add a chunk to a completed file");
+
+            HDFSChunk open = nameNode.addChunk(nameNode.startFile("/dir/open", 100).getName());
+            check(nameNode.commitChunk("dir/open", open.getChunkNum(), 100, open.getReplicaDataNodes()),
+                  "commit /dir/open_0");
+
+            HDFSFile removed = nameNode.removeFile("foo");
+            check(removed != null, "remove foo");
+            checkEquals("/foo", removed.getName(), "name of a removed file");
+
+            /* a file created again under the same name stores its chunks with a newer generation */
+            HDFSFile again = nameNode.createFile("/foo", 50, 100);
+            check(again != null, "create foo again");
+            long oldStamp = file.getChunkTable().get(0).getGenerationStamp();
+            check(again.getChunkTable().get(0).getGenerationStamp() > oldStamp, "generation of a recreated file");
+            generation = again.getChunkTable().get(0).getGenerationStamp();
+        }
+        finally {
+            server.stop();
+        }
+
+        /* the namespace is replayed from the edit log */
+        server = start();
+        try {
+            NameNodeInterface nameNode = connect();
+            HDFSFile foo = nameNode.getFile("/foo");
+            check(foo != null, "recreated foo replayed");
+            checkEquals(50L, foo.getSize(), "a removed file stays removed");
+            checkEquals(generation, foo.getChunkTable().get(0).getGenerationStamp(), "generation of a replayed file");
+            HDFSFile bar = nameNode.getFile("dir/bar");
+            check(bar != null, "dir/bar replayed");
+            checkEquals("/dir/bar", bar.getName(), "name of a replayed file");
+            checkEquals(40L, bar.getSize(), "size of a replayed file");
+            check(nameNode.addChunk("dir/bar") == null, "a completed file stays complete");
+            HDFSChunk chunk = nameNode.addChunk("dir/open");
+            check(chunk != null, "a file under construction stays open");
+            checkEquals("/dir/open_1", chunk.getChunkName(), "next chunk of a replayed file");
+        }
+        finally {
+            server.stop();
+            delete(META_DIR);
+        }
+    }
+
+
+    public void testFullReportDropsMissingReplicas() throws Exception {
+        delete(META_DIR);
+        NameNode server = start();
+        HDFSChunk placed;
+        try {
+            NameNodeInterface nameNode = connect();
+            placed = nameNode.createFile("/report", 200, 100).getChunkTable().get(0);
+            DataNodeInfo first = placed.getReplicaDataNodes().get(0);
+            DataNodeInfo second = placed.getReplicaDataNodes().get(1);
+
+            /* the placement was never reported : a full report without the chunk drops it */
+            nameNode.sendBlockReport(first.getId(), new BlockReport.Builder(true).build());
+            check(waitForReplicas(nameNode, "/report", 0, 1), "replica of an empty full report dropped");
+            checkEquals(second.getId(), replicas(nameNode, "/report", 0).get(0).getId(), "replica kept");
+        }
+        finally {
+            server.stop();
+        }
+
+        /* replicas loaded from the edit log are dropped the same way after a restart */
+        server = start();
+        try {
+            NameNodeInterface nameNode = connect();
+            DataNodeInfo second = placed.getReplicaDataNodes().get(1);
+            BlockReport.Builder report = new BlockReport.Builder(true);
+            report.added("/report", 1, 100, placed.getGenerationStamp());
+            nameNode.sendBlockReport(second.getId(), report.build());
+            check(waitForReplicas(nameNode, "/report", 0, 1), "replica of a replayed chunk dropped");
+            checkEquals(placed.getReplicaDataNodes().get(0).getId(), replicas(nameNode, "/report", 0).get(0).getId(),
+                        "replica of the placement replayed");
+        }
+        finally {
+            server.stop();
+            delete(META_DIR);
+        }
+    }
+
+
+    private static ArrayList<DataNodeInfo> replicas(NameNodeInterface nameNode, String fileName, int chunkNum)
+            throws RemoteException
+    {
+        return nameNode.getFile(fileName).getChunkTable().get(chunkNum).getReplicaDataNodes();
+    }
+
+
+    /**
+     * Wait for the report thread to bring a chunk down to a number of replicas.
+     * @return boolean false if it did not within five seconds
+     */
+    private static boolean waitForReplicas(NameNodeInterface nameNode, String fileName, int chunkNum, int count)
+            throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (replicas(nameNode, fileName, chunkNum).size() != count) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+
+    /**
+     * Start NameNode and register three DataNodes with it.
+     */
+    private static NameNode start() throws Exception {
+        NameNode server = new NameNode();
+        server.start();
+        for (int i = 1; i <= 3; i++) {
+            server.registerDataNode("10.0.0." + i, 3000 + i, "DataNode", 3010 + i);
+        }
+        return server;
+    }
+
+
+    private static NameNodeInterface connect() throws IOException, NotBoundException {
+        return (NameNodeInterface) LocateRegistry.getRegistry("127.0.0.1", PORT).lookup(SERVICE);
+    }
+
+
+    public static void main(String[] args) {
+        run(NameNodeRoundTripTest.class);
+    }
+}
@@ -0,0 +1,267 @@
+package hdfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import hdfs.SegmentChunkStore;
+
+/**
+ * Tests of the recovery of the chunk store of a DataNode : what a reopened
+ * store holds after commits, aborts, removals, compaction, damaged segments
+ * and chunks of a newer generation.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public class SegmentChunkStoreTest extends UnitTest {
+
+    private static final long SEGMENT_SIZE = 64 * 1024 * 1024;
+
+
+    public void testCommittedChunksAreRecovered() throws IOException {
+        File dir = tempDir();
+        SegmentChunkStore store = open(dir, SEGMENT_SIZE);
+        put(store, "/a", 0, content(1, 1000));
+        put(store, "/a", 1, content(2, 10));
+        SegmentChunkStore.ChunkWriter aborted = store.create("/b", 0, 0, 100);
+        aborted.getChannel().write(ByteBuffer.wrap(content(3, 100)), aborted.getDataOffset());
+        aborted.abort();
+        check(!store.contains("/b", 0), "an aborted chunk is not stored");
+        store.close();
+
+        store = open(dir, SEGMENT_SIZE);
+        checkContent(store, "/a", 0, content(1, 1000));
+        checkContent(store, "/a", 1, content(2, 10));
+        check(!store.contains("/b", 0), "an aborted chunk is not recovered");
+        checkEquals(2, store.chunks().size(), "chunks recovered");
+
+        /* the reopened store appends after the recovered records */
+        put(store, "/c", 0, content(4, 500));
+        store.close();
+        store = open(dir, SEGMENT_SIZE);
+        checkContent(store, "/a", 0, content(1, 1000));
+        checkContent(store, "/c", 0, content(4, 500));
+        store.close();
+    }
+
+
+    public void testDuplicateCommitIsDead() throws IOException {
+        File dir = tempDir();
+        SegmentChunkStore store = open(dir, SEGMENT_SIZE);
+        put(store, "/a", 0, content(1, 100));
+        SegmentChunkStore.ChunkWriter writer = store.create("/a", 0, 0, 100);
+        writer.getChannel().write(ByteBuffer.wrap(content(2, 100)), writer.getDataOffset());
+        check(!writer.commit(), "a second commit of a chunk is refused");
+        store.close();
+
+        store = open(dir, SEGMENT_SIZE);
+        checkContent(store, "/a", 0, content(1, 100));
+        store.close();
+    }
+
+
+    public void testRemoveSurvivesReopen() throws IOException {
+        File dir = tempDir();
+        SegmentChunkStore store = open(dir, SEGMENT_SIZE);
+        put(store, "/a", 0, content(1, 100));
+        put(store, "/a", 1, content(2, 100));
+        check(store.remove("/a", 0), "remove a stored chunk");
+        check(!store.remove("/a", 0), "remove a chunk twice");
+        store.close();
+
+        store = open(dir, SEGMENT_SIZE);
+        check(!store.contains("/a", 0), "a removed chunk is not recovered");
+        checkContent(store, "/a", 1, content(2, 100));
+
+        /* a chunk written again after its removal is recovered */
+        put(store, "/a", 0, content(3, 50));
+        store.close();
+        store = open(dir, SEGMENT_SIZE);
+        checkContent(store, "/a", 0, content(3, 50));
+        store.close();
+    }
+
+
+    public void testNewerGenerationReplacesChunk() throws IOException {
+        File dir = tempDir();
+        SegmentChunkStore store = open(dir, SEGMENT_SIZE);
+        /* the newer chunk reserves its record first, so it lies before the older one on disk */
+        SegmentChunkStore.ChunkWriter newer = store.create("/a", 0, 2, 100);
+        newer.getChannel().write(ByteBuffer.wrap(content(2, 100)), newer.getDataOffset());
+        put(store, "/a", 0, 1, content(1, 100));
+        check(newer.commit(), "a chunk of a newer generation replaces the stored one");
+        checkContent(store, "/a", 0, content(2, 100));
+
+        SegmentChunkStore.ChunkWriter older = store.create("/a", 0, 1, 100);
+        older.getChannel().write(ByteBuffer.wrap(content(3, 100)), older.getDataOffset());
+        check(!older.commit(), "a chunk of an older generation is refused");
+        store.close();
+
+        store = open(dir, SEGMENT_SIZE);
+        checkContent(store, "/a", 0, content(2, 100));
+        checkEquals(2L, store.get("/a", 0).generation, "generation recovered");
+        store.close();
+    }
+
+
+    public void testStaleRemoveKeepsNewerChunk() throws IOException {
+        File dir = tempDir();
+        SegmentChunkStore store = open(dir, SEGMENT_SIZE);
+        put(store, "/a", 0, 1, content(1, 100));
+        check(store.remove("/a", 0, 1), "remove the chunk of its generation");
+        put(store, "/a", 0, 2, content(2, 100));
+        check(!store.remove("/a", 0, 1), "a removal of an older generation keeps the chunk");
+
+        put(store, "/b", 0, 1, content(3, 100));
+        put(store, "/b", 0, 2, content(4, 100));
+        check(!store.remove("/b", 0, 1), "a replaced generation cannot be removed");
+        store.close();
+
+        store = open(dir, SEGMENT_SIZE);
+        checkContent(store, "/a", 0, content(2, 100));
+        checkContent(store, "/b", 0, content(4, 100));
+        check(store.remove("/b", 0, 2), "remove the newer chunk");
+        store.close();
+
+        store = open(dir, SEGMENT_SIZE);
+        check(!store.contains("/b", 0), "a removed newer chunk does not bring back the older one");
+        store.close();
+    }
+
+
+    public void testTornTailIsTruncated() throws IOException {
+        File dir = tempDir();
+        SegmentChunkStore store = open(dir, SEGMENT_SIZE);
+        put(store, "/a", 0, content(1, 100));
+        put(store, "/a", 1, content(2, 100));
+        store.close();
+
+        File segment = segment(dir, 0);
+        long size = segment.length();
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            /* the last record loses its footer and part of its data */
+            raf.setLength(size - 30);
+        }
+        store = open(dir, SEGMENT_SIZE);
+        checkContent(store, "/a", 0, content(1, 100));
+        check(!store.contains("/a", 1), "a torn chunk is not recovered");
+        check(segment.length() < size - 30, "the torn record is truncated");
+
+        put(store, "/a", 1, content(3, 100));
+        store.close();
+        store = open(dir, SEGMENT_SIZE);
+        checkContent(store, "/a", 1, content(3, 100));
+        store.close();
+    }
+
+
+    public void testDamagedRecordIsSkipped() throws IOException {
+        File dir = tempDir();
+        SegmentChunkStore store = open(dir, SEGMENT_SIZE);
+        put(store, "/a", 0, content(1, 100));
+        put(store, "/a", 1, content(2, 100));
+        put(store, "/a", 2, content(3, 100));
+        store.close();
+
+        try (RandomAccessFile raf = new RandomAccessFile(segment(dir, 0), "rw")) {
+            /* a record whose header never made it to disk */
+            raf.write(new byte[16]);
+        }
+        store = open(dir, SEGMENT_SIZE);
+        check(!store.contains("/a", 0), "a damaged chunk is not recovered");
+        checkContent(store, "/a", 1, content(2, 100));
+        checkContent(store, "/a", 2, content(3, 100));
+        store.close();
+    }
+
+
+    public void testCompactionKeepsLiveChunks() throws IOException {
+        File dir = tempDir();
+        /* a few chunks per segment */
+        SegmentChunkStore store = open(dir, 4096);
+        for (int i = 0; i < 12; i++) {
+            put(store, "/a", i, content(i, 1000));
+        }
+        for (int i = 0; i < 12; i++) {
+            if (i % 3 != 0) {
+                store.remove("/a", i);
+            }
+        }
+        int before = dir.listFiles().length;
+        store.compact();
+        check(dir.listFiles().length < before, "compaction deletes segments");
+        for (int i = 0; i < 12; i += 3) {
+            checkContent(store, "/a", i, content(i, 1000));
+        }
+        store.close();
+
+        store = open(dir, 4096);
+        checkEquals(4, store.chunks().size(), "chunks recovered after compaction");
+        for (int i = 0; i < 12; i++) {
+            if (i % 3 == 0) {
+                checkContent(store, "/a", i, content(i, 1000));
+            }
+            else {
+                check(!store.contains("/a", i), "chunk " + i + " stays removed after compaction");
+            }
+        }
+        store.close();
+    }
+
+
+    private static SegmentChunkStore open(File dir, long segmentSize) throws IOException {
+        SegmentChunkStore store = new SegmentChunkStore(dir.getPath(), segmentSize, 0.5);
+        store.open();
+        return store;
+    }
+
+
+    private static void put(SegmentChunkStore store, String filename, int chunkNum, byte[] content)
+            throws IOException
+    {
+        put(store, filename, chunkNum, 0, content);
+    }
+
+
+    private static void put(SegmentChunkStore store, String filename, int chunkNum, long generation,
+                            byte[] content) throws IOException
+    {
+        SegmentChunkStore.ChunkWriter writer = store.create(filename, chunkNum, generation, content.length);
+        writer.getChannel().write(ByteBuffer.wrap(content), writer.getDataOffset());
+        check(writer.commit(), "commit " + filename + "_" + chunkNum);
+    }
+
+
+    private static void checkContent(SegmentChunkStore store, String filename, int chunkNum, byte[] expected)
+            throws IOException
+    {
+        byte[] actual = store.read(filename, chunkNum);
+        check(actual != null, filename + "_" + chunkNum + " missing");
+        check(Arrays.equals(expected, actual), filename + "_" + chunkNum + " content differs");
+    }
+
+
+    /**
+     * @return byte[] length bytes derived from a seed
+     */
+    private static byte[] content(int seed, int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) (seed * 31 + i);
+        }
+        return content;
+    }
+
+
+    private static File segment(File dir, int id) {
+        return new File(dir, String.format("segment-%08d.dat", id));
+    }
+
+
+    public static void main(String[] args) {
+        run(SegmentChunkStoreTest.class);
+    }
+}
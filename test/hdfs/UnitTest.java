@@ -0,0 +1,136 @@
+package hdfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Minimal harness of the tests run by "make test". A test class extends
+ * UnitTest and runs itself from main() with run(). Every public method whose
+ * name starts with "test" is called on a fresh instance, in name order, and
+ * fails by throwing. Temporary directories made by a test are deleted after it.
+ *
+ * @author Hang Yuan
+ * @author Chuhan Yang
+ */
+public abstract class UnitTest {
+
+    /** temporary directories of the running test */
+    private ArrayList<File> tempDirs = new ArrayList<File>();
+
+
+    /**
+     * Run the tests of a class and exit with status 1 if any failed.
+     * @param testClass Class The test class.
+     */
+    public static void run(Class<? extends UnitTest> testClass) {
+        Method[] methods = testClass.getMethods();
+        Arrays.sort(methods, new Comparator<Method>() {
+            @Override
+            public int compare(Method a, Method b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        int failed = 0;
+        int count = 0;
+        for (Method method : methods) {
+            if (!method.getName().startsWith("test") || method.getParameterTypes().length != 0) {
+                continue;
+            }
+            count++;
+            String name = testClass.getSimpleName() + "." + method.getName();
+            UnitTest test = null;
+            try {
+                test = testClass.getConstructor().newInstance();
+                method.invoke(test);
+                System.out.println("[^_^] " + name + " passed");
+            }
+            catch (InvocationTargetException e) {
+                failed++;
+                System.err.println("[Error**] " + name + " failed");
+                e.getCause().printStackTrace();
+            }
+            catch (ReflectiveOperationException e) {
+                failed++;
+                System.err.println("[Error**] " + name + " could not run");
+                e.printStackTrace();
+            }
+            finally {
+                if (test != null) {
+                    test.cleanUp();
+                }
+            }
+        }
+        System.out.println("[LOG] " + testClass.getSimpleName() + " : " + (count - failed) + " of " + count + " passed");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+
+    /**
+     * @return File a new empty directory, deleted once the test is over
+     */
+    protected File tempDir() throws IOException {
+        File dir = Files.createTempDirectory("hdfs-test").toFile();
+        this.tempDirs.add(dir);
+        return dir;
+    }
+
+
+    protected static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+
+    protected static void checkEquals(Object expected, Object actual, String what) {
+        if (expected == null ? actual != null : !expected.equals(actual)) {
+            throw new AssertionError(what + " : expected " + expected + " but was " + actual);
+        }
+    }
+
+
+    /**
+     * Check that a block of code throws an IOException.
+     */
+    protected static void checkThrows(Block block, String message) {
+        try {
+            block.run();
+        }
+        catch (IOException e) {
+            return;
+        }
+        throw new AssertionError(message);
+    }
+
+
+    /**
+     * Code expected to fail, see checkThrows().
+     */
+    protected interface Block {
+        void run() throws IOException;
+    }
+
+
+    private void cleanUp() {
+        for (File dir : this.tempDirs) {
+            delete(dir);
+        }
+    }
+
+
+    protected static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}